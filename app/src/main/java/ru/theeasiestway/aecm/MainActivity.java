@@ -4,6 +4,7 @@ import android.Manifest;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
 import android.support.v7.app.AppCompatActivity;
@@ -13,8 +14,7 @@ import android.widget.SeekBar;
 import android.widget.Switch;
 import android.widget.TextView;
 
-import ru.theeasiestway.aecm.voice.VoicePlayer;
-import ru.theeasiestway.aecm.voice.VoiceRecorder;
+import ru.theeasiestway.aecm.voice.VoicePipeline;
 import ru.theeasiestway.libaecm.AEC;
 
 public class MainActivity extends AppCompatActivity {
@@ -31,20 +31,27 @@ public class MainActivity extends AppCompatActivity {
     private TextView textViewSeekBarAggressiveMode;
     private SeekBar seekBarEchoLength;
     private TextView textViewSeekBarEchoLength;
+    private TextView textViewLatency;
     private AEC aec = new AEC();
-    private VoiceRecorder voiceRecorder;
-    private VoicePlayer voicePlayer;
-    private boolean stop;
+    private VoicePipeline pipeline;
     private boolean enableAecm;
+    private final Handler handler = new Handler();
+    private final Runnable latencyUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (pipeline == null) return;
+            long latencyNs = pipeline.getAverageLatencyNs();
+            textViewLatency.setText(latencyNs < 0 ? "" : "latency " + latencyNs / 1000000 + "ms, max "
+                    + pipeline.getMaxLatencyNs() / 1000000 + "ms, dropped " + pipeline.getDroppedFrames());
+            handler.postDelayed(this, 500);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        voiceRecorder = new VoiceRecorder();
-        voicePlayer = new VoicePlayer();
-
         playBtn = findViewById(R.id.playBtn);
         playBtn.setOnClickListener(v -> { if (hasRecAudioPermission()) startPlay(); });
 
@@ -56,7 +63,12 @@ public class MainActivity extends AppCompatActivity {
         });
 
         Switch switchAecm = findViewById(R.id.switch_aecm);
-        switchAecm.setOnCheckedChangeListener((buttonView, isChecked) -> enableAecm = isChecked);
+        switchAecm.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            enableAecm = isChecked;
+            if (pipeline != null) pipeline.setAecEnabled(isChecked);
+        });
+
+        textViewLatency = findViewById(R.id.text_view_latency);
 
         textViewSeekBarSampleRate = findViewById(R.id.text_view_seek_bar_sample_rate_label);
         seekBarSampleRate = findViewById(R.id.seek_bar_sample_rate);
@@ -140,6 +152,7 @@ public class MainActivity extends AppCompatActivity {
                     return;
                 }
                 textViewSeekBarEchoLength.setText(progress + "ms");
+                if (pipeline != null) pipeline.setEchoDelayMs(progress);
             }
 
             @Override
@@ -174,20 +187,13 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void play() {
-        if (enableAecm) aec.setSampFreq(seekBarSampleRate.getProgress() == 0 ? AEC.SamplingFrequency.FS_8000Hz : AEC.SamplingFrequency.FS_16000Hz);
-        if (enableAecm) aec.setAecmMode(getAggressiveMode());
-        voiceRecorder.start(SAMPLE_RATE, FRAME_SIZE);
-        voicePlayer.start(SAMPLE_RATE);
-        stop = false;
-        new Thread(() -> {
-            while (!stop) {
-                short[] frame = voiceRecorder.frame();
-                if (enableAecm) aec.farendBuffer(frame, FRAME_SIZE);
-                short[] resultFrame = new short[FRAME_SIZE];
-                if (enableAecm) resultFrame = aec.echoCancellation(frame, null, FRAME_SIZE, seekBarEchoLength.getProgress());
-                voicePlayer.write(enableAecm ? resultFrame : frame);
-            }
-        }).start();
+        aec.setSampFreq(seekBarSampleRate.getProgress() == 0 ? AEC.SamplingFrequency.FS_8000Hz : AEC.SamplingFrequency.FS_16000Hz);
+        aec.setAecmMode(getAggressiveMode());
+        pipeline = new VoicePipeline(aec, SAMPLE_RATE, FRAME_SIZE);
+        pipeline.setAecEnabled(enableAecm);
+        pipeline.setEchoDelayMs(seekBarEchoLength.getProgress());
+        pipeline.start();
+        handler.post(latencyUpdater);
     }
 
     private AEC.AggressiveMode getAggressiveMode() {
@@ -208,9 +214,10 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void stop() {
-        stop = true;
-        voiceRecorder.release();
-        voicePlayer.stopPlaying();
+        handler.removeCallbacks(latencyUpdater);
+        // joins the pipeline threads, they must not touch the AECM instance after it is closed.
+        if (pipeline != null) pipeline.stop();
+        pipeline = null;
     }
 
     @Override
@@ -0,0 +1,16 @@
+package ru.theeasiestway.aecm.voice;
+
+/**
+ * One frame of mono 16 bit PCM travelling through {@link VoicePipeline VoicePipeline}. Frames are preallocated by the
+ * pipeline and handed from thread to thread, only the thread which currently owns a frame touches it.
+ */
+final class AudioFrame {
+
+    final short[] samples;
+    long captureTimeNs; // System.nanoTime() based time the first sample was captured.
+    long renderTimeNs;  // System.nanoTime() based time the first sample is played out, -1 if it is not played.
+
+    AudioFrame(int frameSize) {
+        samples = new short[frameSize];
+    }
+}
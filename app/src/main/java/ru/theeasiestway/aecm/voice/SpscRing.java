@@ -0,0 +1,69 @@
+package ru.theeasiestway.aecm.voice;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread. offer() and poll() never block and
+ * never allocate, the indexes are published with lazySet() and every side caches the index of the other one, so it is
+ * read again only when the ring looks full (or empty).
+ */
+final class SpscRing<T> {
+
+    private final Object[] items;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next slot to poll, written by the consumer only.
+    private final AtomicLong tail = new AtomicLong(); // next slot to offer, written by the producer only.
+    private long cachedHead; // producer's copy of head.
+    private long cachedTail; // consumer's copy of tail.
+
+    /**
+     * @param capacity - maximum number of items, rounded up to a power of two.
+     */
+    SpscRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        items = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * must be called from the producer thread only.
+     *
+     * @return false if the ring is full.
+     */
+    boolean offer(T item) {
+        long t = tail.get();
+        if (t - cachedHead == items.length) {
+            cachedHead = head.get();
+            if (t - cachedHead == items.length) return false;
+        }
+        items[(int) t & mask] = item;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * must be called from the consumer thread only.
+     *
+     * @return the oldest item or null if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long h = head.get();
+        if (h == cachedTail) {
+            cachedTail = tail.get();
+            if (h == cachedTail) return null;
+        }
+        int index = (int) h & mask;
+        T item = (T) items[index];
+        items[index] = null;
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    /**
+     * @return number of items in the ring, may be called from any thread but is only a snapshot.
+     */
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+}
@@ -0,0 +1,270 @@
+package ru.theeasiestway.aecm.voice;
+
+import android.os.Process;
+
+import java.util.concurrent.locks.LockSupport;
+
+import ru.theeasiestway.libaecm.AEC;
+
+/**
+ * Full-duplex loop from the microphone through an {@link AEC AEC} instance to the speaker. Capture, processing and
+ * render run on their own threads, so neither a blocking AudioRecord.read() nor a blocking AudioTrack.write() delays
+ * the other side. The threads hand preallocated {@link AudioFrame frames} to each other through lock-free
+ * single-producer/single-consumer rings, nothing is allocated while the pipeline is running:
+ * <pre>
+ *  capture ---captured---> processing ---toRender---> render
+ *     ^                     |      ^                    |
+ *     +--------free---------+      +-------played-------+
+ * </pre>
+ * The far-end signal of the AEC is taken from the render path: every frame the render thread has written to the
+ * AudioTrack comes back to the processing thread together with the time it is played out, and it is buffered as
+ * far-end before the next captured frame is processed. The same times give the glass-to-glass latency of every frame,
+ * from its capture by the microphone to its playback by the speaker.
+ */
+public class VoicePipeline {
+
+    private static final int  POOL_FRAMES         = 16;       // frames in flight at most.
+    private static final int  RENDER_QUEUE_FRAMES = 2;        // frames waiting for the render thread before the oldest are dropped.
+    private static final long WAIT_NS             = 2000000L; // longest park of an idle thread, it is normally woken by unpark().
+
+    private final AEC aec;
+    private final int sampleRate;
+    private final int frameSize;
+    private final VoiceRecorder recorder = new VoiceRecorder();
+    private final VoicePlayer player = new VoicePlayer();
+
+    private final AudioFrame[] frames = new AudioFrame[POOL_FRAMES];
+    private final AudioFrame spare; // receives the captured samples while the pool is exhausted.
+    private final SpscRing<AudioFrame> free     = new SpscRing<>(POOL_FRAMES); // processing -> capture
+    private final SpscRing<AudioFrame> captured = new SpscRing<>(POOL_FRAMES); // capture -> processing
+    private final SpscRing<AudioFrame> toRender = new SpscRing<>(POOL_FRAMES); // processing -> render
+    private final SpscRing<AudioFrame> played   = new SpscRing<>(POOL_FRAMES); // render -> processing
+
+    private volatile boolean running;
+    private volatile boolean aecEnabled = true;
+    private volatile int echoDelayMs = -1;
+    private Thread captureThread;
+    private Thread processingThread;
+    private Thread renderThread;
+
+    // every counter below is written by a single thread.
+    private volatile long latencyNs = -1;
+    private volatile long averageLatencyNs = -1;
+    private volatile long maxLatencyNs = -1;
+    private volatile long captureDrops;
+    private volatile long renderDrops;
+
+    /**
+     * @param aec - prepared AEC instance with the same sampling frequency, it must not be used by anybody else while
+     *            the pipeline is running.
+     * @param sampleRate - sampling frequency of the microphone and the speaker, 8000 or 16000.
+     * @param frameSize - number of samples in one frame, 80 or 160.
+     */
+    public VoicePipeline(AEC aec, int sampleRate, int frameSize) {
+        this.aec = aec;
+        this.sampleRate = sampleRate;
+        this.frameSize = frameSize;
+        for (int i = 0; i < frames.length; i++) frames[i] = new AudioFrame(frameSize);
+        spare = new AudioFrame(frameSize);
+    }
+
+    /**
+     * @param enabled - whether the captured frames go through the AEC, otherwise they are played as they are.
+     */
+    public void setAecEnabled(boolean enabled) {
+        aecEnabled = enabled;
+    }
+
+    /**
+     * @param delayMs - fixed delay passed to the AEC, or -1 to compute it from the capture and render times of the
+     *                frames, see {@link AEC#echoCancellationAt(short[], short[], short[], int, long)}.
+     */
+    public void setEchoDelayMs(int delayMs) {
+        echoDelayMs = delayMs;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public void start() {
+        if (running) return;
+        resetFrames();
+        latencyNs = averageLatencyNs = maxLatencyNs = -1;
+        captureDrops = renderDrops = 0;
+
+        recorder.start(sampleRate, frameSize);
+        player.start(sampleRate);
+        running = true;
+        captureThread = new Thread(this::capture, "voice-capture");
+        processingThread = new Thread(this::process, "voice-processing");
+        renderThread = new Thread(this::render, "voice-render");
+        captureThread.start();
+        processingThread.start();
+        renderThread.start();
+    }
+
+    /**
+     * stop the threads and wait for them, the AEC instance is not used by the pipeline when it returns.
+     */
+    public void stop() {
+        if (!running) return;
+        running = false;
+        // unblock AudioRecord.read() and AudioTrack.write().
+        recorder.stop();
+        player.stopPlaying();
+        boolean interrupted = false;
+        for (Thread thread : new Thread[] {captureThread, processingThread, renderThread}) {
+            LockSupport.unpark(thread);
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        captureThread = processingThread = renderThread = null;
+        recorder.release();
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return glass-to-glass latency of the latest played frame in ns, or -1 if no frame has been played yet.
+     */
+    public long getLatencyNs() {
+        return latencyNs;
+    }
+
+    /**
+     * @return smoothed glass-to-glass latency in ns, or -1 if no frame has been played yet.
+     */
+    public long getAverageLatencyNs() {
+        return averageLatencyNs;
+    }
+
+    /**
+     * @return highest glass-to-glass latency since start() in ns, or -1 if no frame has been played yet.
+     */
+    public long getMaxLatencyNs() {
+        return maxLatencyNs;
+    }
+
+    /**
+     * @return number of frames dropped since start(), because the pool was exhausted or to keep the render queue
+     *         short.
+     */
+    public long getDroppedFrames() {
+        return captureDrops + renderDrops;
+    }
+
+    // ////////////////////////////////////////////////////////
+    // THREADS
+
+    private void capture() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        AudioFrame frame = null;
+        while (running) {
+            if (frame == null) frame = free.poll();
+            AudioFrame target = frame != null ? frame : spare;
+            long captureTimeNs = recorder.read(target.samples, frameSize);
+            if (captureTimeNs < 0) {
+                if (running) LockSupport.parkNanos(this, WAIT_NS);
+                continue;
+            }
+            if (frame == null) {
+                captureDrops++;
+                continue;
+            }
+            frame.captureTimeNs = captureTimeNs;
+            captured.offer(frame); // never fails, every ring holds the whole pool.
+            frame = null;
+            LockSupport.unpark(processingThread);
+        }
+    }
+
+    private void process() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        while (running) {
+            AudioFrame frame;
+            while ((frame = played.poll()) != null) analyze(frame);
+
+            frame = captured.poll();
+            if (frame == null) {
+                LockSupport.parkNanos(this, WAIT_NS);
+                continue;
+            }
+            cancelEcho(frame);
+            toRender.offer(frame);
+            LockSupport.unpark(renderThread);
+        }
+    }
+
+    private void render() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        while (running) {
+            AudioFrame frame = toRender.poll();
+            if (frame == null) {
+                LockSupport.parkNanos(this, WAIT_NS);
+                continue;
+            }
+            // the queue only grows when the speaker is slower than the microphone, drop the oldest frames to keep the
+            // latency from accumulating.
+            while (toRender.size() > RENDER_QUEUE_FRAMES) {
+                frame.renderTimeNs = -1;
+                played.offer(frame);
+                renderDrops++;
+                frame = toRender.poll();
+            }
+            frame.renderTimeNs = player.write(frame.samples, frameSize);
+            played.offer(frame);
+            LockSupport.unpark(processingThread);
+        }
+    }
+
+    // ////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+
+    /**
+     * take a frame which has been handed to the speaker: buffer it as far-end, measure its latency and return it to
+     * the pool.
+     */
+    private void analyze(AudioFrame frame) {
+        if (frame.renderTimeNs >= 0) {
+            long latency = frame.renderTimeNs - frame.captureTimeNs;
+            long average = averageLatencyNs;
+            latencyNs = latency;
+            averageLatencyNs = average < 0 ? latency : average + ((latency - average) >> 4);
+            if (latency > maxLatencyNs) maxLatencyNs = latency;
+
+            if (aecEnabled) {
+                if (echoDelayMs < 0) aec.farendBufferAt(frame.samples, frameSize, frame.renderTimeNs);
+                else aec.farendBuffer(frame.samples, frameSize);
+            }
+        }
+        free.offer(frame);
+    }
+
+    private void cancelEcho(AudioFrame frame) {
+        if (!aecEnabled) return;
+        short[] samples = frame.samples;
+        int delayMs = echoDelayMs;
+        if (delayMs < 0) aec.echoCancellationAt(samples, null, samples, frameSize, frame.captureTimeNs);
+        else aec.echoCancellation(samples, null, samples, frameSize, delayMs);
+    }
+
+    /**
+     * put every frame back to the pool, called while the threads are not running.
+     */
+    private void resetFrames() {
+        while (captured.poll() != null) ;
+        while (toRender.poll() != null) ;
+        while (played.poll() != null) ;
+        while (free.poll() != null) ;
+        for (AudioFrame frame : frames) free.offer(frame);
+    }
+}
@@ -2,11 +2,20 @@ package ru.theeasiestway.aecm.voice;
 
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
+import android.os.Build;
 
 public class VoicePlayer {
 
+    private static final long TIMESTAMP_PERIOD_NS = 1000000000L; // how often the playback timestamp is refreshed.
+
     private AudioTrack audioTrack;
+    private int sampleRate;
+    private long framesWritten;
+    private AudioTimestamp timestamp;
+    private boolean hasTimestamp;
+    private long timestampUpdateNs;
 
     private void createAudioTrack(int sampleRate) {
         int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_CONFIGURATION_MONO, AudioFormat.ENCODING_PCM_16BIT);
@@ -14,6 +23,10 @@ public class VoicePlayer {
     }
 
     public void start(int sampleRate) {
+        this.sampleRate = sampleRate;
+        framesWritten = 0;
+        hasTimestamp = false;
+        if (timestamp == null && Build.VERSION.SDK_INT >= 19) timestamp = new AudioTimestamp();
         createAudioTrack(sampleRate);
         if (audioTrack.getState() == AudioTrack.STATE_INITIALIZED) audioTrack.play();
         else {
@@ -32,8 +45,34 @@ public class VoicePlayer {
         audioTrack.write(frame, 0, frame.length);
     }
 
+    /**
+     * write one frame, blocks while the buffer of the AudioTrack is full.
+     *
+     * @return System.nanoTime() based time the first sample of the frame is going to be played out, or -1 if the
+     *         player failed or was stopped.
+     */
+    public long write(short[] frame, int length) {
+        long position = framesWritten;
+        int written = audioTrack.write(frame, 0, length);
+        if (written < length) return -1;
+        framesWritten += written;
+        return renderTime(position);
+    }
+
     public void stopPlaying() {
         if (audioTrack.getState() == AudioTrack.STATE_INITIALIZED) audioTrack.stop();
         audioTrack.flush();
     }
-}
\ No newline at end of file
+
+    private long renderTime(long position) {
+        long now = System.nanoTime();
+        if (timestamp != null && now - timestampUpdateNs >= TIMESTAMP_PERIOD_NS) {
+            timestampUpdateNs = now;
+            hasTimestamp = audioTrack.getTimestamp(timestamp);
+        }
+        if (hasTimestamp) return timestamp.nanoTime + (position - timestamp.framePosition) * 1000000000L / sampleRate;
+        // the head position is an unsigned 32 bit counter of the frames played so far.
+        long played = audioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+        return now + (position - played) * 1000000000L / sampleRate;
+    }
+}
@@ -2,17 +2,30 @@ package ru.theeasiestway.aecm.voice;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaRecorder;
+import android.os.Build;
 
 public class VoiceRecorder {
 
+    private static final long TIMESTAMP_PERIOD_NS = 1000000000L; // how often the capture timestamp is refreshed.
+
     private AudioRecord recorder;
     private short[] buffer;
+    private int sampleRate;
+    private long framesRead;
+    private AudioTimestamp timestamp;
+    private boolean hasTimestamp;
+    private long timestampUpdateNs;
 
     public void start(int sampleRate, int frameSize) {
         int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
         recorder = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, minBufferSize);
         buffer = new short[frameSize];
+        this.sampleRate = sampleRate;
+        framesRead = 0;
+        hasTimestamp = false;
+        if (timestamp == null && Build.VERSION.SDK_INT >= 24) timestamp = new AudioTimestamp();
         recorder.startRecording();
     }
 
@@ -21,6 +34,20 @@ public class VoiceRecorder {
         return buffer;
     }
 
+    /**
+     * read one frame into a caller-provided array, blocks until the frame is captured.
+     *
+     * @return System.nanoTime() based time the first sample of the frame was captured, or -1 if the recorder failed or
+     *         was stopped.
+     */
+    public long read(short[] frame, int length) {
+        int read = recorder.read(frame, 0, length);
+        if (read < length) return -1;
+        long position = framesRead;
+        framesRead += read;
+        return captureTime(position, length);
+    }
+
     public void stop() {
         recorder.stop();
     }
@@ -28,4 +55,15 @@ public class VoiceRecorder {
     public void release() {
         recorder.release();
     }
-}
\ No newline at end of file
+
+    private long captureTime(long position, int length) {
+        long now = System.nanoTime();
+        if (timestamp != null && now - timestampUpdateNs >= TIMESTAMP_PERIOD_NS) {
+            timestampUpdateNs = now;
+            hasTimestamp = recorder.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS;
+        }
+        if (hasTimestamp) return timestamp.nanoTime + (position - timestamp.framePosition) * 1000000000L / sampleRate;
+        // without a timestamp the first sample was captured at least one frame ago.
+        return now - length * 1000000000L / sampleRate;
+    }
+}
@@ -0,0 +1,127 @@
+package ru.theeasiestway.libaecm.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.theeasiestway.libaecm.AEC;
+
+/**
+ * Cost of one frame through the public AEC API, in ns/frame. Run with the gc profiler (enabled by default in the
+ * jmh task) to see the allocation rate of every entry point.
+ * <p>
+ * farendBuffer is measured on its own, so after the first few hundred milliseconds it writes into a saturated
+ * far-end buffer; {@link #frame()} gives the cost of a complete far-end plus near-end step.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AecFrameBenchmark {
+
+    @Param({"8000", "16000"})
+    public int sampleRate;
+
+    @Param({"80", "160"})
+    public int frameLength;
+
+    private AEC aec;
+    private Signals signals;
+    private short[][] farendFrames;
+    private short[][] nearendFrames;
+    private short[] out;
+    private ShortBuffer farendDirect;
+    private ShortBuffer nearendDirect;
+    private ShortBuffer outDirect;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        signals = new Signals(sampleRate, frameLength);
+        farendFrames = new short[signals.frames][];
+        nearendFrames = new short[signals.frames][];
+        for (int i = 0; i < signals.frames; i++) {
+            farendFrames[i] = signals.frame(signals.farend, i);
+            nearendFrames[i] = signals.frame(signals.nearend, i);
+        }
+        out = new short[frameLength];
+        farendDirect = directCopy(signals.farend);
+        nearendDirect = directCopy(signals.nearend);
+        outDirect = ByteBuffer.allocateDirect(frameLength * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+
+        aec = new AEC(Signals.samplingFrequency(sampleRate), AEC.AggressiveMode.AGGRESSIVE);
+        signals.warmUp(aec);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        aec.close();
+    }
+
+    @Benchmark
+    public AEC farendBuffer() {
+        return aec.farendBuffer(farendFrames[next()], frameLength);
+    }
+
+    @Benchmark
+    public short[] echoCancellation() {
+        return aec.echoCancellation(nearendFrames[next()], null, frameLength, Signals.ECHO_DELAY_MS);
+    }
+
+    @Benchmark
+    public short[] echoCancellationInto() {
+        return aec.echoCancellation(nearendFrames[next()], null, out, frameLength, Signals.ECHO_DELAY_MS);
+    }
+
+    @Benchmark
+    public ShortBuffer echoCancellationDirect() {
+        int frame = next();
+        nearendDirect.position(frame * frameLength);
+        return aec.echoCancellation(nearendDirect, null, outDirect, frameLength, Signals.ECHO_DELAY_MS);
+    }
+
+    @Benchmark
+    public short[] frame() {
+        int frame = next();
+        aec.farendBuffer(farendFrames[frame], frameLength);
+        return aec.echoCancellation(nearendFrames[frame], null, out, frameLength, Signals.ECHO_DELAY_MS);
+    }
+
+    @Benchmark
+    public ShortBuffer frameDirect() {
+        int frame = next();
+        farendDirect.position(frame * frameLength);
+        nearendDirect.position(frame * frameLength);
+        aec.farendBuffer(farendDirect, frameLength);
+        return aec.echoCancellation(nearendDirect, null, outDirect, frameLength, Signals.ECHO_DELAY_MS);
+    }
+
+    private int next() {
+        int frame = index;
+        index = frame + 1 == signals.frames ? 0 : frame + 1;
+        return frame;
+    }
+
+    private static ShortBuffer directCopy(short[] signal) {
+        ShortBuffer buffer = ByteBuffer.allocateDirect(signal.length * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+        buffer.put(signal).clear();
+        return buffer;
+    }
+}
@@ -0,0 +1,51 @@
+package ru.theeasiestway.libaecm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.theeasiestway.libaecm.AEC;
+
+/**
+ * Cost of (re)preparing an AECM instance, which is paid on every configuration change and at the start of a call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AecPrepareBenchmark {
+
+    @Param({"8000", "16000"})
+    public int sampleRate;
+
+    private AEC aec;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        aec = new AEC(Signals.samplingFrequency(sampleRate), AEC.AggressiveMode.AGGRESSIVE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        aec.close();
+    }
+
+    @Benchmark
+    public AEC prepare() {
+        return aec.prepare();
+    }
+}
@@ -0,0 +1,63 @@
+package ru.theeasiestway.libaecm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.theeasiestway.libaecm.AEC;
+
+/**
+ * Capacity in concurrent streams per core. One operation is one second of audio of a single stream (far-end and
+ * near-end), so the score in ops/s is the number of real-time streams a single thread keeps up with. Run with
+ * -t N to see how the capacity scales over N cores, every thread owns its own AECM instance.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AecStreamsBenchmark {
+
+    @Param({"8000", "16000"})
+    public int sampleRate;
+
+    @Param({"80", "160"})
+    public int frameLength;
+
+    private AEC aec;
+    private Signals signals;
+    private short[] out;
+    private int framesPerSecond;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        signals = new Signals(sampleRate, frameLength);
+        out = new short[sampleRate];
+        framesPerSecond = sampleRate / frameLength;
+        aec = new AEC(Signals.samplingFrequency(sampleRate), AEC.AggressiveMode.AGGRESSIVE);
+        signals.warmUp(aec);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        aec.close();
+    }
+
+    @Benchmark
+    public int streamSecond() {
+        return aec.processBatch(signals.farend, signals.nearend, out, frameLength, framesPerSecond, Signals.ECHO_DELAY_MS);
+    }
+}
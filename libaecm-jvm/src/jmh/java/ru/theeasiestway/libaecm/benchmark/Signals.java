@@ -0,0 +1,60 @@
+package ru.theeasiestway.libaecm.benchmark;
+
+import java.util.Random;
+
+import ru.theeasiestway.libaecm.AEC;
+
+/**
+ * Deterministic synthetic signals shared by the benchmarks: a far-end of noise bursts and a near-end made of an
+ * attenuated, delayed copy of the far-end (the echo) plus a little local noise.
+ */
+final class Signals {
+
+    static final int SECONDS = 2;
+    static final int ECHO_DELAY_MS = 40;
+
+    final short[] farend;
+    final short[] nearend;
+    final int frameLength;
+    final int frames;
+
+    Signals(int sampleRate, int frameLength) {
+        this.frameLength = frameLength;
+        this.frames = sampleRate * SECONDS / frameLength;
+        this.farend = new short[frames * frameLength];
+        this.nearend = new short[frames * frameLength];
+
+        Random random = new Random(42);
+        int echoDelay = sampleRate / 1000 * ECHO_DELAY_MS;
+        for (int i = 0; i < farend.length; i++) {
+            boolean talking = (i / (sampleRate / 4)) % 3 != 2; // 250 ms bursts with pauses
+            farend[i] = (short) (talking ? random.nextGaussian() * 4000 : random.nextGaussian() * 30);
+        }
+        for (int i = 0; i < nearend.length; i++) {
+            int echo = i >= echoDelay ? farend[i - echoDelay] / 3 : 0;
+            nearend[i] = (short) (echo + random.nextGaussian() * 100);
+        }
+    }
+
+    short[] frame(short[] signal, int index) {
+        short[] frame = new short[frameLength];
+        System.arraycopy(signal, (index % frames) * frameLength, frame, 0, frameLength);
+        return frame;
+    }
+
+    /**
+     * feed the whole signal once, so that the instance leaves its start up phase and the benchmarks measure the
+     * adaptive path.
+     */
+    void warmUp(AEC aec) {
+        short[] out = new short[frameLength];
+        for (int i = 0; i < frames; i++) {
+            aec.farendBuffer(frame(farend, i), frameLength);
+            aec.echoCancellation(frame(nearend, i), null, out, frameLength, ECHO_DELAY_MS);
+        }
+    }
+
+    static AEC.SamplingFrequency samplingFrequency(int sampleRate) {
+        return sampleRate == 8000 ? AEC.SamplingFrequency.FS_8000Hz : AEC.SamplingFrequency.FS_16000Hz;
+    }
+}
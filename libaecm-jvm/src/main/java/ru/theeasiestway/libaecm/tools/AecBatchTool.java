@@ -0,0 +1,100 @@
+package ru.theeasiestway.libaecm.tools;
+
+import ru.theeasiestway.libaecm.AEC;
+import ru.theeasiestway.libaecm.AecBatchProcessor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Headless front end of {@link AecBatchProcessor AecBatchProcessor}, run it with
+ * <pre>
+ * ./gradlew :libaecm-jvm:batch --args='[options] farend nearend out [farend nearend out ...]'
+ * </pre>
+ * Options:
+ * <pre>
+ * -threads N   number of worker threads, the number of cores by default
+ * -mode M      aggressiveness mode from 0 to 4, 3 by default
+ * -delay MS    delay of the echo in the near-end in ms, 0 by default
+ * -rate HZ     sampling frequency of raw PCM files (8000, 16000, 32000 or 48000), 16000 by default
+ * -list FILE   read the jobs from FILE, one "farend nearend out" line per job
+ * </pre>
+ * Exits with 1 if any job failed.
+ */
+public class AecBatchTool {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int mode = AEC.AggressiveMode.AGGRESSIVE.getMode();
+        int delay = 0;
+        int rate = 16000;
+        List<String> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("-") && i + 1 >= args.length) usage("missing value of " + arg);
+
+            if (arg.equals("-threads")) threads = Integer.parseInt(args[++i]);
+            else if (arg.equals("-mode")) mode = Integer.parseInt(args[++i]);
+            else if (arg.equals("-delay")) delay = Integer.parseInt(args[++i]);
+            else if (arg.equals("-rate")) rate = Integer.parseInt(args[++i]);
+            else if (arg.equals("-list")) readList(new File(args[++i]), files);
+            else if (arg.startsWith("-")) usage("unknown option " + arg);
+            else files.add(arg);
+        }
+        if (files.isEmpty() || files.size() % 3 != 0) usage("expected farend nearend out triples");
+        if (AEC.AggressiveMode.valueOf(mode) == null) usage("mode must be from 0 to 4");
+        if (AEC.SamplingFrequency.valueOf(rate) == null) usage("rate must be 8000, 16000, 32000 or 48000");
+
+        List<AecBatchProcessor.Job> jobs = new ArrayList<>();
+        for (int i = 0; i < files.size(); i += 3) {
+            jobs.add(new AecBatchProcessor.Job(new File(files.get(i)), new File(files.get(i + 1)), new File(files.get(i + 2))));
+        }
+
+        AecBatchProcessor processor = new AecBatchProcessor(threads, AEC.AggressiveMode.valueOf(mode), delay, rate);
+        long start = System.nanoTime();
+        List<AecBatchProcessor.Result> results = processor.process(jobs, result -> {
+            synchronized (System.out) {
+                System.out.println(result);
+            }
+        });
+        long wallNs = System.nanoTime() - start;
+
+        int failed = 0;
+        double audioSeconds = 0;
+        for (AecBatchProcessor.Result result : results) {
+            if (result == null || !result.isSuccess()) failed++;
+            else audioSeconds += result.getAudioSeconds();
+        }
+        double wallSeconds = wallNs / 1e9;
+        System.out.printf("%d jobs, %d failed, %.2f h of audio in %.1f s on %d threads, %.0fx real time%n",
+                results.size(), failed, audioSeconds / 3600, wallSeconds, Math.min(threads, jobs.size()),
+                audioSeconds / wallSeconds);
+
+        if (failed > 0) System.exit(1);
+    }
+
+    private static void readList(File list, List<String> files) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(list))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] job = line.split("\\s+");
+                if (job.length != 3) usage("bad line in " + list + ": " + line);
+                for (String file : job) files.add(file);
+            }
+        }
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("usage: AecBatchTool [-threads N] [-mode 0-4] [-delay ms] [-rate 8000|16000|32000|48000] "
+                + "[-list file] [farend nearend out ...]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,297 @@
+package ru.theeasiestway.libaecm.regression;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import ru.theeasiestway.libaecm.AEC;
+import ru.theeasiestway.libaecm.AecFarendSource;
+
+/**
+ * Bit-exactness and performance gate of the native core, run by {@code ./gradlew :libaecm-jvm:check} or alone with
+ * <pre>
+ * ./gradlew :libaecm-jvm:regression [-PupdateGolden] [-PtimingThreshold=PCT]
+ * </pre>
+ * Every signal of the {@link RegressionCorpus corpus} goes through the AEC API, and so through the JNI layer and
+ * WebRtcAecm_Process(), at every sampling frequency, frame size and aggressiveness mode, and through compact, gated
+ * and shared instances in the aggressive mode. The 64 bit FNV-1a hash of every output is compared with the golden
+ * file, any difference fails the gate.
+ * <p>
+ * A 5 ms frame at 16000 Hz and above holds less than one 10 ms block of the core, so the instance never leaves its
+ * start-up mode and passes the near-end through; the hashes of those cases pin this down as well.
+ * <p>
+ * The CPU time per 10 ms frame is measured at every sampling frequency, as the best of several runs, and
+ * divided by the time of a fixed calibration loop in Java, which takes most of the speed of the host out of it. The
+ * gate fails when a ratio exceeds its golden value by more than the threshold, 25% by default. With -update both
+ * golden files are rewritten from the current results instead, for changes which are expected to alter the output or
+ * the speed.
+ * <p>
+ * Options:
+ * <pre>
+ * -golden FILE     golden output hashes
+ * -timing FILE     golden CPU times, the timing is skipped without it
+ * -threshold PCT   allowed slowdown in percent, 25 by default
+ * -report FILE     write the hash and the CPU time of every case to FILE
+ * -update          rewrite the golden files
+ * </pre>
+ * Exits with 1 if the gate fails.
+ */
+public class AecRegressionGate {
+
+    private static final int[] RATES = {8000, 16000, 32000, 48000};
+    private static final int TIMING_RUNS = 5;
+    private static final String TIMING_SIGNAL = "doubletalk";
+    private static final String CALIBRATION_KEY = "calibration";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+        File golden = null;
+        File timing = null;
+        File report = null;
+        double threshold = 25;
+        boolean update = false;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-update")) {
+                update = true;
+                continue;
+            }
+            if (i + 1 >= args.length) usage("missing value of " + arg);
+
+            if (arg.equals("-golden")) golden = new File(args[++i]);
+            else if (arg.equals("-timing")) timing = new File(args[++i]);
+            else if (arg.equals("-threshold")) threshold = Double.parseDouble(args[++i]);
+            else if (arg.equals("-report")) report = new File(args[++i]);
+            else usage("unknown option " + arg);
+        }
+        if (golden == null) usage("-golden is required");
+
+        Map<String, String> hashes = new TreeMap<>();
+        for (String signal : RegressionCorpus.SIGNALS) {
+            for (int rate : RATES) {
+                RegressionCorpus corpus = new RegressionCorpus(signal, rate);
+                for (int frameLength : frameLengths(rate)) {
+                    for (int mode = 0; mode <= 4; mode++) {
+                        hashes.put(key(signal, rate, frameLength, "mode" + mode), hash(run(corpus, rate, frameLength, mode, Variant.DEFAULT)));
+                    }
+                    for (Variant variant : new Variant[] {Variant.COMPACT, Variant.GATE, Variant.SHARED}) {
+                        hashes.put(key(signal, rate, frameLength, variant.mName), hash(run(corpus, rate, frameLength, 3, variant)));
+                    }
+                }
+            }
+        }
+
+        Map<String, String> times = new TreeMap<>();
+        if (timing != null) {
+            double calibration = calibrate();
+            times.put(CALIBRATION_KEY, String.format("%.0f", calibration));
+            for (int rate : RATES) {
+                RegressionCorpus corpus = new RegressionCorpus(TIMING_SIGNAL, rate);
+                int frameLength = rate / 100;
+                double best = Double.MAX_VALUE;
+                for (int i = 0; i < TIMING_RUNS; i++) {
+                    long start = THREADS.getCurrentThreadCpuTime();
+                    run(corpus, rate, frameLength, 3, Variant.DEFAULT);
+                    best = Math.min(best, (THREADS.getCurrentThreadCpuTime() - start) / (double) frames(rate, frameLength));
+                }
+                times.put(key(TIMING_SIGNAL, rate, frameLength, "nsPerFrame"), String.format("%.0f", best));
+            }
+        }
+
+        if (report != null) writeReport(report, hashes, times);
+
+        if (update) {
+            store(golden, hashes, "output hashes of the AECM regression gate, see AecRegressionGate");
+            if (timing != null) {
+                store(timing, times, "CPU time per frame of the AECM regression gate in ns, compared relative to "
+                        + CALIBRATION_KEY + ", see AecRegressionGate");
+            }
+            System.out.println("golden files updated: " + hashes.size() + " cases");
+            return;
+        }
+
+        List<String> failures = new ArrayList<>();
+        compareHashes(load(golden), hashes, failures);
+        if (timing != null) compareTimes(load(timing), times, threshold, failures);
+
+        for (String failure : failures) System.out.println("FAILED " + failure);
+        System.out.println(hashes.size() + " cases, " + failures.size() + " failures");
+        if (!failures.isEmpty()) System.exit(1);
+    }
+
+    /**
+     * Kind of the instances a case runs on.
+     */
+    private enum Variant {
+        DEFAULT("default"),
+        COMPACT("compact"),
+        GATE("gate"),
+        SHARED("shared"); // two instances on one far-end source, the outputs of both are hashed.
+
+        final String mName;
+
+        Variant(String name) {
+            mName = name;
+        }
+    }
+
+    /**
+     * @return the outputs of the instances of the case, one after another.
+     */
+    private static short[] run(RegressionCorpus corpus, int rate, int frameLength, int mode, Variant variant) {
+        AEC.SamplingFrequency frequency = AEC.SamplingFrequency.valueOf(rate);
+        AEC.AggressiveMode aggressiveMode = AEC.AggressiveMode.valueOf(mode);
+        AecFarendSource source = variant == Variant.SHARED ? new AecFarendSource() : null;
+        AEC[] instances = new AEC[variant == Variant.SHARED ? 2 : 1];
+        for (int i = 0; i < instances.length; i++) {
+            if (source != null) instances[i] = new AEC(frequency, aggressiveMode, source);
+            else instances[i] = new AEC(frequency, aggressiveMode, variant == Variant.COMPACT);
+            if (variant == Variant.GATE) instances[i].setFarendSilenceGate(true);
+        }
+        if (source != null) source.close();
+
+        int length = corpus.farend.length;
+        short[] out = new short[length * instances.length];
+        short[] farend = new short[frameLength];
+        short[] nearend = new short[frameLength];
+        short[] processed = new short[frameLength];
+        for (int offset = 0; offset + frameLength <= length; offset += frameLength) {
+            System.arraycopy(corpus.farend, offset, farend, 0, frameLength);
+            System.arraycopy(corpus.nearend, offset, nearend, 0, frameLength);
+            for (int i = 0; i < instances.length; i++) {
+                instances[i].farendBuffer(farend, frameLength);
+                if (instances[i].echoCancellation(nearend, null, processed, frameLength, RegressionCorpus.ECHO_DELAY_MS) == null) {
+                    throw new IllegalStateException("echoCancellation() failed at " + rate + " Hz, " + frameLength + " samples");
+                }
+                System.arraycopy(processed, 0, out, i * length + offset, frameLength);
+            }
+        }
+        for (AEC aec : instances) aec.close();
+        return out;
+    }
+
+    private static int[] frameLengths(int rate) {
+        // WebRtcAecm_Process() takes 80 or 160 samples at the rate of the core, 32000 and 48000 Hz are resampled to
+        // 16000 Hz.
+        int factor = rate > 16000 ? rate / 16000 : 1;
+        return new int[] {80 * factor, 160 * factor};
+    }
+
+    private static int frames(int rate, int frameLength) {
+        return rate * RegressionCorpus.SECONDS / frameLength;
+    }
+
+    private static String key(String signal, int rate, int frameLength, String variant) {
+        return signal + "." + rate + "." + frameLength + "." + variant;
+    }
+
+    private static String hash(short[] samples) {
+        long hash = 0xcbf29ce484222325L;
+        for (short sample : samples) {
+            hash = (hash ^ (sample & 0xff)) * 0x100000001b3L;
+            hash = (hash ^ ((sample >> 8) & 0xff)) * 0x100000001b3L;
+        }
+        return String.format("%016x", hash);
+    }
+
+    /**
+     * @return CPU time of a fixed integer workload in ns, the best of several runs.
+     */
+    private static double calibrate() {
+        int[] data = new int[256];
+        long best = Long.MAX_VALUE;
+        int sink = 0;
+        for (int run = 0; run < 20; run++) {
+            long start = THREADS.getCurrentThreadCpuTime();
+            int seed = 1;
+            for (int n = 0; n < 20000; n++) {
+                for (int i = 0; i < data.length; i++) {
+                    seed = seed * 1103515245 + 12345;
+                    data[i] = (data[i] >> 1) + ((seed >> 16) * data[(i + 1) & 0xff] >> 15);
+                }
+                sink += data[n & 0xff];
+            }
+            best = Math.min(best, THREADS.getCurrentThreadCpuTime() - start);
+        }
+        if (sink == 42) System.out.print(""); // keeps the loop from being optimized away.
+        return best;
+    }
+
+    private static void compareHashes(Map<String, String> golden, Map<String, String> hashes, List<String> failures) {
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            String expected = golden.get(entry.getKey());
+            if (expected == null) failures.add(entry.getKey() + ": no golden hash, run with -update");
+            else if (!expected.equals(entry.getValue())) failures.add(entry.getKey() + ": output hash " + entry.getValue() + ", expected " + expected);
+        }
+    }
+
+    private static void compareTimes(Map<String, String> golden, Map<String, String> times, double threshold, List<String> failures) {
+        if (!golden.containsKey(CALIBRATION_KEY)) {
+            failures.add("timing: no golden calibration, run with -update");
+            return;
+        }
+        double scale = Double.parseDouble(times.get(CALIBRATION_KEY)) / Double.parseDouble(golden.get(CALIBRATION_KEY));
+        for (Map.Entry<String, String> entry : times.entrySet()) {
+            if (entry.getKey().equals(CALIBRATION_KEY)) continue;
+            String expected = golden.get(entry.getKey());
+            if (expected == null) {
+                failures.add(entry.getKey() + ": no golden time, run with -update");
+                continue;
+            }
+            double allowed = Double.parseDouble(expected) * scale * (1 + threshold / 100);
+            double actual = Double.parseDouble(entry.getValue());
+            System.out.printf("%s: %.0f ns/frame, %.0f allowed%n", entry.getKey(), actual, allowed);
+            if (actual > allowed) failures.add(String.format("%s: %.0f ns/frame, more than %.0f allowed", entry.getKey(), actual, allowed));
+        }
+    }
+
+    private static void writeReport(File report, Map<String, String> hashes, Map<String, String> times) throws IOException {
+        File parent = report.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) throw new IOException("can't create " + parent);
+        try (PrintStream out = new PrintStream(new FileOutputStream(report))) {
+            for (Map.Entry<String, String> entry : hashes.entrySet()) out.println(entry.getKey() + " " + entry.getValue());
+            for (Map.Entry<String, String> entry : times.entrySet()) out.println(entry.getKey() + " " + entry.getValue());
+        }
+    }
+
+    private static Map<String, String> load(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            }
+        }
+        Map<String, String> values = new TreeMap<>();
+        for (String name : properties.stringPropertyNames()) values.put(name, properties.getProperty(name));
+        return values;
+    }
+
+    /**
+     * writes the values sorted and without the date Properties.store() adds, so that updates diff cleanly.
+     */
+    private static void store(File file, Map<String, String> values, String comment) throws IOException {
+        try (OutputStream out = new FileOutputStream(file); PrintStream print = new PrintStream(out, false, "ISO-8859-1")) {
+            print.println("# " + comment);
+            for (Map.Entry<String, String> entry : values.entrySet()) print.println(entry.getKey() + "=" + entry.getValue());
+        }
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("usage: AecRegressionGate -golden FILE [-timing FILE] [-threshold PCT] [-report FILE] [-update]");
+        System.exit(2);
+    }
+}
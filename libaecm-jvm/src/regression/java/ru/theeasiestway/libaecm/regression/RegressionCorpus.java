@@ -0,0 +1,70 @@
+package ru.theeasiestway.libaecm.regression;
+
+import java.util.Random;
+
+/**
+ * Synthetic far-end/near-end pairs of the regression gate. The signals are generated from fixed seeds with
+ * {@link Random java.util.Random} and {@link StrictMath StrictMath}, whose results are specified by the JDK, so the
+ * corpus is the same on every host without checking audio files in. Changing anything here changes every golden hash.
+ */
+final class RegressionCorpus {
+
+    static final int SECONDS = 4;
+    static final int ECHO_DELAY_MS = 40;
+
+    /**
+     * names of the signals, see {@link #RegressionCorpus(String, int)}.
+     */
+    static final String[] SIGNALS = {"echo", "doubletalk", "delaychange", "farsilence"};
+
+    final short[] farend;
+    final short[] nearend;
+
+    /**
+     * @param signal - one of {@link #SIGNALS}:
+     *               echo - far-end talker, the near-end is its echo and a little noise;
+     *               doubletalk - like echo with a near-end talker during the second and the third second;
+     *               delaychange - like echo, the echo delay jumps from 40 ms to 120 ms after two seconds;
+     *               farsilence - the far-end is silent for two seconds and starts talking then.
+     * @param sampleRate - sampling frequency of the signals.
+     */
+    RegressionCorpus(String signal, int sampleRate) {
+        int length = sampleRate * SECONDS;
+        farend = new short[length];
+        nearend = new short[length];
+
+        Random random = new Random(signal.hashCode() * 31L + sampleRate);
+        boolean farSilence = signal.equals("farsilence");
+        talker(farend, sampleRate, random, 3.0, farSilence ? length / 2 : 0, length);
+
+        int delay = sampleRate / 1000 * ECHO_DELAY_MS;
+        int lateDelay = sampleRate / 1000 * 120;
+        double lowPass = 0;
+        for (int i = 0; i < length; i++) {
+            int d = signal.equals("delaychange") && i >= length / 2 ? lateDelay : delay;
+            lowPass = 0.6 * lowPass + 0.4 * (i >= d ? farend[i - d] : 0);
+            nearend[i] = (short) (lowPass / 2.5 + random.nextGaussian() * 40);
+        }
+        if (signal.equals("doubletalk")) {
+            short[] local = new short[length];
+            talker(local, sampleRate, random, 4.3, sampleRate, 3 * sampleRate);
+            for (int i = 0; i < length; i++) nearend[i] = clip(nearend[i] + local[i]);
+        }
+    }
+
+    /**
+     * speech-like signal between from and to: low-passed noise under a syllabic envelope of syllableHz.
+     */
+    private static void talker(short[] out, int sampleRate, Random random, double syllableHz, int from, int to) {
+        double state = 0;
+        for (int i = from; i < to; i++) {
+            double envelope = Math.max(0, StrictMath.sin(2 * Math.PI * syllableHz * i / sampleRate));
+            state = 0.7 * state + 0.3 * random.nextGaussian() * 9000;
+            out[i] = clip((int) (state * envelope));
+        }
+    }
+
+    private static short clip(int value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+}
@@ -1,29 +1,183 @@
 #include <jni.h>
 #include "AEC.h"
 #include <stdlib.h> // for NULL operator
-#include <assert.h>
-#include "../lib/echo_control_mobile.h"
+#include <stdint.h>
+#include "aecm_handle.h"
+#include "aecm_multichannel.h"
 #include "../lib/echo_control_mobile.h"
 #include "../log/debug_log.h"
 
 const char* TAG = "AECM_LOG";
 
+// field IDs of AEC.AecmConfig, resolved once in JNI_OnLoad().
+static jfieldID gAecmModeID = NULL;
+static jfieldID gCngModeID = NULL;
+static jfieldID gFarendGateID = NULL;
+static jfieldID gDriftCompID = NULL;
+
+// java.nio.ShortBuffer, resolved once in JNI_OnLoad(): the capacity of its direct buffers is counted in samples.
+static jclass gShortBufferClass = NULL;
+
+/**
+ * Runs AecmHandle_Process on java arrays accessed through the critical section.
+ * Every array which was acquired is released on every path, the inputs with JNI_ABORT because they are
+ * only read, out is released last so that its content is committed even if it is the same array as an input.
+ *
+ * Return:     0: OK
+ *             -1: error
+ */
+/**
+ * Checks that an array holds nrOfSamples samples and that nrOfSamples is a positive int16_t.
+ */
+static int isArrayFrame(JNIEnv *env, jshortArray array, jint nrOfSamples) {
+	if (array == NULL || nrOfSamples <= 0 || nrOfSamples > INT16_MAX)
+		return 0;
+	return (*env)->GetArrayLength(env, array) >= nrOfSamples;
+}
+
+/**
+ * Checks that a direct ByteBuffer or ShortBuffer holds nrOfSamples samples from offset bytes on and that
+ * nrOfSamples is a positive int16_t, the sizes are computed in 64 bits so that they can't wrap around.
+ */
+static int isDirectFrame(JNIEnv *env, jobject buffer, jint offset, jint nrOfSamples) {
+	if (buffer == NULL || offset < 0 || nrOfSamples <= 0 || nrOfSamples > INT16_MAX)
+		return 0;
+	int64_t capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+	if (capacity > 0 && (*env)->IsInstanceOf(env, buffer, gShortBufferClass))
+		capacity *= (int64_t) sizeof(int16_t);
+	return capacity - offset >= (int64_t) nrOfSamples * (int64_t) sizeof(int16_t);
+}
+
+static jint processCritical(JNIEnv *env, AecmHandle *handle, jshortArray nearendNoisy, jshortArray nearendClean, jshortArray out, jshort nrOfSamples, jshort msInSndCardBuf) {
+	int16_t *arrNearendNoisy = NULL;
+	int16_t *arrNearendClean = NULL;
+	int16_t *arrOut = NULL;
+	jint ret = -1;
+
+	if (!isArrayFrame(env, nearendNoisy, nrOfSamples) || !isArrayFrame(env, out, nrOfSamples)
+	    || (nearendClean != NULL && !isArrayFrame(env, nearendClean, nrOfSamples)))
+		return -1;
+
+	arrNearendNoisy = (*env)->GetPrimitiveArrayCritical(env, nearendNoisy, NULL);
+	if (arrNearendNoisy == NULL)
+		goto release;
+
+	if (nearendClean != NULL) {
+		arrNearendClean = (*env)->GetPrimitiveArrayCritical(env, nearendClean, NULL);
+		if (arrNearendClean == NULL)
+			goto release;
+	}
+
+	arrOut = (*env)->GetPrimitiveArrayCritical(env, out, NULL);
+	if (arrOut == NULL)
+		goto release;
+
+	ret = AecmHandle_Process(handle, arrNearendNoisy, arrNearendClean, arrOut, nrOfSamples, msInSndCardBuf);
+
+release:
+	if (arrNearendNoisy != NULL)
+		(*env)->ReleasePrimitiveArrayCritical(env, nearendNoisy, arrNearendNoisy, JNI_ABORT);
+	if (arrNearendClean != NULL)
+		(*env)->ReleasePrimitiveArrayCritical(env, nearendClean, arrNearendClean, JNI_ABORT);
+	if (arrOut != NULL)
+		(*env)->ReleasePrimitiveArrayCritical(env, out, arrOut, 0);
+
+	return ret;
+}
+
 /**
  * This function is a wrapper which wraps the WebRtcAecm_Create function in WebRtc echo_control_mobile.c
  * Allocates the memory needed by the AECM. The memory needs to be initialized
  * separately using the WebRtcAecm_Init() function.
  *
+ * Inputs:
+ *         compact - JNI_TRUE to create a compact instance with WebRtcAecm_CreateCompact(), see AecmHandle_Create().
+ *
  * Returns:
  *         -1: error
  *         other values: created AECM instance handler.
  *
  */
-JNIEXPORT jlong JNICALL Java_ru_theeasiestway_libaecm_AEC_nativeCreateAecmInstance(JNIEnv *env, jclass thiz) {
-	void *aecmInstHandler = NULL;
-	if (WebRtcAecm_Create(&aecmInstHandler) == -1)
+static jlong nativeCreateAecmInstance(JNIEnv *env, jclass thiz, jboolean compact) {
+	AecmHandle *handle = AecmHandle_Create(compact == JNI_TRUE);
+	if (handle == NULL)
 		return -1;
 	else
-		return ((long) aecmInstHandler); //returns the pointer which points to created AECM instance to JAVA layer.
+		return ((jlong) (intptr_t) handle); //returns the pointer which points to created AECM handle to JAVA layer.
+}
+
+/**
+ * Creates an AECM instance which shares the far-end analysis of a source created by nativeCreateFarendSource(),
+ * see AecmHandle_CreateShared(). The instance is compact if the source is and is initialized like any other.
+ *
+ * Inputs:
+ *         sourceHandler - handler of the far-end source.
+ *
+ * Returns:
+ *         -1: error
+ *         other values: created AECM instance handler.
+ *
+ */
+static jlong nativeCreateSharedAecmInstance(JNIEnv *env, jclass thiz, jlong sourceHandler) {
+	AecmFarendSource *source = (AecmFarendSource *) (intptr_t) sourceHandler;
+	if (source == NULL)
+		return -1;
+	AecmHandle *handle = AecmHandle_CreateShared(source);
+	if (handle == NULL)
+		return -1;
+	return ((jlong) (intptr_t) handle);
+}
+
+/**
+ * Creates a far-end analysis to be shared by AECM instances, see AecmFarendSource_Create().
+ *
+ * Inputs:
+ *         compact - JNI_TRUE to share it between compact instances.
+ *
+ * Returns:
+ *         -1: error
+ *         other values: created far-end source handler.
+ *
+ */
+static jlong nativeCreateFarendSource(JNIEnv *env, jclass thiz, jboolean compact) {
+	AecmFarendSource *source = AecmFarendSource_Create(compact == JNI_TRUE);
+	if (source == NULL)
+		return -1;
+	return ((jlong) (intptr_t) source);
+}
+
+/**
+ * Releases the reference of the Java layer to a far-end source, it is freed with the last instance sharing it.
+ *
+ * Inputs:
+ *         sourceHandler - handler of the far-end source.
+ *
+ */
+static void nativeReleaseFarendSource(JNIEnv *env, jclass thiz, jlong sourceHandler) {
+	AecmFarendSource_Release((AecmFarendSource *) (intptr_t) sourceHandler);
+}
+
+/**
+ * This function fills an array with the statistics of a far-end source, see AecmFarendSource_GetStats().
+ *
+ * Inputs:
+ *        sourceHandler - Handler of the far-end source.
+ * Outputs:
+ *        values        - Array of at least kFarendSourceStatsLength values which receives the statistics.
+ * Return:     0: OK
+ *             -1: error
+ *
+ */
+static jint nativeGetFarendSourceStats(JNIEnv *env, jclass thiz, jlong sourceHandler, jlongArray values) {
+	AecmFarendSource *source = (AecmFarendSource *) (intptr_t) sourceHandler;
+	if (source == NULL || values == NULL || (*env)->GetArrayLength(env, values) < kFarendSourceStatsLength)
+		return -1;
+
+	jlong stats[kFarendSourceStatsLength];
+	if (AecmFarendSource_GetStats(source, (int64_t *) stats, kFarendSourceStatsLength) != 0)
+		return -1;
+	(*env)->SetLongArrayRegion(env, values, 0, kFarendSourceStatsLength, stats);
+	return 0;
 }
 
 /**
@@ -37,13 +191,12 @@ JNIEXPORT jlong JNICALL Java_ru_theeasiestway_libaecm_AEC_nativeCreateAecmInstan
  *                 -1: error
  *
  */
-JNIEXPORT jint JNICALL Java_ru_theeasiestway_libaecm_AEC_nativeFreeAecmInstance(JNIEnv *env, jclass thiz, jlong aecmHandler) {
-	void *aecmInst = (void *) aecmHandler;
-	if (aecmInst == NULL)
+static jint nativeFreeAecmInstance(JNIEnv *env, jclass thiz, jlong aecmHandler) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL)
 		return -1;
-	int ret = WebRtcAecm_Free(aecmInst);
-	aecmInst = NULL;
-	return ret;
+	AecmHandle_Free(handle);
+	return 0;
 }
 
 /**
@@ -58,11 +211,11 @@ JNIEXPORT jint JNICALL Java_ru_theeasiestway_libaecm_AEC_nativeFreeAecmInstance(
  *                  -1: error
  *
  */
-JNIEXPORT jint JNICALL Java_ru_theeasiestway_libaecm_AEC_nativeInitializeAecmInstance(JNIEnv *env, jclass thiz, jlong aecmHandler, jint sampFreq) {
-	void *aecmInst = (void *) aecmHandler;
-	if (aecmInst == NULL)
+static jint nativeInitializeAecmInstance(JNIEnv *env, jclass thiz, jlong aecmHandler, jint sampFreq) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL)
 		return -1;
-	return WebRtcAecm_Init(aecmInst, sampFreq);
+	return AecmHandle_Init(handle, sampFreq);
 }
 
 /**
@@ -78,21 +231,19 @@ JNIEXPORT jint JNICALL Java_ru_theeasiestway_libaecm_AEC_nativeInitializeAecmIns
  *             -1: error
  *
  */
-JNIEXPORT jint JNICALL Java_ru_theeasiestway_libaecm_AEC_nativeBufferFarend(JNIEnv *env, jclass thiz, jlong aecmHandler, jshortArray farend, jint nrOfSamples) {
-
-    LOGD(TAG, "nativeBufferFarend() nrOfSamples: %d", nrOfSamples);
-
-    void *aecmInst = (void *) aecmHandler;
-	if (aecmInst == NULL) {
-        LOGD(TAG, "nativeBufferFarend() error: aecmInst == NULL");
-        return -1;
-    }
+static jint nativeBufferFarend(JNIEnv *env, jclass thiz, jlong aecmHandler, jshortArray farend, jint nrOfSamples) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || !isArrayFrame(env, farend, nrOfSamples))
+		return -1;
 
 	int ret = -1;
 	if (farend != NULL) {
-		short *arrFarend = (*env)->GetShortArrayElements(env, farend, NULL);
-		ret = WebRtcAecm_BufferFarend(aecmInst, arrFarend, nrOfSamples);
-		(*env)->ReleaseShortArrayElements(env, farend, arrFarend, 0);
+		short *arrFarend = (*env)->GetPrimitiveArrayCritical(env, farend, NULL);
+		if (arrFarend == NULL)
+			return -1;
+		ret = AecmHandle_BufferFarend(handle, arrFarend, (int16_t) nrOfSamples);
+		//farend is only read, so there is nothing to copy back.
+		(*env)->ReleasePrimitiveArrayCritical(env, farend, arrFarend, JNI_ABORT);
 	}
 	return ret;
 }
@@ -117,51 +268,575 @@ JNIEXPORT jint JNICALL Java_ru_theeasiestway_libaecm_AEC_nativeBufferFarend(JNIE
  *
  */
 
-JNIEXPORT jshortArray JNICALL Java_ru_theeasiestway_libaecm_AEC_nativeAecmProcess(JNIEnv *env, jclass thiz, jlong aecmHandler, const jshortArray nearendNoisy, const jshortArray nearendClean, jshort nrOfSamples, jshort msInSndCardBuf) {
+static jshortArray nativeAecmProcess(JNIEnv *env, jclass thiz, jlong aecmHandler, const jshortArray nearendNoisy, const jshortArray nearendClean, jshort nrOfSamples, jshort msInSndCardBuf) {
 
-    LOGD(TAG, "nativeAecmProcess() nrOfSamples: %d; delay: %d", nrOfSamples, msInSndCardBuf);
-
-	int16_t *arrNearendNoisy = NULL;
-	int16_t *arrNearendClean = NULL;
-	int16_t *arrOut = NULL;
-
-	void *aecmInst = (void *) aecmHandler;
-	if (aecmInst == NULL)
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL)
 		return NULL;
 
-	int ret = -1;
-
-	//nearendNoisy and out must not be NULL, otherwise process can not be run, return -1 for error.
-	if (nearendNoisy == NULL)
+	//nearendNoisy must not be NULL and hold the frame, otherwise process can not be run.
+	if (!isArrayFrame(env, nearendNoisy, nrOfSamples)
+	    || (nearendClean != NULL && !isArrayFrame(env, nearendClean, nrOfSamples)))
 		return NULL;
 
 	//create out array
 	jsize outSize = (*env)->GetArrayLength(env, nearendNoisy);
-    jshortArray out = (*env)->NewShortArray(env, outSize);
+	jshortArray out = (*env)->NewShortArray(env, outSize);
+	if (out == NULL)
+		return NULL;
+
+	jint ret = processCritical(env, handle, nearendNoisy, nearendClean, out, nrOfSamples, msInSndCardBuf);
+	if (ret != 0) {
+		//the failure is counted in the statistics of the handle.
+		(*env)->DeleteLocalRef(env, out);
+		return NULL;
+	}
+
+	return out;
+}
+
+/**
+ * This wrapper wraps the WebRtcAecm_Process in echo_control_mobile.c
+ * Runs the AECM on an 80 or 160 sample blocks of data and writes the result into a caller-provided array.
+ * The arrays are accessed through the critical section, nothing is allocated.
+ *
+ * Inputs:
+ *         aecmHandler           - Handler to the AECM handler
+ *         nearendNoisy          - In buffer containing one frame of reference nearend+echo signal.
+ *         nearendClean          - In buffer containing one frame of nearend+echo signal or NULL.
+ *         nrOfSamples           - Number of samples in nearend buffer
+ *         msInSndCardBuf    	 - Delay estimate for sound card and system buffers
+ * Outputs:
+ *         out    - Out buffer, one frame of processed nearend. May be the same array as one of the inputs.
+ * Return:     0: OK
+ *             -1: error
+ *
+ */
+static jint nativeAecmProcessInto(JNIEnv *env, jclass thiz, jlong aecmHandler, jshortArray nearendNoisy, jshortArray nearendClean, jshortArray out, jshort nrOfSamples, jshort msInSndCardBuf) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || nearendNoisy == NULL || out == NULL)
+		return -1;
 
-    //get data from java side.
-	arrNearendNoisy = (*env)->GetShortArrayElements(env, nearendNoisy, NULL);
-	arrOut = (*env)->GetShortArrayElements(env, out, NULL);
+	return processCritical(env, handle, nearendNoisy, nearendClean, out, nrOfSamples, msInSndCardBuf);
+}
 
-	if (nearendClean != NULL)
-		arrNearendClean = (*env)->GetShortArrayElements(env, nearendClean, NULL);
+/**
+ * This wrapper feeds several consecutive frames through WebRtcAecm_BufferFarend and WebRtcAecm_Process
+ * in one native call, so the JNI transition, the array access and the bounds checks are paid once per batch.
+ * For every frame the farend frame is buffered first and then the nearend frame of the same index is processed.
+ *
+ * Inputs:
+ *         aecmHandler           - Handler to the AECM handler
+ *         farend                - frames * nrOfSamples samples of farend signal or NULL if farend is buffered separately
+ *         nearend               - frames * nrOfSamples samples of nearend+echo signal
+ *         nrOfSamples           - Number of samples in one frame, 80 or 160
+ *         frames                - Number of frames in the batch
+ *         delays                - Delay estimate of each frame or NULL to use msInSndCardBuf for all of them
+ *         msInSndCardBuf        - Delay estimate used when delays is NULL
+ * Outputs:
+ *         out    - frames * nrOfSamples samples of processed nearend. May be the same array as nearend.
+ * Return:     number of frames processed before the first error
+ *             -1: error
+ *
+ */
+static jint nativeProcessBatch(JNIEnv *env, jclass thiz, jlong aecmHandler, jshortArray farend, jshortArray nearend, jshortArray out, jint nrOfSamples, jint frames, jintArray delays, jint msInSndCardBuf) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || nearend == NULL || out == NULL || nrOfSamples <= 0 || frames < 0)
+		return -1;
 
-	ret = WebRtcAecm_Process(aecmInst, arrNearendNoisy, arrNearendClean, arrOut,
-			nrOfSamples, msInSndCardBuf);
+	// the arrays must hold every frame, the size is computed in 64 bits so that it can't wrap around.
+	int64_t samples = (int64_t) nrOfSamples * frames;
+	if ((*env)->GetArrayLength(env, nearend) < samples || (*env)->GetArrayLength(env, out) < samples
+	    || (farend != NULL && (*env)->GetArrayLength(env, farend) < samples)
+	    || (delays != NULL && (*env)->GetArrayLength(env, delays) < frames))
+		return -1;
 
-	if (ret != 0) {
-	    LOGD(TAG, "nativeAecmProcess() error ret: %d", ret);
-        return NULL;
+	int16_t *arrFarend = NULL;
+	int16_t *arrNearend = NULL;
+	int16_t *arrOut = NULL;
+	jint *arrDelays = NULL;
+	jint processed = -1;
+
+	if (farend != NULL) {
+		arrFarend = (*env)->GetPrimitiveArrayCritical(env, farend, NULL);
+		if (arrFarend == NULL)
+			goto release;
+	}
+	if (delays != NULL) {
+		arrDelays = (*env)->GetPrimitiveArrayCritical(env, delays, NULL);
+		if (arrDelays == NULL)
+			goto release;
 	}
+	arrNearend = (*env)->GetPrimitiveArrayCritical(env, nearend, NULL);
+	if (arrNearend == NULL)
+		goto release;
+	arrOut = (*env)->GetPrimitiveArrayCritical(env, out, NULL);
+	if (arrOut == NULL)
+		goto release;
 
-	//release and send the changes back to java side.
-	(*env)->ReleaseShortArrayElements(env, nearendNoisy, arrNearendNoisy, 0);
-	(*env)->ReleaseShortArrayElements(env, out, arrOut, 0);
+	for (processed = 0; processed < frames; processed++) {
+		int offset = processed * nrOfSamples;
+		int delay = arrDelays != NULL ? arrDelays[processed] : msInSndCardBuf;
 
-	if (nearendClean != NULL)
-		(*env)->ReleaseShortArrayElements(env, nearendClean, arrNearendClean, 0);
+		//WebRtcAecm_Process clamps the delay itself but reports it as an error, clamp it here to keep going.
+		if (delay < 0)
+			delay = 0;
+		else if (delay > 500)
+			delay = 500;
 
-	return out;
+		if (arrFarend != NULL && AecmHandle_BufferFarend(handle, arrFarend + offset, (int16_t) nrOfSamples) != 0)
+			break;
+		if (AecmHandle_Process(handle, arrNearend + offset, NULL, arrOut + offset, (int16_t) nrOfSamples, (int16_t) delay) != 0)
+			break;
+	}
+
+release:
+	if (arrFarend != NULL)
+		(*env)->ReleasePrimitiveArrayCritical(env, farend, arrFarend, JNI_ABORT);
+	if (arrDelays != NULL)
+		(*env)->ReleasePrimitiveArrayCritical(env, delays, arrDelays, JNI_ABORT);
+	if (arrNearend != NULL)
+		(*env)->ReleasePrimitiveArrayCritical(env, nearend, arrNearend, JNI_ABORT);
+	if (arrOut != NULL)
+		(*env)->ReleasePrimitiveArrayCritical(env, out, arrOut, 0);
+
+	return processed;
+}
+
+/**
+ * This wrapper is nativeProcessBatch() working on direct buffers, for example memory-mapped files, which are read and
+ * written in place. Nothing is copied or allocated.
+ *
+ * Inputs:
+ *         aecmHandler           - Handler to the AECM handler
+ *         farend                - Direct buffer with frames * nrOfSamples samples of farend signal or NULL
+ *         farendOffset          - Offset in bytes of the first frame from the beginning of farend
+ *         nearend               - Direct buffer with frames * nrOfSamples samples of nearend+echo signal
+ *         nearendOffset         - Offset in bytes of the first frame from the beginning of nearend
+ *         outOffset             - Offset in bytes of the first frame from the beginning of out
+ *         nrOfSamples           - Number of samples in one frame, 80 or 160
+ *         frames                - Number of frames in the batch
+ *         msInSndCardBuf        - Delay estimate for sound card and system buffers
+ * Outputs:
+ *         out    - Direct buffer which receives frames * nrOfSamples samples of processed nearend.
+ * Return:     number of frames processed before the first error
+ *             -1: error
+ *
+ */
+static jint nativeProcessBatchDirect(JNIEnv *env, jclass thiz, jlong aecmHandler, jobject farend, jint farendOffset, jobject nearend, jint nearendOffset, jobject out, jint outOffset, jint nrOfSamples, jint frames, jint msInSndCardBuf) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || nearend == NULL || out == NULL)
+		return -1;
+
+	char *arrFarend = NULL;
+	if (farend != NULL) {
+		arrFarend = (*env)->GetDirectBufferAddress(env, farend);
+		if (arrFarend == NULL)
+			return -1;
+		arrFarend += farendOffset;
+	}
+	char *arrNearend = (*env)->GetDirectBufferAddress(env, nearend);
+	char *arrOut = (*env)->GetDirectBufferAddress(env, out);
+	if (arrNearend == NULL || arrOut == NULL)
+		return -1;
+	arrNearend += nearendOffset;
+	arrOut += outOffset;
+
+	// the buffers must hold every frame after their offsets, the size is computed in 64 bits so that it can't wrap.
+	int64_t bytes = (int64_t) nrOfSamples * frames * (int64_t) sizeof(int16_t);
+	if (nrOfSamples <= 0 || frames < 0
+	    || (*env)->GetDirectBufferCapacity(env, nearend) - nearendOffset < bytes
+	    || (*env)->GetDirectBufferCapacity(env, out) - outOffset < bytes
+	    || (farend != NULL && (*env)->GetDirectBufferCapacity(env, farend) - farendOffset < bytes))
+		return -1;
+
+	//WebRtcAecm_Process clamps the delay itself but reports it as an error, clamp it here to keep going.
+	if (msInSndCardBuf < 0)
+		msInSndCardBuf = 0;
+	else if (msInSndCardBuf > 500)
+		msInSndCardBuf = 500;
+
+	jint processed;
+	for (processed = 0; processed < frames; processed++) {
+		size_t offset = (size_t) processed * nrOfSamples * sizeof(int16_t);
+		if (arrFarend != NULL && AecmHandle_BufferFarend(handle, (int16_t *) (arrFarend + offset), (int16_t) nrOfSamples) != 0)
+			break;
+		if (AecmHandle_Process(handle, (int16_t *) (arrNearend + offset), NULL, (int16_t *) (arrOut + offset), (int16_t) nrOfSamples, (int16_t) msInSndCardBuf) != 0)
+			break;
+	}
+	return processed;
+}
+
+/**
+ * This wrapper wraps the WebRtcAecm_BufferFarend function in echo_control_mobile.c
+ * Inserts an 80 or 160 sample block of data from a direct buffer into the farend buffer.
+ * The memory of the buffer is read in place, nothing is copied or allocated.
+ *
+ * Inputs:
+ *       aecmHandler    - Handler to the AECM instance
+ *       farend         - Direct buffer containing one frame of farend signal for L band
+ *       farendOffset   - Offset in bytes of the frame from the beginning of the buffer
+ *       nrOfSamples    - Number of samples in farend buffer
+ *
+ * Return:     0: OK
+ *             -1: error
+ *
+ */
+static jint nativeBufferFarendDirect(JNIEnv *env, jclass thiz, jlong aecmHandler, jobject farend, jint farendOffset, jint nrOfSamples) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || !isDirectFrame(env, farend, farendOffset, nrOfSamples))
+		return -1;
+
+	char *arrFarend = (*env)->GetDirectBufferAddress(env, farend);
+	if (arrFarend == NULL)
+		return -1;
+
+	return AecmHandle_BufferFarend(handle, (int16_t *) (arrFarend + farendOffset), (int16_t) nrOfSamples);
+}
+
+/**
+ * This wrapper wraps the WebRtcAecm_Process in echo_control_mobile.c
+ * Runs the AECM on an 80 or 160 sample blocks of data stored in direct buffers.
+ * The memory of the buffers is read and written in place, nothing is copied or allocated.
+ *
+ * Inputs:
+ *         aecmHandler           - Handler to the AECM handler
+ *         nearendNoisy          - Direct buffer containing one frame of reference nearend+echo signal.
+ *         noisyOffset           - Offset in bytes of the frame from the beginning of nearendNoisy
+ *         nearendClean          - Direct buffer containing one frame of nearend+echo signal or NULL.
+ *         cleanOffset           - Offset in bytes of the frame from the beginning of nearendClean
+ *         out                   - Direct buffer which receives one frame of processed nearend.
+ *         outOffset             - Offset in bytes of the frame from the beginning of out
+ *         nrOfSamples           - Number of samples in nearend buffer
+ *         msInSndCardBuf    	 - Delay estimate for sound card and system buffers
+ * Return:     0: OK
+ *             -1: error
+ *
+ */
+static jint nativeAecmProcessDirect(JNIEnv *env, jclass thiz, jlong aecmHandler, jobject nearendNoisy, jint noisyOffset, jobject nearendClean, jint cleanOffset, jobject out, jint outOffset, jshort nrOfSamples, jshort msInSndCardBuf) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || !isDirectFrame(env, nearendNoisy, noisyOffset, nrOfSamples)
+	    || !isDirectFrame(env, out, outOffset, nrOfSamples)
+	    || (nearendClean != NULL && !isDirectFrame(env, nearendClean, cleanOffset, nrOfSamples)))
+		return -1;
+
+	char *arrNearendNoisy = (*env)->GetDirectBufferAddress(env, nearendNoisy);
+	char *arrOut = (*env)->GetDirectBufferAddress(env, out);
+	char *arrNearendClean = NULL;
+	if (nearendClean != NULL) {
+		arrNearendClean = (*env)->GetDirectBufferAddress(env, nearendClean);
+		if (arrNearendClean == NULL)
+			return -1;
+		arrNearendClean += cleanOffset;
+	}
+
+	if (arrNearendNoisy == NULL || arrOut == NULL)
+		return -1;
+
+	return AecmHandle_Process(handle, (int16_t *) (arrNearendNoisy + noisyOffset), (int16_t *) arrNearendClean,
+			(int16_t *) (arrOut + outOffset), nrOfSamples, msInSndCardBuf);
+}
+
+/**
+ * This function buffers a chunk of farend signal of any length, see AecmHandle_BufferFarendStream() in aecm_handle.c.
+ * Every complete 10 ms frame is passed to WebRtcAecm_BufferFarend, the rest is kept until the next call.
+ *
+ * Inputs:
+ *       aecmHandler    - Handler to the AECM instance
+ *       farend         - In buffer containing the chunk of farend signal
+ *       length         - Number of samples in the chunk
+ *
+ * Return:     0: OK
+ *             -1: error
+ *
+ */
+static jint nativeBufferFarendStream(JNIEnv *env, jclass thiz, jlong aecmHandler, jshortArray farend, jint length) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || farend == NULL)
+		return -1;
+
+	int16_t *arrFarend = (*env)->GetPrimitiveArrayCritical(env, farend, NULL);
+	if (arrFarend == NULL)
+		return -1;
+	jint ret = AecmHandle_BufferFarendStream(handle, arrFarend, length);
+	(*env)->ReleasePrimitiveArrayCritical(env, farend, arrFarend, JNI_ABORT);
+
+	return ret;
+}
+
+/**
+ * This function processes a chunk of nearend signal of any length, see AecmHandle_ProcessStream() in aecm_handle.c.
+ * Every complete 10 ms frame is passed to WebRtcAecm_Process, the output lags the input by exactly one frame.
+ *
+ * Inputs:
+ *         aecmHandler           - Handler to the AECM handler
+ *         nearend               - In buffer containing the chunk of nearend+echo signal
+ *         length                - Number of samples in the chunk
+ *         msInSndCardBuf        - Delay estimate for sound card and system buffers
+ * Outputs:
+ *         out    - Out buffer which receives length samples of processed nearend. May be the same array as nearend.
+ * Return:     0: OK
+ *             -1: error
+ *
+ */
+static jint nativeProcessStream(JNIEnv *env, jclass thiz, jlong aecmHandler, jshortArray nearend, jshortArray out, jint length, jshort msInSndCardBuf) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || nearend == NULL || out == NULL)
+		return -1;
+
+	int16_t *arrNearend = NULL;
+	int16_t *arrOut = NULL;
+	jint ret = -1;
+
+	arrNearend = (*env)->GetPrimitiveArrayCritical(env, nearend, NULL);
+	if (arrNearend == NULL)
+		goto release;
+	arrOut = (*env)->GetPrimitiveArrayCritical(env, out, NULL);
+	if (arrOut == NULL)
+		goto release;
+
+	ret = AecmHandle_ProcessStream(handle, arrNearend, arrOut, length, msInSndCardBuf);
+
+release:
+	if (arrNearend != NULL)
+		(*env)->ReleasePrimitiveArrayCritical(env, nearend, arrNearend, JNI_ABORT);
+	if (arrOut != NULL)
+		(*env)->ReleasePrimitiveArrayCritical(env, out, arrOut, 0);
+
+	return ret;
+}
+
+/**
+ * This function is nativeBufferFarendStream() working on a direct buffer which is read in place.
+ *
+ * Inputs:
+ *       aecmHandler    - Handler to the AECM instance
+ *       farend         - Direct buffer containing the chunk of farend signal
+ *       farendOffset   - Offset in bytes of the chunk from the beginning of the buffer
+ *       length         - Number of samples in the chunk
+ *
+ * Return:     0: OK
+ *             -1: error
+ *
+ */
+static jint nativeBufferFarendStreamDirect(JNIEnv *env, jclass thiz, jlong aecmHandler, jobject farend, jint farendOffset, jint length) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || farend == NULL)
+		return -1;
+
+	char *arrFarend = (*env)->GetDirectBufferAddress(env, farend);
+	if (arrFarend == NULL || length < 0 || farendOffset < 0
+	    || (*env)->GetDirectBufferCapacity(env, farend) - farendOffset < (int64_t) length * 2)
+		return -1;
+
+	return AecmHandle_BufferFarendStream(handle, (int16_t *) (arrFarend + farendOffset), length);
+}
+
+/**
+ * This function is nativeProcessStream() working on direct buffers which are read and written in place.
+ *
+ * Inputs:
+ *         aecmHandler           - Handler to the AECM handler
+ *         nearend               - Direct buffer containing the chunk of nearend+echo signal
+ *         nearendOffset         - Offset in bytes of the chunk from the beginning of nearend
+ *         out                   - Direct buffer which receives length samples of processed nearend
+ *         outOffset             - Offset in bytes of the output from the beginning of out
+ *         length                - Number of samples in the chunk
+ *         msInSndCardBuf        - Delay estimate for sound card and system buffers
+ * Return:     0: OK
+ *             -1: error
+ *
+ */
+static jint nativeProcessStreamDirect(JNIEnv *env, jclass thiz, jlong aecmHandler, jobject nearend, jint nearendOffset, jobject out, jint outOffset, jint length, jshort msInSndCardBuf) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || nearend == NULL || out == NULL)
+		return -1;
+
+	char *arrNearend = (*env)->GetDirectBufferAddress(env, nearend);
+	char *arrOut = (*env)->GetDirectBufferAddress(env, out);
+	if (arrNearend == NULL || arrOut == NULL || length < 0 || nearendOffset < 0 || outOffset < 0)
+		return -1;
+
+	int64_t bytes = (int64_t) length * 2;
+	if ((*env)->GetDirectBufferCapacity(env, nearend) - nearendOffset < bytes
+	    || (*env)->GetDirectBufferCapacity(env, out) - outOffset < bytes)
+		return -1;
+
+	return AecmHandle_ProcessStream(handle, (int16_t *) (arrNearend + nearendOffset), (int16_t *) (arrOut + outOffset),
+			length, msInSndCardBuf);
+}
+
+/**
+ * This wrapper wraps the WebRtcAecm_GetEchoPath function in echo_control_mobile.c
+ * Copies the echo path (the stored echo channel) currently used by the AECM instance.
+ *
+ * Inputs:
+ *        aecmHandler - Handler to the AECM instance.
+ * Outputs:
+ *        echoPath    - Array of at least WebRtcAecm_echo_path_size_bytes() / 2 values which receives the echo path.
+ * Return:     0: OK
+ *             -1: error
+ *
+ */
+static jint nativeGetEchoPath(JNIEnv *env, jclass thiz, jlong aecmHandler, jshortArray echoPath) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || echoPath == NULL)
+		return -1;
+
+	void *arrEchoPath = (*env)->GetPrimitiveArrayCritical(env, echoPath, NULL);
+	if (arrEchoPath == NULL)
+		return -1;
+	jint ret = WebRtcAecm_GetEchoPath(handle->aecmInst, arrEchoPath, WebRtcAecm_echo_path_size_bytes());
+	(*env)->ReleasePrimitiveArrayCritical(env, echoPath, arrEchoPath, ret == 0 ? 0 : JNI_ABORT);
+
+	return ret;
+}
+
+/**
+ * This wrapper wraps the WebRtcAecm_InitEchoPath function in echo_control_mobile.c
+ * Resets the echo channel adaptation of the AECM instance with the given echo path.
+ *
+ * Inputs:
+ *        aecmHandler - Handler to the AECM instance.
+ *        echoPath    - Array of at least WebRtcAecm_echo_path_size_bytes() / 2 values holding the echo path.
+ * Return:     0: OK
+ *             -1: error
+ *
+ */
+static jint nativeInitEchoPath(JNIEnv *env, jclass thiz, jlong aecmHandler, jshortArray echoPath) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || echoPath == NULL)
+		return -1;
+
+	void *arrEchoPath = (*env)->GetPrimitiveArrayCritical(env, echoPath, NULL);
+	if (arrEchoPath == NULL)
+		return -1;
+	jint ret = AecmHandle_InitEchoPath(handle, arrEchoPath, WebRtcAecm_echo_path_size_bytes());
+	(*env)->ReleasePrimitiveArrayCritical(env, echoPath, arrEchoPath, JNI_ABORT);
+
+	return ret;
+}
+
+/**
+ * This wrapper wraps the WebRtcAecm_echo_path_size_bytes function in echo_control_mobile.c
+ *
+ * Return:     number of 16 bit values in the echo path.
+ *
+ */
+static jint nativeEchoPathLength(JNIEnv *env, jclass thiz) {
+	return (jint) (WebRtcAecm_echo_path_size_bytes() / sizeof(int16_t));
+}
+
+/**
+ * This wrapper wraps the WebRtcAecm_GetDelayMetrics function in echo_control_mobile.c
+ * Gets the delay offset found by the internal delay estimator and its quality.
+ *
+ * Inputs:
+ *        aecmHandler - Handler to the AECM instance.
+ * Outputs:
+ *        metrics     - Array of at least 2 values which receives the delay offset in ms and the quality in Q14.
+ * Return:     0: OK
+ *             -1: error
+ *             -2: insufficient data for estimation
+ *
+ */
+static jint nativeGetDelayMetrics(JNIEnv *env, jclass thiz, jlong aecmHandler, jintArray metrics) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || metrics == NULL)
+		return -1;
+
+	int delayOffsetMs = 0;
+	int quality = 0;
+	jint ret = WebRtcAecm_GetDelayMetrics(handle->aecmInst, &delayOffsetMs, &quality);
+	if (ret == 0) {
+		jint values[2] = {delayOffsetMs, quality};
+		(*env)->SetIntArrayRegion(env, metrics, 0, 2, values);
+	}
+	return ret;
+}
+
+/**
+ * This function copies the statistics kept by the AECM handle together with the current state of the AECM instance,
+ * see AecmHandle_GetStats() in aecm_handle.c for the layout of the values.
+ * The counters are read with relaxed atomics, so it can be called from any thread while frames are being processed.
+ *
+ * Inputs:
+ *        aecmHandler - Handler to the AECM instance.
+ * Outputs:
+ *        values      - Array of at least kStatsLength values which receives the statistics.
+ * Return:     0: OK
+ *             -1: error
+ *
+ */
+static jint nativeGetStats(JNIEnv *env, jclass thiz, jlong aecmHandler, jlongArray values) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || values == NULL || (*env)->GetArrayLength(env, values) < kStatsLength)
+		return -1;
+
+	jlong stats[kStatsLength];
+	if (AecmHandle_GetStats(handle, (int64_t *) stats, kStatsLength) != 0)
+		return -1;
+	(*env)->SetLongArrayRegion(env, values, 0, kStatsLength, stats);
+	return 0;
+}
+
+/**
+ * This function returns the number of bytes allocated for the AECM instance, see AecmHandle_MemorySize().
+ *
+ * Inputs:
+ *        aecmHandler - Handler to the AECM instance.
+ * Return:     bytes allocated for the instance
+ *             -1: error
+ *
+ */
+static jlong nativeGetMemorySize(JNIEnv *env, jclass thiz, jlong aecmHandler) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL)
+		return -1;
+	return (jlong) AecmHandle_MemorySize(handle);
+}
+
+/**
+ * This function starts recording every farend frame, nearend frame, output frame and delay of the AECM instance
+ * into a memory-mapped ring file, see aecm_recorder.h for the format. The audio threads only enqueue the frames,
+ * the file is written by a background thread.
+ *
+ * Inputs:
+ *        aecmHandler   - Handler to the AECM instance.
+ *        path          - Path of the ring file, it is created or truncated.
+ *        capacityBytes - Size of the ring of records in bytes.
+ * Return:     0: OK
+ *             -1: error
+ *
+ */
+static jint nativeStartRecording(JNIEnv *env, jclass thiz, jlong aecmHandler, jstring path, jint capacityBytes) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || path == NULL || capacityBytes <= 0)
+		return -1;
+
+	const char *filePath = (*env)->GetStringUTFChars(env, path, NULL);
+	if (filePath == NULL)
+		return -1;
+	jint ret = AecmHandle_StartRecording(handle, filePath, (uint32_t) capacityBytes);
+	(*env)->ReleaseStringUTFChars(env, path, filePath);
+
+	if (ret != 0)
+		LOGE(TAG, "nativeStartRecording() can't record into the file");
+	return ret;
+}
+
+/**
+ * This function stops the recording started by nativeStartRecording() and closes the file once the pending
+ * records are written. Does nothing if the AECM instance doesn't record.
+ *
+ * Inputs:
+ *        aecmHandler - Handler to the AECM instance.
+ *
+ */
+static void nativeStopRecording(JNIEnv *env, jclass thiz, jlong aecmHandler) {
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle != NULL)
+		AecmHandle_StopRecording(handle);
 }
 
 /**
@@ -177,34 +852,248 @@ JNIEXPORT jshortArray JNICALL Java_ru_theeasiestway_libaecm_AEC_nativeAecmProces
  *             -1: error
  *
  */
-JNIEXPORT jint JNICALL Java_ru_theeasiestway_libaecm_AEC_nativeSetConfig(JNIEnv *env, jclass thiz, jlong aecmHandler, jobject aecmConfig) {
+static jint nativeSetConfig(JNIEnv *env, jclass thiz, jlong aecmHandler, jobject aecmConfig) {
 
-	void * aecmInst = (void *) aecmHandler;
-	if (aecmInst == NULL)
+	AecmHandle *handle = (AecmHandle *) (intptr_t) aecmHandler;
+	if (handle == NULL || aecmConfig == NULL)
 		return -1;
 
-	//get reference of AecmConfig class  from java side.
-	jclass JavaAecmConfig = (*env)->GetObjectClass(env, aecmConfig);
+	//set new configuration to AECM instance, field IDs are resolved once in JNI_OnLoad().
+	AecmConfig config;
+	config.echoMode = (*env)->GetShortField(env, aecmConfig, gAecmModeID);
+	config.cngMode = (*env)->GetShortField(env, aecmConfig, gCngModeID);
+	config.farendGate = (*env)->GetShortField(env, aecmConfig, gFarendGateID);
+	config.driftComp = (*env)->GetShortField(env, aecmConfig, gDriftCompID);
 
-	//assertion that class not be NULL
-	assert(JavaAecmConfig != NULL);
+	return AecmHandle_SetConfig(handle, config);
+}
 
-	//get configuration field IDs from java side.
-	jfieldID mAecmModeID = (*env)->GetFieldID(env, JavaAecmConfig, "mAecmMode", "S");
-	jfieldID mCngModeID = (*env)->GetFieldID(env, JavaAecmConfig, "mCngMode", "S");
+/**
+ * Creates the AECM instances of an interleaved multichannel capture, one per channel, see AecmMultichannel_Create().
+ *
+ * Inputs:
+ *         channels       - Number of capture channels, 1 to 8.
+ *         farendChannels - Number of far-end channels, 1 to 8.
+ *         parallel       - JNI_TRUE to process the channels on a thread each.
+ *
+ * Returns:
+ *         -1: error
+ *         other values: handler of the created instances.
+ *
+ */
+static jlong nativeCreateMultichannel(JNIEnv *env, jclass thiz, jint channels, jint farendChannels, jboolean parallel) {
+	AecmMultichannel *multichannel = AecmMultichannel_Create(channels, farendChannels, parallel == JNI_TRUE);
+	if (multichannel == NULL)
+		return -1;
+	return ((jlong) (intptr_t) multichannel);
+}
+
+/**
+ * Stops the workers and releases the instances created by nativeCreateMultichannel().
+ */
+static void nativeFreeMultichannel(JNIEnv *env, jclass thiz, jlong multichannelHandler) {
+	AecmMultichannel_Free((AecmMultichannel *) (intptr_t) multichannelHandler);
+}
 
-	//if any ID is NULL, return -1 for error.
-	if (mAecmModeID == NULL || mCngModeID == NULL)
+/**
+ * Initializes the instance of every channel, see AecmHandle_Init().
+ *
+ * Inputs:
+ *            multichannelHandler - Handler of the multichannel instances
+ *            sampFreq            - Sampling frequency of data
+ *
+ * Return:          0: OK
+ *                  -1: error
+ *
+ */
+static jint nativeInitMultichannel(JNIEnv *env, jclass thiz, jlong multichannelHandler, jint sampFreq) {
+	AecmMultichannel *multichannel = (AecmMultichannel *) (intptr_t) multichannelHandler;
+	if (multichannel == NULL)
 		return -1;
+	return AecmMultichannel_Init(multichannel, sampFreq);
+}
 
-	//get values of fields
-	short echoMode = (*env)->GetShortField(env, aecmConfig, mAecmModeID);
-	short cngMode = (*env)->GetShortField(env, aecmConfig, mCngModeID);
+/**
+ * Sets the configuration of the instance of every channel.
+ *
+ * Inputs:
+ *            multichannelHandler - Handler of the multichannel instances
+ *            aecmMode            - Aggressiveness mode, 0 to 4
+ *            cngMode             - AecmTrue or AecmFalse
+ *            farendGate          - AecmTrue or AecmFalse
+ *            driftComp           - AecmTrue or AecmFalse
+ *
+ * Return:          0: OK
+ *                  -1: error
+ *
+ */
+static jint nativeSetMultichannelConfig(JNIEnv *env, jclass thiz, jlong multichannelHandler, jshort aecmMode, jshort cngMode, jshort farendGate, jshort driftComp) {
+	AecmMultichannel *multichannel = (AecmMultichannel *) (intptr_t) multichannelHandler;
+	if (multichannel == NULL)
+		return -1;
 
-	//set new configuration to AECM instance.
 	AecmConfig config;
-	config.echoMode = echoMode;
+	config.echoMode = aecmMode;
 	config.cngMode = cngMode;
+	config.farendGate = farendGate;
+	config.driftComp = driftComp;
+	return AecmMultichannel_SetConfig(multichannel, config);
+}
+
+/**
+ * Downmixes one frame of interleaved far-end and buffers it for every channel, see AecmMultichannel_BufferFarend().
+ *
+ * Inputs:
+ *       multichannelHandler - Handler of the multichannel instances
+ *       farend              - Interleaved far-end, nrOfSamples samples of every far-end channel
+ *       nrOfSamples         - Number of samples of one channel, at most AECM_MULTICHANNEL_MAX_SAMPLES
+ *
+ * Return:     0: OK
+ *             -1: error
+ *
+ */
+static jint nativeMultichannelBufferFarend(JNIEnv *env, jclass thiz, jlong multichannelHandler, jshortArray farend, jint nrOfSamples) {
+	AecmMultichannel *multichannel = (AecmMultichannel *) (intptr_t) multichannelHandler;
+	if (multichannel == NULL || farend == NULL || nrOfSamples <= 0 || nrOfSamples > AECM_MULTICHANNEL_MAX_SAMPLES
+	    || (*env)->GetArrayLength(env, farend) < (int64_t) nrOfSamples * multichannel->farendChannels)
+		return -1;
+
+	int16_t *arrFarend = (*env)->GetPrimitiveArrayCritical(env, farend, NULL);
+	if (arrFarend == NULL)
+		return -1;
+	jint ret = AecmMultichannel_BufferFarend(multichannel, arrFarend, nrOfSamples);
+	(*env)->ReleasePrimitiveArrayCritical(env, farend, arrFarend, JNI_ABORT);
+	return ret;
+}
+
+/**
+ * Cancels the echo in one frame of interleaved capture, the channels are processed in parallel and the output is
+ * interleaved the same way, see AecmMultichannel_Process(). The arrays are accessed through the critical section,
+ * out is released last so that its content is committed even if it is the same array as nearend.
+ *
+ * Inputs:
+ *         multichannelHandler - Handler of the multichannel instances
+ *         nearend             - Interleaved capture, nrOfSamples samples of every channel
+ *         out                 - Receives the interleaved processed capture, may be nearend
+ *         nrOfSamples         - Number of samples of one channel, at most AECM_MULTICHANNEL_MAX_SAMPLES
+ *         msInSndCardBuf      - Delay estimate for sound card and system buffers
+ * Return:     0: OK
+ *             -1: error
+ *
+ */
+static jint nativeMultichannelProcess(JNIEnv *env, jclass thiz, jlong multichannelHandler, jshortArray nearend, jshortArray out, jint nrOfSamples, jshort msInSndCardBuf) {
+	AecmMultichannel *multichannel = (AecmMultichannel *) (intptr_t) multichannelHandler;
+	if (multichannel == NULL || nearend == NULL || out == NULL || nrOfSamples <= 0
+	    || nrOfSamples > AECM_MULTICHANNEL_MAX_SAMPLES)
+		return -1;
+	int64_t length = (int64_t) nrOfSamples * multichannel->channels;
+	if ((*env)->GetArrayLength(env, nearend) < length || (*env)->GetArrayLength(env, out) < length)
+		return -1;
+
+	jint ret = -1;
+	int16_t *arrOut = NULL;
+	int16_t *arrNearend = (*env)->GetPrimitiveArrayCritical(env, nearend, NULL);
+	if (arrNearend == NULL)
+		return -1;
+	arrOut = (*env)->GetPrimitiveArrayCritical(env, out, NULL);
+	if (arrOut != NULL)
+		ret = AecmMultichannel_Process(multichannel, arrNearend, arrOut, nrOfSamples, msInSndCardBuf);
+
+	(*env)->ReleasePrimitiveArrayCritical(env, nearend, arrNearend, JNI_ABORT);
+	if (arrOut != NULL)
+		(*env)->ReleasePrimitiveArrayCritical(env, out, arrOut, 0);
+	return ret;
+}
+
+/**
+ * This function returns the number of bytes allocated for the multichannel instances, see
+ * AecmMultichannel_MemorySize().
+ */
+static jlong nativeGetMultichannelMemorySize(JNIEnv *env, jclass thiz, jlong multichannelHandler) {
+	AecmMultichannel *multichannel = (AecmMultichannel *) (intptr_t) multichannelHandler;
+	if (multichannel == NULL)
+		return -1;
+	return (jlong) AecmMultichannel_MemorySize(multichannel);
+}
+
+static const JNINativeMethod gMethods[] = {
+		{"nativeCreateAecmInstance", "(Z)J", (void *) nativeCreateAecmInstance},
+		{"nativeCreateSharedAecmInstance", "(J)J", (void *) nativeCreateSharedAecmInstance},
+		{"nativeFreeAecmInstance", "(J)I", (void *) nativeFreeAecmInstance},
+		{"nativeInitializeAecmInstance", "(JI)I", (void *) nativeInitializeAecmInstance},
+		{"nativeBufferFarend", "(J[SI)I", (void *) nativeBufferFarend},
+		{"nativeAecmProcess", "(J[S[SSS)[S", (void *) nativeAecmProcess},
+		{"nativeAecmProcessInto", "(J[S[S[SSS)I", (void *) nativeAecmProcessInto},
+		{"nativeProcessBatch", "(J[S[S[SII[II)I", (void *) nativeProcessBatch},
+		{"nativeProcessBatchDirect", "(JLjava/nio/Buffer;ILjava/nio/Buffer;ILjava/nio/Buffer;IIII)I", (void *) nativeProcessBatchDirect},
+		{"nativeBufferFarendDirect", "(JLjava/nio/Buffer;II)I", (void *) nativeBufferFarendDirect},
+		{"nativeAecmProcessDirect", "(JLjava/nio/Buffer;ILjava/nio/Buffer;ILjava/nio/Buffer;ISS)I", (void *) nativeAecmProcessDirect},
+		{"nativeBufferFarendStream", "(J[SI)I", (void *) nativeBufferFarendStream},
+		{"nativeProcessStream", "(J[S[SIS)I", (void *) nativeProcessStream},
+		{"nativeBufferFarendStreamDirect", "(JLjava/nio/Buffer;II)I", (void *) nativeBufferFarendStreamDirect},
+		{"nativeProcessStreamDirect", "(JLjava/nio/Buffer;ILjava/nio/Buffer;IIS)I", (void *) nativeProcessStreamDirect},
+		{"nativeGetEchoPath", "(J[S)I", (void *) nativeGetEchoPath},
+		{"nativeInitEchoPath", "(J[S)I", (void *) nativeInitEchoPath},
+		{"nativeEchoPathLength", "()I", (void *) nativeEchoPathLength},
+		{"nativeGetDelayMetrics", "(J[I)I", (void *) nativeGetDelayMetrics},
+		{"nativeGetStats", "(J[J)I", (void *) nativeGetStats},
+		{"nativeGetMemorySize", "(J)J", (void *) nativeGetMemorySize},
+		{"nativeStartRecording", "(JLjava/lang/String;I)I", (void *) nativeStartRecording},
+		{"nativeStopRecording", "(J)V", (void *) nativeStopRecording},
+		{"nativeSetConfig", "(JL" AEC_CONFIG_CLASS ";)I", (void *) nativeSetConfig},
+		{"nativeCreateFarendSource", "(Z)J", (void *) nativeCreateFarendSource},
+		{"nativeReleaseFarendSource", "(J)V", (void *) nativeReleaseFarendSource},
+		{"nativeGetFarendSourceStats", "(J[J)I", (void *) nativeGetFarendSourceStats},
+		{"nativeCreateMultichannel", "(IIZ)J", (void *) nativeCreateMultichannel},
+		{"nativeFreeMultichannel", "(J)V", (void *) nativeFreeMultichannel},
+		{"nativeInitMultichannel", "(JI)I", (void *) nativeInitMultichannel},
+		{"nativeSetMultichannelConfig", "(JSSSS)I", (void *) nativeSetMultichannelConfig},
+		{"nativeMultichannelBufferFarend", "(J[SI)I", (void *) nativeMultichannelBufferFarend},
+		{"nativeMultichannelProcess", "(J[S[SIS)I", (void *) nativeMultichannelProcess},
+		{"nativeGetMultichannelMemorySize", "(J)J", (void *) nativeGetMultichannelMemorySize},
+};
+
+/**
+ * Called by the VM when libAEC is loaded. Binds the native methods of AEC and resolves the field IDs of
+ * AecmConfig and the ShortBuffer class once, so that no lookups by name are made afterwards.
+ *
+ * Return:     the JNI version required by the library or JNI_ERR on error.
+ */
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+	JNIEnv *env = NULL;
+	if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK)
+		return JNI_ERR;
+
+	jclass aecClass = (*env)->FindClass(env, AEC_CLASS);
+	if (aecClass == NULL)
+		return JNI_ERR;
+
+	if ((*env)->RegisterNatives(env, aecClass, gMethods, sizeof(gMethods) / sizeof(gMethods[0])) != JNI_OK) {
+		LOGE(TAG, "JNI_OnLoad() can't register native methods of %s", AEC_CLASS);
+		return JNI_ERR;
+	}
+
+	jclass configClass = (*env)->FindClass(env, AEC_CONFIG_CLASS);
+	if (configClass == NULL)
+		return JNI_ERR;
+
+	gAecmModeID = (*env)->GetFieldID(env, configClass, "mAecmMode", "S");
+	gCngModeID = (*env)->GetFieldID(env, configClass, "mCngMode", "S");
+	gFarendGateID = (*env)->GetFieldID(env, configClass, "mFarendGate", "S");
+	gDriftCompID = (*env)->GetFieldID(env, configClass, "mDriftComp", "S");
+	if (gAecmModeID == NULL || gCngModeID == NULL || gFarendGateID == NULL || gDriftCompID == NULL)
+		return JNI_ERR;
+
+	jclass shortBufferClass = (*env)->FindClass(env, "java/nio/ShortBuffer");
+	if (shortBufferClass == NULL)
+		return JNI_ERR;
+	gShortBufferClass = (*env)->NewGlobalRef(env, shortBufferClass);
+	if (gShortBufferClass == NULL)
+		return JNI_ERR;
+
+	(*env)->DeleteLocalRef(env, shortBufferClass);
+	(*env)->DeleteLocalRef(env, configClass);
+	(*env)->DeleteLocalRef(env, aecClass);
 
-	return WebRtcAecm_set_config(aecmInst, config);
+	return JNI_VERSION_1_6;
 }
@@ -0,0 +1,438 @@
+#include "aecm_handle.h"
+
+#include <sched.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#define STATS_ADD(field, value) __atomic_fetch_add(&(field), (value), __ATOMIC_RELAXED)
+#define STATS_LOAD(field) __atomic_load_n(&(field), __ATOMIC_RELAXED)
+
+static uint64_t nowNs(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t) ts.tv_sec * 1000000000ULL + (uint64_t) ts.tv_nsec;
+}
+
+static void countErrorCode(AecmHandle *handle, int32_t code) {
+	int index;
+	if (code >= AECM_UNSPECIFIED_ERROR && code <= AECM_BAD_PARAMETER_ERROR)
+		index = code - AECM_UNSPECIFIED_ERROR;
+	else if (code == AECM_BAD_PARAMETER_WARNING)
+		index = AECM_STATS_ERROR_CODES - 2;
+	else
+		index = AECM_STATS_ERROR_CODES - 1;
+
+	STATS_ADD(handle->stats.failedCalls, 1);
+	STATS_ADD(handle->stats.errors[index], 1);
+}
+
+static void countError(AecmHandle *handle) {
+	countErrorCode(handle, WebRtcAecm_get_error_code(handle->aecmInst));
+}
+
+/**
+ * Returns the number of samples of the frame at the rate of the core, or 0 if a frame of nrOfSamples can't be
+ * resampled, which is counted as a bad parameter like WebRtcAecm_* does.
+ */
+static int16_t coreSamples(AecmHandle *handle, int16_t nrOfSamples) {
+	int16_t samples = (int16_t) (nrOfSamples / handle->factor);
+	if (samples * handle->factor == nrOfSamples && (samples == 80 || samples == 160))
+		return samples;
+	countErrorCode(handle, AECM_BAD_PARAMETER_ERROR);
+	return 0;
+}
+
+static void countProcessTime(AecmHandle *handle, uint64_t elapsedNs) {
+	int bucket = 0;
+	uint64_t bound = 25000;
+	while (elapsedNs >= bound && bucket < AECM_STATS_TIME_BUCKETS - 1) {
+		bound <<= 1;
+		bucket++;
+	}
+
+	STATS_ADD(handle->stats.processTimeTotalNs, elapsedNs);
+	STATS_ADD(handle->stats.processTimeHistogram[bucket], 1);
+	// frames of one handle are processed by one thread at a time, so the maximum has a single writer.
+	if (elapsedNs > STATS_LOAD(handle->stats.processTimeMaxNs))
+		__atomic_store_n(&handle->stats.processTimeMaxNs, elapsedNs, __ATOMIC_RELAXED);
+}
+
+/**
+ * Returns the recorder of the handle and marks the caller as its user, or NULL if the handle doesn't record.
+ * When recording is off it costs a single relaxed load.
+ */
+static AecmRecorder *acquireRecorder(AecmHandle *handle) {
+	if (__atomic_load_n(&handle->recorder, __ATOMIC_RELAXED) == NULL)
+		return NULL;
+
+	__atomic_fetch_add(&handle->recorderUsers, 1, __ATOMIC_SEQ_CST);
+	AecmRecorder *recorder = __atomic_load_n(&handle->recorder, __ATOMIC_SEQ_CST);
+	if (recorder == NULL)
+		__atomic_fetch_sub(&handle->recorderUsers, 1, __ATOMIC_RELEASE);
+	return recorder;
+}
+
+static void releaseRecorder(AecmHandle *handle) {
+	__atomic_fetch_sub(&handle->recorderUsers, 1, __ATOMIC_RELEASE);
+}
+
+AecmFarendSource *AecmFarendSource_Create(int compact) {
+	AecmFarendSource *source = calloc(1, sizeof(AecmFarendSource));
+	if (source == NULL)
+		return NULL;
+
+	if (WebRtcAecm_CreateFarendSource(&source->farendInst, (int16_t) (compact ? AecmTrue : AecmFalse)) == -1) {
+		free(source);
+		return NULL;
+	}
+	source->compact = compact;
+	pthread_mutex_init(&source->lock, NULL);
+	source->references = 1;
+	return source;
+}
+
+void AecmFarendSource_Release(AecmFarendSource *source) {
+	if (source == NULL || __atomic_sub_fetch(&source->references, 1, __ATOMIC_ACQ_REL) != 0)
+		return;
+	WebRtcAecm_FreeFarendSource(source->farendInst);
+	pthread_mutex_destroy(&source->lock);
+	free(source);
+}
+
+int32_t AecmFarendSource_GetStats(AecmFarendSource *source, int64_t *values, int length) {
+	AecmFarendSourceStatus status;
+	if (length < kFarendSourceStatsLength)
+		return -1;
+
+	pthread_mutex_lock(&source->lock);
+	WebRtcAecm_GetFarendSourceStatus(source->farendInst, &status);
+	pthread_mutex_unlock(&source->lock);
+
+	values[kFarendSourceBlocks] = status.blocks;
+	values[kFarendSourceReusedBlocks] = status.reusedBlocks;
+	values[kFarendSourceMemoryBytes] = (int64_t) (sizeof(AecmFarendSource)
+	                                              + WebRtcAecm_FarendSourceMemorySize(source->farendInst));
+	return 0;
+}
+
+/**
+ * Allocates a handle around an AECM instance, which is freed on error, and its stream rings. Returns NULL on error.
+ */
+static AecmHandle *createHandle(void *aecmInst, int compact) {
+	AecmHandle *handle = calloc(1, sizeof(AecmHandle));
+	if (handle == NULL) {
+		WebRtcAecm_Free(aecmInst);
+		return NULL;
+	}
+	handle->aecmInst = aecmInst;
+
+	// the rings of a compact handle hold one frame at 48000 Hz, reads wrap at 32000 Hz but are still copied whole.
+	size_t capacity = compact ? AECM_STREAM_CAPACITY_COMPACT : AECM_STREAM_CAPACITY;
+	handle->stream.farend = WebRtc_CreateBuffer(capacity, sizeof(int16_t));
+	handle->stream.nearend = WebRtc_CreateBuffer(capacity, sizeof(int16_t));
+	handle->stream.out = WebRtc_CreateBuffer(capacity, sizeof(int16_t));
+	if (handle->stream.farend == NULL || handle->stream.nearend == NULL || handle->stream.out == NULL) {
+		AecmHandle_Free(handle);
+		return NULL;
+	}
+	return handle;
+}
+
+AecmHandle *AecmHandle_Create(int compact) {
+	void *aecmInst = NULL;
+	int32_t ret = compact ? WebRtcAecm_CreateCompact(&aecmInst) : WebRtcAecm_Create(&aecmInst);
+	return ret == 0 ? createHandle(aecmInst, compact) : NULL;
+}
+
+AecmHandle *AecmHandle_CreateShared(AecmFarendSource *source) {
+	void *aecmInst = NULL;
+	if (WebRtcAecm_CreateShared(&aecmInst, source->farendInst) == -1)
+		return NULL;
+
+	AecmHandle *handle = createHandle(aecmInst, source->compact);
+	if (handle == NULL)
+		return NULL;
+
+	__atomic_add_fetch(&source->references, 1, __ATOMIC_RELAXED);
+	handle->farendSource = source;
+	return handle;
+}
+
+void AecmHandle_Free(AecmHandle *handle) {
+	if (handle == NULL)
+		return;
+	AecmHandle_StopRecording(handle);
+	WebRtcAecm_Free(handle->aecmInst);
+	WebRtc_FreeBuffer(handle->stream.farend);
+	WebRtc_FreeBuffer(handle->stream.nearend);
+	WebRtc_FreeBuffer(handle->stream.out);
+	// the instance is freed first, it doesn't use the far-end analysis on its way out.
+	AecmFarendSource_Release(handle->farendSource);
+	free(handle);
+}
+
+size_t AecmHandle_MemorySize(AecmHandle *handle) {
+	return sizeof(AecmHandle)
+		+ WebRtcAecm_MemorySize(handle->aecmInst)
+		+ WebRtc_BufferMemorySize(handle->stream.farend)
+		+ WebRtc_BufferMemorySize(handle->stream.nearend)
+		+ WebRtc_BufferMemorySize(handle->stream.out);
+}
+
+int32_t AecmHandle_Init(AecmHandle *handle, int32_t sampFreq) {
+	int factor = AecmResampler_Factor(sampFreq);
+	int32_t coreFreq = factor > 1 ? 16000 : sampFreq;
+	if (handle->farendSource != NULL)
+		pthread_mutex_lock(&handle->farendSource->lock);
+	int32_t ret = WebRtcAecm_Init(handle->aecmInst, coreFreq);
+	if (handle->farendSource != NULL)
+		pthread_mutex_unlock(&handle->farendSource->lock);
+	if (ret == 0) {
+		handle->sampFreq = sampFreq;
+		handle->coreFreq = coreFreq;
+		handle->factor = factor;
+		if (factor > 1) {
+			AecmDecimator_Init(&handle->resampling.farend, factor);
+			AecmDecimator_Init(&handle->resampling.nearendNoisy, factor);
+			AecmDecimator_Init(&handle->resampling.nearendClean, factor);
+			AecmInterpolator_Init(&handle->resampling.out, factor);
+		}
+
+		// the output starts one frame behind the input, the ring of the output is stuffed with a frame of zeros.
+		handle->stream.frameSize = (int16_t) (sampFreq / 100);
+		WebRtc_InitBuffer(handle->stream.farend);
+		WebRtc_InitBuffer(handle->stream.nearend);
+		WebRtc_InitBuffer(handle->stream.out);
+		WebRtc_MoveReadPtr(handle->stream.out, -handle->stream.frameSize);
+
+		memset(&handle->stats, 0, sizeof(AecmStats));
+	}
+
+	AecmRecorder *recorder = acquireRecorder(handle);
+	if (recorder != NULL) {
+		AecmRecorder_Init(recorder, coreFreq, ret == 0 ? 0 : kFlagFailed);
+		releaseRecorder(handle);
+	}
+	return ret;
+}
+
+int32_t AecmHandle_SetConfig(AecmHandle *handle, AecmConfig config) {
+	int32_t ret = WebRtcAecm_set_config(handle->aecmInst, config);
+
+	AecmRecorder *recorder = acquireRecorder(handle);
+	if (recorder != NULL) {
+		AecmRecorder_Config(recorder, config.echoMode, config.cngMode, config.farendGate, config.driftComp,
+		                    ret == 0 ? 0 : kFlagFailed);
+		releaseRecorder(handle);
+	}
+	return ret;
+}
+
+int32_t AecmHandle_InitEchoPath(AecmHandle *handle, const void *echoPath, size_t sizeInBytes) {
+	int32_t ret = WebRtcAecm_InitEchoPath(handle->aecmInst, echoPath, sizeInBytes);
+
+	AecmRecorder *recorder = acquireRecorder(handle);
+	if (recorder != NULL) {
+		AecmRecorder_EchoPath(recorder, echoPath, (int16_t) (sizeInBytes / sizeof(int16_t)), ret == 0 ? 0 : kFlagFailed);
+		releaseRecorder(handle);
+	}
+	return ret;
+}
+
+int32_t AecmHandle_BufferFarend(AecmHandle *handle, const int16_t *farend, int16_t nrOfSamples) {
+	int16_t farendCore[AECM_RESAMPLER_MAX_FRAME];
+	if (handle->factor > 1) {
+		nrOfSamples = coreSamples(handle, nrOfSamples);
+		if (nrOfSamples == 0)
+			return -1;
+		AecmDecimator_Process(&handle->resampling.farend, farend, farendCore, nrOfSamples);
+		farend = farendCore;
+	}
+
+	int32_t ret = WebRtcAecm_BufferFarend(handle->aecmInst, farend, nrOfSamples);
+
+	AecmRecorder *recorder = acquireRecorder(handle);
+	if (recorder != NULL) {
+		AecmRecorder_Farend(recorder, farend, nrOfSamples, ret == 0 ? 0 : kFlagFailed);
+		releaseRecorder(handle);
+	}
+
+	if (ret == 0)
+		STATS_ADD(handle->stats.farendFrames, 1);
+	else
+		countError(handle);
+	return ret;
+}
+
+int32_t AecmHandle_Process(AecmHandle *handle, const int16_t *nearendNoisy, const int16_t *nearendClean,
+                           int16_t *out, int16_t nrOfSamples, int16_t msInSndCardBuf) {
+	int16_t noisyCore[AECM_RESAMPLER_MAX_FRAME];
+	int16_t cleanCore[AECM_RESAMPLER_MAX_FRAME];
+	int16_t outCore[AECM_RESAMPLER_MAX_FRAME];
+	int16_t *outResampled = NULL;
+
+	uint64_t start = nowNs();
+	if (handle->factor > 1) {
+		nrOfSamples = coreSamples(handle, nrOfSamples);
+		if (nrOfSamples == 0)
+			return -1;
+		AecmDecimator_Process(&handle->resampling.nearendNoisy, nearendNoisy, noisyCore, nrOfSamples);
+		nearendNoisy = noisyCore;
+		if (nearendClean != NULL) {
+			AecmDecimator_Process(&handle->resampling.nearendClean, nearendClean, cleanCore, nrOfSamples);
+			nearendClean = cleanCore;
+		}
+		outResampled = out;
+		out = outCore;
+	}
+
+	if (handle->farendSource != NULL)
+		pthread_mutex_lock(&handle->farendSource->lock);
+	int32_t ret = WebRtcAecm_Process(handle->aecmInst, nearendNoisy, nearendClean, out, nrOfSamples, msInSndCardBuf);
+	if (handle->farendSource != NULL)
+		pthread_mutex_unlock(&handle->farendSource->lock);
+	if (ret == 0 && outResampled != NULL)
+		AecmInterpolator_Process(&handle->resampling.out, outCore, outResampled, nrOfSamples);
+	uint64_t elapsedNs = nowNs() - start;
+	countProcessTime(handle, elapsedNs);
+
+	AecmRecorder *recorder = acquireRecorder(handle);
+	if (recorder != NULL) {
+		AecmRecorder_Process(recorder, nearendNoisy, nearendClean, out, nrOfSamples, msInSndCardBuf,
+		                     elapsedNs > UINT32_MAX ? UINT32_MAX : (uint32_t) elapsedNs, ret == 0 ? 0 : kFlagFailed);
+		releaseRecorder(handle);
+	}
+
+	if (ret == 0)
+		STATS_ADD(handle->stats.processedFrames, 1);
+	else
+		countError(handle);
+	return ret;
+}
+
+int32_t AecmHandle_BufferFarendStream(AecmHandle *handle, const int16_t *farend, int32_t length) {
+	const int16_t frameSize = handle->stream.frameSize;
+	int16_t frame[AECM_STREAM_CAPACITY / 2];
+	int32_t pos = 0;
+	if (handle->sampFreq == 0 || length < 0)
+		return -1;
+
+	while (pos < length) {
+		int32_t count = frameSize - (int32_t) WebRtc_available_read(handle->stream.farend);
+		if (count > length - pos)
+			count = length - pos;
+		WebRtc_WriteBuffer(handle->stream.farend, farend + pos, (size_t) count);
+		pos += count;
+
+		if (WebRtc_available_read(handle->stream.farend) == (size_t) frameSize) {
+			void *samples = NULL;
+			WebRtc_ReadBuffer(handle->stream.farend, &samples, frame, (size_t) frameSize);
+			// failures are counted in the statistics, the stream goes on with the next frame.
+			AecmHandle_BufferFarend(handle, samples, frameSize);
+		}
+	}
+	return 0;
+}
+
+int32_t AecmHandle_ProcessStream(AecmHandle *handle, const int16_t *nearend, int16_t *out, int32_t length,
+                                 int16_t msInSndCardBuf) {
+	const int16_t frameSize = handle->stream.frameSize;
+	int16_t frame[AECM_STREAM_CAPACITY / 2];
+	int16_t processed[AECM_STREAM_CAPACITY / 2];
+	int32_t pos = 0;
+	if (handle->sampFreq == 0 || length < 0)
+		return -1;
+
+	while (pos < length) {
+		int32_t count = frameSize - (int32_t) WebRtc_available_read(handle->stream.nearend);
+		if (count > length - pos)
+			count = length - pos;
+		// the input is buffered before the output is written over it, so out may be the same buffer as nearend.
+		WebRtc_WriteBuffer(handle->stream.nearend, nearend + pos, (size_t) count);
+		WebRtc_ReadBuffer(handle->stream.out, NULL, out + pos, (size_t) count);
+		pos += count;
+
+		if (WebRtc_available_read(handle->stream.nearend) == (size_t) frameSize) {
+			void *samples = NULL;
+			WebRtc_ReadBuffer(handle->stream.nearend, &samples, frame, (size_t) frameSize);
+			if (AecmHandle_Process(handle, samples, NULL, processed, frameSize, msInSndCardBuf) == 0)
+				WebRtc_WriteBuffer(handle->stream.out, processed, (size_t) frameSize);
+			else
+				WebRtc_WriteBuffer(handle->stream.out, samples, (size_t) frameSize);
+		}
+	}
+	return 0;
+}
+
+int32_t AecmHandle_GetStats(AecmHandle *handle, int64_t *values, int length) {
+	int i;
+	if (length < kStatsLength)
+		return -1;
+
+	values[kStatsFarendFrames] = STATS_LOAD(handle->stats.farendFrames);
+	values[kStatsProcessedFrames] = STATS_LOAD(handle->stats.processedFrames);
+	values[kStatsFailedCalls] = STATS_LOAD(handle->stats.failedCalls);
+	for (i = 0; i < AECM_STATS_ERROR_CODES; i++)
+		values[kStatsErrors + i] = STATS_LOAD(handle->stats.errors[i]);
+	values[kStatsProcessTimeTotalNs] = STATS_LOAD(handle->stats.processTimeTotalNs);
+	values[kStatsProcessTimeMaxNs] = STATS_LOAD(handle->stats.processTimeMaxNs);
+	for (i = 0; i < AECM_STATS_TIME_BUCKETS; i++)
+		values[kStatsProcessTimeHistogram + i] = STATS_LOAD(handle->stats.processTimeHistogram[i]);
+
+	// the state of the AECM itself is read without synchronization, it is a best effort snapshot.
+	AecmStatus status;
+	if (handle->sampFreq != 0 && WebRtcAecm_GetStatus(handle->aecmInst, &status) == 0) {
+		values[kStatsFarendBufferSamples] = (int64_t) status.farendBufferSamples * handle->factor;
+		values[kStatsKnownDelayMs] = status.knownDelay * 1000 / handle->coreFreq;
+		values[kStatsStartup] = status.startup;
+		values[kStatsSuppressionGain] = status.suppressionGain;
+		values[kStatsBlocks] = status.blocks;
+		values[kStatsGatedBlocks] = status.gatedBlocks;
+		values[kStatsDriftPpm] = status.driftPpm;
+		values[kStatsDriftEstimated] = status.driftEstimated;
+		values[kStatsDriftCompensationPpm] = status.driftCompPpm;
+	} else {
+		values[kStatsFarendBufferSamples] = 0;
+		values[kStatsKnownDelayMs] = 0;
+		values[kStatsStartup] = 1;
+		values[kStatsSuppressionGain] = 0;
+		values[kStatsBlocks] = 0;
+		values[kStatsGatedBlocks] = 0;
+		values[kStatsDriftPpm] = 0;
+		values[kStatsDriftEstimated] = 0;
+		values[kStatsDriftCompensationPpm] = 0;
+	}
+	return 0;
+}
+
+int32_t AecmHandle_StartRecording(AecmHandle *handle, const char *path, uint32_t capacityBytes) {
+	AecmConfig config;
+	if (handle->sampFreq == 0 || handle->recorder != NULL || WebRtcAecm_get_config(handle->aecmInst, &config) != 0)
+		return -1;
+
+	AecmRecorder *recorder = AecmRecorder_Open(path, capacityBytes, handle->coreFreq, config.echoMode, config.cngMode,
+	                                           config.farendGate, config.driftComp);
+	if (recorder == NULL)
+		return -1;
+
+	// the recording starts with the configuration, a replay can only be bit exact if the instance was fresh and
+	// analysed its far end alone.
+	int carried = STATS_LOAD(handle->stats.farendFrames) != 0 || STATS_LOAD(handle->stats.processedFrames) != 0
+	              || handle->farendSource != NULL;
+	AecmRecorder_Init(recorder, handle->coreFreq, carried ? kFlagStateCarried : 0);
+	AecmRecorder_Config(recorder, config.echoMode, config.cngMode, config.farendGate, config.driftComp, 0);
+
+	__atomic_store_n(&handle->recorder, recorder, __ATOMIC_SEQ_CST);
+	return 0;
+}
+
+void AecmHandle_StopRecording(AecmHandle *handle) {
+	AecmRecorder *recorder = __atomic_exchange_n(&handle->recorder, NULL, __ATOMIC_SEQ_CST);
+	if (recorder == NULL)
+		return;
+
+	while (__atomic_load_n(&handle->recorderUsers, __ATOMIC_SEQ_CST) != 0)
+		sched_yield();
+	AecmRecorder_Close(recorder);
+}
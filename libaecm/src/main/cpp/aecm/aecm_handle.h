@@ -0,0 +1,211 @@
+//
+// Native state of one AEC java object: the WebRtc AECM instance and everything the JNI layer keeps next to it.
+//
+
+#ifndef AECM_AECM_HANDLE_H
+#define AECM_AECM_HANDLE_H
+
+#include <pthread.h>
+#include <stdint.h>
+#include "aecm_recorder.h"
+#include "aecm_resampler.h"
+#include "../lib/echo_control_mobile.h"
+#include "../lib/ring_buffer.h"
+
+#define AECM_STATS_TIME_BUCKETS 12 // per-frame processing time histogram, bucket i ends at 25us << i, the last is open
+#define AECM_STATS_ERROR_CODES 7   // AECM_UNSPECIFIED_ERROR..AECM_BAD_PARAMETER_ERROR, AECM_BAD_PARAMETER_WARNING, other
+#define AECM_STREAM_CAPACITY 960   // samples of every stream ring, a multiple of every stream frame so reads never wrap
+#define AECM_STREAM_CAPACITY_COMPACT 480 // samples of every stream ring of a compact handle, one frame at 48000 Hz
+
+// Layout of the array filled by AecmHandle_GetStats(), mirrored by AecStats.java.
+enum {
+    kStatsFarendFrames = 0,
+    kStatsProcessedFrames,
+    kStatsFailedCalls,
+    kStatsErrors,
+    kStatsProcessTimeTotalNs = kStatsErrors + AECM_STATS_ERROR_CODES,
+    kStatsProcessTimeMaxNs,
+    kStatsProcessTimeHistogram,
+    kStatsFarendBufferSamples = kStatsProcessTimeHistogram + AECM_STATS_TIME_BUCKETS,
+    kStatsKnownDelayMs,
+    kStatsStartup,
+    kStatsSuppressionGain,
+    kStatsBlocks,
+    kStatsGatedBlocks,
+    kStatsDriftPpm,
+    kStatsDriftEstimated,
+    kStatsDriftCompensationPpm,
+    kStatsLength
+};
+
+// Layout of the array filled by AecmFarendSource_GetStats(), mirrored by AecFarendSource.java.
+enum {
+    kFarendSourceBlocks = 0,
+    kFarendSourceReusedBlocks,
+    kFarendSourceMemoryBytes,
+    kFarendSourceStatsLength
+};
+
+// Far-end analysis shared by the handles created with AecmHandle_CreateShared(). The handles process under its lock,
+// and it is freed when the last of its references is released: the one of its creator and one of every handle.
+typedef struct {
+    void *farendInst; // WebRtc AECM far end analysis
+    int compact;
+    pthread_mutex_t lock;
+    uint32_t references;
+} AecmFarendSource;
+
+// Counters are only updated with relaxed atomics, so they can be read from any thread while frames are processed.
+typedef struct {
+    uint64_t farendFrames;
+    uint64_t processedFrames;
+    uint64_t failedCalls;
+    uint64_t errors[AECM_STATS_ERROR_CODES];
+    uint64_t processTimeTotalNs;
+    uint64_t processTimeMaxNs;
+    uint64_t processTimeHistogram[AECM_STATS_TIME_BUCKETS];
+} AecmStats;
+
+// 32000 and 48000 Hz data is resampled to 16000 Hz around the AECM core, see aecm_resampler.h.
+typedef struct {
+    AecmDecimator farend;
+    AecmDecimator nearendNoisy;
+    AecmDecimator nearendClean;
+    AecmInterpolator out;
+} AecmResampling;
+
+// Rings of the streaming mode, see AecmHandle_BufferFarendStream() and AecmHandle_ProcessStream(). The rings never
+// hold more than one frame: farend and nearend collect the samples of the next frame, out holds the processed samples
+// which aren't returned yet, and nearend and out together always hold exactly one frame.
+typedef struct {
+    RingBuffer *farend;
+    RingBuffer *nearend;
+    RingBuffer *out;
+    int16_t frameSize; // samples of 10 ms at the sampling frequency of the handle
+} AecmStream;
+
+typedef struct {
+    void *aecmInst;   // WebRtc AECM instance
+    int32_t sampFreq; // sampling frequency the handle is initialized with, 0 before AecmHandle_Init()
+    int32_t coreFreq; // sampling frequency of the AECM core, 16000 when the data is resampled
+    int32_t factor;   // sampFreq / coreFreq, 1 when the data is passed to the core as is
+    AecmResampling resampling;
+    AecmStream stream;
+    AecmStats stats;
+    AecmRecorder *recorder; // recorder of the streams or NULL, see AecmHandle_StartRecording()
+    uint32_t recorderUsers;   // audio threads currently writing to the recorder
+    AecmFarendSource *farendSource; // shared far-end analysis or NULL, see AecmHandle_CreateShared()
+} AecmHandle;
+
+/**
+ * Allocates a far-end analysis which several handles can share, see WebRtcAecm_CreateFarendSource(). The caller owns
+ * one reference. Returns NULL on error.
+ */
+AecmFarendSource *AecmFarendSource_Create(int compact);
+
+/**
+ * Releases a reference of the far-end analysis, it is freed with the last one.
+ */
+void AecmFarendSource_Release(AecmFarendSource *source);
+
+/**
+ * Copies the number of blocks analyzed and reused and the memory of the far-end analysis into values, see the
+ * kFarendSource* layout. Returns 0 on success, -1 if values is shorter than kFarendSourceStatsLength.
+ */
+int32_t AecmFarendSource_GetStats(AecmFarendSource *source, int64_t *values, int length);
+
+/**
+ * Allocates a handle and its AECM instance. Returns NULL on error.
+ * A compact handle is created with WebRtcAecm_CreateCompact() and smaller stream rings, for servers running many
+ * instances: it takes about 40% less memory but follows only half as long echo delays.
+ */
+AecmHandle *AecmHandle_Create(int compact);
+
+/**
+ * Allocates a handle with an AECM instance which shares the far-end analysis of source with the other handles created
+ * on it, see WebRtcAecm_CreateShared(). The handle is compact if the source is and holds a reference of the source
+ * until it is freed. Its frames are processed under the lock of the source. Returns NULL on error.
+ */
+AecmHandle *AecmHandle_CreateShared(AecmFarendSource *source);
+
+/**
+ * Stops recording and releases the handle and its AECM instance.
+ */
+void AecmHandle_Free(AecmHandle *handle);
+
+/**
+ * Returns the number of bytes allocated for the handle and its AECM instance. The recorder and the read-only tables,
+ * which are shared by all the handles, are not included.
+ */
+size_t AecmHandle_MemorySize(AecmHandle *handle);
+
+/**
+ * Initializes (or resets in place) the AECM instance, see WebRtcAecm_Init(). The statistics and the rings of the
+ * streaming mode are cleared.
+ * Besides 8000 and 16000 Hz it accepts 32000 and 48000 Hz: the AECM core then runs at 16000 Hz, the far-end and
+ * near-end frames are decimated in front of it and the output is interpolated back. The frames are 5 or 10 ms long
+ * at these rates, and the output is band-limited to 8 kHz.
+ */
+int32_t AecmHandle_Init(AecmHandle *handle, int32_t sampFreq);
+
+/**
+ * WebRtcAecm_set_config() which is recorded.
+ */
+int32_t AecmHandle_SetConfig(AecmHandle *handle, AecmConfig config);
+
+/**
+ * WebRtcAecm_InitEchoPath() which is recorded.
+ */
+int32_t AecmHandle_InitEchoPath(AecmHandle *handle, const void *echoPath, size_t sizeInBytes);
+
+/**
+ * WebRtcAecm_BufferFarend() which is accounted in the statistics. nrOfSamples is counted at the sampling frequency
+ * of the handle.
+ */
+int32_t AecmHandle_BufferFarend(AecmHandle *handle, const int16_t *farend, int16_t nrOfSamples);
+
+/**
+ * WebRtcAecm_Process() which is timed and accounted in the statistics. nrOfSamples is counted at the sampling
+ * frequency of the handle, out may be the same buffer as one of the inputs.
+ */
+int32_t AecmHandle_Process(AecmHandle *handle, const int16_t *nearendNoisy, const int16_t *nearendClean,
+                           int16_t *out, int16_t nrOfSamples, int16_t msInSndCardBuf);
+
+/**
+ * Buffers length samples of far-end signal, any length is accepted. Every complete frame of 10 ms is passed to
+ * AecmHandle_BufferFarend(), the rest stays in the ring until the next call.
+ * Returns 0 on success, -1 if the handle is not initialized or length is negative. Frames which fail are counted
+ * in the statistics.
+ */
+int32_t AecmHandle_BufferFarendStream(AecmHandle *handle, const int16_t *farend, int32_t length);
+
+/**
+ * Processes length samples of near-end signal, any length is accepted, and writes length samples of output.
+ * Every complete frame of 10 ms is passed to AecmHandle_Process(), so the output lags the input by exactly one frame,
+ * the first frame of output after AecmHandle_Init() is silence. out may be the same buffer as nearend. A frame which
+ * fails is passed through as it is and counted in the statistics.
+ * Returns 0 on success, -1 if the handle is not initialized or length is negative.
+ */
+int32_t AecmHandle_ProcessStream(AecmHandle *handle, const int16_t *nearend, int16_t *out, int32_t length,
+                                 int16_t msInSndCardBuf);
+
+/**
+ * Copies a snapshot of the statistics and of the AECM state into values, see the kStats* layout.
+ * Returns 0 on success, -1 if values is shorter than kStatsLength.
+ */
+int32_t AecmHandle_GetStats(AecmHandle *handle, int64_t *values, int length);
+
+/**
+ * Starts recording every call of the handle into a ring file, see aecm_recorder.h. The handle must be initialized.
+ * The frames are recorded as the AECM core sees them, at 16000 Hz when the data is resampled.
+ * Returns 0 on success, -1 if the handle is not initialized, already records or the file can't be created.
+ */
+int32_t AecmHandle_StartRecording(AecmHandle *handle, const char *path, uint32_t capacityBytes);
+
+/**
+ * Stops recording and closes the file after the pending records are written. Waits for the audio threads which
+ * are writing a record at the moment, it must not be called from inside a call of the handle.
+ */
+void AecmHandle_StopRecording(AecmHandle *handle);
+
+#endif //AECM_AECM_HANDLE_H
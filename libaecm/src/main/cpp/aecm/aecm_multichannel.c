@@ -0,0 +1,193 @@
+#include "aecm_multichannel.h"
+
+#include <stdlib.h>
+#include <string.h>
+
+static void processChannel(AecmMultichannel *multichannel, int channel) {
+	multichannel->results[channel] = AecmHandle_Process(multichannel->handles[channel], multichannel->nearend[channel],
+	                                                    NULL, multichannel->out[channel], multichannel->nrOfSamples,
+	                                                    multichannel->msInSndCardBuf);
+}
+
+/**
+ * Waits for the frames handed out by AecmMultichannel_Process() and processes the channel of the worker, until the
+ * multichannel instance is freed.
+ */
+static void *workerMain(void *arg) {
+	AecmChannelWorker *worker = arg;
+	AecmMultichannel *multichannel = worker->multichannel;
+	uint32_t generation = 0;
+
+	pthread_mutex_lock(&multichannel->lock);
+	for (;;) {
+		while (multichannel->generation == generation && !multichannel->stop)
+			pthread_cond_wait(&multichannel->start, &multichannel->lock);
+		if (multichannel->stop)
+			break;
+		generation = multichannel->generation;
+		pthread_mutex_unlock(&multichannel->lock);
+
+		processChannel(multichannel, worker->channel);
+
+		pthread_mutex_lock(&multichannel->lock);
+		if (--multichannel->pending == 0)
+			pthread_cond_signal(&multichannel->done);
+	}
+	pthread_mutex_unlock(&multichannel->lock);
+	return NULL;
+}
+
+static void stopWorkers(AecmMultichannel *multichannel) {
+	pthread_mutex_lock(&multichannel->lock);
+	multichannel->stop = 1;
+	pthread_cond_broadcast(&multichannel->start);
+	pthread_mutex_unlock(&multichannel->lock);
+
+	for (int i = 0; i < multichannel->workerCount; i++)
+		pthread_join(multichannel->workers[i].thread, NULL);
+	multichannel->workerCount = 0;
+}
+
+AecmMultichannel *AecmMultichannel_Create(int channels, int farendChannels, int parallel) {
+	if (channels < 1 || channels > AECM_MULTICHANNEL_MAX_CHANNELS || farendChannels < 1
+	    || farendChannels > AECM_MULTICHANNEL_MAX_CHANNELS)
+		return NULL;
+
+	AecmMultichannel *multichannel = calloc(1, sizeof(AecmMultichannel));
+	if (multichannel == NULL)
+		return NULL;
+	multichannel->channels = channels;
+	multichannel->farendChannels = farendChannels;
+	pthread_mutex_init(&multichannel->lock, NULL);
+	pthread_cond_init(&multichannel->start, NULL);
+	pthread_cond_init(&multichannel->done, NULL);
+
+	for (int i = 0; i < channels; i++) {
+		multichannel->handles[i] = AecmHandle_Create(0);
+		if (multichannel->handles[i] == NULL) {
+			AecmMultichannel_Free(multichannel);
+			return NULL;
+		}
+	}
+
+	if (parallel) {
+		for (int i = 1; i < channels; i++) {
+			AecmChannelWorker *worker = &multichannel->workers[multichannel->workerCount];
+			worker->multichannel = multichannel;
+			worker->channel = i;
+			if (pthread_create(&worker->thread, NULL, workerMain, worker) != 0) {
+				AecmMultichannel_Free(multichannel);
+				return NULL;
+			}
+			multichannel->workerCount++;
+		}
+	}
+	return multichannel;
+}
+
+void AecmMultichannel_Free(AecmMultichannel *multichannel) {
+	if (multichannel == NULL)
+		return;
+
+	stopWorkers(multichannel);
+	for (int i = 0; i < multichannel->channels; i++)
+		AecmHandle_Free(multichannel->handles[i]);
+	pthread_cond_destroy(&multichannel->done);
+	pthread_cond_destroy(&multichannel->start);
+	pthread_mutex_destroy(&multichannel->lock);
+	free(multichannel);
+}
+
+size_t AecmMultichannel_MemorySize(AecmMultichannel *multichannel) {
+	size_t size = sizeof(AecmMultichannel);
+	for (int i = 0; i < multichannel->channels; i++)
+		size += AecmHandle_MemorySize(multichannel->handles[i]);
+	return size;
+}
+
+int32_t AecmMultichannel_Init(AecmMultichannel *multichannel, int32_t sampFreq) {
+	int32_t ret = 0;
+	for (int i = 0; i < multichannel->channels; i++) {
+		if (AecmHandle_Init(multichannel->handles[i], sampFreq) != 0)
+			ret = -1;
+	}
+	return ret;
+}
+
+int32_t AecmMultichannel_SetConfig(AecmMultichannel *multichannel, AecmConfig config) {
+	int32_t ret = 0;
+	for (int i = 0; i < multichannel->channels; i++) {
+		if (AecmHandle_SetConfig(multichannel->handles[i], config) != 0)
+			ret = -1;
+	}
+	return ret;
+}
+
+int32_t AecmMultichannel_BufferFarend(AecmMultichannel *multichannel, const int16_t *farend, int32_t nrOfSamples) {
+	if (nrOfSamples <= 0 || nrOfSamples > AECM_MULTICHANNEL_MAX_SAMPLES)
+		return -1;
+
+	const int farendChannels = multichannel->farendChannels;
+	const int16_t *mono = farend;
+	if (farendChannels > 1) {
+		for (int i = 0; i < nrOfSamples; i++) {
+			int32_t sum = 0;
+			for (int c = 0; c < farendChannels; c++)
+				sum += farend[i * farendChannels + c];
+			multichannel->farend[i] = (int16_t) (sum / farendChannels);
+		}
+		mono = multichannel->farend;
+	}
+
+	int32_t ret = 0;
+	for (int i = 0; i < multichannel->channels; i++) {
+		if (AecmHandle_BufferFarend(multichannel->handles[i], mono, (int16_t) nrOfSamples) != 0)
+			ret = -1;
+	}
+	return ret;
+}
+
+int32_t AecmMultichannel_Process(AecmMultichannel *multichannel, const int16_t *nearend, int16_t *out,
+                                 int32_t nrOfSamples, int16_t msInSndCardBuf) {
+	if (nrOfSamples <= 0 || nrOfSamples > AECM_MULTICHANNEL_MAX_SAMPLES)
+		return -1;
+
+	const int channels = multichannel->channels;
+	for (int i = 0; i < nrOfSamples; i++) {
+		for (int c = 0; c < channels; c++)
+			multichannel->nearend[c][i] = nearend[i * channels + c];
+	}
+	multichannel->nrOfSamples = (int16_t) nrOfSamples;
+	multichannel->msInSndCardBuf = msInSndCardBuf;
+
+	if (multichannel->workerCount > 0) {
+		// the mutex publishes the frame to the workers and their results back to this thread.
+		pthread_mutex_lock(&multichannel->lock);
+		multichannel->pending = multichannel->workerCount;
+		multichannel->generation++;
+		pthread_cond_broadcast(&multichannel->start);
+		pthread_mutex_unlock(&multichannel->lock);
+
+		processChannel(multichannel, 0);
+
+		pthread_mutex_lock(&multichannel->lock);
+		while (multichannel->pending > 0)
+			pthread_cond_wait(&multichannel->done, &multichannel->lock);
+		pthread_mutex_unlock(&multichannel->lock);
+	} else {
+		for (int c = 0; c < channels; c++)
+			processChannel(multichannel, c);
+	}
+
+	int32_t ret = 0;
+	for (int c = 0; c < channels; c++) {
+		const int16_t *channelOut = multichannel->out[c];
+		if (multichannel->results[c] != 0) {
+			channelOut = multichannel->nearend[c];
+			ret = -1;
+		}
+		for (int i = 0; i < nrOfSamples; i++)
+			out[i * channels + c] = channelOut[i];
+	}
+	return ret;
+}
@@ -0,0 +1,90 @@
+//
+// Echo cancellation of interleaved multichannel capture: one AecmHandle per capture channel, all fed with the same
+// far-end downmixed to mono. The channels of a frame are processed in parallel, the first one on the calling thread
+// and every other one on a worker thread of its own.
+//
+
+#ifndef AECM_AECM_MULTICHANNEL_H
+#define AECM_AECM_MULTICHANNEL_H
+
+#include <pthread.h>
+#include <stdint.h>
+#include "aecm_handle.h"
+
+#define AECM_MULTICHANNEL_MAX_CHANNELS 8
+#define AECM_MULTICHANNEL_MAX_SAMPLES 480 // samples of one channel of the longest frame, 10 ms at 48000 Hz
+
+typedef struct AecmMultichannel AecmMultichannel;
+
+typedef struct {
+    AecmMultichannel *multichannel;
+    int channel;
+    pthread_t thread;
+} AecmChannelWorker;
+
+struct AecmMultichannel {
+    int channels;       // capture channels, one handle each
+    int farendChannels; // channels of the far-end, downmixed to mono
+    AecmHandle *handles[AECM_MULTICHANNEL_MAX_CHANNELS];
+    int16_t farend[AECM_MULTICHANNEL_MAX_SAMPLES];
+    int16_t nearend[AECM_MULTICHANNEL_MAX_CHANNELS][AECM_MULTICHANNEL_MAX_SAMPLES]; // de-interleaved capture
+    int16_t out[AECM_MULTICHANNEL_MAX_CHANNELS][AECM_MULTICHANNEL_MAX_SAMPLES];
+    int32_t results[AECM_MULTICHANNEL_MAX_CHANNELS];
+
+    // frame being processed, written by the calling thread before the workers are started.
+    int16_t nrOfSamples;
+    int16_t msInSndCardBuf;
+
+    // workers of the channels but the first, none if the channels are processed sequentially.
+    AecmChannelWorker workers[AECM_MULTICHANNEL_MAX_CHANNELS - 1];
+    int workerCount;
+    pthread_mutex_t lock;
+    pthread_cond_t start; // signalled when generation changes or stop is set
+    pthread_cond_t done;  // signalled when pending drops to 0
+    uint32_t generation;  // number of frames handed to the workers
+    int pending;          // workers still processing the current frame
+    int stop;
+};
+
+/**
+ * Creates the handles of channels capture channels and, if parallel, their workers. farendChannels is the number of
+ * interleaved channels of the far-end. The handles must be initialized with AecmMultichannel_Init().
+ * Returns NULL on error.
+ */
+AecmMultichannel *AecmMultichannel_Create(int channels, int farendChannels, int parallel);
+
+/**
+ * Stops the workers and frees the handles.
+ */
+void AecmMultichannel_Free(AecmMultichannel *multichannel);
+
+/**
+ * Returns the native memory of the handles and the buffers in bytes.
+ */
+size_t AecmMultichannel_MemorySize(AecmMultichannel *multichannel);
+
+/**
+ * Initializes every handle with AecmHandle_Init().
+ */
+int32_t AecmMultichannel_Init(AecmMultichannel *multichannel, int32_t sampFreq);
+
+/**
+ * Sets the configuration of every handle with AecmHandle_SetConfig().
+ */
+int32_t AecmMultichannel_SetConfig(AecmMultichannel *multichannel, AecmConfig config);
+
+/**
+ * Downmixes a frame of nrOfSamples samples per channel of interleaved far-end to mono and buffers it in every handle.
+ * nrOfSamples above AECM_MULTICHANNEL_MAX_SAMPLES is rejected.
+ */
+int32_t AecmMultichannel_BufferFarend(AecmMultichannel *multichannel, const int16_t *farend, int32_t nrOfSamples);
+
+/**
+ * Cancels the echo in a frame of nrOfSamples samples per channel of interleaved capture. out receives the processed
+ * channels interleaved the same way and may be the same buffer as nearend. A channel whose handle fails is passed
+ * through, the call returns -1 then.
+ */
+int32_t AecmMultichannel_Process(AecmMultichannel *multichannel, const int16_t *nearend, int16_t *out,
+                                 int32_t nrOfSamples, int16_t msInSndCardBuf);
+
+#endif //AECM_AECM_MULTICHANNEL_H
@@ -0,0 +1,325 @@
+#include "aecm_recorder.h"
+
+#include <fcntl.h>
+#include <pthread.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <time.h>
+#include <unistd.h>
+
+#define QUEUE_SLOTS 512        // ~2.5 s of 10 ms farend and nearend frames processed in real time
+#define SLOT_DATA_SIZE 1024    // the largest record is a kRecordProcess of 160 samples with a clean frame
+#define WRITER_PERIOD_NS 10000000     // the writer wakes up every 10 ms while frames come in real time,
+#define WRITER_BUSY_PERIOD_NS 1000000 // and every 1 ms while they come faster, for example from processBatch()
+#define MIN_CAPACITY 4096
+
+typedef struct {
+	uint32_t magic;
+	uint32_t version;
+	uint32_t headerSize;
+	uint32_t capacity;
+	uint64_t written;
+	int32_t sampFreq;
+	int16_t echoMode;
+	int16_t cngMode;
+	uint32_t dropped;
+	int16_t farendGate;
+	int16_t driftComp;
+	uint8_t reserved[24];
+} RecorderFileHeader;
+
+typedef struct {
+	uint32_t sync;
+	uint32_t sequence;
+	uint8_t type;
+	uint8_t flags;
+	uint16_t samples;
+	int16_t delay;
+	uint16_t length;
+	uint32_t timeNs;
+} RecordHeader;
+
+// slot of the bounded queue, sequence tells whether the slot is free for position p (p) or holds its record (p + 1).
+typedef struct {
+	uint32_t sequence;
+	uint32_t length;
+	uint8_t data[SLOT_DATA_SIZE];
+} Slot;
+
+struct AecmRecorder {
+	Slot slots[QUEUE_SLOTS];
+	uint32_t tail;          // next position to reserve, shared by the producers
+	uint32_t head;          // next position to write to the file, owned by the writer thread
+	uint32_t pendingDrops;  // records dropped since the latest enqueued record
+	uint32_t dropped;       // records dropped since the recorder was opened
+	int stop;
+
+	int fd;
+	uint8_t *map;
+	size_t mapSize;
+	RecorderFileHeader *header;
+	uint8_t *ring;
+	uint32_t capacity;
+	uint64_t written;       // owned by the writer thread, mirrored into the header
+
+	pthread_t writer;
+};
+
+typedef char assertFileHeaderSize[sizeof(RecorderFileHeader) == AECM_RECORDER_HEADER_SIZE ? 1 : -1];
+typedef char assertRecordHeaderSize[sizeof(RecordHeader) == AECM_RECORDER_RECORD_HEADER_SIZE ? 1 : -1];
+
+/**
+ * Reserves the next slot of the queue and fills the record header. Returns NULL and counts the drop if the queue
+ * is full or the record doesn't fit into a slot. The record becomes visible to the writer with commitRecord().
+ */
+static Slot *beginRecord(AecmRecorder *recorder, uint8_t type, int16_t flags, int16_t samples, int16_t delay,
+                         uint32_t timeNs, uint32_t payloadBytes) {
+	uint32_t length = (AECM_RECORDER_RECORD_HEADER_SIZE + payloadBytes + 3) & ~3u;
+	uint32_t pos = __atomic_load_n(&recorder->tail, __ATOMIC_RELAXED);
+	Slot *slot;
+
+	if (length > SLOT_DATA_SIZE)
+		goto drop;
+
+	for (;;) {
+		slot = &recorder->slots[pos % QUEUE_SLOTS];
+		int32_t diff = (int32_t) (__atomic_load_n(&slot->sequence, __ATOMIC_ACQUIRE) - pos);
+		if (diff == 0) {
+			if (__atomic_compare_exchange_n(&recorder->tail, &pos, pos + 1, 1, __ATOMIC_RELAXED, __ATOMIC_RELAXED))
+				break;
+		} else if (diff < 0) {
+			goto drop;
+		} else {
+			pos = __atomic_load_n(&recorder->tail, __ATOMIC_RELAXED);
+		}
+	}
+
+	if (__atomic_exchange_n(&recorder->pendingDrops, 0, __ATOMIC_RELAXED) != 0)
+		flags |= kFlagDropped;
+
+	RecordHeader header;
+	header.sync = AECM_RECORDER_RECORD_SYNC;
+	header.sequence = pos;
+	header.type = type;
+	header.flags = (uint8_t) flags;
+	header.samples = (uint16_t) samples;
+	header.delay = delay;
+	header.length = (uint16_t) length;
+	header.timeNs = timeNs;
+	memcpy(slot->data, &header, sizeof(header));
+	memset(slot->data + AECM_RECORDER_RECORD_HEADER_SIZE + payloadBytes, 0,
+	       length - AECM_RECORDER_RECORD_HEADER_SIZE - payloadBytes);
+	slot->length = length;
+	return slot;
+
+drop:
+	__atomic_fetch_add(&recorder->pendingDrops, 1, __ATOMIC_RELAXED);
+	__atomic_fetch_add(&recorder->dropped, 1, __ATOMIC_RELAXED);
+	return NULL;
+}
+
+static void commitRecord(Slot *slot) {
+	RecordHeader *header = (RecordHeader *) slot->data;
+	__atomic_store_n(&slot->sequence, header->sequence + 1, __ATOMIC_RELEASE);
+}
+
+static void writeToRing(AecmRecorder *recorder, const uint8_t *record, uint32_t length) {
+	uint32_t pos = (uint32_t) (recorder->written % recorder->capacity);
+
+	if (pos + length > recorder->capacity) {
+		uint32_t rest = recorder->capacity - pos;
+		if (rest >= AECM_RECORDER_RECORD_HEADER_SIZE) {
+			RecordHeader wrap;
+			memset(&wrap, 0, sizeof(wrap));
+			wrap.sync = AECM_RECORDER_RECORD_SYNC;
+			wrap.type = kRecordWrap;
+			wrap.length = (uint16_t) (rest > 0xffff ? 0xffff : rest);
+			memcpy(recorder->ring + pos, &wrap, sizeof(wrap));
+		}
+		recorder->written += rest;
+		pos = 0;
+	}
+
+	memcpy(recorder->ring + pos, record, length);
+	recorder->written += length;
+
+	// keep the configuration of the header up to date, a replay starting in the middle of the ring relies on it.
+	const RecordHeader *header = (const RecordHeader *) record;
+	const uint8_t *payload = record + AECM_RECORDER_RECORD_HEADER_SIZE;
+	if (header->type == kRecordInit) {
+		memcpy(&recorder->header->sampFreq, payload, sizeof(int32_t));
+	} else if (header->type == kRecordConfig) {
+		memcpy(&recorder->header->echoMode, payload, sizeof(int16_t));
+		memcpy(&recorder->header->cngMode, payload + sizeof(int16_t), sizeof(int16_t));
+		memcpy(&recorder->header->farendGate, payload + 2 * sizeof(int16_t), sizeof(int16_t));
+		memcpy(&recorder->header->driftComp, payload + 3 * sizeof(int16_t), sizeof(int16_t));
+	}
+}
+
+/**
+ * Moves every committed record from the queue to the file. Returns the number of records written.
+ */
+static int drain(AecmRecorder *recorder) {
+	int count = 0;
+	for (;;) {
+		Slot *slot = &recorder->slots[recorder->head % QUEUE_SLOTS];
+		if (__atomic_load_n(&slot->sequence, __ATOMIC_ACQUIRE) != recorder->head + 1)
+			break;
+
+		writeToRing(recorder, slot->data, slot->length);
+		__atomic_store_n(&slot->sequence, recorder->head + QUEUE_SLOTS, __ATOMIC_RELEASE);
+		recorder->head++;
+		count++;
+	}
+
+	if (count > 0) {
+		recorder->header->written = recorder->written;
+		recorder->header->dropped = __atomic_load_n(&recorder->dropped, __ATOMIC_RELAXED);
+	}
+	return count;
+}
+
+static void *writerLoop(void *arg) {
+	AecmRecorder *recorder = arg;
+	struct timespec period = {0, WRITER_PERIOD_NS};
+	struct timespec busyPeriod = {0, WRITER_BUSY_PERIOD_NS};
+
+	while (!__atomic_load_n(&recorder->stop, __ATOMIC_ACQUIRE)) {
+		int count = drain(recorder);
+		nanosleep(count > QUEUE_SLOTS / 8 ? &busyPeriod : &period, NULL);
+	}
+	drain(recorder);
+	return NULL;
+}
+
+AecmRecorder *AecmRecorder_Open(const char *path, uint32_t capacityBytes, int32_t sampFreq, int16_t echoMode, int16_t cngMode,
+                                int16_t farendGate, int16_t driftComp) {
+	uint32_t i;
+	if (path == NULL)
+		return NULL;
+
+	AecmRecorder *recorder = calloc(1, sizeof(AecmRecorder));
+	if (recorder == NULL)
+		return NULL;
+
+	recorder->capacity = capacityBytes < MIN_CAPACITY ? MIN_CAPACITY : capacityBytes & ~3u;
+	recorder->mapSize = AECM_RECORDER_HEADER_SIZE + (size_t) recorder->capacity;
+	recorder->fd = open(path, O_RDWR | O_CREAT | O_TRUNC, 0644);
+	if (recorder->fd < 0)
+		goto error;
+	if (ftruncate(recorder->fd, (off_t) recorder->mapSize) != 0)
+		goto error;
+
+	recorder->map = mmap(NULL, recorder->mapSize, PROT_READ | PROT_WRITE, MAP_SHARED, recorder->fd, 0);
+	if (recorder->map == MAP_FAILED) {
+		recorder->map = NULL;
+		goto error;
+	}
+	recorder->header = (RecorderFileHeader *) recorder->map;
+	recorder->ring = recorder->map + AECM_RECORDER_HEADER_SIZE;
+
+	recorder->header->magic = AECM_RECORDER_MAGIC;
+	recorder->header->version = AECM_RECORDER_VERSION;
+	recorder->header->headerSize = AECM_RECORDER_HEADER_SIZE;
+	recorder->header->capacity = recorder->capacity;
+	recorder->header->sampFreq = sampFreq;
+	recorder->header->echoMode = echoMode;
+	recorder->header->cngMode = cngMode;
+	recorder->header->farendGate = farendGate;
+	recorder->header->driftComp = driftComp;
+
+	for (i = 0; i < QUEUE_SLOTS; i++)
+		recorder->slots[i].sequence = i;
+
+	if (pthread_create(&recorder->writer, NULL, writerLoop, recorder) != 0)
+		goto error;
+
+	return recorder;
+
+error:
+	if (recorder->map != NULL)
+		munmap(recorder->map, recorder->mapSize);
+	if (recorder->fd >= 0)
+		close(recorder->fd);
+	free(recorder);
+	return NULL;
+}
+
+void AecmRecorder_Close(AecmRecorder *recorder) {
+	if (recorder == NULL)
+		return;
+
+	__atomic_store_n(&recorder->stop, 1, __ATOMIC_RELEASE);
+	pthread_join(recorder->writer, NULL);
+
+	recorder->header->written = recorder->written;
+	recorder->header->dropped = __atomic_load_n(&recorder->dropped, __ATOMIC_RELAXED);
+	msync(recorder->map, recorder->mapSize, MS_SYNC);
+	munmap(recorder->map, recorder->mapSize);
+	close(recorder->fd);
+	free(recorder);
+}
+
+void AecmRecorder_Init(AecmRecorder *recorder, int32_t sampFreq, int16_t flags) {
+	Slot *slot = beginRecord(recorder, kRecordInit, flags, 0, 0, 0, sizeof(int32_t));
+	if (slot == NULL)
+		return;
+	memcpy(slot->data + AECM_RECORDER_RECORD_HEADER_SIZE, &sampFreq, sizeof(int32_t));
+	commitRecord(slot);
+}
+
+void AecmRecorder_Config(AecmRecorder *recorder, int16_t echoMode, int16_t cngMode, int16_t farendGate, int16_t driftComp,
+                         int16_t flags) {
+	Slot *slot = beginRecord(recorder, kRecordConfig, flags, 0, 0, 0, 4 * sizeof(int16_t));
+	if (slot == NULL)
+		return;
+	memcpy(slot->data + AECM_RECORDER_RECORD_HEADER_SIZE, &echoMode, sizeof(int16_t));
+	memcpy(slot->data + AECM_RECORDER_RECORD_HEADER_SIZE + sizeof(int16_t), &cngMode, sizeof(int16_t));
+	memcpy(slot->data + AECM_RECORDER_RECORD_HEADER_SIZE + 2 * sizeof(int16_t), &farendGate, sizeof(int16_t));
+	memcpy(slot->data + AECM_RECORDER_RECORD_HEADER_SIZE + 3 * sizeof(int16_t), &driftComp, sizeof(int16_t));
+	commitRecord(slot);
+}
+
+void AecmRecorder_EchoPath(AecmRecorder *recorder, const int16_t *echoPath, int16_t length, int16_t flags) {
+	Slot *slot = beginRecord(recorder, kRecordEchoPath, flags, length, 0, 0, length * sizeof(int16_t));
+	if (slot == NULL)
+		return;
+	memcpy(slot->data + AECM_RECORDER_RECORD_HEADER_SIZE, echoPath, length * sizeof(int16_t));
+	commitRecord(slot);
+}
+
+void AecmRecorder_Farend(AecmRecorder *recorder, const int16_t *farend, int16_t nrOfSamples, int16_t flags) {
+	if (nrOfSamples < 0)
+		nrOfSamples = 0;
+	Slot *slot = beginRecord(recorder, kRecordFarend, flags, nrOfSamples, 0, 0, nrOfSamples * sizeof(int16_t));
+	if (slot == NULL)
+		return;
+	memcpy(slot->data + AECM_RECORDER_RECORD_HEADER_SIZE, farend, nrOfSamples * sizeof(int16_t));
+	commitRecord(slot);
+}
+
+void AecmRecorder_Process(AecmRecorder *recorder, const int16_t *nearendNoisy, const int16_t *nearendClean,
+                          const int16_t *out, int16_t nrOfSamples, int16_t msInSndCardBuf, uint32_t timeNs,
+                          int16_t flags) {
+	if (nrOfSamples < 0)
+		nrOfSamples = 0;
+	size_t frameBytes = nrOfSamples * sizeof(int16_t);
+	int frames = nearendClean != NULL ? 3 : 2;
+	if (nearendClean != NULL)
+		flags |= kFlagClean;
+
+	Slot *slot = beginRecord(recorder, kRecordProcess, flags, nrOfSamples, msInSndCardBuf, timeNs, frames * frameBytes);
+	if (slot == NULL)
+		return;
+
+	uint8_t *payload = slot->data + AECM_RECORDER_RECORD_HEADER_SIZE;
+	memcpy(payload, nearendNoisy, frameBytes);
+	payload += frameBytes;
+	if (nearendClean != NULL) {
+		memcpy(payload, nearendClean, frameBytes);
+		payload += frameBytes;
+	}
+	memcpy(payload, out, frameBytes);
+	commitRecord(slot);
+}
@@ -0,0 +1,87 @@
+//
+// Records the streams of an AECM instance into a memory-mapped ring file, so that a session can be replayed offline
+// by AecReplay.java.
+//
+// The audio threads only reserve a slot of a bounded lock-free queue and copy the frame into it, a background thread
+// drains the queue into the file. When the queue is full the record is dropped and the next record is flagged, the
+// audio threads never block.
+//
+// File layout (little endian):
+//   header (64 bytes): uint32 magic, uint32 version, uint32 header size, uint32 data capacity,
+//                      uint64 bytes written since the file was created, int32 sampling frequency,
+//                      int16 echo mode, int16 cng mode, uint32 dropped records, int16 farend gate,
+//                      int16 drift compensation, reserved
+//   data (ring of capacity bytes) made of records aligned to 4 bytes:
+//                      uint32 sync, uint32 sequence, uint8 type, uint8 flags, uint16 samples, int16 delay in ms,
+//                      uint16 record length, uint32 processing time in ns, payload
+// A record never wraps, the rest of the ring is skipped with a kRecordWrap record (or left as is if even the record
+// header doesn't fit) and the next record starts at the beginning of the data.
+//
+
+#ifndef AECM_AECM_RECORDER_H
+#define AECM_AECM_RECORDER_H
+
+#include <stdint.h>
+
+#define AECM_RECORDER_MAGIC 0x46434541 // "AECF"
+#define AECM_RECORDER_VERSION 1
+#define AECM_RECORDER_HEADER_SIZE 64
+#define AECM_RECORDER_RECORD_SYNC 0x52434541 // "AECR"
+#define AECM_RECORDER_RECORD_HEADER_SIZE 20
+
+// record types
+enum {
+    kRecordInit = 1,     // payload: int32 sampling frequency
+    kRecordConfig,       // payload: int16 echo mode, int16 cng mode, int16 farend gate, int16 drift compensation
+    kRecordEchoPath,     // payload: int16 echo path[samples]
+    kRecordFarend,       // payload: int16 farend[samples]
+    kRecordProcess,      // payload: int16 nearend noisy[samples], int16 nearend clean[samples] (kFlagClean), int16 out[samples]
+    kRecordWrap          // no payload, the rest of the ring is unused
+};
+
+// record flags
+enum {
+    kFlagClean = 1,      // kRecordProcess carries a nearend clean frame
+    kFlagDropped = 2,    // records were dropped right before this one because the queue was full
+    kFlagStateCarried = 4, // kRecordInit written when recording started on an instance which already processed frames
+    kFlagFailed = 8      // the recorded call failed
+};
+
+typedef struct AecmRecorder AecmRecorder;
+
+/**
+ * Creates (or truncates) the ring file, maps it and starts the writer thread.
+ *
+ * Inputs:
+ *         path          - path of the file
+ *         capacityBytes - size of the ring of records, the file is AECM_RECORDER_HEADER_SIZE bytes larger
+ *         sampFreq, echoMode, cngMode, farendGate, driftComp - current configuration of the instance, kept in the file
+ *                         header
+ * Return:     the recorder or NULL on error.
+ */
+AecmRecorder *AecmRecorder_Open(const char *path, uint32_t capacityBytes, int32_t sampFreq, int16_t echoMode, int16_t cngMode,
+                                int16_t farendGate, int16_t driftComp);
+
+/**
+ * Stops the writer thread after it has drained the queue and closes the file. No other recorder function may be
+ * running or be called afterwards.
+ */
+void AecmRecorder_Close(AecmRecorder *recorder);
+
+/**
+ * Functions below are called by the audio threads, they only copy the data into the queue and never block.
+ */
+void AecmRecorder_Init(AecmRecorder *recorder, int32_t sampFreq, int16_t flags);
+
+void AecmRecorder_Config(AecmRecorder *recorder, int16_t echoMode, int16_t cngMode, int16_t farendGate, int16_t driftComp,
+                         int16_t flags);
+
+void AecmRecorder_EchoPath(AecmRecorder *recorder, const int16_t *echoPath, int16_t length, int16_t flags);
+
+void AecmRecorder_Farend(AecmRecorder *recorder, const int16_t *farend, int16_t nrOfSamples, int16_t flags);
+
+void AecmRecorder_Process(AecmRecorder *recorder, const int16_t *nearendNoisy, const int16_t *nearendClean,
+                          const int16_t *out, int16_t nrOfSamples, int16_t msInSndCardBuf, uint32_t timeNs,
+                          int16_t flags);
+
+#endif //AECM_AECM_RECORDER_H
@@ -0,0 +1,107 @@
+#include "aecm_resampler.h"
+
+#include <string.h>
+
+// Low-pass filters with the cut-off at 7600 Hz, symmetric and normalized to a DC gain of 32768 (Q15).
+static const int16_t k32To16kHz[80] = {
+	1, 2, -2, -6, 4, 11, -4, -21, 3, 34,
+	2, -51, -12, 73, 31, -97, -62, 123, 107, -147,
+	-170, 165, 254, -171, -364, 159, 504, -117, -681, 31,
+	907, 124, -1212, -399, 1670, 930, -2535, -2288, 5435, 14153,
+	14153, 5435, -2288, -2535, 930, 1670, -399, -1212, 124, 907,
+	31, -681, -117, 504, 159, -364, -171, 254, 165, -170,
+	-147, 107, 123, -62, -97, 31, 73, -12, -51, 2,
+	34, 3, -21, -4, 11, 4, -6, -2, 2, 1
+};
+static const int16_t k48To16kHz[120] = {
+	0, 2, 1, -1, -4, -3, 1, 7, 7, 0,
+	-11, -14, -2, 16, 23, 8, -21, -36, -18, 24,
+	53, 34, -25, -73, -57, 21, 96, 90, -10, -121,
+	-133, -13, 145, 189, 51, -165, -258, -110, 178, 342,
+	196, -176, -444, -319, 153, 567, 496, -94, -725, -765,
+	-26, 946, 1220, 281, -1338, -2212, -984, 2525, 6918, 9952,
+	9952, 6918, 2525, -984, -2212, -1338, 281, 1220, 946, -26,
+	-765, -725, -94, 496, 567, 153, -319, -444, -176, 196,
+	342, 178, -110, -258, -165, 51, 189, 145, -13, -133,
+	-121, -10, 90, 96, 21, -57, -73, -25, 34, 53,
+	24, -18, -36, -21, 8, 23, 16, -2, -14, -11,
+	0, 7, 7, 1, -3, -4, -1, 1, 2, 0
+};
+
+// Q15 rounding and saturation of an accumulated sum of products. The sums are kept in 64 bits: the absolute sum
+// of the coefficients is slightly above 2.0, so a full scale input can exceed 32 bits.
+static int16_t roundQ15(int64_t acc) {
+	acc = (acc + (1 << 14)) >> 15;
+	return (int16_t) (acc > 32767 ? 32767 : acc < -32768 ? -32768 : acc);
+}
+
+int AecmResampler_Factor(int32_t sampFreq) {
+	if (sampFreq == 32000)
+		return 2;
+	if (sampFreq == 48000)
+		return 3;
+	return 1;
+}
+
+void AecmDecimator_Init(AecmDecimator *decimator, int factor) {
+	decimator->factor = factor;
+	decimator->coefs = factor == 3 ? k48To16kHz : k32To16kHz;
+	memset(decimator->history, 0, sizeof(decimator->history));
+}
+
+void AecmDecimator_Process(AecmDecimator *decimator, const int16_t *in, int16_t *out, int outLength) {
+	const int factor = decimator->factor;
+	const int taps = AECM_RESAMPLER_TAPS_PER_PHASE * factor;
+	const int16_t *coefs = decimator->coefs;
+	int16_t buffer[AECM_RESAMPLER_TAPS_PER_PHASE * AECM_RESAMPLER_MAX_FACTOR - 1
+	               + AECM_RESAMPLER_MAX_FRAME * AECM_RESAMPLER_MAX_FACTOR];
+	int inLength = outLength * factor;
+	int i, k;
+
+	memcpy(buffer, decimator->history, (taps - 1) * sizeof(int16_t));
+	memcpy(buffer + taps - 1, in, inLength * sizeof(int16_t));
+
+	// out[i] = sum(h[k] * in[i * factor - k]), the filter is symmetric, so it is a dot product with the window
+	// of taps samples ending at in[i * factor].
+	for (i = 0; i < outLength; i++) {
+		const int16_t *x = buffer + i * factor;
+		int64_t acc = 0;
+		for (k = 0; k < taps; k++)
+			acc += (int32_t) coefs[k] * x[k];
+		out[i] = roundQ15(acc);
+	}
+
+	memcpy(decimator->history, buffer + inLength, (taps - 1) * sizeof(int16_t));
+}
+
+void AecmInterpolator_Init(AecmInterpolator *interpolator, int factor) {
+	interpolator->factor = factor;
+	interpolator->coefs = factor == 3 ? k48To16kHz : k32To16kHz;
+	memset(interpolator->history, 0, sizeof(interpolator->history));
+}
+
+void AecmInterpolator_Process(AecmInterpolator *interpolator, const int16_t *in, int16_t *out, int inLength) {
+	const int factor = interpolator->factor;
+	const int16_t *coefs = interpolator->coefs;
+	int16_t buffer[AECM_RESAMPLER_TAPS_PER_PHASE - 1 + AECM_RESAMPLER_MAX_FRAME];
+	int i, phase, k;
+
+	memcpy(buffer, interpolator->history, (AECM_RESAMPLER_TAPS_PER_PHASE - 1) * sizeof(int16_t));
+	memcpy(buffer + AECM_RESAMPLER_TAPS_PER_PHASE - 1, in, inLength * sizeof(int16_t));
+
+	// out[i * factor + phase] = factor * sum(h[phase + k * factor] * in[i - k]), only every factor-th tap meets a
+	// non-zero sample of the zero-stuffed input. With the symmetric filter it is a dot product of the window of
+	// taps per phase samples ending at in[i] with the taps factor - 1 - phase, factor - 1 - phase + factor, ...
+	for (i = 0; i < inLength; i++) {
+		const int16_t *x = buffer + i;
+		for (phase = 0; phase < factor; phase++) {
+			const int16_t *h = coefs + factor - 1 - phase;
+			int64_t acc = 0;
+			for (k = 0; k < AECM_RESAMPLER_TAPS_PER_PHASE; k++)
+				acc += (int32_t) h[k * factor] * x[k];
+			out[i * factor + phase] = roundQ15(acc * factor);
+		}
+	}
+
+	memcpy(interpolator->history, buffer + inLength, (AECM_RESAMPLER_TAPS_PER_PHASE - 1) * sizeof(int16_t));
+}
@@ -0,0 +1,60 @@
+//
+// Fixed-point polyphase resampling between 32000/48000 Hz and the 16000 Hz the AECM core runs at.
+//
+// Both directions use one linear-phase FIR low-pass per rate (Kaiser window, 40 taps per phase, Q15): the pass band
+// is flat up to 7 kHz, the stop band starts at 8.5 kHz with more than 65 dB of attenuation. The decimator only
+// computes the samples it keeps and the interpolator only the non-zero taps of every phase, so a 10 ms frame costs
+// 40 multiply-adds per output sample in each direction. Each resampler delays the signal by (taps - 1) / 2 samples
+// of the high rate, about 1.2 ms at both rates.
+//
+
+#ifndef AECM_AECM_RESAMPLER_H
+#define AECM_AECM_RESAMPLER_H
+
+#include <stdint.h>
+
+#define AECM_RESAMPLER_TAPS_PER_PHASE 40
+#define AECM_RESAMPLER_MAX_FACTOR 3
+#define AECM_RESAMPLER_MAX_FRAME 160 // samples of one frame at 16000 Hz
+
+typedef struct {
+    int factor;
+    const int16_t *coefs;
+    int16_t history[AECM_RESAMPLER_TAPS_PER_PHASE * AECM_RESAMPLER_MAX_FACTOR - 1]; // last input samples
+} AecmDecimator;
+
+typedef struct {
+    int factor;
+    const int16_t *coefs;
+    int16_t history[AECM_RESAMPLER_TAPS_PER_PHASE - 1]; // last input samples
+} AecmInterpolator;
+
+/**
+ * Returns the factor between sampFreq and 16000 Hz when the data must be resampled for the AECM core: 2 for
+ * 32000 Hz, 3 for 48000 Hz, 1 for any other rate which is passed to the core as is.
+ */
+int AecmResampler_Factor(int32_t sampFreq);
+
+/**
+ * Clears the history of a decimator by factor, 2 or 3.
+ */
+void AecmDecimator_Init(AecmDecimator *decimator, int factor);
+
+/**
+ * Decimates outLength * factor samples of in into outLength samples of out, outLength <= AECM_RESAMPLER_MAX_FRAME.
+ * in and out may not overlap.
+ */
+void AecmDecimator_Process(AecmDecimator *decimator, const int16_t *in, int16_t *out, int outLength);
+
+/**
+ * Clears the history of an interpolator by factor, 2 or 3.
+ */
+void AecmInterpolator_Init(AecmInterpolator *interpolator, int factor);
+
+/**
+ * Interpolates inLength samples of in into inLength * factor samples of out, inLength <= AECM_RESAMPLER_MAX_FRAME.
+ * in and out may not overlap.
+ */
+void AecmInterpolator_Process(AecmInterpolator *interpolator, const int16_t *in, int16_t *out, int inLength);
+
+#endif //AECM_AECM_RESAMPLER_H
@@ -184,22 +184,26 @@ static void ComfortNoise(AecmCore_t* aecm,
                          complex16_t* out,
                          const int16_t* lambda);
 
+static void UpdateNoiseEstimate(AecmCore_t* aecm,
+                                const uint16_t* dfa,
+                                int16_t shiftFromNearToNoise);
+
 static int16_t CalcSuppressionGain(AecmCore_t * const aecm);
 
 // Moves the pointer to the next entry and inserts |far_spectrum| and
 // corresponding Q-domain in its buffer.
 //
 // Inputs:
-//      - self          : Pointer to the delay estimation instance
+//      - self          : Pointer to the far end analysis
 //      - far_spectrum  : Pointer to the far end spectrum
 //      - far_q         : Q-domain of far end spectrum
 //
-static void UpdateFarHistory(AecmCore_t* self,
+static void UpdateFarHistory(AecmFarend_t* self,
                              uint16_t* far_spectrum,
                              int far_q) {
   // Get new buffer position
   self->far_history_pos++;
-  if (self->far_history_pos >= MAX_DELAY) {
+  if (self->far_history_pos >= self->max_delay) {
     self->far_history_pos = 0;
   }
   // Update Q-domain buffer
@@ -217,8 +221,9 @@ static void UpdateFarHistory(AecmCore_t* self,
 // WebRtc_DelayEstimatorProcessFix(...).
 //
 // Inputs:
-//      - self              : Pointer to the AECM instance.
-//      - delay             : Current delay estimate.
+//      - self              : Pointer to the far end analysis.
+//      - delay             : Current delay estimate, plus the blocks the far
+//                            end history is ahead of the near end.
 //
 // Output:
 //      - far_q             : The Q-domain of the aligned far end spectrum
@@ -227,14 +232,14 @@ static void UpdateFarHistory(AecmCore_t* self,
 //      - far_spectrum      : Pointer to the aligned far end spectrum
 //                            NULL - Error
 //
-static const uint16_t* AlignedFarend(AecmCore_t* self, int* far_q, int delay) {
+static const uint16_t* AlignedFarend(AecmFarend_t* self, int* far_q, int delay) {
   int buffer_position = 0;
   assert(self != NULL);
   buffer_position = self->far_history_pos - delay;
 
   // Check buffer position
   if (buffer_position < 0) {
-    buffer_position += MAX_DELAY;
+    buffer_position += self->max_delay;
   }
   // Get Q-domain
   *far_q = self->far_q_domains[buffer_position];
@@ -247,7 +252,89 @@ CalcLinearEnergies WebRtcAecm_CalcLinearEnergies;
 StoreAdaptiveChannel WebRtcAecm_StoreAdaptiveChannel;
 ResetAdaptiveChannel WebRtcAecm_ResetAdaptiveChannel;
 
-int WebRtcAecm_CreateCore(AecmCore_t **aecmInst)
+// Allocates a far end analysis, with the windows of a shared one if |shared|
+// is set.
+static int CreateFarend(AecmFarend_t **farendInst, int maxDelay, int shared)
+{
+    // The far end history follows the struct in the same allocation, the
+    // Q-domains first since the struct is aligned for them.
+    AecmFarend_t *farend = NULL;
+    size_t windowsSize = shared ? sizeof(int16_t) * PART_LEN2 * FAREND_SHARE_DEPTH : 0;
+    if (maxDelay > FAREND_SHARE_DEPTH)
+    {
+        farend = malloc(sizeof(AecmFarend_t)
+                        + maxDelay * (sizeof(int) + sizeof(uint16_t) * PART_LEN1)
+                        + windowsSize);
+    }
+    *farendInst = farend;
+    if (farend == NULL)
+    {
+        return -1;
+    }
+    farend->max_delay = maxDelay;
+    farend->far_q_domains = (int*) (farend + 1);
+    farend->far_history = (uint16_t*) (farend->far_q_domains + maxDelay);
+    farend->windows = shared ? (int16_t*) (farend->far_history + maxDelay * PART_LEN1) : NULL;
+
+    farend->delay_estimator_farend = WebRtc_CreateDelayEstimatorFarend(PART_LEN1,
+                                                                       maxDelay);
+    if (farend->delay_estimator_farend == NULL)
+    {
+        WebRtcAecm_FreeFarend(farend);
+        *farendInst = NULL;
+        return -1;
+    }
+    return 0;
+}
+
+int WebRtcAecm_CreateFarend(AecmFarend_t **farendInst, int maxDelay)
+{
+    if (CreateFarend(farendInst, maxDelay, 1) == -1)
+    {
+        return -1;
+    }
+    return WebRtcAecm_InitFarend(*farendInst);
+}
+
+int WebRtcAecm_InitFarend(AecmFarend_t *farend)
+{
+    if (WebRtc_InitDelayEstimatorFarend(farend->delay_estimator_farend) != 0) {
+      return -1;
+    }
+    // Set far end histories to zero
+    memset(farend->far_history, 0, sizeof(uint16_t) * PART_LEN1 * farend->max_delay);
+    memset(farend->far_q_domains, 0, sizeof(int) * farend->max_delay);
+    farend->far_history_pos = farend->max_delay;
+
+    farend->blocks = 0;
+    farend->reusedBlocks = 0;
+    if (farend->windows != NULL)
+    {
+        memset(farend->windows, 0, sizeof(int16_t) * PART_LEN2 * FAREND_SHARE_DEPTH);
+    }
+    return 0;
+}
+
+void WebRtcAecm_FreeFarend(AecmFarend_t *farend)
+{
+    if (farend == NULL)
+    {
+        return;
+    }
+    WebRtc_FreeDelayEstimatorFarend(farend->delay_estimator_farend);
+    free(farend);
+}
+
+size_t WebRtcAecm_FarendMemorySize(const AecmFarend_t *farend)
+{
+    return sizeof(AecmFarend_t)
+           + farend->max_delay * (sizeof(int) + sizeof(uint16_t) * PART_LEN1)
+           + (farend->windows != NULL ? sizeof(int16_t) * PART_LEN2 * FAREND_SHARE_DEPTH : 0)
+           + WebRtc_DelayEstimatorFarendMemorySize(farend->delay_estimator_farend);
+}
+
+int WebRtcAecm_CreateCore(AecmCore_t **aecmInst, int maxDelay,
+                          AecmFarend_t *sharedFarend)
 {
     AecmCore_t *aecm = malloc(sizeof(AecmCore_t));
     *aecmInst = aecm;
@@ -255,6 +342,28 @@ int WebRtcAecm_CreateCore(AecmCore_t **aecmInst)
     {
         return -1;
     }
+    aecm->farFrameBuf = NULL;
+    aecm->nearNoisyFrameBuf = NULL;
+    aecm->nearCleanFrameBuf = NULL;
+    aecm->outFrameBuf = NULL;
+    aecm->delay_estimator = NULL;
+    aecm->real_fft = NULL;
+    aecm->farend = NULL;
+    aecm->ownFarend = NULL;
+
+    // An instance on a shared far end still has an analysis of its own to go
+    // on with once it can't follow the others, see AnalyzeFarend().
+    aecm->sharedFarend = sharedFarend;
+    if (sharedFarend != NULL)
+    {
+        maxDelay = sharedFarend->max_delay;
+    }
+    if (CreateFarend(&aecm->ownFarend, maxDelay, 0) == -1)
+    {
+        WebRtcAecm_FreeCore(aecm);
+        aecm = NULL;
+        return -1;
+    }
 
     aecm->farFrameBuf = WebRtc_CreateBuffer(FRAME_LEN + PART_LEN,
                                             sizeof(int16_t));
@@ -292,15 +401,9 @@ int WebRtcAecm_CreateCore(AecmCore_t **aecmInst)
         return -1;
     }
 
-    aecm->delay_estimator_farend = WebRtc_CreateDelayEstimatorFarend(PART_LEN1,
-                                                                     MAX_DELAY);
-    if (aecm->delay_estimator_farend == NULL) {
-      WebRtcAecm_FreeCore(aecm);
-      aecm = NULL;
-      return -1;
-    }
+    aecm->farend = aecm->ownFarend;
     aecm->delay_estimator =
-        WebRtc_CreateDelayEstimator(aecm->delay_estimator_farend, 0);
+        WebRtc_CreateDelayEstimator(aecm->farend->delay_estimator_farend, 0);
     if (aecm->delay_estimator == NULL) {
       WebRtcAecm_FreeCore(aecm);
       aecm = NULL;
@@ -554,16 +657,22 @@ int WebRtcAecm_InitCore(AecmCore_t * const aecm, int samplingFreq)
     aecm->seed = 666;
     aecm->totCount = 0;
 
-    if (WebRtc_InitDelayEstimatorFarend(aecm->delay_estimator_farend) != 0) {
+    // The shared far end is used only if the instance starts along with the
+    // others, an instance started later can't be in step with them.
+    if (WebRtcAecm_InitFarend(aecm->ownFarend) != 0) {
       return -1;
     }
-    if (WebRtc_InitDelayEstimator(aecm->delay_estimator) != 0) {
+    aecm->farend = aecm->ownFarend;
+    if (aecm->sharedFarend != NULL && aecm->sharedFarend->blocks == 0)
+    {
+        aecm->farend = aecm->sharedFarend;
+    }
+    if (WebRtc_set_farend(aecm->delay_estimator,
+                          aecm->farend->delay_estimator_farend) != 0 ||
+        WebRtc_InitDelayEstimator(aecm->delay_estimator) != 0) {
       return -1;
     }
-    // Set far end histories to zero
-    memset(aecm->far_history, 0, sizeof(uint16_t) * PART_LEN1 * MAX_DELAY);
-    memset(aecm->far_q_domains, 0, sizeof(int) * MAX_DELAY);
-    aecm->far_history_pos = MAX_DELAY;
+    aecm->farendBlock = aecm->farend->blocks;
 
     aecm->nlpFlag = 1;
     aecm->fixedDelay = -1;
@@ -594,6 +703,11 @@ int WebRtcAecm_InitCore(AecmCore_t * const aecm, int samplingFreq)
 
     aecm->cngMode = AecmTrue;
 
+    aecm->farendGate = AecmFalse;
+    aecm->farSilentBlocks = 0;
+    aecm->blockCount = 0;
+    aecm->gatedBlockCount = 0;
+
     memset(aecm->noiseEstTooLowCtr, 0, sizeof(aecm->noiseEstTooLowCtr));
     memset(aecm->noiseEstTooHighCtr, 0, sizeof(aecm->noiseEstTooHighCtr));
     // Shape the initial noise level to an approximate pink noise.
@@ -644,6 +758,8 @@ int WebRtcAecm_InitCore(AecmCore_t * const aecm, int samplingFreq)
     }
 #elif defined(WEBRTC_ARCH_ARM_NEON)
     WebRtcAecm_InitNeon();
+#elif defined(WEBRTC_USE_SSE2)
+    WebRtcAecm_InitSse2();
 #endif
 
     return 0;
@@ -672,7 +788,7 @@ int WebRtcAecm_FreeCore(AecmCore_t *aecm)
     WebRtc_FreeBuffer(aecm->outFrameBuf);
 
     WebRtc_FreeDelayEstimator(aecm->delay_estimator);
-    WebRtc_FreeDelayEstimatorFarend(aecm->delay_estimator_farend);
+    WebRtcAecm_FreeFarend(aecm->ownFarend);
     WebRtcSpl_FreeRealFFT(aecm->real_fft);
 
     free(aecm);
@@ -680,6 +796,19 @@ int WebRtcAecm_FreeCore(AecmCore_t *aecm)
     return 0;
 }
 
+size_t WebRtcAecm_CoreMemorySize(const AecmCore_t* aecm)
+{
+    // A shared far end analysis is accounted once for all the instances.
+    return sizeof(AecmCore_t)
+           + WebRtcAecm_FarendMemorySize(aecm->ownFarend)
+           + WebRtc_BufferMemorySize(aecm->farFrameBuf)
+           + WebRtc_BufferMemorySize(aecm->nearNoisyFrameBuf)
+           + WebRtc_BufferMemorySize(aecm->nearCleanFrameBuf)
+           + WebRtc_BufferMemorySize(aecm->outFrameBuf)
+           + WebRtc_DelayEstimatorMemorySize(aecm->delay_estimator)
+           + WebRtcSpl_RealFFTMemorySize(aecm->real_fft);
+}
+
 int WebRtcAecm_ProcessFrame(AecmCore_t * aecm,
                             const int16_t * farend,
                             const int16_t * nearendNoisy,
@@ -1475,6 +1604,180 @@ static int TimeToFrequencyDomain(AecmCore_t* aecm,
     return time_signal_scaling;
 }
 
+// Updates the far end silence gate with the far end block. Returns 1 if the
+// block can be passed through: the far end has been silent for longer than the
+// far end history, so no echo of it is left to find in the near end, and the
+// far end VAD of the latest processed block is off.
+static int FarendGateClosed(AecmCore_t* aecm, const int16_t* farend)
+{
+    if (WebRtcSpl_MaxAbsValueW16(farend, PART_LEN) > FAR_SILENCE_LEVEL)
+    {
+        aecm->farSilentBlocks = 0;
+        return 0;
+    }
+    if (aecm->farSilentBlocks <= aecm->farend->max_delay)
+    {
+        aecm->farSilentBlocks++;
+    }
+    return (aecm->farSilentBlocks > aecm->farend->max_delay) && !aecm->currentVADValue;
+}
+
+// Passes a block through while the far end silence gate is closed. The output
+// lags the near end by one block like the output of the full processing and
+// is made of the same squared window halves, which add up to one, so the
+// overlap-add continues seamlessly in both directions. The adapted channel,
+// the energy levels and the far end history are left as they are, only the
+// noise estimate of the comfort noise keeps tracking the near end, which costs
+// one forward FFT.
+static void PassThroughBlock(AecmCore_t* aecm,
+                             const int16_t* farend,
+                             const int16_t* nearendNoisy,
+                             const int16_t* nearendClean,
+                             int16_t* output)
+{
+    int i;
+    int16_t rise, fall;
+    int32_t tmp32;
+    const int16_t* nearend = nearendClean != NULL ? nearendClean : nearendNoisy;
+    int16_t* nearendBuf = nearendClean != NULL ? aecm->dBufClean : aecm->dBufNoisy;
+    const int16_t* nearendOld = nearendBuf;
+
+    if (aecm->cngMode == AecmTrue)
+    {
+        uint16_t dfa[PART_LEN1];
+        uint32_t dfaSum = 0;
+        int32_t dfw_buf[PART_LEN2 + 8];
+        complex16_t* dfw = (complex16_t*) (((uintptr_t) dfw_buf + 31) & ~ 31);
+        int dfaQDomain;
+
+        memcpy(nearendBuf + PART_LEN, nearend, sizeof(int16_t) * PART_LEN);
+        dfaQDomain = TimeToFrequencyDomain(aecm, nearendBuf, dfw, dfa, &dfaSum);
+        UpdateNoiseEstimate(aecm, dfa, (int16_t)(kNoiseEstQDomain - dfaQDomain));
+    }
+
+    for (i = 0; i < PART_LEN; i++)
+    {
+        rise = (int16_t)WEBRTC_SPL_MUL_16_16_RSFT(WebRtcAecm_kSqrtHanning[i],
+                                                  WebRtcAecm_kSqrtHanning[i], 14);
+        fall = (int16_t)WEBRTC_SPL_MUL_16_16_RSFT(WebRtcAecm_kSqrtHanning[PART_LEN - i],
+                                                  WebRtcAecm_kSqrtHanning[PART_LEN - i], 14);
+        tmp32 = WEBRTC_SPL_MUL_16_16_RSFT_WITH_ROUND(nearendOld[i], rise, 14);
+        output[i] = (int16_t)WEBRTC_SPL_SAT(WEBRTC_SPL_WORD16_MAX,
+            tmp32 + aecm->outBuf[i], WEBRTC_SPL_WORD16_MIN);
+        aecm->outBuf[i] = (int16_t)WEBRTC_SPL_MUL_16_16_RSFT_WITH_ROUND(nearend[i], fall, 14);
+    }
+
+    // A shared far end goes on without this instance, it follows the others
+    // as long as they are ahead. Its own far end history is left as it is.
+    if (aecm->farend->windows != NULL && aecm->farendBlock != aecm->farend->blocks)
+    {
+        aecm->farendBlock++;
+    }
+
+    // The current block becomes the old one, like in InverseFFTAndWindow().
+    memcpy(aecm->xBuf, farend, sizeof(int16_t) * PART_LEN);
+    memcpy(aecm->dBufNoisy, nearendNoisy, sizeof(int16_t) * PART_LEN);
+    if (nearendClean != NULL)
+    {
+        memcpy(aecm->dBufClean, nearendClean, sizeof(int16_t) * PART_LEN);
+    }
+}
+
+// Makes the instance go on with its own far end analysis, which takes over
+// the shared history without the newest |offset| blocks. It starts empty if
+// none of the shared blocks are left.
+static int DetachFarend(AecmCore_t* aecm, uint32_t offset)
+{
+    AecmFarend_t* shared = aecm->farend;
+    AecmFarend_t* own = aecm->ownFarend;
+    int i;
+
+    if (offset < shared->blocks && offset < (uint32_t) shared->max_delay)
+    {
+        memcpy(own->far_history, shared->far_history,
+               sizeof(uint16_t) * PART_LEN1 * shared->max_delay);
+        memcpy(own->far_q_domains, shared->far_q_domains,
+               sizeof(int) * shared->max_delay);
+        own->far_history_pos = shared->far_history_pos;
+        for (i = 0; i < (int) offset; i++)
+        {
+            // The dropped blocks become the oldest ones, out of reach of the
+            // delays found from now on.
+            memset(&own->far_history[own->far_history_pos * PART_LEN1], 0,
+                   sizeof(uint16_t) * PART_LEN1);
+            own->far_q_domains[own->far_history_pos] = 0;
+            own->far_history_pos--;
+            if (own->far_history_pos < 0)
+            {
+                own->far_history_pos += own->max_delay;
+            }
+        }
+        if (WebRtc_CopyDelayEstimatorFarend(own->delay_estimator_farend,
+                                            shared->delay_estimator_farend,
+                                            (int) offset) == -1)
+        {
+            return -1;
+        }
+    }
+    aecm->farend = own;
+    return WebRtc_set_farend(aecm->delay_estimator,
+                             own->delay_estimator_farend);
+}
+
+// Transforms the far end block in |aecm->xBuf| to the frequency domain, adds
+// it to the far end history and feeds it to the far end part of the delay
+// estimator. If the far end analysis is shared and the block is among the
+// latest FAREND_SHARE_DEPTH blocks another instance has analyzed, the history
+// is left as it is. If another instance has analyzed a different block, the
+// instance goes on with its own analysis. |dfw| is scratch memory for the FFT.
+//
+// Return value: the number of blocks the far end history is ahead of the
+//               block, 0 if it has been analyzed now; -1 on error.
+static int AnalyzeFarend(AecmCore_t* aecm, complex16_t* dfw)
+{
+    AecmFarend_t* farend = aecm->farend;
+    uint32_t block = aecm->farendBlock + 1;
+    uint32_t lag = farend->blocks - block;
+    uint16_t xfa[PART_LEN1];
+    uint32_t xfaSum;
+    int far_q;
+
+    if (farend->windows != NULL && block != farend->blocks + 1)
+    {
+        if (lag < FAREND_SHARE_DEPTH &&
+            memcmp(farend->windows + (block % FAREND_SHARE_DEPTH) * PART_LEN2,
+                   aecm->xBuf, sizeof(int16_t) * PART_LEN2) == 0)
+        {
+            aecm->farendBlock = block;
+            farend->reusedBlocks++;
+            return (int) lag;
+        }
+        // The history holds blocks up to |block| - 1 the instance has been
+        // fed with too, the newer ones aren't its own.
+        if (DetachFarend(aecm, lag + 1) == -1)
+        {
+            return -1;
+        }
+        farend = aecm->farend;
+    }
+
+    far_q = TimeToFrequencyDomain(aecm, aecm->xBuf, dfw, xfa, &xfaSum);
+    UpdateFarHistory(farend, xfa, far_q);
+    if (WebRtc_AddFarSpectrumFix(farend->delay_estimator_farend, xfa, PART_LEN1,
+                                 far_q) == -1) {
+      return -1;
+    }
+
+    farend->blocks++;
+    aecm->farendBlock = farend->blocks;
+    if (farend->windows != NULL)
+    {
+        memcpy(farend->windows + (farend->blocks % FAREND_SHARE_DEPTH) * PART_LEN2,
+               aecm->xBuf, sizeof(int16_t) * PART_LEN2);
+    }
+    return 0;
+}
+
 int WebRtcAecm_ProcessBlock(AecmCore_t * aecm,
                             const int16_t * farend,
                             const int16_t * nearendNoisy,
@@ -1483,7 +1786,6 @@ int WebRtcAecm_ProcessBlock(AecmCore_t * aecm,
 {
     int i;
 
-    uint32_t xfaSum;
     uint32_t dfaNoisySum;
     uint32_t dfaCleanSum;
     uint32_t echoEst32Gained;
@@ -1491,7 +1793,6 @@ int WebRtcAecm_ProcessBlock(AecmCore_t * aecm,
 
     int32_t tmp32no1;
 
-    uint16_t xfa[PART_LEN1];
     uint16_t dfaNoisy[PART_LEN1];
     uint16_t dfaClean[PART_LEN1];
     uint16_t* ptrDfaClean = dfaClean;
@@ -1513,6 +1814,7 @@ int WebRtcAecm_ProcessBlock(AecmCore_t * aecm,
     int16_t numPosCoef = 0;
     int16_t nlpGain = ONE_Q14;
     int delay;
+    int far_lag;
     int16_t tmp16no1;
     int16_t tmp16no2;
     int16_t mu;
@@ -1537,6 +1839,14 @@ int WebRtcAecm_ProcessBlock(AecmCore_t * aecm,
     }
     // END: Determine startup state
 
+    aecm->blockCount++;
+    if (aecm->farendGate && FarendGateClosed(aecm, farend))
+    {
+        aecm->gatedBlockCount++;
+        PassThroughBlock(aecm, farend, nearendNoisy, nearendClean, output);
+        return 0;
+    }
+
     // Buffer near and far end signals
     memcpy(aecm->xBuf + PART_LEN, farend, sizeof(int16_t) * PART_LEN);
     memcpy(aecm->dBufNoisy + PART_LEN, nearendNoisy, sizeof(int16_t) * PART_LEN);
@@ -1545,12 +1855,14 @@ int WebRtcAecm_ProcessBlock(AecmCore_t * aecm,
         memcpy(aecm->dBufClean + PART_LEN, nearendClean, sizeof(int16_t) * PART_LEN);
     }
 
-    // Transform far end signal from time domain to frequency domain.
-    far_q = TimeToFrequencyDomain(aecm,
-                                  aecm->xBuf,
-                                  dfw,
-                                  xfa,
-                                  &xfaSum);
+    // Transform far end signal from time domain to frequency domain, save
+    // the far end history and feed the delay estimator, unless a shared far
+    // end analysis has the block already.
+    far_lag = AnalyzeFarend(aecm, dfw);
+    if (far_lag == -1)
+    {
+        return -1;
+    }
 
     // Transform noisy near end signal from time domain to frequency domain.
     zerosDBufNoisy = TimeToFrequencyDomain(aecm,
@@ -1581,11 +1893,9 @@ int WebRtcAecm_ProcessBlock(AecmCore_t * aecm,
     }
 
     // Get the delay
-    // Save far-end history and estimate delay
-    UpdateFarHistory(aecm, xfa, far_q);
-    if (WebRtc_AddFarSpectrumFix(aecm->delay_estimator_farend, xfa, PART_LEN1,
-                                 far_q) == -1) {
-      return -1;
+    if (WebRtc_set_far_offset(aecm->delay_estimator, far_lag) == -1)
+    {
+        return -1;
     }
     delay = WebRtc_DelayEstimatorProcessFix(aecm->delay_estimator,
                                             dfaNoisy,
@@ -1607,9 +1917,14 @@ int WebRtcAecm_ProcessBlock(AecmCore_t * aecm,
         // Use fixed delay
         delay = aecm->fixedDelay;
     }
+    if (delay >= aecm->farend->max_delay - far_lag)
+    {
+        // The oldest blocks have left the history of a shared far end.
+        delay = aecm->farend->max_delay - far_lag - 1;
+    }
 
     // Get aligned far end spectrum
-    far_spectrum_ptr = AlignedFarend(aecm, &far_q, delay);
+    far_spectrum_ptr = AlignedFarend(aecm->farend, &far_q, delay + far_lag);
     zerosXBuf = (int16_t) far_q;
     if (far_spectrum_ptr == NULL)
     {
@@ -1825,30 +2140,20 @@ int WebRtcAecm_ProcessBlock(AecmCore_t * aecm,
 }
 
 
-// Generate comfort noise and add to output signal.
+// Update the noise estimate of the comfort noise with the nearend spectrum.
 //
-// \param[in]     aecm     Handle of the AECM instance.
-// \param[in]     dfa     Absolute value of the nearend signal (Q[aecm->dfaQDomain]).
-// \param[in,out] outReal Real part of the output signal (Q[aecm->dfaQDomain]).
-// \param[in,out] outImag Imaginary part of the output signal (Q[aecm->dfaQDomain]).
-// \param[in]     lambda  Suppression gain with which to scale the noise level (Q14).
+// \param[in]     aecm                 Handle of the AECM instance.
+// \param[in]     dfa                  Absolute value of the nearend signal.
+// \param[in]     shiftFromNearToNoise Shift from the Q-domain of |dfa| to the
+//                                     one of the noise estimate.
 //
-static void ComfortNoise(AecmCore_t* aecm,
-                         const uint16_t* dfa,
-                         complex16_t* out,
-                         const int16_t* lambda)
+static void UpdateNoiseEstimate(AecmCore_t* aecm,
+                                const uint16_t* dfa,
+                                int16_t shiftFromNearToNoise)
 {
     int16_t i;
-    int16_t tmp16;
     int32_t tmp32;
-
-    int16_t randW16[PART_LEN];
-    int16_t uReal[PART_LEN1];
-    int16_t uImag[PART_LEN1];
     int32_t outLShift32;
-    int16_t noiseRShift16[PART_LEN1];
-
-    int16_t shiftFromNearToNoise = kNoiseEstQDomain - aecm->dfaCleanQDomain;
     int16_t minTrackShift;
 
     assert(shiftFromNearToNoise >= 0);
@@ -1925,6 +2230,33 @@ static void ComfortNoise(AecmCore_t* aecm,
             }
         }
     }
+}
+
+// Generate comfort noise and add to output signal.
+//
+// \param[in]     aecm     Handle of the AECM instance.
+// \param[in]     dfa     Absolute value of the nearend signal (Q[aecm->dfaQDomain]).
+// \param[in,out] outReal Real part of the output signal (Q[aecm->dfaQDomain]).
+// \param[in,out] outImag Imaginary part of the output signal (Q[aecm->dfaQDomain]).
+// \param[in]     lambda  Suppression gain with which to scale the noise level (Q14).
+//
+static void ComfortNoise(AecmCore_t* aecm,
+                         const uint16_t* dfa,
+                         complex16_t* out,
+                         const int16_t* lambda)
+{
+    int16_t i;
+    int16_t tmp16;
+    int32_t tmp32;
+
+    int16_t randW16[PART_LEN];
+    int16_t uReal[PART_LEN1];
+    int16_t uImag[PART_LEN1];
+    int16_t noiseRShift16[PART_LEN1];
+
+    int16_t shiftFromNearToNoise = kNoiseEstQDomain - aecm->dfaCleanQDomain;
+
+    UpdateNoiseEstimate(aecm, dfa, shiftFromNearToNoise);
 
     for (i = 0; i < PART_LEN1; i++)
     {
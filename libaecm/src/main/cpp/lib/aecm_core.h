@@ -31,6 +31,31 @@ typedef struct {
     int16_t imag;
 } complex16_t;
 
+// Far end analysis: the far end spectrum history used for the echo estimate
+// and the far end part of the delay estimator. Every instance owns one, and
+// may use an analysis shared by several instances which are fed with the same
+// far end instead, see WebRtcAecm_CreateFarend().
+typedef struct {
+    void* delay_estimator_farend;
+    // Far end history variables, |max_delay| entries allocated together with
+    // the analysis.
+    // TODO(bjornv): Replace |far_history| with ring_buffer.
+    uint16_t* far_history;
+    int far_history_pos;
+    int* far_q_domains;
+    int max_delay;
+
+    // Blocks analyzed since WebRtcAecm_InitFarend(), the latest one is
+    // numbered |blocks|.
+    uint32_t blocks;
+    // Shared analyses only, NULL otherwise: the time signals of the latest
+    // FAREND_SHARE_DEPTH blocks, which tell the instances whether the block
+    // they are at has been analyzed already, and the number of blocks which
+    // were taken from the history instead of being analyzed again.
+    int16_t* windows;
+    uint32_t reusedBlocks;
+} AecmFarend_t;
+
 typedef struct {
     int farBufWritePos;
     int farBufReadPos;
@@ -49,14 +74,12 @@ typedef struct {
     uint32_t seed;
 
     // Delay estimation variables
-    void* delay_estimator_farend;
+    AecmFarend_t* farend;  // the analysis in use, |ownFarend| or |sharedFarend|
+    AecmFarend_t* ownFarend;
+    AecmFarend_t* sharedFarend;  // NULL if the instance isn't created on one
+    uint32_t farendBlock;  // number of the far end block processed last
     void* delay_estimator;
     uint16_t currentDelay;
-    // Far end history variables
-    // TODO(bjornv): Replace |far_history| with ring_buffer.
-    uint16_t far_history[PART_LEN1 * MAX_DELAY];
-    int far_history_pos;
-    int far_q_domains[MAX_DELAY];
 
     int16_t nlpFlag;
     int16_t fixedDelay;
@@ -102,6 +125,12 @@ typedef struct {
     int16_t noiseEstCtr;
     int16_t cngMode;
 
+    // Far end silence gate, see WebRtcAecm_ProcessBlock().
+    int16_t farendGate;        // AecmFalse (default), AecmTrue
+    int farSilentBlocks;       // consecutive far end blocks below FAR_SILENCE_LEVEL
+    uint32_t blockCount;       // blocks processed since WebRtcAecm_InitCore()
+    uint32_t gatedBlockCount;  // blocks passed through by the gate
+
     int32_t mseAdaptOld;
     int32_t mseStoredOld;
     int32_t mseThreshold;
@@ -133,6 +162,64 @@ typedef struct {
 #endif
 } AecmCore_t;
 
+////////////////////////////////////////////////////////////////////////////////
+// WebRtcAecm_CreateFarend(...)
+//
+// Allocates a far end analysis which several instances can share, see
+// WebRtcAecm_CreateCore(). It needs to be initialized separately using the
+// WebRtcAecm_InitFarend() function.
+//
+// The instances must be fed with the same far end and process their blocks
+// in turns, none of them more than FAREND_SHARE_DEPTH blocks behind the one
+// ahead. Every block is then analyzed by the first instance which gets to it
+// and taken from the history by the others. An instance which doesn't find
+// its block in the history, because it runs too far behind or is fed with
+// another far end, goes on with a far end analysis of its own, which starts
+// from the shared history up to the block before. So does an instance which
+// is initialized after the shared analysis has got its first block. Blocks
+// of different far ends are never mixed in one history.
+//
+// Input:
+//      - farend        : Far end analysis that should be created
+//      - maxDelay      : Length of the far end history in blocks, see
+//                        WebRtcAecm_CreateCore().
+//
+// Output:
+//      - farend        : Created far end analysis
+//
+// Return value         :  0 - Ok
+//                        -1 - Error
+//
+int WebRtcAecm_CreateFarend(AecmFarend_t **farend, int maxDelay);
+
+////////////////////////////////////////////////////////////////////////////////
+// WebRtcAecm_InitFarend(...)
+//
+// Clears the far end history of a far end analysis created with
+// WebRtcAecm_CreateFarend(...). The instances sharing it have to be
+// initialized again afterwards.
+//
+// Return value         :  0 - Ok
+//                        -1 - Error
+//
+int WebRtcAecm_InitFarend(AecmFarend_t *farend);
+
+////////////////////////////////////////////////////////////////////////////////
+// WebRtcAecm_FreeFarend(...)
+//
+// Releases the memory allocated by WebRtcAecm_CreateFarend(). The instances
+// sharing the far end analysis have to be freed before.
+//
+void WebRtcAecm_FreeFarend(AecmFarend_t *farend);
+
+////////////////////////////////////////////////////////////////////////////////
+// WebRtcAecm_FarendMemorySize(...)
+//
+// Returns the number of bytes allocated for a far end analysis, allocator
+// overhead not included.
+//
+size_t WebRtcAecm_FarendMemorySize(const AecmFarend_t *farend);
+
 ////////////////////////////////////////////////////////////////////////////////
 // WebRtcAecm_CreateCore(...)
 //
@@ -141,6 +228,16 @@ typedef struct {
 //
 // Input:
 //      - aecm          : Instance that should be created
+//      - maxDelay      : Length of the far end history in blocks, the
+//                        longest delay the delay estimator can find.
+//                        MAX_DELAY by default, MAX_DELAY_COMPACT for
+//                        compact instances.
+//      - sharedFarend  : Far end analysis created with
+//                        WebRtcAecm_CreateFarend() which the instance
+//                        shares with others, it isn't owned by the
+//                        instance and |maxDelay| is taken from it. NULL
+//                        for an instance which only uses its own far end
+//                        analysis.
 //
 // Output:
 //      - aecm          : Created instance
@@ -148,13 +245,24 @@ typedef struct {
 // Return value         :  0 - Ok
 //                        -1 - Error
 //
-int WebRtcAecm_CreateCore(AecmCore_t **aecm);
+int WebRtcAecm_CreateCore(AecmCore_t **aecm, int maxDelay,
+                          AecmFarend_t *sharedFarend);
+
+////////////////////////////////////////////////////////////////////////////////
+// WebRtcAecm_CoreMemorySize(...)
+//
+// Returns the number of bytes allocated by WebRtcAecm_CreateCore() for the
+// instance, allocator overhead not included.
+//
+size_t WebRtcAecm_CoreMemorySize(const AecmCore_t* aecm);
 
 ////////////////////////////////////////////////////////////////////////////////
 // WebRtcAecm_InitCore(...)
 //
 // This function initializes the AECM instant created with
 // WebRtcAecm_CreateCore(...)
+// A shared far end analysis is left as it is, the instance joins the other
+// instances at its latest block.
 // Input:
 //      - aecm          : Pointer to the AECM instance
 //      - samplingFreq  : Sampling Frequency
@@ -225,6 +333,9 @@ int WebRtcAecm_ProcessFrame(AecmCore_t * aecm, const int16_t * farend,
 //
 // This function is called for every block within one frame
 // This function is called by WebRtcAecm_ProcessFrame(...)
+// With |farendGate| set, blocks are passed through without any adaptive
+// processing once the far end has been silent for longer than the far end
+// history and the far end VAD is off: there is no echo left to remove then.
 //
 // Inputs:
 //      - aecm          : Pointer to the AECM instance
@@ -295,8 +406,41 @@ typedef void (*ResetAdaptiveChannel)(AecmCore_t* aecm);
 extern ResetAdaptiveChannel WebRtcAecm_ResetAdaptiveChannel;
 
 // For the above function pointers, functions for generic platforms are declared
-// and defined as static in file aecm_core.c, while those for ARM Neon platforms
+// and defined as static in file aecm_core.c, while those for x86 are declared
+// below and defined in file aecm_core_sse2.c and those for ARM Neon platforms
 // are declared below and defined in file aecm_core_neon.s.
+#if defined(WEBRTC_USE_SSE2)
+void WebRtcAecm_CalcLinearEnergiesSse2(AecmCore_t* aecm,
+                                       const uint16_t* far_spectrum,
+                                       int32_t* echo_est,
+                                       uint32_t* far_energy,
+                                       uint32_t* echo_energy_adapt,
+                                       uint32_t* echo_energy_stored);
+
+void WebRtcAecm_StoreAdaptiveChannelSse2(AecmCore_t* aecm,
+                                         const uint16_t* far_spectrum,
+                                         int32_t* echo_est);
+
+void WebRtcAecm_ResetAdaptiveChannelSse2(AecmCore_t* aecm);
+
+void WebRtcAecm_CalcLinearEnergiesAvx2(AecmCore_t* aecm,
+                                       const uint16_t* far_spectrum,
+                                       int32_t* echo_est,
+                                       uint32_t* far_energy,
+                                       uint32_t* echo_energy_adapt,
+                                       uint32_t* echo_energy_stored);
+
+void WebRtcAecm_StoreAdaptiveChannelAvx2(AecmCore_t* aecm,
+                                         const uint16_t* far_spectrum,
+                                         int32_t* echo_est);
+
+void WebRtcAecm_ResetAdaptiveChannelAvx2(AecmCore_t* aecm);
+
+// Points the function pointers to the AVX2 versions if the CPU supports them,
+// otherwise to the SSE2 versions.
+void WebRtcAecm_InitSse2(void);
+#endif
+
 #if (defined WEBRTC_DETECT_ARM_NEON) || defined (WEBRTC_ARCH_ARM_NEON)
 void WebRtcAecm_CalcLinearEnergiesNeon(AecmCore_t* aecm,
                                        const uint16_t* far_spectrum,
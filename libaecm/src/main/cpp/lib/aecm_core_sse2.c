@@ -0,0 +1,221 @@
+#include "aecm_core.h"
+
+#if defined(WEBRTC_USE_SSE2)
+
+#include <emmintrin.h>
+#include <immintrin.h>
+
+// SSE2 and AVX2 versions of the AECM channel functions, they give exactly the same results as the C versions in
+// aecm_core.c: all the products fit in 32 bits and the energies are summed modulo 2^32 like in C, so the order of
+// the additions doesn't matter. SSE2 is a part of the x86_64 baseline, the AVX2 versions are compiled with a target
+// attribute and picked by WebRtcAecm_InitSse2() only when the CPU supports them.
+
+#define AVX2_TARGET __attribute__((target("avx2")))
+
+// Multiplies 8 signed 16 bit values by 8 unsigned 16 bit values into 8 32 bit products.
+// mulhi_epu16() treats |a| as unsigned, which adds b << 16 to the product of every negative a, so b is subtracted
+// from the high half again.
+static inline void MulS16U16(__m128i a, __m128i b, __m128i* lo, __m128i* hi)
+{
+    __m128i low = _mm_mullo_epi16(a, b);
+    __m128i high = _mm_sub_epi16(_mm_mulhi_epu16(a, b), _mm_and_si128(_mm_srai_epi16(a, 15), b));
+    *lo = _mm_unpacklo_epi16(low, high);
+    *hi = _mm_unpackhi_epi16(low, high);
+}
+
+static inline uint32_t HorizontalSum(__m128i v)
+{
+    v = _mm_add_epi32(v, _mm_shuffle_epi32(v, _MM_SHUFFLE(1, 0, 3, 2)));
+    v = _mm_add_epi32(v, _mm_shuffle_epi32(v, _MM_SHUFFLE(2, 3, 0, 1)));
+    return (uint32_t) _mm_cvtsi128_si32(v);
+}
+
+static void EchoEstimateSse2(const int16_t* channel, const uint16_t* far_spectrum, int32_t* echo_est)
+{
+    int i;
+    __m128i lo, hi;
+
+    for (i = 0; i < PART_LEN; i += 8)
+    {
+        MulS16U16(_mm_loadu_si128((const __m128i*) &channel[i]),
+                  _mm_loadu_si128((const __m128i*) &far_spectrum[i]), &lo, &hi);
+        _mm_storeu_si128((__m128i*) &echo_est[i], lo);
+        _mm_storeu_si128((__m128i*) &echo_est[i + 4], hi);
+    }
+    echo_est[i] = WEBRTC_SPL_MUL_16_U16(channel[i], far_spectrum[i]);
+}
+
+void WebRtcAecm_CalcLinearEnergiesSse2(AecmCore_t* aecm,
+                                       const uint16_t* far_spectrum,
+                                       int32_t* echo_est,
+                                       uint32_t* far_energy,
+                                       uint32_t* echo_energy_adapt,
+                                       uint32_t* echo_energy_stored)
+{
+    int i;
+    const __m128i zero = _mm_setzero_si128();
+    __m128i far_sum = zero;
+    __m128i adapt_sum = zero;
+    __m128i stored_sum = zero;
+
+    for (i = 0; i < PART_LEN; i += 8)
+    {
+        __m128i far = _mm_loadu_si128((const __m128i*) &far_spectrum[i]);
+        __m128i adapt = _mm_loadu_si128((const __m128i*) &aecm->channelAdapt16[i]);
+        __m128i lo, hi;
+
+        MulS16U16(_mm_loadu_si128((const __m128i*) &aecm->channelStored[i]), far, &lo, &hi);
+        _mm_storeu_si128((__m128i*) &echo_est[i], lo);
+        _mm_storeu_si128((__m128i*) &echo_est[i + 4], hi);
+        stored_sum = _mm_add_epi32(stored_sum, _mm_add_epi32(lo, hi));
+
+        far_sum = _mm_add_epi32(far_sum, _mm_add_epi32(_mm_unpacklo_epi16(far, zero),
+                                                       _mm_unpackhi_epi16(far, zero)));
+
+        lo = _mm_mullo_epi16(adapt, far);
+        hi = _mm_mulhi_epu16(adapt, far);
+        adapt_sum = _mm_add_epi32(adapt_sum, _mm_add_epi32(_mm_unpacklo_epi16(lo, hi),
+                                                           _mm_unpackhi_epi16(lo, hi)));
+    }
+    echo_est[i] = WEBRTC_SPL_MUL_16_U16(aecm->channelStored[i], far_spectrum[i]);
+
+    *far_energy += HorizontalSum(far_sum) + far_spectrum[i];
+    *echo_energy_adapt += HorizontalSum(adapt_sum) + WEBRTC_SPL_UMUL_16_16(aecm->channelAdapt16[i], far_spectrum[i]);
+    *echo_energy_stored += HorizontalSum(stored_sum) + (uint32_t) echo_est[i];
+}
+
+void WebRtcAecm_StoreAdaptiveChannelSse2(AecmCore_t* aecm,
+                                         const uint16_t* far_spectrum,
+                                         int32_t* echo_est)
+{
+    // During startup we store the channel every block.
+    memcpy(aecm->channelStored, aecm->channelAdapt16, sizeof(int16_t) * PART_LEN1);
+    // Recalculate echo estimate
+    EchoEstimateSse2(aecm->channelStored, far_spectrum, echo_est);
+}
+
+void WebRtcAecm_ResetAdaptiveChannelSse2(AecmCore_t* aecm)
+{
+    int i;
+    const __m128i zero = _mm_setzero_si128();
+
+    // The stored channel has a significantly lower MSE than the adaptive one for
+    // two consecutive calculations. Reset the adaptive channel.
+    memcpy(aecm->channelAdapt16, aecm->channelStored, sizeof(int16_t) * PART_LEN1);
+    // Restore the W32 channel, interleaving zeros below every value shifts it left by 16.
+    for (i = 0; i < PART_LEN; i += 8)
+    {
+        __m128i stored = _mm_loadu_si128((const __m128i*) &aecm->channelStored[i]);
+        _mm_storeu_si128((__m128i*) &aecm->channelAdapt32[i], _mm_unpacklo_epi16(zero, stored));
+        _mm_storeu_si128((__m128i*) &aecm->channelAdapt32[i + 4], _mm_unpackhi_epi16(zero, stored));
+    }
+    aecm->channelAdapt32[i] = WEBRTC_SPL_LSHIFT_W32((int32_t) aecm->channelStored[i], 16);
+}
+
+// ////////////////////////////////////////////////////////
+// AVX2
+
+AVX2_TARGET
+static inline uint32_t HorizontalSumAvx2(__m256i v)
+{
+    __m128i sum = _mm_add_epi32(_mm256_castsi256_si128(v), _mm256_extracti128_si256(v, 1));
+    sum = _mm_add_epi32(sum, _mm_shuffle_epi32(sum, _MM_SHUFFLE(1, 0, 3, 2)));
+    sum = _mm_add_epi32(sum, _mm_shuffle_epi32(sum, _MM_SHUFFLE(2, 3, 0, 1)));
+    return (uint32_t) _mm_cvtsi128_si32(sum);
+}
+
+AVX2_TARGET
+static void EchoEstimateAvx2(const int16_t* channel, const uint16_t* far_spectrum, int32_t* echo_est)
+{
+    int i;
+
+    for (i = 0; i < PART_LEN; i += 8)
+    {
+        __m256i c = _mm256_cvtepi16_epi32(_mm_loadu_si128((const __m128i*) &channel[i]));
+        __m256i f = _mm256_cvtepu16_epi32(_mm_loadu_si128((const __m128i*) &far_spectrum[i]));
+        _mm256_storeu_si256((__m256i*) &echo_est[i], _mm256_mullo_epi32(c, f));
+    }
+    echo_est[i] = WEBRTC_SPL_MUL_16_U16(channel[i], far_spectrum[i]);
+}
+
+AVX2_TARGET
+void WebRtcAecm_CalcLinearEnergiesAvx2(AecmCore_t* aecm,
+                                       const uint16_t* far_spectrum,
+                                       int32_t* echo_est,
+                                       uint32_t* far_energy,
+                                       uint32_t* echo_energy_adapt,
+                                       uint32_t* echo_energy_stored)
+{
+    int i;
+    __m256i far_sum = _mm256_setzero_si256();
+    __m256i adapt_sum = _mm256_setzero_si256();
+    __m256i stored_sum = _mm256_setzero_si256();
+
+    for (i = 0; i < PART_LEN; i += 8)
+    {
+        __m256i far = _mm256_cvtepu16_epi32(_mm_loadu_si128((const __m128i*) &far_spectrum[i]));
+        __m256i stored = _mm256_cvtepi16_epi32(_mm_loadu_si128((const __m128i*) &aecm->channelStored[i]));
+        __m256i adapt = _mm256_cvtepu16_epi32(_mm_loadu_si128((const __m128i*) &aecm->channelAdapt16[i]));
+        __m256i echo = _mm256_mullo_epi32(stored, far);
+
+        _mm256_storeu_si256((__m256i*) &echo_est[i], echo);
+        stored_sum = _mm256_add_epi32(stored_sum, echo);
+        far_sum = _mm256_add_epi32(far_sum, far);
+        adapt_sum = _mm256_add_epi32(adapt_sum, _mm256_mullo_epi32(adapt, far));
+    }
+    echo_est[i] = WEBRTC_SPL_MUL_16_U16(aecm->channelStored[i], far_spectrum[i]);
+
+    *far_energy += HorizontalSumAvx2(far_sum) + far_spectrum[i];
+    *echo_energy_adapt += HorizontalSumAvx2(adapt_sum) + WEBRTC_SPL_UMUL_16_16(aecm->channelAdapt16[i], far_spectrum[i]);
+    *echo_energy_stored += HorizontalSumAvx2(stored_sum) + (uint32_t) echo_est[i];
+}
+
+AVX2_TARGET
+void WebRtcAecm_StoreAdaptiveChannelAvx2(AecmCore_t* aecm,
+                                         const uint16_t* far_spectrum,
+                                         int32_t* echo_est)
+{
+    // During startup we store the channel every block.
+    memcpy(aecm->channelStored, aecm->channelAdapt16, sizeof(int16_t) * PART_LEN1);
+    // Recalculate echo estimate
+    EchoEstimateAvx2(aecm->channelStored, far_spectrum, echo_est);
+}
+
+AVX2_TARGET
+void WebRtcAecm_ResetAdaptiveChannelAvx2(AecmCore_t* aecm)
+{
+    int i;
+
+    // The stored channel has a significantly lower MSE than the adaptive one for
+    // two consecutive calculations. Reset the adaptive channel.
+    memcpy(aecm->channelAdapt16, aecm->channelStored, sizeof(int16_t) * PART_LEN1);
+    // Restore the W32 channel
+    for (i = 0; i < PART_LEN; i += 8)
+    {
+        __m256i stored = _mm256_cvtepi16_epi32(_mm_loadu_si128((const __m128i*) &aecm->channelStored[i]));
+        _mm256_storeu_si256((__m256i*) &aecm->channelAdapt32[i], _mm256_slli_epi32(stored, 16));
+    }
+    aecm->channelAdapt32[i] = WEBRTC_SPL_LSHIFT_W32((int32_t) aecm->channelStored[i], 16);
+}
+
+// ////////////////////////////////////////////////////////
+// DISPATCH
+
+void WebRtcAecm_InitSse2(void)
+{
+    __builtin_cpu_init();
+    if (__builtin_cpu_supports("avx2"))
+    {
+        WebRtcAecm_CalcLinearEnergies = WebRtcAecm_CalcLinearEnergiesAvx2;
+        WebRtcAecm_StoreAdaptiveChannel = WebRtcAecm_StoreAdaptiveChannelAvx2;
+        WebRtcAecm_ResetAdaptiveChannel = WebRtcAecm_ResetAdaptiveChannelAvx2;
+    }
+    else
+    {
+        WebRtcAecm_CalcLinearEnergies = WebRtcAecm_CalcLinearEnergiesSse2;
+        WebRtcAecm_StoreAdaptiveChannel = WebRtcAecm_StoreAdaptiveChannelSse2;
+        WebRtcAecm_ResetAdaptiveChannel = WebRtcAecm_ResetAdaptiveChannelSse2;
+    }
+}
+
+#endif
@@ -24,6 +24,9 @@
 #define PART_LEN4       (PART_LEN << 2) /* Length of partition * 4. */
 #define FAR_BUF_LEN     PART_LEN4       /* Length of buffers. */
 #define MAX_DELAY       100
+#define MAX_DELAY_COMPACT 50          /* Delay history of compact instances. */
+#define FAREND_SHARE_DEPTH 16         /* Blocks an instance sharing a far end */
+                                      /* analysis may lag behind the others. */
 
 /* Counter parameters */
 #define CONV_LEN        512          /* Convergence length used at startup. */
@@ -38,6 +41,8 @@
 #define ENERGY_DEV_OFFSET       0    /* The energy error offset in Q8. */
 #define ENERGY_DEV_TOL  400          /* The energy estimation tolerance (Q8). */
 #define FAR_ENERGY_VAD_REGION   230  /* Far VAD tolerance region. */
+#define FAR_SILENCE_LEVEL       16   /* Far blocks within +-16 are silent */
+                                     /* for the far end silence gate. */
 
 /* Stepsize parameters */
 #define MU_MIN          10          /* Min stepsize 2^-MU_MIN (far end energy */
@@ -196,6 +196,39 @@ void WebRtc_InitBinaryDelayEstimator(BinaryDelayEstimator* self) {
 
   // Default return value if we're unable to estimate. -1 is used for errors.
   self->last_delay = -2;
+  self->far_offset = 0;
+}
+
+void WebRtc_set_binary_far_offset(BinaryDelayEstimator* self, int far_offset) {
+  assert(self != NULL);
+  assert(far_offset >= 0 && far_offset < self->farend->history_size);
+  self->far_offset = far_offset;
+}
+
+void WebRtc_CopyBinaryDelayEstimatorFarend(
+    BinaryDelayEstimatorFarend* self,
+    const BinaryDelayEstimatorFarend* source,
+    int far_offset) {
+  int size = 0;
+  assert(self != NULL && source != NULL);
+  assert(self->history_size == source->history_size);
+  assert(far_offset >= 0 && far_offset < source->history_size);
+  size = source->history_size - far_offset;
+
+  memcpy(self->binary_far_history, &(source->binary_far_history[far_offset]),
+         size * sizeof(uint32_t));
+  memset(&(self->binary_far_history[size]), 0, far_offset * sizeof(uint32_t));
+  memcpy(self->far_bit_counts, &(source->far_bit_counts[far_offset]),
+         size * sizeof(int));
+  memset(&(self->far_bit_counts[size]), 0, far_offset * sizeof(int));
+}
+
+void WebRtc_set_binary_farend(BinaryDelayEstimator* self,
+                              BinaryDelayEstimatorFarend* farend) {
+  assert(self != NULL && farend != NULL);
+  assert(farend->history_size == self->farend->history_size);
+  self->farend = farend;
+  self->far_offset = 0;
 }
 
 int WebRtc_ProcessBinarySpectrum(BinaryDelayEstimator* self,
@@ -206,7 +239,14 @@ int WebRtc_ProcessBinarySpectrum(BinaryDelayEstimator* self,
   int32_t value_best_candidate = 32 << 9;  // 32 in Q9, (max |mean_bit_counts|).
   int32_t value_worst_candidate = 0;
 
+  const uint32_t* far_history = NULL;
+  const int* far_bit_counts = NULL;
+  int history_size = 0;
+
   assert(self != NULL);
+  far_history = self->farend->binary_far_history + self->far_offset;
+  far_bit_counts = self->farend->far_bit_counts + self->far_offset;
+  history_size = self->farend->history_size - self->far_offset;
   if (self->near_history_size > 1) {
     // If we apply lookahead, shift near-end binary spectrum history. Insert
     // current |binary_near_spectrum| and pull out the delayed one.
@@ -218,11 +258,13 @@ int WebRtc_ProcessBinarySpectrum(BinaryDelayEstimator* self,
   }
 
   // Compare with delayed spectra and store the |bit_counts| for each delay.
-  BitCountComparison(binary_near_spectrum, self->farend->binary_far_history,
-                     self->farend->history_size, self->bit_counts);
+  // The newest |far_offset| far-end spectra belong to blocks the near-end has
+  // not reached yet.
+  BitCountComparison(binary_near_spectrum, far_history, history_size,
+                     self->bit_counts);
 
   // Update |mean_bit_counts|, which is the smoothed version of |bit_counts|.
-  for (i = 0; i < self->farend->history_size; i++) {
+  for (i = 0; i < history_size; i++) {
     // |bit_counts| is constrained to [0, 32], meaning we can smooth with a
     // factor up to 2^26. We use Q9.
     int32_t bit_count = (self->bit_counts[i] << 9);  // Q9.
@@ -230,17 +272,17 @@ int WebRtc_ProcessBinarySpectrum(BinaryDelayEstimator* self,
     // Update |mean_bit_counts| only when far-end signal has something to
     // contribute. If |far_bit_counts| is zero the far-end signal is weak and
     // we likely have a poor echo condition, hence don't update.
-    if (self->farend->far_bit_counts[i] > 0) {
+    if (far_bit_counts[i] > 0) {
       // Make number of right shifts piecewise linear w.r.t. |far_bit_counts|.
       int shifts = kShiftsAtZero;
-      shifts -= (kShiftsLinearSlope * self->farend->far_bit_counts[i]) >> 4;
+      shifts -= (kShiftsLinearSlope * far_bit_counts[i]) >> 4;
       WebRtc_MeanEstimatorFix(bit_count, shifts, &(self->mean_bit_counts[i]));
     }
   }
 
   // Find |candidate_delay|, |value_best_candidate| and |value_worst_candidate|
   // of |mean_bit_counts|.
-  for (i = 0; i < self->farend->history_size; i++) {
+  for (i = 0; i < history_size; i++) {
     if (self->mean_bit_counts[i] < value_best_candidate) {
       value_best_candidate = self->mean_bit_counts[i];
       candidate_delay = i;
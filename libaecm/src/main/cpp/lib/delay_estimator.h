@@ -42,6 +42,10 @@ typedef struct {
   // Delay memory.
   int last_delay;
 
+  // Number of blocks the far-end history is ahead of the near-end spectrum,
+  // see WebRtc_set_binary_far_offset().
+  int far_offset;
+
   // Far-end binary spectrum history buffer etc.
   BinaryDelayEstimatorFarend* farend;
 } BinaryDelayEstimator;
@@ -157,6 +161,46 @@ BinaryDelayEstimator* WebRtc_CreateBinaryDelayEstimator(
 //
 void WebRtc_InitBinaryDelayEstimator(BinaryDelayEstimator* self);
 
+// Sets the number of blocks the far-end history is ahead of the near-end
+// spectra passed to WebRtc_ProcessBinarySpectrum(...), which happens when
+// several instances share the far-end and add the far-end spectra of blocks
+// they have not processed yet. Only the |history_size| - |far_offset| delays
+// which are still in the history are then estimated, in the same range as
+// without an offset.
+//
+// Inputs:
+//    - self                  : Pointer to the delay estimation instance.
+//    - far_offset            : Blocks in [0, |history_size|).
+//
+void WebRtc_set_binary_far_offset(BinaryDelayEstimator* self, int far_offset);
+
+// Copies the far-end history of |source| into |self| without the newest
+// |far_offset| spectra, as if |self| had been fed the same spectra up to
+// |far_offset| blocks ago. The oldest entries are cleared.
+//
+// Inputs:
+//    - self                  : Pointer to the far-end instance receiving the
+//                              history, with the |history_size| of |source|.
+//    - source                : Pointer to the far-end instance to copy.
+//    - far_offset            : Blocks in [0, |history_size|).
+//
+void WebRtc_CopyBinaryDelayEstimatorFarend(
+    BinaryDelayEstimatorFarend* self,
+    const BinaryDelayEstimatorFarend* source,
+    int far_offset);
+
+// Makes the delay estimation instance use the far-end history of |farend|
+// from now on, with no offset. The estimation state is kept, so the delay
+// goes on from where it was if |farend| holds the same history.
+//
+// Inputs:
+//    - self                  : Pointer to the delay estimation instance.
+//    - farend                : Pointer to the far-end instance, with the
+//                              |history_size| of the current one.
+//
+void WebRtc_set_binary_farend(BinaryDelayEstimator* self,
+                              BinaryDelayEstimatorFarend* farend);
+
 // Estimates and returns the delay between the binary far-end and binary near-
 // end spectra. It is assumed the binary far-end spectrum has been added using
 // WebRtc_AddBinaryFarSpectrum() prior to this call. The value will be offset by
@@ -312,6 +312,66 @@ int WebRtc_InitDelayEstimator(void* handle) {
   return 0;
 }
 
+int WebRtc_set_far_offset(void* handle, int far_offset) {
+  DelayEstimator* self = (DelayEstimator*) handle;
+
+  if (self == NULL) {
+    return -1;
+  }
+  if ((far_offset < 0) ||
+      (far_offset >= self->binary_handle->farend->history_size)) {
+    return -1;
+  }
+  WebRtc_set_binary_far_offset(self->binary_handle, far_offset);
+
+  return 0;
+}
+
+int WebRtc_CopyDelayEstimatorFarend(void* handle, const void* source_handle,
+                                    int far_offset) {
+  DelayEstimatorFarend* self = (DelayEstimatorFarend*) handle;
+  const DelayEstimatorFarend* source =
+      (const DelayEstimatorFarend*) source_handle;
+
+  if ((self == NULL) || (source == NULL)) {
+    return -1;
+  }
+  if ((self->spectrum_size != source->spectrum_size) ||
+      (self->binary_farend->history_size !=
+       source->binary_farend->history_size)) {
+    return -1;
+  }
+  if ((far_offset < 0) ||
+      (far_offset >= source->binary_farend->history_size)) {
+    return -1;
+  }
+  WebRtc_CopyBinaryDelayEstimatorFarend(self->binary_farend,
+                                        source->binary_farend, far_offset);
+  // The mean spectrum has taken in the newest blocks too, it changes slowly
+  // enough to be kept as it is.
+  memcpy(self->mean_far_spectrum, source->mean_far_spectrum,
+         sizeof(SpectrumType) * self->spectrum_size);
+  self->far_spectrum_initialized = source->far_spectrum_initialized;
+
+  return 0;
+}
+
+int WebRtc_set_farend(void* handle, void* farend_handle) {
+  DelayEstimator* self = (DelayEstimator*) handle;
+  DelayEstimatorFarend* farend = (DelayEstimatorFarend*) farend_handle;
+
+  if ((self == NULL) || (farend == NULL)) {
+    return -1;
+  }
+  if (farend->binary_farend->history_size !=
+      self->binary_handle->farend->history_size) {
+    return -1;
+  }
+  WebRtc_set_binary_farend(self->binary_handle, farend->binary_farend);
+
+  return 0;
+}
+
 int WebRtc_DelayEstimatorProcessFix(void* handle,
                                     uint16_t* near_spectrum,
                                     int spectrum_size,
@@ -388,3 +448,35 @@ int WebRtc_last_delay_quality(void* handle) {
 
   return WebRtc_binary_last_delay_quality(self->binary_handle);
 }
+
+size_t WebRtc_DelayEstimatorFarendMemorySize(const void* handle) {
+  const DelayEstimatorFarend* self = (const DelayEstimatorFarend*) handle;
+  const BinaryDelayEstimatorFarend* binary;
+
+  if (self == NULL) {
+    return 0;
+  }
+  binary = self->binary_farend;
+
+  // |self| is allocated with the size of a DelayEstimator.
+  return sizeof(DelayEstimator) +
+      self->spectrum_size * sizeof(SpectrumType) +
+      sizeof(BinaryDelayEstimatorFarend) +
+      binary->history_size * (sizeof(uint32_t) + sizeof(int));
+}
+
+size_t WebRtc_DelayEstimatorMemorySize(const void* handle) {
+  const DelayEstimator* self = (const DelayEstimator*) handle;
+  const BinaryDelayEstimator* binary;
+
+  if (self == NULL) {
+    return 0;
+  }
+  binary = self->binary_handle;
+
+  return sizeof(DelayEstimator) +
+      self->spectrum_size * sizeof(SpectrumType) +
+      sizeof(BinaryDelayEstimator) +
+      binary->farend->history_size * 2 * sizeof(int32_t) +
+      binary->near_history_size * sizeof(uint32_t);
+}
@@ -14,6 +14,8 @@
 #ifndef WEBRTC_MODULES_AUDIO_PROCESSING_UTILITY_DELAY_ESTIMATOR_WRAPPER_H_
 #define WEBRTC_MODULES_AUDIO_PROCESSING_UTILITY_DELAY_ESTIMATOR_WRAPPER_H_
 
+#include <stddef.h>  // size_t
+
 #include "typedefs.h"
 
 // Releases the memory allocated by WebRtc_CreateDelayEstimatorFarend(...)
@@ -123,6 +125,50 @@ void* WebRtc_CreateDelayEstimator(void* farend_handle, int lookahead);
 //
 int WebRtc_InitDelayEstimator(void* handle);
 
+// Sets the number of blocks the far-end history is ahead of the near-end
+// spectrum passed next to WebRtc_DelayEstimatorProcessFix(...), for far-end
+// instances shared by several delay estimation instances which don't process
+// their blocks in lockstep. The estimated delays are limited to
+// [0, |history_size| - |far_offset|).
+// Inputs:
+//      - handle        : Pointer to the delay estimation instance.
+//      - far_offset    : Blocks in [0, |history_size|).
+//
+// Return value:
+//      - 0             : OK.
+//      - -1            : Error.
+//
+int WebRtc_set_far_offset(void* handle, int far_offset);
+
+// Copies the far-end state of |source_handle| into |handle| without the
+// newest |far_offset| spectra, see WebRtc_CopyBinaryDelayEstimatorFarend(...).
+// Inputs:
+//      - handle        : Pointer to the far-end instance receiving the state,
+//                        created with the sizes of |source_handle|.
+//      - source_handle : Pointer to the far-end instance to copy.
+//      - far_offset    : Blocks in [0, |history_size|).
+//
+// Return value:
+//      - 0             : OK.
+//      - -1            : Error.
+//
+int WebRtc_CopyDelayEstimatorFarend(void* handle, const void* source_handle,
+                                    int far_offset);
+
+// Makes the delay estimation instance use the far-end instance
+// |farend_handle| from now on, with no far offset. The near-end state is
+// kept.
+// Inputs:
+//      - handle        : Pointer to the delay estimation instance.
+//      - farend_handle : Pointer to a far-end instance with the history size
+//                        of the current one.
+//
+// Return value:
+//      - 0             : OK.
+//      - -1            : Error.
+//
+int WebRtc_set_farend(void* handle, void* farend_handle);
+
 // Estimates and returns the delay between the far-end and near-end blocks. The
 // value will be offset by the lookahead (i.e. the lookahead should be
 // subtracted from the returned value).
@@ -181,4 +227,12 @@ int WebRtc_last_delay(void* handle);
 //
 int WebRtc_last_delay_quality(void* handle);
 
+// Return the number of bytes allocated for the far-end part of the delay
+// estimation and for the delay estimation instance respectively.
+// Input:
+//      - handle        : Pointer to the delay estimation (far-end) instance.
+//
+size_t WebRtc_DelayEstimatorFarendMemorySize(const void* handle);
+size_t WebRtc_DelayEstimatorMemorySize(const void* handle);
+
 #endif  // WEBRTC_MODULES_AUDIO_PROCESSING_UTILITY_DELAY_ESTIMATOR_WRAPPER_H_
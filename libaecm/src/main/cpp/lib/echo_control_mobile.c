@@ -17,15 +17,23 @@
 
 #include "signal_processing_library.h"
 #include "aecm_core.h"
+#include "delay_estimator_wrapper.h"
 #include "ring_buffer.h"
 
 #define BUF_SIZE_FRAMES 50 // buffer size (frames)
+#define BUF_SIZE_FRAMES_COMPACT 25 // buffer size of compact instances (frames)
 // Maximum length of resampled signal. Must be an integer multiple of frames
 // (ceil(1/(1 + MIN_SKEW)*2) + 1)*FRAME_LEN
 // The factor of 2 handles wb, and the + 1 is as a safety margin
 #define MAX_RESAMP_LEN (5 * FRAME_LEN)
 
-static const size_t kBufSizeSamp = BUF_SIZE_FRAMES * FRAME_LEN; // buffer size (samples)
+// Clock drift estimation, see WebRtcAecm_UpdateDrift()
+#define DRIFT_BLOCK_MS 2000 // the balance of the far end and near end samples is averaged over blocks of this length
+#define DRIFT_POINTS 64 // block means fitted with a line
+#define DRIFT_MIN_POINTS 8 // block means needed for the first estimate
+#define DRIFT_MAX_PPM 2000 // limit of the measured drift and the applied correction
+#define DRIFT_SETTLE_MS 20000 // time a deviation of the fill balance from its target is corrected over
+
 static const int kSampMsNb = 8; // samples per ms in nb
 // Target suppression levels for nlp modes
 // log{0.001, 0.00001, 0.00000001}
@@ -36,6 +44,7 @@ typedef struct
     int sampFreq;
     int scSampFreq;
     short bufSizeStart;
+    short bufSizeFrames; // capacity of the farend buffer (frames)
     int knownDelay;
 
     // Stores the last frame added to the farend buffer
@@ -59,6 +68,30 @@ typedef struct
 
     int16_t echoMode;
 
+    // Clock drift of the far end against the near end. The far end samples
+    // buffered minus the near end samples processed (the balance) grow at the
+    // rate of the drift, their means over blocks of DRIFT_BLOCK_MS are fitted
+    // with a line. The fill balance counts the resampled far end samples
+    // instead, it is the fill of the farend buffer without the moves of the
+    // read pointer by EstBufDelay() and DelayComp().
+    int16_t driftComp;
+    int32_t driftBalance;
+    int32_t driftFillBalance;
+    int64_t driftBalanceSum; // sums over the current block
+    int64_t driftFillSum;
+    int driftCalls;
+    int driftBlockSamples;
+    int32_t driftMeans[DRIFT_POINTS]; // ring of the latest block means in Q4
+    int driftPoints;
+    int driftPos;
+    int32_t driftPpm;
+    int32_t driftFillTarget; // fill balance kept by the correction in Q4
+    int32_t driftCompPpm;
+
+    // Linear resampler of the far end, see WebRtcAecm_ResampleFarend()
+    int64_t resampPos; // position of the next output sample in Q30, relative to the next input sample
+    int16_t resampLast; // last input sample
+
 #ifdef AEC_DEBUG
     FILE *bufFile;
     FILE *delayFile;
@@ -80,7 +113,21 @@ static int WebRtcAecm_EstBufDelay(aecmob_t *aecmInst, short msInSndCardBuf);
 // Stuffs the farend buffer if the estimated delay is too large
 static int WebRtcAecm_DelayComp(aecmob_t *aecmInst);
 
-int32_t WebRtcAecm_Create(void **aecmInst)
+// Clears the drift estimate and the far end resampler
+static void WebRtcAecm_ResetDrift(aecmob_t *aecm);
+
+// Accounts a processed near end frame and updates the drift estimate and the
+// correction of the far end rate at the end of every block
+static void WebRtcAecm_UpdateDrift(aecmob_t *aecm, int16_t nrOfSamples);
+
+// Resamples the far end by the drift correction
+static int WebRtcAecm_ResampleFarend(aecmob_t *aecm, const int16_t *in, int length, int16_t *out);
+
+// Creates an instance with a far end history of |maxDelay| blocks, or on the
+// shared far end analysis |farend| if it isn't NULL, and a farend buffer of
+// |bufSizeFrames| frames.
+static int32_t WebRtcAecm_CreateWithSizes(void **aecmInst, int maxDelay, short bufSizeFrames,
+                                          AecmFarend_t *farend)
 {
     aecmob_t *aecm;
     if (aecmInst == NULL)
@@ -94,17 +141,19 @@ int32_t WebRtcAecm_Create(void **aecmInst)
     {
         return -1;
     }
+    aecm->farendBuf = NULL;
+    aecm->bufSizeFrames = bufSizeFrames;
 
     WebRtcSpl_Init();
 
-    if (WebRtcAecm_CreateCore(&aecm->aecmCore) == -1)
+    if (WebRtcAecm_CreateCore(&aecm->aecmCore, maxDelay, farend) == -1)
     {
         WebRtcAecm_Free(aecm);
         aecm = NULL;
         return -1;
     }
 
-    aecm->farendBuf = WebRtc_CreateBuffer(kBufSizeSamp,
+    aecm->farendBuf = WebRtc_CreateBuffer((size_t) bufSizeFrames * FRAME_LEN,
                                           sizeof(int16_t));
     if (!aecm->farendBuf)
     {
@@ -130,6 +179,86 @@ int32_t WebRtcAecm_Create(void **aecmInst)
     return 0;
 }
 
+int32_t WebRtcAecm_Create(void **aecmInst)
+{
+    return WebRtcAecm_CreateWithSizes(aecmInst, MAX_DELAY, BUF_SIZE_FRAMES, NULL);
+}
+
+int32_t WebRtcAecm_CreateCompact(void **aecmInst)
+{
+    return WebRtcAecm_CreateWithSizes(aecmInst, MAX_DELAY_COMPACT, BUF_SIZE_FRAMES_COMPACT, NULL);
+}
+
+int32_t WebRtcAecm_CreateFarendSource(void **farendInst, int16_t compact)
+{
+    AecmFarend_t *farend = NULL;
+
+    if (farendInst == NULL)
+    {
+        return -1;
+    }
+
+    if (WebRtcAecm_CreateFarend(&farend, compact ? MAX_DELAY_COMPACT : MAX_DELAY) == -1)
+    {
+        WebRtcAecm_FreeFarend(farend);
+        *farendInst = NULL;
+        return -1;
+    }
+    *farendInst = farend;
+    return 0;
+}
+
+int32_t WebRtcAecm_FreeFarendSource(void *farendInst)
+{
+    if (farendInst == NULL)
+    {
+        return -1;
+    }
+    WebRtcAecm_FreeFarend(farendInst);
+    return 0;
+}
+
+int32_t WebRtcAecm_CreateShared(void **aecmInst, void *farendInst)
+{
+    AecmFarend_t *farend = farendInst;
+
+    if (farend == NULL)
+    {
+        if (aecmInst != NULL)
+        {
+            *aecmInst = NULL;
+        }
+        return -1;
+    }
+    return WebRtcAecm_CreateWithSizes(aecmInst, farend->max_delay,
+                                      farend->max_delay == MAX_DELAY_COMPACT ? BUF_SIZE_FRAMES_COMPACT
+                                                                             : BUF_SIZE_FRAMES,
+                                      farend);
+}
+
+int32_t WebRtcAecm_GetFarendSourceStatus(void *farendInst,
+                                         AecmFarendSourceStatus *status)
+{
+    AecmFarend_t *farend = farendInst;
+
+    if (farend == NULL || status == NULL)
+    {
+        return -1;
+    }
+    status->blocks = farend->blocks;
+    status->reusedBlocks = farend->reusedBlocks;
+    return 0;
+}
+
+size_t WebRtcAecm_FarendSourceMemorySize(void *farendInst)
+{
+    if (farendInst == NULL)
+    {
+        return 0;
+    }
+    return WebRtcAecm_FarendMemorySize(farendInst);
+}
+
 int32_t WebRtcAecm_Free(void *aecmInst)
 {
     aecmob_t *aecm = aecmInst;
@@ -207,9 +336,14 @@ int32_t WebRtcAecm_Init(void *aecmInst, int32_t sampFreq)
 
     memset(&aecm->farendOld[0][0], 0, 160);
 
+    WebRtcAecm_ResetDrift(aecm);
+    aecm->driftComp = AecmFalse;
+
     // Default settings.
     aecConfig.cngMode = AecmTrue;
     aecConfig.echoMode = 3;
+    aecConfig.farendGate = AecmFalse;
+    aecConfig.driftComp = AecmFalse;
 
     if (WebRtcAecm_set_config(aecm, aecConfig) == -1)
     {
@@ -225,6 +359,8 @@ int32_t WebRtcAecm_BufferFarend(void *aecmInst, const int16_t *farend,
 {
     aecmob_t *aecm = aecmInst;
     int32_t retVal = 0;
+    int16_t resampled[2 * FRAME_LEN + 1];
+    int length;
 
     if (aecm == NULL)
     {
@@ -255,7 +391,17 @@ int32_t WebRtcAecm_BufferFarend(void *aecmInst, const int16_t *farend,
         WebRtcAecm_DelayComp(aecm);
     }
 
-    WebRtc_WriteBuffer(aecm->farendBuf, farend, (size_t) nrOfSamples);
+    aecm->driftBalance += nrOfSamples;
+    if (aecm->driftComp)
+    {
+        length = WebRtcAecm_ResampleFarend(aecm, farend, nrOfSamples, resampled);
+        WebRtc_WriteBuffer(aecm->farendBuf, resampled, (size_t) length);
+    } else
+    {
+        length = nrOfSamples;
+        WebRtc_WriteBuffer(aecm->farendBuf, farend, (size_t) nrOfSamples);
+    }
+    aecm->driftFillBalance += length;
 
     return retVal;
 }
@@ -369,7 +515,7 @@ int32_t WebRtcAecm_Process(void *aecmInst, const int16_t *nearendNoisy,
                 // Use 75% of the average value of the soundcard buffer
                 aecm->bufSizeStart
                         = WEBRTC_SPL_MIN((3 * aecm->sum
-                                        * aecm->aecmCore->mult) / (aecm->counter * 40), BUF_SIZE_FRAMES);
+                                        * aecm->aecmCore->mult) / (aecm->counter * 40), aecm->bufSizeFrames);
                 // buffersize has now been determined
                 aecm->checkBuffSize = 0;
             }
@@ -378,7 +524,7 @@ int32_t WebRtcAecm_Process(void *aecmInst, const int16_t *nearendNoisy,
             {
                 // for really bad sound cards, don't disable echocanceller for more than 0.5 sec
                 aecm->bufSizeStart = WEBRTC_SPL_MIN((3 * aecm->msInSndCardBuf
-                                * aecm->aecmCore->mult) / 40, BUF_SIZE_FRAMES);
+                                * aecm->aecmCore->mult) / 40, aecm->bufSizeFrames);
                 aecm->checkBuffSize = 0;
             }
         }
@@ -401,6 +547,11 @@ int32_t WebRtcAecm_Process(void *aecmInst, const int16_t *nearendNoisy,
                                    - (int) aecm->bufSizeStart * FRAME_LEN);
                 aecm->ECstartup = 0;
             }
+            if (!aecm->ECstartup)
+            {
+                // The drift is measured from the fill the start up has settled
+                WebRtcAecm_ResetDrift(aecm);
+            }
         }
 
     } else
@@ -465,6 +616,8 @@ int32_t WebRtcAecm_Process(void *aecmInst, const int16_t *nearendNoisy,
                 }
             }
         }
+
+        WebRtcAecm_UpdateDrift(aecm, nrOfSamples);
     }
 
 #ifdef AEC_DEBUG
@@ -506,6 +659,30 @@ int32_t WebRtcAecm_set_config(void *aecmInst, AecmConfig config)
     }
     aecm->echoMode = config.echoMode;
 
+    if (config.farendGate != AecmFalse && config.farendGate != AecmTrue)
+    {
+        aecm->lastError = AECM_BAD_PARAMETER_ERROR;
+        return -1;
+    }
+    if (config.farendGate != aecm->aecmCore->farendGate)
+    {
+        // The far end has to be silent for the whole history again.
+        aecm->aecmCore->farSilentBlocks = 0;
+    }
+    aecm->aecmCore->farendGate = config.farendGate;
+
+    if (config.driftComp != AecmFalse && config.driftComp != AecmTrue)
+    {
+        aecm->lastError = AECM_BAD_PARAMETER_ERROR;
+        return -1;
+    }
+    if (config.driftComp != aecm->driftComp)
+    {
+        // The resampler starts at the next far end sample.
+        aecm->resampPos = 0;
+    }
+    aecm->driftComp = config.driftComp;
+
     if (aecm->echoMode == 0)
     {
         aecm->aecmCore->supGain = SUPGAIN_DEFAULT >> 3;
@@ -582,6 +759,8 @@ int32_t WebRtcAecm_get_config(void *aecmInst, AecmConfig *config)
 
     config->cngMode = aecm->aecmCore->cngMode;
     config->echoMode = aecm->echoMode;
+    config->farendGate = aecm->aecmCore->farendGate;
+    config->driftComp = aecm->driftComp;
 
     return 0;
 }
@@ -652,6 +831,80 @@ size_t WebRtcAecm_echo_path_size_bytes()
     return (PART_LEN1 * sizeof(int16_t));
 }
 
+int32_t WebRtcAecm_GetDelayMetrics(void* aecmInst,
+                                   int* delay_offset_ms,
+                                   int* quality)
+{
+    aecmob_t *aecm = aecmInst;
+    int delay_blocks;
+    int delay_quality;
+
+    if (aecm == NULL)
+    {
+        return -1;
+    }
+    if (delay_offset_ms == NULL || quality == NULL)
+    {
+        aecm->lastError = AECM_NULL_POINTER_ERROR;
+        return -1;
+    }
+    if (aecm->initFlag != kInitCheck)
+    {
+        aecm->lastError = AECM_UNINITIALIZED_ERROR;
+        return -1;
+    }
+
+    delay_blocks = WebRtc_last_delay(aecm->aecmCore->delay_estimator);
+    delay_quality = WebRtc_last_delay_quality(aecm->aecmCore->delay_estimator);
+    if (delay_blocks < 0 || delay_quality < 0)
+    {
+        return -2;
+    }
+
+    // With a correct msInSndCardBuf the far end reaches the core
+    // (filtDelay - knownDelay) samples ahead of its echo, which is the delay
+    // the core estimator is expected to find.
+    *delay_offset_ms = (delay_blocks * PART_LEN
+            - (aecm->filtDelay - aecm->knownDelay)) * 1000 / aecm->sampFreq;
+    // The binary estimator reports [0, 32] matching bits in Q9, which is
+    // the same as [0, 1] in Q14.
+    *quality = delay_quality;
+
+    return 0;
+}
+
+int32_t WebRtcAecm_GetStatus(void* aecmInst, AecmStatus* status)
+{
+    aecmob_t *aecm = aecmInst;
+
+    if (aecm == NULL)
+    {
+        return -1;
+    }
+    if (status == NULL)
+    {
+        aecm->lastError = AECM_NULL_POINTER_ERROR;
+        return -1;
+    }
+    if (aecm->initFlag != kInitCheck)
+    {
+        aecm->lastError = AECM_UNINITIALIZED_ERROR;
+        return -1;
+    }
+
+    status->farendBufferSamples = (int) WebRtc_available_read(aecm->farendBuf);
+    status->knownDelay = aecm->knownDelay;
+    status->startup = aecm->ECstartup ? AecmTrue : AecmFalse;
+    status->suppressionGain = aecm->aecmCore->supGain;
+    status->blocks = aecm->aecmCore->blockCount;
+    status->gatedBlocks = aecm->aecmCore->gatedBlockCount;
+    status->driftPpm = aecm->driftPpm;
+    status->driftEstimated = aecm->driftPoints >= DRIFT_MIN_POINTS ? AecmTrue : AecmFalse;
+    status->driftCompPpm = aecm->driftComp ? aecm->driftCompPpm : 0;
+
+    return 0;
+}
+
 int32_t WebRtcAecm_get_error_code(void *aecmInst)
 {
     aecmob_t *aecm = aecmInst;
@@ -664,6 +917,20 @@ int32_t WebRtcAecm_get_error_code(void *aecmInst)
     return aecm->lastError;
 }
 
+size_t WebRtcAecm_MemorySize(void *aecmInst)
+{
+    aecmob_t *aecm = aecmInst;
+
+    if (aecm == NULL)
+    {
+        return 0;
+    }
+
+    return sizeof(aecmob_t)
+           + WebRtc_BufferMemorySize(aecm->farendBuf)
+           + WebRtcAecm_CoreMemorySize(aecm->aecmCore);
+}
+
 static int WebRtcAecm_EstBufDelay(aecmob_t *aecm, short msInSndCardBuf)
 {
     short delayNew, nSampSndCard;
@@ -737,3 +1004,128 @@ static int WebRtcAecm_DelayComp(aecmob_t *aecm)
 
     return 0;
 }
+
+static void WebRtcAecm_ResetDrift(aecmob_t *aecm)
+{
+    aecm->driftBalance = 0;
+    aecm->driftFillBalance = 0;
+    aecm->driftBalanceSum = 0;
+    aecm->driftFillSum = 0;
+    aecm->driftCalls = 0;
+    aecm->driftBlockSamples = 0;
+    aecm->driftPoints = 0;
+    aecm->driftPos = 0;
+    aecm->driftPpm = 0;
+    aecm->driftFillTarget = 0;
+    aecm->driftCompPpm = 0;
+    aecm->resampPos = 0;
+    aecm->resampLast = 0;
+}
+
+static void WebRtcAecm_UpdateDrift(aecmob_t *aecm, int16_t nrOfSamples)
+{
+    const int blockSamples = DRIFT_BLOCK_MS * kSampMsNb * aecm->aecmCore->mult;
+    const int settleSamples = DRIFT_SETTLE_MS * kSampMsNb * aecm->aecmCore->mult;
+    int32_t mean, fill, shift, fillShift;
+    int64_t num, ppm, correction;
+    int i, n, oldest;
+
+    aecm->driftBalance -= nrOfSamples;
+    aecm->driftFillBalance -= nrOfSamples;
+    aecm->driftBalanceSum += aecm->driftBalance;
+    aecm->driftFillSum += aecm->driftFillBalance;
+    aecm->driftCalls++;
+    aecm->driftBlockSamples += nrOfSamples;
+    if (aecm->driftBlockSamples < blockSamples)
+    {
+        return;
+    }
+
+    // The means over a block average out the jitter of the far end and near
+    // end calls.
+    mean = (int32_t) ((aecm->driftBalanceSum << 4) / aecm->driftCalls);
+    fill = (int32_t) ((aecm->driftFillSum << 4) / aecm->driftCalls);
+    aecm->driftBalanceSum = 0;
+    aecm->driftFillSum = 0;
+    aecm->driftCalls = 0;
+    aecm->driftBlockSamples = 0;
+
+    // Only the slope and the deviation from the target matter, so the balances
+    // are moved back to zero to keep them bounded on long calls.
+    shift = mean >> 4;
+    aecm->driftBalance -= shift;
+    for (i = 0; i < aecm->driftPoints; i++)
+    {
+        aecm->driftMeans[i] -= shift << 4;
+    }
+    aecm->driftMeans[aecm->driftPos] = mean - (shift << 4);
+    fillShift = fill >> 4;
+    aecm->driftFillBalance -= fillShift;
+    aecm->driftFillTarget -= fillShift << 4;
+    fill -= fillShift << 4;
+    aecm->driftPos = (aecm->driftPos + 1) % DRIFT_POINTS;
+    if (aecm->driftPoints < DRIFT_POINTS)
+    {
+        aecm->driftPoints++;
+    }
+    if (aecm->driftPoints < DRIFT_MIN_POINTS || !aecm->driftComp)
+    {
+        // The correction starts from the fill of the buffer when the
+        // compensation takes over.
+        aecm->driftFillTarget = fill;
+    }
+    if (aecm->driftPoints < DRIFT_MIN_POINTS)
+    {
+        return;
+    }
+
+    // Least squares slope of the means, with the block times centered and
+    // doubled to keep them integers: t = 2 * i - (n - 1), sum(t^2) = n(n^2 - 1) / 3.
+    // The slope in Q4 samples per block is 2 * sum(t * mean) / sum(t^2).
+    n = aecm->driftPoints;
+    oldest = (aecm->driftPos - n + DRIFT_POINTS) % DRIFT_POINTS;
+    num = 0;
+    for (i = 0; i < n; i++)
+    {
+        num += (int64_t) (2 * i - (n - 1)) * aecm->driftMeans[(oldest + i) % DRIFT_POINTS];
+    }
+    ppm = num * 2 * 1000000 / ((int64_t) n * (n * n - 1) / 3 * 16 * blockSamples);
+    aecm->driftPpm = (int32_t) WEBRTC_SPL_SAT(DRIFT_MAX_PPM, ppm, -DRIFT_MAX_PPM);
+
+    // On top of the drift the far end rate is corrected in proportion to the
+    // deviation of the fill balance from its target, so the farend buffer
+    // stays where it was when the compensation took over instead of wandering
+    // until EstBufDelay() or DelayComp() jump.
+    correction = (int64_t) (fill - aecm->driftFillTarget) * (1000000 / 16) / settleSamples;
+    ppm = aecm->driftPpm + correction;
+    aecm->driftCompPpm = (int32_t) WEBRTC_SPL_SAT(DRIFT_MAX_PPM, ppm, -DRIFT_MAX_PPM);
+}
+
+// Resamples |length| samples of |in| by the factor 1 / (1 + driftCompPpm / 10^6)
+// with linear interpolation into |out| and returns the number of samples
+// written, at most |length| + 1. Without a correction the samples are copied
+// as they are.
+static int WebRtcAecm_ResampleFarend(aecmob_t *aecm, const int16_t *in, int length, int16_t *out)
+{
+    const int64_t step = (1LL << 30) + (((int64_t) aecm->driftCompPpm << 30) / 1000000);
+    const int64_t last = (int64_t) (length - 1) << 30;
+    int64_t pos = aecm->resampPos;
+    int n = 0;
+
+    // pos is in Q30 relative to in[0], a negative one interpolates between the
+    // last sample of the previous call and in[0].
+    while (pos <= last)
+    {
+        int k = (int) (pos >> 30);
+        int32_t frac = (int32_t) (pos - ((int64_t) k << 30));
+        int16_t a = k < 0 ? aecm->resampLast : in[k];
+        int16_t b = frac != 0 ? in[k + 1] : a;
+
+        out[n++] = (int16_t) (a + (((int64_t) frac * (b - a) + (1 << 29)) >> 30));
+        pos += step;
+    }
+
+    aecm->resampPos = pos - ((int64_t) length << 30);
+    aecm->resampLast = in[length - 1];
+    return n;
+}
@@ -33,8 +33,31 @@ enum {
 typedef struct {
     int16_t cngMode;            // AECM_FALSE, AECM_TRUE (default)
     int16_t echoMode;           // 0, 1, 2, 3 (default), 4
+    int16_t farendGate;         // AECM_FALSE (default), AECM_TRUE: pass the
+                                // near end through while the far end is silent
+    int16_t driftComp;          // AECM_FALSE (default), AECM_TRUE: resample the
+                                // far end by the measured clock drift
 } AecmConfig;
 
+typedef struct {
+    int farendBufferSamples;    // samples waiting in the farend buffer
+    int knownDelay;             // delay compensated by the AECM in samples
+    int16_t startup;            // AecmTrue while the start up phase is active
+    int16_t suppressionGain;    // latest suppression gain in Q8
+    uint32_t blocks;            // blocks processed by the core
+    uint32_t gatedBlocks;       // blocks passed through by the far end silence gate
+    int32_t driftPpm;           // measured drift of the far end clock against
+                                // the near end clock in ppm, 0 until estimated
+    int16_t driftEstimated;     // AecmTrue once the drift is estimated
+    int32_t driftCompPpm;       // rate correction applied to the far end in ppm
+} AecmStatus;
+
+typedef struct {
+    uint32_t blocks;            // far end blocks analyzed
+    uint32_t reusedBlocks;      // far end blocks taken from the history by
+                                // the instances which got to them later
+} AecmFarendSourceStatus;
+
 #ifdef __cplusplus
 extern "C" {
 #endif
@@ -55,6 +78,116 @@ extern "C" {
  */
 int32_t WebRtcAecm_Create(void **aecmInst);
 
+/*
+ * Same as WebRtcAecm_Create() but for high instance counts: the far end
+ * history of the delay estimator is MAX_DELAY_COMPACT blocks instead of
+ * MAX_DELAY and the farend buffer half as long, which saves about 40% of the
+ * memory of an instance. The longest echo delay it can follow is halved too.
+ *
+ * Inputs                           Description
+ * -------------------------------------------------------------------
+ * void **aecmInst                  Pointer to the AECM instance to be
+ *                                  created and initialized
+ *
+ * Outputs                          Description
+ * -------------------------------------------------------------------
+ * int32_t return                   0: OK
+ *                                 -1: error
+ */
+int32_t WebRtcAecm_CreateCompact(void **aecmInst);
+
+/*
+ * Allocates and initializes a far end analysis which several AECM instances
+ * fed with the same far end can share, see WebRtcAecm_CreateShared(). Every
+ * far end block is then transformed and added to the far end history and to
+ * the delay estimator once for all the instances.
+ *
+ * Inputs                           Description
+ * -------------------------------------------------------------------
+ * void **farendInst                Pointer to the far end analysis to be
+ *                                  created
+ * int16_t compact                  AecmTrue for the far end history of
+ *                                  WebRtcAecm_CreateCompact() instances
+ *
+ * Outputs                          Description
+ * -------------------------------------------------------------------
+ * int32_t return                   0: OK
+ *                                 -1: error
+ */
+int32_t WebRtcAecm_CreateFarendSource(void **farendInst, int16_t compact);
+
+/*
+ * Releases the memory allocated by WebRtcAecm_CreateFarendSource(). The
+ * instances created on it have to be freed before.
+ *
+ * Inputs                       Description
+ * -------------------------------------------------------------------
+ * void *farendInst             Pointer to the far end analysis
+ *
+ * Outputs                      Description
+ * -------------------------------------------------------------------
+ * int32_t  return              0: OK
+ *                             -1: error
+ */
+int32_t WebRtcAecm_FreeFarendSource(void *farendInst);
+
+/*
+ * Allocates an AECM instance like WebRtcAecm_Create(), or like
+ * WebRtcAecm_CreateCompact() for a compact far end analysis, which shares the
+ * far end analysis with the other instances created on farendInst.
+ * WebRtcAecm_Init() leaves the shared analysis as it is.
+ *
+ * The instances must be fed with the same far end and the same
+ * msInSndCardBuf, and must not be processed concurrently. They can be
+ * processed one frame after the other, but none may lag more than
+ * FAREND_SHARE_DEPTH blocks (16 blocks, 128 ms at 8000 Hz) behind another
+ * one, otherwise the far end is analyzed again for it and the others.
+ *
+ * Inputs                           Description
+ * -------------------------------------------------------------------
+ * void **aecmInst                  Pointer to the AECM instance to be
+ *                                  created
+ * void *farendInst                 Far end analysis created with
+ *                                  WebRtcAecm_CreateFarendSource()
+ *
+ * Outputs                          Description
+ * -------------------------------------------------------------------
+ * int32_t return                   0: OK
+ *                                 -1: error
+ */
+int32_t WebRtcAecm_CreateShared(void **aecmInst, void *farendInst);
+
+/*
+ * Gets the number of far end blocks analyzed and shared by a far end
+ * analysis.
+ *
+ * Inputs                           Description
+ * -------------------------------------------------------------------
+ * void *farendInst                 Pointer to the far end analysis
+ *
+ * Outputs                          Description
+ * -------------------------------------------------------------------
+ * AecmFarendSourceStatus* status   Status of the far end analysis
+ * int32_t return                   0: OK
+ *                                 -1: error
+ */
+int32_t WebRtcAecm_GetFarendSourceStatus(void *farendInst,
+                                         AecmFarendSourceStatus *status);
+
+/*
+ * Gets the number of bytes allocated for a far end analysis, which isn't
+ * included in WebRtcAecm_MemorySize() of the instances sharing it.
+ *
+ * Inputs                       Description
+ * -------------------------------------------------------------------
+ * void         *farendInst     Pointer to the far end analysis
+ *
+ * Outputs                      Description
+ * -------------------------------------------------------------------
+ * size_t       return          Bytes allocated, 0 if farendInst is NULL
+ */
+size_t WebRtcAecm_FarendSourceMemorySize(void *farendInst);
+
 /*
  * This function releases the memory allocated by WebRtcAecm_Create()
  *
@@ -213,6 +346,45 @@ int32_t WebRtcAecm_GetEchoPath(void* aecmInst,
  */
 size_t WebRtcAecm_echo_path_size_bytes();
 
+/*
+ * Gets the delay found by the internal delay estimator of the AECM core
+ * relative to the delay compensated through msInSndCardBuf.
+ *
+ * Inputs                       Description
+ * -------------------------------------------------------------------
+ * void*        aecmInst        Pointer to the AECM instance
+ *
+ * Outputs                      Description
+ * -------------------------------------------------------------------
+ * int*         delay_offset_ms How much longer (> 0) or shorter (< 0) the
+ *                              echo path delay is than the delay given
+ *                              through msInSndCardBuf
+ * int*         quality         Estimation quality in Q14, 0 - no match
+ *                              between far end and near end, 1 - full match
+ * int32_t      return           0: OK
+ *                              -1: error
+ *                              -2: insufficient data for estimation
+ */
+int32_t WebRtcAecm_GetDelayMetrics(void* aecmInst,
+                                   int* delay_offset_ms,
+                                   int* quality);
+
+/*
+ * Gets the current state of the AECM instance.
+ *
+ * Inputs                       Description
+ * -------------------------------------------------------------------
+ * void*        aecmInst        Pointer to the AECM instance
+ *
+ * Outputs                      Description
+ * -------------------------------------------------------------------
+ * AecmStatus*  status          Pointer to the status instance that all
+ *                              values will be written to
+ * int32_t      return           0: OK
+ *                              -1: error
+ */
+int32_t WebRtcAecm_GetStatus(void* aecmInst, AecmStatus* status);
+
 /*
  * Gets the last error code.
  *
@@ -226,6 +398,20 @@ size_t WebRtcAecm_echo_path_size_bytes();
  */
 int32_t WebRtcAecm_get_error_code(void *aecmInst);
 
+/*
+ * Gets the number of bytes allocated for the instance. The read-only tables
+ * are static and shared by all the instances, so they are not included.
+ *
+ * Inputs                       Description
+ * -------------------------------------------------------------------
+ * void         *aecmInst       Pointer to the AECM instance
+ *
+ * Outputs                      Description
+ * -------------------------------------------------------------------
+ * size_t       return          Bytes allocated, 0 if aecmInst is NULL
+ */
+size_t WebRtcAecm_MemorySize(void *aecmInst);
+
 #ifdef __cplusplus
 }
 #endif
@@ -40,6 +40,10 @@ void WebRtcSpl_FreeRealFFTC(struct RealFFT* self) {
   }
 }
 
+size_t WebRtcSpl_RealFFTMemorySize(const struct RealFFT* self) {
+  return self != NULL ? sizeof(struct RealFFT) : 0;
+}
+
 // The C version FFT functions (i.e. WebRtcSpl_RealForwardFFTC and
 // WebRtcSpl_RealInverseFFTC) are real-valued FFT wrappers for complex-valued
 // FFT implementation in SPL.
@@ -55,6 +59,10 @@ int WebRtcSpl_RealForwardFFTC(struct RealFFT* self,
   // 16-bit COMPLEX numbers, for both time and frequency data.
   int16_t complex_buffer[2 << kMaxFFTOrder];
 
+  if (self->order == 7) {
+    return WebRtcSpl_RealForwardFFT128(real_data_in, complex_data_out);
+  }
+
   // Insert zeros to the imaginary parts for complex forward FFT input.
   for (i = 0, j = 0; i < n; i += 1, j += 2) {
     complex_buffer[j] = real_data_in[i];
@@ -81,6 +89,10 @@ int WebRtcSpl_RealInverseFFTC(struct RealFFT* self,
   // Create the buffer specific to complex-valued FFT implementation.
   int16_t complex_buffer[2 << kMaxFFTOrder];
 
+  if (self->order == 7) {
+    return WebRtcSpl_RealInverseFFT128(complex_data_in, real_data_out);
+  }
+
   // For n-point FFT, first copy the first n + 2 elements into complex
   // FFT, then construct the remaining n - 2 elements by real FFT's
   // conjugate-symmetric properties.
@@ -11,6 +11,8 @@
 #ifndef WEBRTC_COMMON_AUDIO_SIGNAL_PROCESSING_INCLUDE_REAL_FFT_H_
 #define WEBRTC_COMMON_AUDIO_SIGNAL_PROCESSING_INCLUDE_REAL_FFT_H_
 
+#include <stddef.h>  // size_t
+
 #include "typedefs.h"
 
 // For ComplexFFT(), the maximum fft order is 10;
@@ -41,6 +43,10 @@ extern RealInverseFFT WebRtcSpl_RealInverseFFT;
 struct RealFFT* WebRtcSpl_CreateRealFFTC(int order);
 void WebRtcSpl_FreeRealFFTC(struct RealFFT* self);
 
+// Returns the number of bytes allocated for |self|. The twiddle and bit
+// reversal tables are static and shared by all the instances.
+size_t WebRtcSpl_RealFFTMemorySize(const struct RealFFT* self);
+
 #if (defined WEBRTC_DETECT_ARM_NEON) || (defined WEBRTC_ARCH_ARM_NEON)
 struct RealFFT* WebRtcSpl_CreateRealFFTNeon(int order);
 void WebRtcSpl_FreeRealFFTNeon(struct RealFFT* self);
@@ -121,6 +127,15 @@ int WebRtcSpl_RealInverseFFTNeon(struct RealFFT* self,
                                  int16_t* real_data_out);
 #endif
 
+// Fixed-size versions of WebRtcSpl_RealForwardFFTC() and
+// WebRtcSpl_RealInverseFFTC() for order 7 (128 points), the block size of the
+// AECM. They are called by the generic functions for that order and give
+// bit-exact results, see real_fft_128.c.
+int WebRtcSpl_RealForwardFFT128(const int16_t* real_data_in,
+                                int16_t* complex_data_out);
+int WebRtcSpl_RealInverseFFT128(const int16_t* complex_data_in,
+                                int16_t* real_data_out);
+
 #ifdef __cplusplus
 }
 #endif
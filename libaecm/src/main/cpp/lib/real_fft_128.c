@@ -0,0 +1,282 @@
+#include "real_fft.h"
+
+#include <stdlib.h>
+
+#include "signal_processing_library.h"
+
+// 128-point (order 7) real FFT used by the AECM core for every block.
+//
+// It runs exactly the same radix-2 decimation-in-time butterflies with the same
+// Q14 intermediate precision, rounding and per-stage scaling as
+// WebRtcSpl_ComplexFFT() and WebRtcSpl_ComplexIFFT() in mode 1, so the output is
+// bit-exact with the generic path. The savings come from the fixed size:
+//   - real and imaginary parts are kept in separate arrays, so the butterflies of
+//     a stage run over contiguous memory and the compiler can vectorize them;
+//   - the twiddle factors of every stage are read from contiguous precomputed
+//     tables instead of being looked up in kSinTable1024[] with a stride;
+//   - the bit reversal is folded into loading the input, and in the forward
+//     transform also the first stage, whose imaginary input and twiddle are 0;
+//   - the last stage computes only the outputs that are returned, the first
+//     n/2 + 1 bins of the forward transform and the real parts of the inverse
+//     one;
+//   - the inverse transform finds the maximum used for the scaling of a stage
+//     while writing the previous one, instead of a separate pass.
+
+#define CFFTSFT 14
+#define CFFTRND 1
+#define CFFTRND2 16384
+
+#define CIFFTSFT 14
+#define CIFFTRND 1
+
+// cos and sin of the twiddle factors, kSinTable1024[m * 512 / l + 256] and
+// kSinTable1024[m * 512 / l], for the stage of length 2l starting at index l - 1.
+static const int16_t kCos128[127] = {
+   32767,  32767,      0,  32767,  23169,      0, -23169,  32767,
+   30272,  23169,  12539,      0, -12539, -23169, -30272,  32767,
+   32137,  30272,  27244,  23169,  18204,  12539,   6392,      0,
+   -6392, -12539, -18204, -23169, -27244, -30272, -32137,  32767,
+   32609,  32137,  31356,  30272,  28897,  27244,  25329,  23169,
+   20787,  18204,  15446,  12539,   9511,   6392,   3211,      0,
+   -3211,  -6392,  -9511, -12539, -15446, -18204, -20787, -23169,
+  -25329, -27244, -28897, -30272, -31356, -32137, -32609,  32767,
+   32727,  32609,  32412,  32137,  31785,  31356,  30851,  30272,
+   29621,  28897,  28105,  27244,  26318,  25329,  24278,  23169,
+   22004,  20787,  19519,  18204,  16845,  15446,  14009,  12539,
+   11038,   9511,   7961,   6392,   4807,   3211,   1607,      0,
+   -1607,  -3211,  -4807,  -6392,  -7961,  -9511, -11038, -12539,
+  -14009, -15446, -16845, -18204, -19519, -20787, -22004, -23169,
+  -24278, -25329, -26318, -27244, -28105, -28897, -29621, -30272,
+  -30851, -31356, -31785, -32137, -32412, -32609, -32727
+};
+
+static const int16_t kSin128[127] = {
+       0,      0,  32767,      0,  23169,  32767,  23169,      0,
+   12539,  23169,  30272,  32767,  30272,  23169,  12539,      0,
+    6392,  12539,  18204,  23169,  27244,  30272,  32137,  32767,
+   32137,  30272,  27244,  23169,  18204,  12539,   6392,      0,
+    3211,   6392,   9511,  12539,  15446,  18204,  20787,  23169,
+   25329,  27244,  28897,  30272,  31356,  32137,  32609,  32767,
+   32609,  32137,  31356,  30272,  28897,  27244,  25329,  23169,
+   20787,  18204,  15446,  12539,   9511,   6392,   3211,      0,
+    1607,   3211,   4807,   6392,   7961,   9511,  11038,  12539,
+   14009,  15446,  16845,  18204,  19519,  20787,  22004,  23169,
+   24278,  25329,  26318,  27244,  28105,  28897,  29621,  30272,
+   30851,  31356,  31785,  32137,  32412,  32609,  32727,  32767,
+   32727,  32609,  32412,  32137,  31785,  31356,  30851,  30272,
+   29621,  28897,  28105,  27244,  26318,  25329,  24278,  23169,
+   22004,  20787,  19519,  18204,  16845,  15446,  14009,  12539,
+   11038,   9511,   7961,   6392,   4807,   3211,   1607
+};
+
+// Bit-reversed 6 and 7 bit indexes.
+static const int16_t kBitReverse64[64] = {
+   0, 32, 16, 48,  8, 40, 24, 56,  4, 36, 20, 52, 12, 44, 28, 60,
+   2, 34, 18, 50, 10, 42, 26, 58,  6, 38, 22, 54, 14, 46, 30, 62,
+   1, 33, 17, 49,  9, 41, 25, 57,  5, 37, 21, 53, 13, 45, 29, 61,
+   3, 35, 19, 51, 11, 43, 27, 59,  7, 39, 23, 55, 15, 47, 31, 63
+};
+
+static const int16_t kBitReverse128[128] = {
+    0,  64,  32,  96,  16,  80,  48, 112,   8,  72,  40, 104,  24,  88,  56, 120,
+    4,  68,  36, 100,  20,  84,  52, 116,  12,  76,  44, 108,  28,  92,  60, 124,
+    2,  66,  34,  98,  18,  82,  50, 114,  10,  74,  42, 106,  26,  90,  58, 122,
+    6,  70,  38, 102,  22,  86,  54, 118,  14,  78,  46, 110,  30,  94,  62, 126,
+    1,  65,  33,  97,  17,  81,  49, 113,   9,  73,  41, 105,  25,  89,  57, 121,
+    5,  69,  37, 101,  21,  85,  53, 117,  13,  77,  45, 109,  29,  93,  61, 125,
+    3,  67,  35,  99,  19,  83,  51, 115,  11,  75,  43, 107,  27,  91,  59, 123,
+    7,  71,  39, 103,  23,  87,  55, 119,  15,  79,  47, 111,  31,  95,  63, 127
+};
+
+int WebRtcSpl_RealForwardFFT128(const int16_t* real_data_in,
+                                int16_t* complex_data_out) {
+  int16_t re[128];
+  int16_t im[128];
+  int i, l, m;
+  int32_t tr32, ti32, qr32, qi32;
+
+  // Load the input in bit-reversed order and run the first stage on it. The
+  // pairs of that stage are x[r] and x[r + 64] with r the bit reverse of i / 2,
+  // the twiddle factor is (kCos128[0], 0), so the imaginary parts stay 0.
+  for (i = 0; i < 128; i += 2) {
+    int r = kBitReverse64[i >> 1];
+
+    tr32 = WEBRTC_SPL_MUL_16_16(kCos128[0], real_data_in[r + 64]) + CFFTRND;
+    tr32 = WEBRTC_SPL_RSHIFT_W32(tr32, 15 - CFFTSFT);
+    qr32 = ((int32_t)real_data_in[r]) << CFFTSFT;
+
+    re[i] = (int16_t)WEBRTC_SPL_RSHIFT_W32(qr32 + tr32 + CFFTRND2, 1 + CFFTSFT);
+    re[i + 1] = (int16_t)WEBRTC_SPL_RSHIFT_W32(qr32 - tr32 + CFFTRND2,
+                                               1 + CFFTSFT);
+    im[i] = 0;
+    im[i + 1] = 0;
+  }
+
+  for (l = 2; l < 64; l <<= 1) {
+    const int16_t* wr = &kCos128[l - 1];
+    const int16_t* ws = &kSin128[l - 1];
+
+    for (i = 0; i < 128; i += l << 1) {
+      int16_t* re_i = &re[i];
+      int16_t* im_i = &im[i];
+      int16_t* re_j = &re[i + l];
+      int16_t* im_j = &im[i + l];
+
+      for (m = 0; m < l; ++m) {
+        tr32 = WEBRTC_SPL_MUL_16_16(wr[m], re_j[m])
+            + WEBRTC_SPL_MUL_16_16(ws[m], im_j[m]) + CFFTRND;
+        ti32 = WEBRTC_SPL_MUL_16_16(wr[m], im_j[m])
+            - WEBRTC_SPL_MUL_16_16(ws[m], re_j[m]) + CFFTRND;
+        tr32 = WEBRTC_SPL_RSHIFT_W32(tr32, 15 - CFFTSFT);
+        ti32 = WEBRTC_SPL_RSHIFT_W32(ti32, 15 - CFFTSFT);
+
+        qr32 = ((int32_t)re_i[m]) << CFFTSFT;
+        qi32 = ((int32_t)im_i[m]) << CFFTSFT;
+
+        re_j[m] = (int16_t)WEBRTC_SPL_RSHIFT_W32(qr32 - tr32 + CFFTRND2,
+                                                 1 + CFFTSFT);
+        im_j[m] = (int16_t)WEBRTC_SPL_RSHIFT_W32(qi32 - ti32 + CFFTRND2,
+                                                 1 + CFFTSFT);
+        re_i[m] = (int16_t)WEBRTC_SPL_RSHIFT_W32(qr32 + tr32 + CFFTRND2,
+                                                 1 + CFFTSFT);
+        im_i[m] = (int16_t)WEBRTC_SPL_RSHIFT_W32(qi32 + ti32 + CFFTRND2,
+                                                 1 + CFFTSFT);
+      }
+    }
+  }
+
+  // Last stage, only bins 0 to 64 are returned: the sums of all the
+  // butterflies and the difference of the first one, whose twiddle factor is
+  // (kCos128[63], 0).
+  for (i = 0; i < 64; ++i) {
+    tr32 = WEBRTC_SPL_MUL_16_16(kCos128[63 + i], re[i + 64])
+        + WEBRTC_SPL_MUL_16_16(kSin128[63 + i], im[i + 64]) + CFFTRND;
+    ti32 = WEBRTC_SPL_MUL_16_16(kCos128[63 + i], im[i + 64])
+        - WEBRTC_SPL_MUL_16_16(kSin128[63 + i], re[i + 64]) + CFFTRND;
+    tr32 = WEBRTC_SPL_RSHIFT_W32(tr32, 15 - CFFTSFT);
+    ti32 = WEBRTC_SPL_RSHIFT_W32(ti32, 15 - CFFTSFT);
+
+    qr32 = ((int32_t)re[i]) << CFFTSFT;
+    qi32 = ((int32_t)im[i]) << CFFTSFT;
+
+    complex_data_out[2 * i] = (int16_t)WEBRTC_SPL_RSHIFT_W32(
+        qr32 + tr32 + CFFTRND2, 1 + CFFTSFT);
+    complex_data_out[2 * i + 1] = (int16_t)WEBRTC_SPL_RSHIFT_W32(
+        qi32 + ti32 + CFFTRND2, 1 + CFFTSFT);
+  }
+
+  tr32 = WEBRTC_SPL_MUL_16_16(kCos128[63], re[64]) + CFFTRND;
+  ti32 = WEBRTC_SPL_MUL_16_16(kCos128[63], im[64]) + CFFTRND;
+  tr32 = WEBRTC_SPL_RSHIFT_W32(tr32, 15 - CFFTSFT);
+  ti32 = WEBRTC_SPL_RSHIFT_W32(ti32, 15 - CFFTSFT);
+  qr32 = ((int32_t)re[0]) << CFFTSFT;
+  qi32 = ((int32_t)im[0]) << CFFTSFT;
+  complex_data_out[128] = (int16_t)WEBRTC_SPL_RSHIFT_W32(
+      qr32 - tr32 + CFFTRND2, 1 + CFFTSFT);
+  complex_data_out[129] = (int16_t)WEBRTC_SPL_RSHIFT_W32(
+      qi32 - ti32 + CFFTRND2, 1 + CFFTSFT);
+
+  return 0;
+}
+
+// Variable scaling of a stage of the inverse transform, depending upon the
+// maximum absolute value of its input, as in WebRtcSpl_ComplexIFFT().
+static int InverseStageShift(int max_abs) {
+  int shift = 0;
+
+  if (max_abs > 13573) {
+    shift++;
+  }
+  if (max_abs > 27146) {
+    shift++;
+  }
+  return shift;
+}
+
+int WebRtcSpl_RealInverseFFT128(const int16_t* complex_data_in,
+                                int16_t* real_data_out) {
+  int16_t re[128];
+  int16_t im[128];
+  int i, k, l, m, shift;
+  int scale = 0;
+  int max_abs = 0;
+  int32_t tr32, ti32, qr32, qi32, round2;
+
+  // Load bins 0 to 64 and the conjugates of bins 63 to 1 as bins 65 to 127, in
+  // bit-reversed order.
+  for (k = 0; k < 128; ++k) {
+    int r = kBitReverse128[k];
+
+    if (k <= 64) {
+      re[r] = complex_data_in[2 * k];
+      im[r] = complex_data_in[2 * k + 1];
+    } else {
+      re[r] = complex_data_in[256 - 2 * k];
+      im[r] = -complex_data_in[257 - 2 * k];
+    }
+    max_abs = WEBRTC_SPL_MAX(max_abs, abs(re[r]));
+    max_abs = WEBRTC_SPL_MAX(max_abs, abs(im[r]));
+  }
+
+  for (l = 1; l < 64; l <<= 1) {
+    const int16_t* wr = &kCos128[l - 1];
+    const int16_t* wi = &kSin128[l - 1];
+
+    shift = InverseStageShift(max_abs);
+    scale += shift;
+    round2 = 8192 << shift;
+    max_abs = 0;
+
+    for (i = 0; i < 128; i += l << 1) {
+      int16_t* re_i = &re[i];
+      int16_t* im_i = &im[i];
+      int16_t* re_j = &re[i + l];
+      int16_t* im_j = &im[i + l];
+
+      for (m = 0; m < l; ++m) {
+        tr32 = WEBRTC_SPL_MUL_16_16(wr[m], re_j[m])
+            - WEBRTC_SPL_MUL_16_16(wi[m], im_j[m]) + CIFFTRND;
+        ti32 = WEBRTC_SPL_MUL_16_16(wr[m], im_j[m])
+            + WEBRTC_SPL_MUL_16_16(wi[m], re_j[m]) + CIFFTRND;
+        tr32 = WEBRTC_SPL_RSHIFT_W32(tr32, 15 - CIFFTSFT);
+        ti32 = WEBRTC_SPL_RSHIFT_W32(ti32, 15 - CIFFTSFT);
+
+        qr32 = ((int32_t)re_i[m]) << CIFFTSFT;
+        qi32 = ((int32_t)im_i[m]) << CIFFTSFT;
+
+        re_j[m] = (int16_t)WEBRTC_SPL_RSHIFT_W32(qr32 - tr32 + round2,
+                                                 shift + CIFFTSFT);
+        im_j[m] = (int16_t)WEBRTC_SPL_RSHIFT_W32(qi32 - ti32 + round2,
+                                                 shift + CIFFTSFT);
+        re_i[m] = (int16_t)WEBRTC_SPL_RSHIFT_W32(qr32 + tr32 + round2,
+                                                 shift + CIFFTSFT);
+        im_i[m] = (int16_t)WEBRTC_SPL_RSHIFT_W32(qi32 + ti32 + round2,
+                                                 shift + CIFFTSFT);
+
+        // The maximum of the output is the input of the next stage.
+        max_abs = WEBRTC_SPL_MAX(max_abs, abs(re_i[m]));
+        max_abs = WEBRTC_SPL_MAX(max_abs, abs(im_i[m]));
+        max_abs = WEBRTC_SPL_MAX(max_abs, abs(re_j[m]));
+        max_abs = WEBRTC_SPL_MAX(max_abs, abs(im_j[m]));
+      }
+    }
+  }
+
+  // Last stage, only the real parts are returned.
+  shift = InverseStageShift(max_abs);
+  scale += shift;
+  round2 = 8192 << shift;
+  for (i = 0; i < 64; ++i) {
+    tr32 = WEBRTC_SPL_MUL_16_16(kCos128[63 + i], re[i + 64])
+        - WEBRTC_SPL_MUL_16_16(kSin128[63 + i], im[i + 64]) + CIFFTRND;
+    tr32 = WEBRTC_SPL_RSHIFT_W32(tr32, 15 - CIFFTSFT);
+    qr32 = ((int32_t)re[i]) << CIFFTSFT;
+
+    real_data_out[i] = (int16_t)WEBRTC_SPL_RSHIFT_W32(qr32 + tr32 + round2,
+                                                      shift + CIFFTSFT);
+    real_data_out[i + 64] = (int16_t)WEBRTC_SPL_RSHIFT_W32(
+        qr32 - tr32 + round2, shift + CIFFTSFT);
+  }
+
+  return scale;
+}
@@ -250,3 +250,11 @@ size_t WebRtc_available_write(const RingBuffer* self) {
 
   return self->element_count - WebRtc_available_read(self);
 }
+
+size_t WebRtc_BufferMemorySize(const RingBuffer* self) {
+  if (!self) {
+    return 0;
+  }
+
+  return sizeof(RingBuffer) + self->element_count * self->element_size;
+}
@@ -55,4 +55,7 @@ size_t WebRtc_available_read(const RingBuffer* handle);
 // Returns number of available elements for write.
 size_t WebRtc_available_write(const RingBuffer* handle);
 
+// Returns the number of bytes allocated for the buffer.
+size_t WebRtc_BufferMemorySize(const RingBuffer* handle);
+
 #endif  // WEBRTC_MODULES_AUDIO_PROCESSING_UTILITY_RING_BUFFER_H_
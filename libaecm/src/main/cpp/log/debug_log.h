@@ -5,9 +5,21 @@
 #ifndef AECM_DEBUG_LOG_H
 #define AECM_DEBUG_LOG_H
 
+#ifdef __ANDROID__
 #include <android/log.h>
 
 #define LOGD(tag, ...) __android_log_print(ANDROID_LOG_DEBUG, tag, __VA_ARGS__);
 #define LOGE(tag, ...) __android_log_print(ANDROID_LOG_ERROR, tag, __VA_ARGS__);
+#else
+#include <stdio.h>
+
+// Host builds have no logcat: debug output is compiled out unless AECM_DEBUG_LOG is defined, errors go to stderr.
+#ifdef AECM_DEBUG_LOG
+#define LOGD(tag, ...) { fprintf(stderr, "D/%s: ", tag); fprintf(stderr, __VA_ARGS__); fputc('\n', stderr); }
+#else
+#define LOGD(tag, ...) ;
+#endif
+#define LOGE(tag, ...) { fprintf(stderr, "E/%s: ", tag); fprintf(stderr, __VA_ARGS__); fputc('\n', stderr); }
+#endif
 
 #endif //AECM_DEBUG_LOG_H
@@ -1,17 +1,24 @@
 package ru.theeasiestway.libaecm;
 
-import android.util.Log;
+import java.io.File;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class AEC {
 
     private static final String TAG = "AECM_LOG";
 
     static {
-        try {
-            System.loadLibrary("AEC");
-        } catch (Exception e) {
-            Log.d(TAG, "Can't load AECM library: " + e);
-        }
+        // from the APK on Android, from java.library.path or the JAR elsewhere, see NativeLoader.
+        NativeLoader.load();
     }
 
     // /////////////////////////////////////////////////////////
@@ -32,7 +39,11 @@ public class AEC {
 
     /**
      * For security reason, this class supports constant sampling frequency values in
-     * {@link SamplingFrequency#FS_8000Hz FS_8000Hz}, {@link SamplingFrequency#FS_16000Hz FS_16000Hz}
+     * {@link SamplingFrequency#FS_8000Hz FS_8000Hz}, {@link SamplingFrequency#FS_16000Hz FS_16000Hz},
+     * {@link SamplingFrequency#FS_32000Hz FS_32000Hz}, {@link SamplingFrequency#FS_48000Hz FS_48000Hz}.<br>
+     * At 8000Hz and 16000Hz a frame has 80 or 160 samples. At 32000Hz and 48000Hz the native library resamples the
+     * frames to 16000Hz for the AECM core and the output back, so a frame has 160 or 320 samples at 32000Hz and 240 or
+     * 480 samples at 48000Hz (5 or 10 ms), and the output is band-limited to 8kHz.
      */
     public static final class SamplingFrequency {
         public int getFS() {
@@ -51,11 +62,35 @@ public class AEC {
         public static final SamplingFrequency FS_16000Hz = new SamplingFrequency(
                 16000);
 
+        /**
+         * This constant represents sampling frequency in 32000Hz
+         */
+        public static final SamplingFrequency FS_32000Hz = new SamplingFrequency(
+                32000);
+
+        /**
+         * This constant represents sampling frequency in 48000Hz
+         */
+        public static final SamplingFrequency FS_48000Hz = new SamplingFrequency(
+                48000);
+
         private final int mSamplingFrequency;
 
         private SamplingFrequency(int fs) {
             this.mSamplingFrequency = fs;
         }
+
+        /**
+         * @param fs - sampling frequency in Hz.
+         * @return the constant for the sampling frequency or null if it is not supported.
+         */
+        public static SamplingFrequency valueOf(int fs) {
+            if (fs == FS_8000Hz.mSamplingFrequency) return FS_8000Hz;
+            if (fs == FS_16000Hz.mSamplingFrequency) return FS_16000Hz;
+            if (fs == FS_32000Hz.mSamplingFrequency) return FS_32000Hz;
+            if (fs == FS_48000Hz.mSamplingFrequency) return FS_48000Hz;
+            return null;
+        }
     }
 
     /**
@@ -98,15 +133,60 @@ public class AEC {
         private AggressiveMode(int mode) {
             mMode = mode;
         }
+
+        /**
+         * @param mode - aggressiveness mode from 0 ({@link #MILD MILD}) to 4 ({@link #MOST_AGGRESSIVE MOST_AGGRESSIVE}).
+         * @return the constant for the mode or null if it is out of range.
+         */
+        public static AggressiveMode valueOf(int mode) {
+            switch (mode) {
+                case 0: return MILD;
+                case 1: return MEDIUM;
+                case 2: return HIGH;
+                case 3: return AGGRESSIVE;
+                case 4: return MOST_AGGRESSIVE;
+                default: return null;
+            }
+        }
     }
 
+    /**
+     * Number of values in an echo path, see {@link #exportEchoPath()}.
+     */
+    public static final int ECHO_PATH_LENGTH = nativeEchoPathLength();
+
     // /////////////////////////////////////////////////////////
     // PRIVATE MEMBERS
 
-    private long              mAecmHandler = -1;    // the handler of AECM instance.
+    private long              mAecmHandler = -1;    // the handler of AECM instance, changed only under lockExclusive().
     private AecmConfig        mAecmConfig  = null;  // the configurations of AECM instance.
     private SamplingFrequency mSampFreq    = null;  // sampling frequency of input speech data.
-    private boolean           mIsInit      = false; // whether the AECM instance is initialized or not.
+    private final boolean     mCompact;             // the native instance is created in the compact mode.
+    private final AecFarendSource mFarendSource;    // shared far-end analysis or null.
+
+    // lifecycle of the native instance. Calls which only use it enter() and exit() it and may run concurrently,
+    // prepare(), close() and reconfigurations lockExclusive() it and wait until the calls in flight are finished.
+    private static final int STATE_CLOSED    = 1 << 31; // not prepared or closed, calls are rejected.
+    private static final int STATE_EXCLUSIVE = 1 << 30; // owned by prepare(), close() or a reconfiguration.
+    private static final int STATE_CALLS     = STATE_EXCLUSIVE - 1; // number of calls in flight.
+    private static final AtomicIntegerFieldUpdater<AEC> STATE = AtomicIntegerFieldUpdater.newUpdater(AEC.class, "mState");
+
+    private volatile int             mState  = STATE_CLOSED;
+    private final    NativeReference mNative = new NativeReference(this); // releases an instance which is never closed.
+
+    // automatic delay estimation, see farendBufferAt() and echoCancellationAt().
+    private static final int   DELAY_UPDATE_FRAMES = 50;    // frames between two reads of the internal delay estimator.
+    private static final int   DELAY_QUALITY_MIN   = 10240; // 0.625 in Q14, worse estimates are not trusted.
+    private static final int   DELAY_DEAD_ZONE_MS  = 8;     // offsets below one block of the core are ignored.
+    private static final int   DELAY_CORRECTION_MAX_MS = 250;
+
+    private final int[] mDelayMetrics        = new int[2];
+    private volatile long mRenderDelayNs     = 0;  // t_render - t_analyze of the latest far-end frame, written by the render thread.
+    private long        mSystemDelayNs       = -1; // smoothed delay measured from the timestamps, -1 until the first frame.
+    private int         mDelayCorrectionMs   = 0;  // correction learned from the internal delay estimator.
+    private int         mDelayEstimateMs     = 0;
+    private int         mDelayQuality        = 0;  // in Q14.
+    private int         mFramesToDelayUpdate = DELAY_UPDATE_FRAMES;
 
     // /////////////////////////////////////////////////////////
     // CONSTRUCTOR
@@ -115,9 +195,11 @@ public class AEC {
      * Generate a new AECM instance
      */
     public AEC() {
-        mAecmHandler = nativeCreateAecmInstance();
+        mCompact = false;
+        mFarendSource = null;
+        mAecmHandler = mNative.mAecmHandler = nativeCreateAecmInstance(false);
         mAecmConfig = new AecmConfig();
-        Log.d(TAG, "AECM instance successfully created");
+        AecLog.d(TAG, "AECM instance successfully created");
     }
 
     /**
@@ -137,18 +219,65 @@ public class AEC {
      *                       if null, then {@link AggressiveMode#AGGRESSIVE AGGRESSIVE} is set.
      */
     public AEC(SamplingFrequency sampFreqOfData, AggressiveMode aggressiveMode) {
+        this(sampFreqOfData, aggressiveMode, false);
+    }
+
+    /**
+     * To generate a new AECM instance, optionally in the compact mode for servers running hundreds of instances per
+     * host. A compact instance keeps half as long far-end history in its delay estimator (50 blocks instead of 100) and
+     * a far-end buffer of 125 ms instead of 250 ms at 16000 Hz, which saves about 40% of its memory, see
+     * {@link #getMemoryBytes()}. In exchange it follows echo delays up to about 200 ms at 16000 Hz (400 ms at 8000 Hz)
+     * only. The read-only tables are shared by all the instances either way.
+     *
+     * @param sampFreqOfData - sampling frequency of input audio data. if null, then {@link SamplingFrequency#FS_16000Hz FS_16000Hz} is set.
+     * @param aggressiveMode - aggressiveness mode of AECM instance, more higher the mode is, more aggressive the instance will be.
+     *                       if null, then {@link AggressiveMode#AGGRESSIVE AGGRESSIVE} is set.
+     * @param compact        - true to create the native instance in the compact mode.
+     */
+    public AEC(SamplingFrequency sampFreqOfData, AggressiveMode aggressiveMode, boolean compact) {
+        this(sampFreqOfData, aggressiveMode, compact, null);
+    }
+
+    /**
+     * To generate a new AECM instance which shares the far-end analysis of a source with the other instances created
+     * on it, for conference bridges cancelling the echo of one far-end in many near-ends. The far-end FFT, far-end
+     * history and the far-end half of the delay estimator then run once per block for all of them. The instance is
+     * compact if the source is.<br>
+     * Every instance of a source must be fed the same far-end signal with the same delay and be created before the
+     * first block is processed, an instance which isn't goes on with a far-end analysis of its own, see
+     * {@link AecFarendSource AecFarendSource}. The instances of a source are processed one at a time.
+     *
+     * @param sampFreqOfData - sampling frequency of input audio data. if null, then {@link SamplingFrequency#FS_16000Hz FS_16000Hz} is set.
+     * @param aggressiveMode - aggressiveness mode of AECM instance, more higher the mode is, more aggressive the instance will be.
+     *                       if null, then {@link AggressiveMode#AGGRESSIVE AGGRESSIVE} is set.
+     * @param farendSource   - the shared far-end analysis, it may be closed once the instances are created.
+     */
+    public AEC(SamplingFrequency sampFreqOfData, AggressiveMode aggressiveMode, AecFarendSource farendSource) {
+        this(sampFreqOfData, aggressiveMode, farendSource.isCompact(), farendSource);
+    }
+
+    private AEC(SamplingFrequency sampFreqOfData, AggressiveMode aggressiveMode, boolean compact, AecFarendSource farendSource) {
+        mCompact = compact;
+        mFarendSource = farendSource;
         // create new AECM instance but without initialize. Init things are in prepare() method instead.
-        mAecmHandler = nativeCreateAecmInstance();
+        mAecmHandler = mNative.mAecmHandler = createInstance();
         setSampFreq(sampFreqOfData, false);
         mAecmConfig = new AecmConfig();
         setAecmMode(aggressiveMode, false);
-        Log.d(TAG, "AECM instance successfully created");
+        AecLog.d(TAG, "AECM instance successfully created");
         prepare();
     }
 
     // /////////////////////////////////////////////////////////
     // PUBLIC METHODS
 
+    /**
+     * set the sampling rate of speech data and prepare the AECM instance for it. The native instance is reset in place,
+     * nothing is freed or allocated. If the instance is already prepared for this rate nothing happens, so the
+     * adapted echo channel is kept.
+     *
+     * @param frequency - sampling frequency of speech data, if null then {@link SamplingFrequency#FS_16000Hz FS_16000Hz} is set.
+     */
     public void setSampFreq(SamplingFrequency frequency) {
         setSampFreq(frequency, true);
     }
@@ -157,15 +286,23 @@ public class AEC {
      * set the sampling rate of speech data.
      *
      * @param frequency - sampling frequency of speech data, if null then {@link SamplingFrequency#FS_16000Hz FS_16000Hz} is set.
-     * @param prepare - is flag that indicate will or will not prepare AECM instance after sampling frequency was set.
+     * @param prepare - is flag that indicate will or will not prepare AECM instance if sampling frequency was changed.
      */
     private void setSampFreq(SamplingFrequency frequency, boolean prepare) {
+        SamplingFrequency previous = mSampFreq;
         if (frequency == null) {
-            Log.d(TAG, "setSampFreq() frequency == null, SamplingFrequency.FS_16000Hz will be used instead");
+            AecLog.d(TAG, "setSampFreq() frequency == null, SamplingFrequency.FS_16000Hz will be used instead");
             mSampFreq = SamplingFrequency.FS_16000Hz;
         }
         else mSampFreq = frequency;
-        if (prepare) prepare();
+        if (prepare && (!isPrepared() || previous != mSampFreq)) prepare();
+    }
+
+    /**
+     * @return sampling frequency the AECM instance is prepared (or going to be prepared) for.
+     */
+    public SamplingFrequency getSampFreq() {
+        return mSampFreq;
     }
 
     /**
@@ -177,15 +314,20 @@ public class AEC {
      * or you pass an invalid parameter.
      */
     public AEC farendBuffer(short[] farendFrame, int frameLength) {
-        // check if AECM instance is not initialized.
-        if (!mIsInit) {
-            Log.d(TAG, "farendBuffer() is called on an unprepared AECM instance or you pass an invalid parameter");
+        // check if AECM instance is not initialized or the frame is not in the array.
+        if (farendFrame == null || frameLength <= 0 || frameLength > Short.MAX_VALUE || farendFrame.length < frameLength
+                || !enter()) {
+            AecLog.d(TAG, "farendBuffer() is called on an unprepared AECM instance or you pass an invalid parameter");
             return null;
         }
 
-        if (nativeBufferFarend(mAecmHandler, farendFrame, frameLength) == -1) {
-            Log.d(TAG, "farendBuffer() failed due to invalid arguments");
-            return null;
+        try {
+            if (nativeBufferFarend(mAecmHandler, farendFrame, frameLength) == -1) {
+                AecLog.d(TAG, "farendBuffer() failed due to invalid arguments");
+                return null;
+            }
+        } finally {
+            exit();
         }
 
         return this;
@@ -193,7 +335,7 @@ public class AEC {
 
     /**
      * core process of AECM instance, must called on a prepared AECM instance. we only support 80 or 160 sample blocks
-     * of data.
+     * of data, see {@link SamplingFrequency SamplingFrequency} for 32000Hz and 48000Hz.
      *
      * @param nearendNoisy
      *            - In buffer containing one frame of reference nearend+echo signal. If noise reduction is active,
@@ -203,7 +345,7 @@ public class AEC {
      *            clean signal here. Otherwise pass a NULL pointer
      *            or just call {@link #echoCancellation(short[] nearendNoisy, int numOfSamples, int delay)}.
      * @param numOfSamples
-     *            - Number of samples in nearend buffer. Must be <= Short.MAX_VALUE and >= Short.MIN_VALUE
+     *            - Number of samples in nearend buffer. At most the length of the arrays.
      * @param delay
      *            - Delay estimate for sound card and system buffers <br>
      *            delay = (t_render - t_analyze) + (t_process - t_capture)<br>
@@ -218,39 +360,43 @@ public class AEC {
      */
     public short[] echoCancellation(short[] nearendNoisy, short[] nearendClean, int numOfSamples, int delay) {
         // check if AECM instance is not initialized.
-        if (!mIsInit) {
-            Log.d(TAG, "echoCancellation() is called on an unprepared AECM instance or you pass an invalid parameter");
+        if (!isPrepared()) {
+            AecLog.d(TAG, "echoCancellation() is called on an unprepared AECM instance or you pass an invalid parameter");
             return null;
         }
 
-        if (numOfSamples > Short.MAX_VALUE) {
-            Log.d(TAG, "echoCancellation() numOfSamples > Short.MAX_VALUE, Short.MAX_VALUE will be used instead");
-            numOfSamples = Short.MAX_VALUE;
-        } else if (numOfSamples < Short.MIN_VALUE) {
-            Log.d(TAG, "echoCancellation() numOfSamples < Short.MIN_VALUE, Short.MIN_VALUE will be used instead");
-            numOfSamples = Short.MIN_VALUE;
+        // the frame must be in the arrays, the native side processes numOfSamples samples of them.
+        if (nearendNoisy == null || numOfSamples <= 0 || numOfSamples > Short.MAX_VALUE
+                || nearendNoisy.length < numOfSamples || (nearendClean != null && nearendClean.length < numOfSamples)) {
+            AecLog.d(TAG, "echoCancellation() numOfSamples doesn't fit in the arrays");
+            return null;
         }
 
         if (delay > Short.MAX_VALUE) {
-            Log.d(TAG, "echoCancellation() delay > Short.MAX_VALUE, Short.MAX_VALUE will be used instead");
+            AecLog.d(TAG, "echoCancellation() delay > Short.MAX_VALUE, Short.MAX_VALUE will be used instead");
             delay = Short.MAX_VALUE;
         } else if (delay < Short.MIN_VALUE) {
-            Log.d(TAG, "echoCancellation() delay < Short.MIN_VALUE, Short.MIN_VALUE will be used instead");
+            AecLog.d(TAG, "echoCancellation() delay < Short.MIN_VALUE, Short.MIN_VALUE will be used instead");
             delay = Short.MIN_VALUE;
         }
 
-        return nativeAecmProcess(mAecmHandler, nearendNoisy, nearendClean, (short) numOfSamples, (short) delay);
+        if (!enter()) return null;
+        try {
+            return nativeAecmProcess(mAecmHandler, nearendNoisy, nearendClean, (short) numOfSamples, (short) delay);
+        } finally {
+            exit();
+        }
     }
 
     /**
      * core process of AECM instance, must called on a prepared AECM instance. we only support 80 or 160 sample blocks
-     * of data.
+     * of data, see {@link SamplingFrequency SamplingFrequency} for 32000Hz and 48000Hz.
      *
      * @param nearendNoisy
      *            - In buffer containing one frame of reference nearend+echo signal. If noise reduction is active,
      *            provide the noisy signal here.
      * @param numOfSamples
-     *            - Number of samples in nearend buffer. Must be <= Short.MAX_VALUE and >= Short.MIN_VALUE
+     *            - Number of samples in nearend buffer. At most the length of the array.
      * @param delay
      *            - Delay estimate for sound card and system buffers <br>
      *            delay = (t_render - t_analyze) + (t_process - t_capture)<br>
@@ -267,193 +413,1428 @@ public class AEC {
         return echoCancellation(nearendNoisy, null, numOfSamples, delay);
     }
 
-    public AEC setAecmMode(AggressiveMode mode) {
-        return setAecmMode(mode, true);
-    }
-
     /**
-     * Set the aggressiveness mode of AECM instance, more higher the mode is, more aggressive the instance will be.
-     * @param prepare - is flag that indicate will or will not prepare AECM instance after aggressiveness mode was set.
-     * @param mode
-     * @return the {@link AEC AEC} object itself or null if mode is null.
+     * core process of AECM instance which writes the result into a caller-provided array, so nothing is allocated
+     * per frame. Must called on a prepared AECM instance. We only support 80 or 160 sample blocks of data,
+     * see {@link SamplingFrequency SamplingFrequency} for 32000Hz and 48000Hz.
+     *
+     * @param nearendNoisy
+     *            - In buffer containing one frame of reference nearend+echo signal. If noise reduction is active,
+     *            provide the noisy signal here.
+     * @param nearendClean
+     *            - In buffer containing one frame of nearend+echo signal. If noise reduction is active, provide the
+     *            clean signal here. Otherwise pass null.
+     * @param out
+     *            - Out buffer which receives one processed frame, may be the same array as one of the inputs.
+     * @param numOfSamples
+     *            - Number of samples in nearend buffer.
+     * @param delay
+     *            - Delay estimate for sound card and system buffers, see
+     *            {@link #echoCancellation(short[], short[], int, int)}.
+     *
+     * @return out array or null if echoCancellation() is called on an unprepared AECM instance or you pass an invalid
+     *         parameter.
      */
-    private AEC setAecmMode(AggressiveMode mode, boolean prepare) {
-        // check the mode argument.
-        if (mode == null) {
-            Log.d(TAG, "setAecMode() mode == null, AggressiveMode.AGGRESSIVE will be used instead");
-            mode = AggressiveMode.AGGRESSIVE;
+    public short[] echoCancellation(short[] nearendNoisy, short[] nearendClean, short[] out, int numOfSamples, int delay) {
+        if (nearendNoisy == null || out == null || numOfSamples < 0 || numOfSamples > Short.MAX_VALUE
+                || nearendNoisy.length < numOfSamples || out.length < numOfSamples
+                || (nearendClean != null && nearendClean.length < numOfSamples) || !enter()) {
+            AecLog.d(TAG, "echoCancellation() is called on an unprepared AECM instance or you pass an invalid parameter");
+            return null;
         }
 
-        mAecmConfig.mAecmMode = (short) mode.getMode();
+        int ret;
+        try {
+            ret = nativeAecmProcessInto(mAecmHandler, nearendNoisy, nearendClean, out, (short) numOfSamples, clampToShort(delay));
+        } finally {
+            exit();
+        }
 
-        return prepare ? prepare() : this;
+        return ret == 0 ? out : null;
     }
 
     /**
-     * When finished the pre-works or any settings are changed, call this to make AECM instance prepared. Otherwise your
-     * new settings will be ignored by the AECM instance.
+     * process several consecutive frames in one native call. For every frame i the far-end frame i is buffered
+     * first (like {@link #farendBuffer(short[], int)}) and then the near-end frame i is processed (like
+     * {@link #echoCancellation(short[], short[], short[], int, int)}), so one call replaces 2 * frames JNI
+     * transitions. Nothing is allocated.
      *
-     * @return the {@link AEC AEC} object itself.
+     * @param farend
+     *            - frames * frameLength samples of far-end signal or null if far-end is buffered separately.
+     * @param nearend
+     *            - frames * frameLength samples of reference nearend+echo signal.
+     * @param out
+     *            - receives frames * frameLength processed samples, may be the same array as nearend.
+     * @param frameLength
+     *            - number of samples in one frame, 80 or 160 (see {@link SamplingFrequency SamplingFrequency}).
+     * @param frames
+     *            - number of frames in the batch.
+     * @param delaysMs
+     *            - delay estimate of every frame, see {@link #echoCancellation(short[], short[], int, int)}.
+     *            Must hold at least frames values.
+     *
+     * @return number of frames processed, less than frames if processing stopped at an error, or -1 if
+     *         processBatch() is called on an unprepared AECM instance or you pass an invalid parameter.
      */
-    public AEC prepare() {
-        if (mIsInit) {
-            close();
-            mAecmHandler = nativeCreateAecmInstance();
+    public int processBatch(short[] farend, short[] nearend, short[] out, int frameLength, int frames, int[] delaysMs) {
+        if (delaysMs == null || delaysMs.length < frames) {
+            AecLog.d(TAG, "processBatch() delaysMs must hold a delay for every frame");
+            return -1;
         }
+        return processBatch(farend, nearend, out, frameLength, frames, delaysMs, 0);
+    }
 
-        mInitAecmInstance(mSampFreq.getFS(), mAecmConfig.mAecmMode);
-        mIsInit = true;
+    /**
+     * process several consecutive frames with the same delay estimate in one native call,
+     * see {@link #processBatch(short[], short[], short[], int, int, int[])}.
+     *
+     * @param delay
+     *            - delay estimate used for all frames of the batch.
+     */
+    public int processBatch(short[] farend, short[] nearend, short[] out, int frameLength, int frames, int delay) {
+        return processBatch(farend, nearend, out, frameLength, frames, null, delay);
+    }
 
-        // set AecConfig to native side.
-        nativeSetConfig(mAecmHandler, mAecmConfig);
+    /**
+     * process several consecutive frames stored in direct byte buffers as 16 bit PCM in the native byte order, for
+     * example windows of memory-mapped WAV files, see {@link #processBatch(short[], short[], short[], int, int, int)}.
+     * The frames are read and written in place starting at the current positions of the buffers, nothing is copied
+     * or allocated and the positions are not changed.
+     *
+     * @param farend
+     *            - direct buffer with frames * frameLength samples of far-end signal or null if far-end is buffered
+     *            separately.
+     * @param nearend
+     *            - direct buffer with frames * frameLength samples of reference nearend+echo signal.
+     * @param out
+     *            - direct buffer which receives frames * frameLength processed samples, may be the same as nearend.
+     * @param delay
+     *            - delay estimate used for all frames of the batch.
+     */
+    public int processBatch(ByteBuffer farend, ByteBuffer nearend, ByteBuffer out, int frameLength, int frames, int delay) {
+        long bytes = (long) frameLength * frames * 2; // in long, so a huge frames can't wrap around into a valid size
+        if (!isFrameLength(frameLength) || frames < 0 || !isUsableBuffer(nearend, bytes)
+                || !isUsableBuffer(out, bytes) || (farend != null && !isUsableBuffer(farend, bytes)) || !enter()) {
+            AecLog.d(TAG, "processBatch() is called on an unprepared AECM instance or you pass an invalid parameter");
+            return -1;
+        }
 
-        Log.d(TAG, "AECM instance successfully prepared with sampling frequency: " + mSampFreq.getFS() + "hz " + "and aggressiveness mode: " + mAecmConfig.mAecmMode);
+        try {
+            return nativeProcessBatchDirect(mAecmHandler, farend, farend == null ? 0 : farend.position(),
+                    nearend, nearend.position(), out, out.position(), frameLength, frames, delay);
+        } finally {
+            exit();
+        }
+    }
 
+    /**
+     * set the far-end signal of AECM instance together with the time it is going to be played out, so that the delay
+     * for sound card and system buffers is computed by the instance itself, see
+     * {@link #echoCancellationAt(short[], short[], short[], int, long)}.
+     *
+     * @param farendFrame - one frame of far-end signal.
+     * @param frameLength - number of samples in the frame, 80 or 160 (see {@link SamplingFrequency SamplingFrequency}).
+     * @param renderTimeNs - {@link System#nanoTime()} based time when the first sample of the frame is rendered by the
+     *                     audio hardware, for example from AudioTrack.getTimestamp() or {@link #renderTime(long, long)}.
+     * @return the {@link AEC AEC} object itself or null if farendBufferAt() is called on an unprepared AECM instance
+     * or you pass an invalid parameter.
+     */
+    public AEC farendBufferAt(short[] farendFrame, int frameLength, long renderTimeNs) {
+        if (farendBuffer(farendFrame, frameLength) == null) return null;
+        mRenderDelayNs = Math.max(0, renderTimeNs - System.nanoTime());
         return this;
     }
 
     /**
-     * Release the resources in AECM instance and the AECM instance is no longer available until next <b>prepare()</b>
-     * is called.<br>
-     * You should <b>always</b> call this <b>manually</b> when all things are done.
+     * core process of AECM instance which computes the delay for sound card and system buffers itself:<br>
+     * delay = (t_render - t_analyze) + (t_process - t_capture)<br>
+     * where t_render comes from the latest {@link #farendBufferAt(short[], int, long)}, t_capture is captureTimeNs and
+     * t_analyze, t_process are the times of the calls. The measured delay is smoothed and corrected with the delay
+     * found by the internal delay estimator of the AECM core, see {@link #getDelayEstimateMs()}.
+     *
+     * @param nearendNoisy - one frame of reference nearend+echo signal.
+     * @param nearendClean - one frame of nearend+echo signal with noise reduction applied, or null.
+     * @param out - out buffer which receives one processed frame, may be the same array as one of the inputs.
+     * @param numOfSamples - number of samples in nearend buffer.
+     * @param captureTimeNs - {@link System#nanoTime()} based time when the first sample of the frame was captured by
+     *                      the audio hardware, for example from AudioRecord.getTimestamp() or {@link #captureTime(long)}.
+     * @return out array or null if echoCancellationAt() is called on an unprepared AECM instance or you pass an
+     *         invalid parameter.
      */
-    public void close() {
-        if (mIsInit) {
-            nativeFreeAecmInstance(mAecmHandler);
-            mAecmHandler = -1;
-            mIsInit = false;
-        }
+    public short[] echoCancellationAt(short[] nearendNoisy, short[] nearendClean, short[] out, int numOfSamples, long captureTimeNs) {
+        return echoCancellation(nearendNoisy, nearendClean, out, numOfSamples, estimateDelay(captureTimeNs));
     }
 
-    // ////////////////////////////////////////////////////////
-    // PROTECTED METHODS
-
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-        if (mIsInit) {
-            close();
-        }
+    /**
+     * compute the render time of the next far-end frame from playback positions.
+     *
+     * @param framesWritten - number of frames written to the AudioTrack so far.
+     * @param playbackHeadPosition - AudioTrack.getPlaybackHeadPosition().
+     * @return {@link System#nanoTime()} based time the next written frame is going to be played out.
+     */
+    public long renderTime(long framesWritten, long playbackHeadPosition) {
+        return System.nanoTime() + (framesWritten - playbackHeadPosition) * 1000000000L / mSampFreq.getFS();
     }
 
-    // ////////////////////////////////////////////////////////
-    // PRIVATE METHODS
-
     /**
-     * initialize the AECM instance
+     * compute the capture time of the frame which has just been read from capture positions.
      *
-     * @param sampFreq
-     * @param mAecmMode
+     * @param framesPending - number of captured frames which are not processed yet, including the frame which has
+     *                      just been read.
+     * @return {@link System#nanoTime()} based time the first sample of the frame was captured.
      */
-    private void mInitAecmInstance(int sampFreq, short mAecmMode) {
-        if (!mIsInit) {
-            nativeInitializeAecmInstance(mAecmHandler, sampFreq);
+    public long captureTime(long framesPending) {
+        return System.nanoTime() - framesPending * 1000000000L / mSampFreq.getFS();
+    }
 
-            // initialize configurations of AECM instance.
-            mAecmConfig = new AecmConfig();
-            mAecmConfig.mAecmMode = mAecmMode;
+    /**
+     * @return the delay for sound card and system buffers used by the latest
+     *         {@link #echoCancellationAt(short[], short[], short[], int, long)} in ms.
+     */
+    public int getDelayEstimateMs() {
+        return mDelayEstimateMs;
+    }
 
-            // set default configuration of AECM instance
-            nativeSetConfig(mAecmHandler, mAecmConfig);
+    /**
+     * @return quality of the delay found by the internal delay estimator, from 0 (far-end and near-end don't match,
+     *         for example while the far-end is silent) to 1 (full match).
+     */
+    public float getDelayEstimateQuality() {
+        return mDelayQuality / 16384f;
+    }
 
-            mIsInit = true;
+    /**
+     * Take a snapshot of the performance and health metrics of the AECM instance. It is cheap and may be called from
+     * any thread, for example periodically by a monitoring thread, while frames are processed on another one.
+     *
+     * @return the metrics collected since the latest {@link #prepare()} or null if getStats() is called on an
+     *         unprepared AECM instance.
+     */
+    public AecStats getStats() {
+        if (!enter()) {
+            AecLog.d(TAG, "getStats() is called on an unprepared AECM instance");
+            return null;
+        }
+        long[] values = new long[AecStats.LENGTH];
+        try {
+            return nativeGetStats(mAecmHandler, values) == 0 ? new AecStats(values) : null;
+        } finally {
+            exit();
         }
     }
 
-    // ////////////////////////////////////////////////////////
-    // PRIVATE NESTED CLASSES
-
     /**
-     * Acoustic Echo Cancellation for Mobile Configuration class, holds the config Info. of AECM instance.<br>
-     * [NOTE] <b>DO NOT</b> modify the name of members, or you must change the native code to match your modifying.
-     * Otherwise the native code could not find pre-binding members name.<br>
-     *
+     * @return true if the AECM instance is created in the compact mode, see {@link #AEC(SamplingFrequency, AggressiveMode, boolean)}.
      */
-    @SuppressWarnings("unused")
-    public class AecmConfig {
-        private short mAecmMode = (short) AggressiveMode.AGGRESSIVE.getMode(); // default AggressiveMode.AGGRESSIVE
-        private short mCngMode  = AECM_ENABLE;                                // AECM_UNABLE, AECM_ENABLE (default)
+    public boolean isCompact() {
+        return mCompact;
     }
 
-    // ///////////////////////////////////////////
-    // PRIVATE NATIVE INTERFACES
+    /**
+     * @return the far-end analysis the AECM instance shares, see {@link #AEC(SamplingFrequency, AggressiveMode, AecFarendSource)},
+     *         or null.
+     */
+    public AecFarendSource getFarendSource() {
+        return mFarendSource;
+    }
 
     /**
-     * Allocates the memory needed by the AECM. The memory needs to be initialized separately using the
-     * nativeInitializeAecmInstance() method.
+     * Get the native memory of the AECM instance: the WebRtc AECM instance, its delay estimator and buffers and the
+     * rings of the streaming mode. The read-only tables shared by all the instances and a running recording are not
+     * included.
      *
-     * @return -1: error<br>
-     *         other values: created AECM instance handler.
+     * @return bytes allocated for the instance or -1 if getMemoryBytes() is called on an unprepared AECM instance.
+     */
+    public long getMemoryBytes() {
+        if (!enter()) {
+            AecLog.d(TAG, "getMemoryBytes() is called on an unprepared AECM instance");
+            return -1;
+        }
+        try {
+            return nativeGetMemorySize(mAecmHandler);
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Start recording every far-end frame, near-end frame, processed frame and delay of the AECM instance, as well as
+     * its re-initializations and configuration changes, into a memory-mapped ring file. The file can be fed back
+     * through a fresh instance by {@link AecReplay AecReplay} to reproduce echo and CPU problems offline.<br>
+     * The recording is cheap enough to be left on: the audio threads only copy the frames into a lock-free queue and
+     * a background thread writes them to the file. When the ring is full the oldest records are overwritten, when
+     * the queue is full (the storage stalls) records are dropped and the gap is marked in the file.
      *
+     * @param file - ring file, it is created or truncated.
+     * @param capacityBytes - size of the ring, a second of 16000Hz audio in 10 ms frames takes about 100 KB.
+     * @return the {@link AEC AEC} object itself or null if startRecording() is called on an unprepared AECM instance,
+     *         the instance already records or the file can't be created.
      */
-    private static native long nativeCreateAecmInstance();
+    public AEC startRecording(File file, int capacityBytes) {
+        if (file == null || capacityBytes <= 0 || !enter()) {
+            AecLog.d(TAG, "startRecording() is called on an unprepared AECM instance or you pass an invalid parameter");
+            return null;
+        }
+        try {
+            return nativeStartRecording(mAecmHandler, file.getAbsolutePath(), capacityBytes) == 0 ? this : null;
+        } finally {
+            exit();
+        }
+    }
 
     /**
-     * Release the memory allocated by nativeCreateAecmInstance().
+     * Stop the recording started by {@link #startRecording(File, int)}. The pending records are written and the file
+     * is closed before this method returns. Does nothing if the instance doesn't record, closing the instance stops
+     * the recording as well.
      *
-     * @param aecmHandler
-     *            - handler of the AECM instance created by nativeCreateAecmInstance()
-     * @return 0: OK<br>
-     *         -1: error
+     * @return the {@link AEC AEC} object itself.
      */
-    private static native int nativeFreeAecmInstance(long aecmHandler);
+    public AEC stopRecording() {
+        boolean prepared = lockExclusive();
+        try {
+            if (mAecmHandler != -1) nativeStopRecording(mAecmHandler);
+        } finally {
+            unlockExclusive(prepared);
+        }
+        return this;
+    }
 
     /**
-     * Initializes an AECM instance.
+     * set the far-end signal of AECM instance from a direct buffer. The frame is read in place starting at the
+     * current position of the buffer, nothing is copied and the position of the buffer is not changed.
      *
-     * @param aecmHandler
-     *            - Handler of AECM instance
-     * @param samplingFrequency
-     *            - Sampling frequency of data
-     * @return: 0: OK<br>
-     *          -1: error
+     * @param farendFrame - direct buffer in the native byte order, for example a view of a buffer filled by AudioTrack.
+     * @param frameLength - number of samples in the frame, 80 or 160 (see {@link SamplingFrequency SamplingFrequency}).
+     * @return the {@link AEC AEC} object itself or null if farendBuffer() is called on an unprepared AECM instance
+     * or you pass an invalid parameter.
      */
-    private static native int nativeInitializeAecmInstance(long aecmHandler, int samplingFrequency);
+    public AEC farendBuffer(ShortBuffer farendFrame, int frameLength) {
+        if (!isFrameLength(frameLength) || !isUsableBuffer(farendFrame, frameLength) || !enter()) {
+            AecLog.d(TAG, "farendBuffer() is called on an unprepared AECM instance or you pass an invalid parameter");
+            return null;
+        }
+
+        try {
+            if (nativeBufferFarendDirect(mAecmHandler, farendFrame, farendFrame.position() * 2, frameLength) == -1) return null;
+        } finally {
+            exit();
+        }
+
+        return this;
+    }
 
     /**
-     * Inserts an 80 or 160 sample block of data into the farend buffer.
+     * set the far-end signal of AECM instance from a direct byte buffer holding 16 bit PCM in the native byte order,
+     * as it is delivered by AudioRecord/AudioTrack. The frame is read in place starting at the current position
+     * of the buffer, nothing is copied and the position of the buffer is not changed.
      *
-     * @param aecmHandler
-     *            - Handler to the AECM instance
-     * @param farend
-     *            - In buffer containing one frame of farend signal for L band
-     * @param nrOfSamples
-     *            - Number of samples in farend buffer
-     * @return: 0: OK<br>
-     *          -1: error
+     * @param farendFrame - direct buffer with 16 bit PCM samples.
+     * @param frameLength - number of samples (not bytes) in the frame, 80 or 160 (see {@link SamplingFrequency SamplingFrequency}).
+     * @return the {@link AEC AEC} object itself or null if farendBuffer() is called on an unprepared AECM instance
+     * or you pass an invalid parameter.
      */
-    private static native int nativeBufferFarend(long aecmHandler, short[] farend, int nrOfSamples);
+    public AEC farendBuffer(ByteBuffer farendFrame, int frameLength) {
+        if (!isFrameLength(frameLength) || !isUsableBuffer(farendFrame, (long) frameLength * 2) || !enter()) {
+            AecLog.d(TAG, "farendBuffer() is called on an unprepared AECM instance or you pass an invalid parameter");
+            return null;
+        }
+
+        try {
+            if (nativeBufferFarendDirect(mAecmHandler, farendFrame, farendFrame.position(), frameLength) == -1) return null;
+        } finally {
+            exit();
+        }
+
+        return this;
+    }
 
     /**
-     * Runs the AECM on an 80 or 160 sample blocks of data.
+     * core process of AECM instance working on direct buffers, must called on a prepared AECM instance. It neither
+     * allocates nor copies anything: the frames are read and the result is written in place starting at the current
+     * positions of the buffers, the positions themselves are not changed. We only support 80 or 160 sample blocks
+     * of data, see {@link SamplingFrequency SamplingFrequency} for 32000Hz and 48000Hz.
      *
-     * @param aecmHandler
-     *            - Handler to the AECM handler
      * @param nearendNoisy
-     *            - In buffer containing one frame of reference nearend+echo signal. If noise reduction is active,
-     *            provide the noisy signal here.
+     *            - direct buffer in the native byte order containing one frame of reference nearend+echo signal.
      * @param nearendClean
-     *            - In buffer containing one frame of nearend+echo signal. If noise reduction is active, provide the
-     *            clean signal here.Otherwise pass a NULL pointer.
-     * @param nrOfSamples
-     *            - Number of samples in nearend buffer
-     * @param msInSndCardBuf
-     *            - Delay estimate for sound card and system buffers <br>
-     * @return short array: OK: processed shorts<br>
-     *          null: error
+     *            - direct buffer in the native byte order containing one frame of nearend+echo signal with noise
+     *            reduction applied, or null.
+     * @param out
+     *            - direct buffer in the native byte order which receives one processed frame, may be the same as one
+     *            of the inputs.
+     * @param numOfSamples
+     *            - Number of samples in nearend buffer.
+     * @param delay
+     *            - Delay estimate for sound card and system buffers, see
+     *            {@link #echoCancellation(short[], short[], int, int)}.
+     *
+     * @return out buffer or null if echoCancellation() is called on an unprepared AECM instance or you pass an invalid
+     *         parameter.
      */
-    private static native short[] nativeAecmProcess(long aecmHandler, short[] nearendNoisy, short[] nearendClean, short nrOfSamples, short msInSndCardBuf);
+    public ShortBuffer echoCancellation(ShortBuffer nearendNoisy, ShortBuffer nearendClean, ShortBuffer out, int numOfSamples, int delay) {
+        if (!isFrameLength(numOfSamples) || !isUsableBuffer(nearendNoisy, numOfSamples)
+                || !isUsableBuffer(out, numOfSamples) || (nearendClean != null && !isUsableBuffer(nearendClean, numOfSamples)) || !enter()) {
+            AecLog.d(TAG, "echoCancellation() is called on an unprepared AECM instance or you pass an invalid parameter");
+            return null;
+        }
+
+        int ret;
+        try {
+            ret = nativeAecmProcessDirect(mAecmHandler, nearendNoisy, nearendNoisy.position() * 2,
+                    nearendClean, nearendClean == null ? 0 : nearendClean.position() * 2,
+                    out, out.position() * 2, (short) numOfSamples, clampToShort(delay));
+        } finally {
+            exit();
+        }
+
+        return ret == 0 ? out : null;
+    }
 
     /**
-     * Enables the user to set certain parameters on-the-fly.
+     * core process of AECM instance working on direct byte buffers holding 16 bit PCM in the native byte order, as it
+     * is delivered by AudioRecord/AudioTrack. It neither allocates nor copies anything: the frames are read and the
+     * result is written in place starting at the current positions of the buffers, the positions themselves are not
+     * changed. We only support 80 or 160 sample blocks of data,
+     * see {@link SamplingFrequency SamplingFrequency} for 32000Hz and 48000Hz.
      *
-     * @param aecmHandler
-     *            - Handler to the AECM instance
-     * @param aecmConfig
-     *            - the new configuration of AECM instance to set.
+     * @param nearendNoisy
+     *            - direct buffer containing one frame of reference nearend+echo signal.
+     * @param nearendClean
+     *            - direct buffer containing one frame of nearend+echo signal with noise reduction applied, or null.
+     * @param out
+     *            - direct buffer which receives one processed frame, may be the same as one of the inputs.
+     * @param numOfSamples
+     *            - Number of samples (not bytes) in nearend buffer.
+     * @param delay
+     *            - Delay estimate for sound card and system buffers, see
+     *            {@link #echoCancellation(short[], short[], int, int)}.
      *
-     * @return 0: OK<br>
-     *         -1: error
+     * @return out buffer or null if echoCancellation() is called on an unprepared AECM instance or you pass an invalid
+     *         parameter.
      */
-    private static native int nativeSetConfig(long aecmHandler, AecmConfig aecmConfig);
+    public ByteBuffer echoCancellation(ByteBuffer nearendNoisy, ByteBuffer nearendClean, ByteBuffer out, int numOfSamples, int delay) {
+        long bytes = (long) numOfSamples * 2;
+        if (!isFrameLength(numOfSamples) || !isUsableBuffer(nearendNoisy, bytes) || !isUsableBuffer(out, bytes)
+                || (nearendClean != null && !isUsableBuffer(nearendClean, bytes)) || !enter()) {
+            AecLog.d(TAG, "echoCancellation() is called on an unprepared AECM instance or you pass an invalid parameter");
+            return null;
+        }
+
+        int ret;
+        try {
+            ret = nativeAecmProcessDirect(mAecmHandler, nearendNoisy, nearendNoisy.position(),
+                    nearendClean, nearendClean == null ? 0 : nearendClean.position(),
+                    out, out.position(), (short) numOfSamples, clampToShort(delay));
+        } finally {
+            exit();
+        }
+
+        return ret == 0 ? out : null;
+    }
+
+    /**
+     * streaming mode: set a chunk of far-end signal of any length, for example whatever is written to the AudioTrack.
+     * The samples are buffered in the native library and every complete frame of 10 ms is passed to the AECM
+     * instance, the rest is kept until the next call. Must not be mixed with {@link #farendBuffer(short[], int)} on
+     * the same instance.
+     *
+     * @param farend - chunk of far-end signal.
+     * @param length - number of samples in the chunk.
+     * @return the {@link AEC AEC} object itself or null if farendStream() is called on an unprepared AECM instance
+     * or you pass an invalid parameter.
+     */
+    public AEC farendStream(short[] farend, int length) {
+        if (farend == null || length < 0 || farend.length < length || !enter()) {
+            AecLog.d(TAG, "farendStream() is called on an unprepared AECM instance or you pass an invalid parameter");
+            return null;
+        }
+
+        try {
+            return nativeBufferFarendStream(mAecmHandler, farend, length) == 0 ? this : null;
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * streaming mode: process a chunk of near-end signal of any length, for example whatever AudioRecord.read()
+     * returns, and write the same number of processed samples. The samples are buffered in the native library and
+     * every complete frame of 10 ms is processed, so the output lags the input by exactly
+     * {@link #getStreamLatency()} samples and starts with that many samples of silence after {@link #prepare()}.
+     * A frame the AECM instance fails on is passed through as it is and counted in {@link #getStats()}.
+     * Must not be mixed with {@link #echoCancellation(short[], short[], short[], int, int)} on the same instance.
+     *
+     * @param nearend - chunk of nearend+echo signal.
+     * @param out - receives length processed samples, may be the same array as nearend.
+     * @param length - number of samples in the chunk.
+     * @param delay - delay estimate for sound card and system buffers, see
+     *              {@link #echoCancellation(short[], short[], int, int)}. It is used for every frame completed by
+     *              the chunk.
+     * @return out array or null if processStream() is called on an unprepared AECM instance or you pass an invalid
+     *         parameter.
+     */
+    public short[] processStream(short[] nearend, short[] out, int length, int delay) {
+        if (nearend == null || out == null || length < 0 || nearend.length < length || out.length < length || !enter()) {
+            AecLog.d(TAG, "processStream() is called on an unprepared AECM instance or you pass an invalid parameter");
+            return null;
+        }
+
+        try {
+            return nativeProcessStream(mAecmHandler, nearend, out, length, clampToShort(delay)) == 0 ? out : null;
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * streaming mode working on a direct byte buffer holding 16 bit PCM in the native byte order, see
+     * {@link #farendStream(short[], int)}. The chunk is read in place starting at the current position of the
+     * buffer, the position itself is not changed.
+     *
+     * @param farend - direct buffer with the chunk of far-end signal.
+     * @param length - number of samples (not bytes) in the chunk.
+     * @return the {@link AEC AEC} object itself or null if farendStream() is called on an unprepared AECM instance
+     * or you pass an invalid parameter.
+     */
+    public AEC farendStream(ByteBuffer farend, int length) {
+        if (length < 0 || !isUsableBuffer(farend, (long) length * 2) || !enter()) {
+            AecLog.d(TAG, "farendStream() is called on an unprepared AECM instance or you pass an invalid parameter");
+            return null;
+        }
+
+        try {
+            return nativeBufferFarendStreamDirect(mAecmHandler, farend, farend.position(), length) == 0 ? this : null;
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * streaming mode working on direct byte buffers holding 16 bit PCM in the native byte order, see
+     * {@link #processStream(short[], short[], int, int)}. The chunk is read and the output is written in place
+     * starting at the current positions of the buffers, the positions themselves are not changed.
+     *
+     * @param nearend - direct buffer with the chunk of nearend+echo signal.
+     * @param out - direct buffer which receives length processed samples, may be the same as nearend.
+     * @param length - number of samples (not bytes) in the chunk.
+     * @param delay - delay estimate for sound card and system buffers, see
+     *              {@link #echoCancellation(short[], short[], int, int)}.
+     * @return out buffer or null if processStream() is called on an unprepared AECM instance or you pass an invalid
+     *         parameter.
+     */
+    public ByteBuffer processStream(ByteBuffer nearend, ByteBuffer out, int length, int delay) {
+        if (length < 0 || !isUsableBuffer(nearend, (long) length * 2) || !isUsableBuffer(out, (long) length * 2)
+                || !enter()) {
+            AecLog.d(TAG, "processStream() is called on an unprepared AECM instance or you pass an invalid parameter");
+            return null;
+        }
+
+        int ret;
+        try {
+            ret = nativeProcessStreamDirect(mAecmHandler, nearend, nearend.position(), out, out.position(), length,
+                    clampToShort(delay));
+        } finally {
+            exit();
+        }
+
+        return ret == 0 ? out : null;
+    }
+
+    /**
+     * @return the latency of {@link #processStream(short[], short[], int, int)} in samples, one frame of 10 ms at
+     *         the current sampling frequency.
+     */
+    public int getStreamLatency() {
+        return mSampFreq.getFS() / 100;
+    }
+
+    /**
+     * Set the aggressiveness mode of AECM instance, more higher the mode is, more aggressive the instance will be.
+     * On a prepared instance the mode is applied on the fly through WebRtcAecm_set_config(), the adapted echo channel
+     * and the delay state are kept, so it is cheap to change it whenever the audio route changes.
+     *
+     * @param mode - aggressiveness mode, if null then {@link AggressiveMode#AGGRESSIVE AGGRESSIVE} is set.
+     * @return the {@link AEC AEC} object itself or null if the mode can't be applied.
+     */
+    public AEC setAecmMode(AggressiveMode mode) {
+        return setAecmMode(mode, true);
+    }
+
+    /**
+     * Set the aggressiveness mode of AECM instance, more higher the mode is, more aggressive the instance will be.
+     * @param apply - is flag that indicate will or will not apply the mode to a prepared AECM instance right away.
+     * @param mode
+     * @return the {@link AEC AEC} object itself or null if the mode can't be applied.
+     */
+    private AEC setAecmMode(AggressiveMode mode, boolean apply) {
+        // check the mode argument.
+        if (mode == null) {
+            AecLog.d(TAG, "setAecMode() mode == null, AggressiveMode.AGGRESSIVE will be used instead");
+            mode = AggressiveMode.AGGRESSIVE;
+        }
+
+        if (!apply) {
+            mAecmConfig.mAecmMode = (short) mode.getMode();
+            return this;
+        }
+
+        boolean prepared = lockExclusive();
+        try {
+            mAecmConfig.mAecmMode = (short) mode.getMode();
+            if (prepared && nativeSetConfig(mAecmHandler, mAecmConfig) == -1) {
+                AecLog.d(TAG, "setAecmMode() can't apply aggressiveness mode: " + mAecmConfig.mAecmMode);
+                return null;
+            }
+        } finally {
+            unlockExclusive(prepared);
+        }
+
+        return this;
+    }
+
+    /**
+     * Enable or disable the far-end silence gate, it is disabled by default. While the far-end has been silent for
+     * longer than the delay history of the instance (about 400 ms at 16000 Hz, 200 ms for a compact one) the near-end
+     * is passed through without any adaptive processing: only the noise estimate of the comfort noise keeps being
+     * updated, so a gated block costs about half of a processed one, or a tenth with the comfort noise disabled. The
+     * adapted echo channel is kept untouched and the full processing resumes with the first far-end block above +-16.<br>
+     * In a typical call one side is silent much of the time, see {@link AecStats#getGatedBlocks()} for the share of the
+     * blocks the gate has saved. The output differs slightly from the ungated one, since the delay and echo estimates
+     * are frozen while the gate is closed.
+     *
+     * @param enable - true to enable the gate.
+     * @return the {@link AEC AEC} object itself or null if the setting can't be applied.
+     */
+    public AEC setFarendSilenceGate(boolean enable) {
+        boolean prepared = lockExclusive();
+        try {
+            mAecmConfig.mFarendGate = enable ? AECM_ENABLE : AECM_UNABLE;
+            if (prepared && nativeSetConfig(mAecmHandler, mAecmConfig) == -1) {
+                AecLog.d(TAG, "setFarendSilenceGate() can't apply the far-end silence gate: " + enable);
+                return null;
+            }
+        } finally {
+            unlockExclusive(prepared);
+        }
+
+        return this;
+    }
+
+    /**
+     * @return true if the far-end silence gate is enabled, see {@link #setFarendSilenceGate(boolean)}.
+     */
+    public boolean isFarendSilenceGateEnabled() {
+        return mAecmConfig.mFarendGate == AECM_ENABLE;
+    }
+
+    /**
+     * Enable or disable the clock drift compensation, it is disabled by default. The capture and the playback clocks
+     * of a device are never exactly the same, so the far-end buffer of the instance slowly fills up or drains and the
+     * instance corrects the delay in jumps of several ms, each of which disturbs the adapted echo channel.<br>
+     * The drift is always measured, see {@link AecStats#getDriftPpm()}, from the far-end and near-end samples the
+     * instance gets over the last 128 s, the first estimate is available 16 s after the start up phase. With the
+     * compensation enabled the far-end is resampled by the measured drift before it is buffered, corrected by the
+     * deviation of the buffer from the fill it had at the first estimate, so the far-end buffer and the delay stay
+     * where the start up phase has put them. The correction is limited to +-2000 ppm.<br>
+     * An instance on a shared {@link AecFarendSource AecFarendSource} stays correct with the compensation enabled,
+     * it goes on with a far-end analysis of its own once its resampled far-end differs from the other instances'.
+     *
+     * @param enable - true to enable the compensation.
+     * @return the {@link AEC AEC} object itself or null if the setting can't be applied.
+     */
+    public AEC setDriftCompensation(boolean enable) {
+        boolean prepared = lockExclusive();
+        try {
+            mAecmConfig.mDriftComp = enable ? AECM_ENABLE : AECM_UNABLE;
+            if (prepared && nativeSetConfig(mAecmHandler, mAecmConfig) == -1) {
+                AecLog.d(TAG, "setDriftCompensation() can't apply the drift compensation: " + enable);
+                return null;
+            }
+        } finally {
+            unlockExclusive(prepared);
+        }
+
+        return this;
+    }
+
+    /**
+     * @return true if the clock drift compensation is enabled, see {@link #setDriftCompensation(boolean)}.
+     */
+    public boolean isDriftCompensationEnabled() {
+        return mAecmConfig.mDriftComp == AECM_ENABLE;
+    }
+
+    /**
+     * Take a snapshot of the echo path (the stored echo channel) the AECM instance has converged to. It can be given
+     * to {@link #importEchoPath(short[])} of a new instance with the same sampling frequency, so that the new
+     * instance starts from a converged channel, see also {@link EchoPathCache EchoPathCache}.
+     *
+     * @return {@link #ECHO_PATH_LENGTH} values of the echo path or null if exportEchoPath() is called on an
+     *         unprepared AECM instance.
+     */
+    public short[] exportEchoPath() {
+        short[] echoPath = new short[ECHO_PATH_LENGTH];
+        return exportEchoPath(echoPath) ? echoPath : null;
+    }
+
+    /**
+     * Take a snapshot of the echo path into a caller-provided array, see {@link #exportEchoPath()}.
+     *
+     * @param echoPath - array of at least {@link #ECHO_PATH_LENGTH} values.
+     * @return true on success, false if it is called on an unprepared AECM instance or you pass an invalid parameter.
+     */
+    public boolean exportEchoPath(short[] echoPath) {
+        if (echoPath == null || echoPath.length < ECHO_PATH_LENGTH || !enter()) {
+            AecLog.d(TAG, "exportEchoPath() is called on an unprepared AECM instance or you pass an invalid parameter");
+            return false;
+        }
+        try {
+            return nativeGetEchoPath(mAecmHandler, echoPath) == 0;
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Replace the echo channel of the AECM instance with a previously exported echo path. Must be called on a
+     * prepared instance, usually right after {@link #prepare()}, with an echo path taken at the same sampling
+     * frequency.
+     *
+     * @param echoPath - {@link #ECHO_PATH_LENGTH} values from {@link #exportEchoPath()}.
+     * @return the {@link AEC AEC} object itself or null if importEchoPath() is called on an unprepared AECM instance
+     *         or you pass an invalid parameter.
+     */
+    public AEC importEchoPath(short[] echoPath) {
+        if (echoPath == null || echoPath.length < ECHO_PATH_LENGTH) {
+            AecLog.d(TAG, "importEchoPath() is called on an unprepared AECM instance or you pass an invalid parameter");
+            return null;
+        }
+        boolean prepared = lockExclusive();
+        try {
+            if (!prepared) {
+                AecLog.d(TAG, "importEchoPath() is called on an unprepared AECM instance or you pass an invalid parameter");
+                return null;
+            }
+            return nativeInitEchoPath(mAecmHandler, echoPath) == 0 ? this : null;
+        } finally {
+            unlockExclusive(prepared);
+        }
+    }
+
+    /**
+     * When finished the pre-works or any settings are changed, call this to make AECM instance prepared. Otherwise your
+     * new settings will be ignored by the AECM instance.<br>
+     * The native instance is allocated only once, preparing it again resets it in place through WebRtcAecm_Init(),
+     * which also restarts the convergence of the echo channel.<br>
+     * It is safe to call this while other threads are processing frames: it waits until the calls in flight are
+     * finished, and the calls made in the meantime wait for it.
+     *
+     * @return the {@link AEC AEC} object itself.
+     */
+    public AEC prepare() {
+        boolean prepared = false;
+        lockExclusive();
+        try {
+            if (mAecmHandler == -1) mAecmHandler = mNative.mAecmHandler = createInstance();
+
+            prepared = mAecmHandler != -1
+                    && nativeInitializeAecmInstance(mAecmHandler, mSampFreq.getFS()) == 0
+                    // set AecConfig to native side.
+                    && nativeSetConfig(mAecmHandler, mAecmConfig) == 0;
+
+            resetDelayEstimate();
+        } finally {
+            unlockExclusive(prepared);
+        }
+
+        if (prepared) AecLog.d(TAG, "AECM instance successfully prepared with sampling frequency: " + mSampFreq.getFS() + "hz " + "and aggressiveness mode: " + mAecmConfig.mAecmMode);
+        else AecLog.d(TAG, "prepare() can't initialize AECM instance");
+
+        return this;
+    }
+
+    /**
+     * Release the resources in AECM instance and the AECM instance is no longer available until next <b>prepare()</b>
+     * is called.<br>
+     * You should <b>always</b> call this <b>manually</b> when all things are done. An instance which is never closed
+     * is released after it becomes unreachable, but not before the garbage collector finds it.<br>
+     * It is safe to call this while other threads are processing frames: it waits until the calls in flight are
+     * finished, the later calls fail as on an unprepared instance.
+     */
+    public void close() {
+        lockExclusive();
+        try {
+            if (mAecmHandler != -1) {
+                mNative.mAecmHandler = -1;
+                nativeFreeAecmInstance(mAecmHandler);
+                mAecmHandler = -1;
+            }
+        } finally {
+            unlockExclusive(false);
+        }
+    }
+
+    // ////////////////////////////////////////////////////////
+    // PACKAGE-PRIVATE METHODS
+
+    /**
+     * Re-initialize the AECM instance for a new session with the given settings. The native instance is reset in place
+     * through WebRtcAecm_Init(), so pooled instances can be handed from one session to the next without touching
+     * the allocator. Nothing is kept from the previous session: a recording is stopped and the comfort noise, the
+     * far-end silence gate and the drift compensation are set back to their defaults.
+     *
+     * @param frequency - sampling frequency of the new session, if null then {@link SamplingFrequency#FS_16000Hz FS_16000Hz} is set.
+     * @param mode - aggressiveness mode of the new session, if null then {@link AggressiveMode#AGGRESSIVE AGGRESSIVE} is set.
+     * @return the {@link AEC AEC} object itself or null if the native instance can't be initialized.
+     */
+    AEC reinitialize(SamplingFrequency frequency, AggressiveMode mode) {
+        stopRecording();
+        mAecmConfig = new AecmConfig();
+        setSampFreq(frequency, false);
+        setAecmMode(mode, false);
+        prepare();
+        return isPrepared() ? this : null;
+    }
+
+    // ////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+
+    private long createInstance() {
+        return mFarendSource != null ? mFarendSource.createInstance() : nativeCreateAecmInstance(mCompact);
+    }
+
+    private boolean isPrepared() {
+        return (mState & STATE_CLOSED) == 0;
+    }
+
+    /**
+     * register a call which uses the native instance, every successful enter() must be paired with exit().
+     * Uncontended it is a single compare-and-set.
+     *
+     * @return false if the instance is not prepared or closed.
+     */
+    private boolean enter() {
+        for (;;) {
+            int state = mState;
+            if ((state & STATE_CLOSED) != 0) return false;
+            if ((state & STATE_EXCLUSIVE) != 0) Thread.yield();
+            else if (STATE.compareAndSet(this, state, state + 1)) return true;
+        }
+    }
+
+    private void exit() {
+        STATE.decrementAndGet(this);
+    }
+
+    /**
+     * take the native instance over from the processing threads: block new calls and wait until the calls in flight
+     * are finished. Must be paired with unlockExclusive().
+     *
+     * @return whether the instance was prepared.
+     */
+    private boolean lockExclusive() {
+        int state;
+        for (;;) {
+            state = mState;
+            if ((state & STATE_EXCLUSIVE) != 0) Thread.yield();
+            else if (STATE.compareAndSet(this, state, state | STATE_EXCLUSIVE)) break;
+        }
+        while ((mState & STATE_CALLS) != 0) Thread.yield();
+        return (state & STATE_CLOSED) == 0;
+    }
+
+    private void unlockExclusive(boolean prepared) {
+        mState = prepared ? 0 : STATE_CLOSED;
+    }
+
+    private int processBatch(short[] farend, short[] nearend, short[] out, int frameLength, int frames, int[] delaysMs, int delay) {
+        long samples = (long) frameLength * frames; // in long, so a huge frames can't wrap around into a valid size
+        if (nearend == null || out == null || !isFrameLength(frameLength) || frames < 0
+                || nearend.length < samples || out.length < samples || (farend != null && farend.length < samples)
+                || !enter()) {
+            AecLog.d(TAG, "processBatch() is called on an unprepared AECM instance or you pass an invalid parameter");
+            return -1;
+        }
+
+        try {
+            return nativeProcessBatch(mAecmHandler, farend, nearend, out, frameLength, frames, delaysMs, delay);
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * smooth the delay measured from the timestamps and correct it with the offset the internal delay estimator
+     * finds between the far-end and the near-end. The correction integrates the offset, so it settles where the
+     * core sees the far-end exactly as early as expected.
+     */
+    private int estimateDelay(long captureTimeNs) {
+        long delayNs = mRenderDelayNs + Math.max(0, System.nanoTime() - captureTimeNs);
+        mSystemDelayNs = mSystemDelayNs < 0 ? delayNs : mSystemDelayNs + ((delayNs - mSystemDelayNs) >> 3);
+
+        if (--mFramesToDelayUpdate <= 0 && enter()) {
+            mFramesToDelayUpdate = DELAY_UPDATE_FRAMES;
+            int ret;
+            try {
+                ret = nativeGetDelayMetrics(mAecmHandler, mDelayMetrics);
+            } finally {
+                exit();
+            }
+            if (ret == 0) {
+                mDelayQuality = mDelayMetrics[1];
+                int offsetMs = mDelayMetrics[0];
+                if (mDelayQuality >= DELAY_QUALITY_MIN && Math.abs(offsetMs) > DELAY_DEAD_ZONE_MS) {
+                    mDelayCorrectionMs = Math.max(-DELAY_CORRECTION_MAX_MS,
+                            Math.min(DELAY_CORRECTION_MAX_MS, mDelayCorrectionMs + offsetMs / 4));
+                }
+            } else mDelayQuality = 0;
+        }
+
+        int delayMs = (int) (mSystemDelayNs / 1000000L) + mDelayCorrectionMs;
+        mDelayEstimateMs = Math.max(0, Math.min(500, delayMs));
+        return mDelayEstimateMs;
+    }
+
+    private void resetDelayEstimate() {
+        mRenderDelayNs = 0;
+        mSystemDelayNs = -1;
+        mDelayCorrectionMs = 0;
+        mDelayEstimateMs = 0;
+        mDelayQuality = 0;
+        mFramesToDelayUpdate = DELAY_UPDATE_FRAMES;
+    }
+
+    /**
+     * check that buffer can be passed to the native side as is: it must be direct and have enough remaining elements.
+     * Short buffers must also be in the native byte order, otherwise their memory layout differs from int16_t.
+     */
+    private static boolean isUsableBuffer(Buffer buffer, long length) {
+        if (buffer == null || !buffer.isDirect() || buffer.remaining() < length) return false;
+        return !(buffer instanceof ShortBuffer) || ((ShortBuffer) buffer).order() == ByteOrder.nativeOrder();
+    }
+
+    /**
+     * check that frameLength is a frame the native side accepts at the current sampling frequency, see
+     * {@link SamplingFrequency SamplingFrequency}.
+     */
+    private boolean isFrameLength(int frameLength) {
+        int factor = Math.max(1, mSampFreq.getFS() / 16000);
+        return frameLength == 80 * factor || frameLength == 160 * factor;
+    }
+
+    private static short clampToShort(int value) {
+        if (value > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (value < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) value;
+    }
+
+    // ////////////////////////////////////////////////////////
+    // PRIVATE NESTED CLASSES
+
+    /**
+     * Acoustic Echo Cancellation for Mobile Configuration class, holds the config Info. of AECM instance.<br>
+     * [NOTE] <b>DO NOT</b> modify the name of members, or you must change the native code to match your modifying.
+     * Otherwise the native code could not find pre-binding members name, their IDs are resolved once when the
+     * library is loaded.<br>
+     *
+     */
+    @SuppressWarnings("unused")
+    public class AecmConfig {
+        private short mAecmMode = (short) AggressiveMode.AGGRESSIVE.getMode(); // default AggressiveMode.AGGRESSIVE
+        private short mCngMode  = AECM_ENABLE;                                // AECM_UNABLE, AECM_ENABLE (default)
+        private short mFarendGate = AECM_UNABLE;                              // AECM_UNABLE (default), AECM_ENABLE
+        private short mDriftComp = AECM_UNABLE;                               // AECM_UNABLE (default), AECM_ENABLE
+    }
+
+    /**
+     * Releases the native instance of an {@link AEC AEC} object which becomes unreachable without being closed. It
+     * holds a copy of the handler only, so the object itself is never resurrected as it is with finalize(). The
+     * references are kept reachable in REFERENCES until the daemon thread takes them from the queue.
+     */
+    private static final class NativeReference extends PhantomReference<AEC> {
+        private static final ReferenceQueue<AEC> QUEUE = new ReferenceQueue<>();
+        private static final Set<NativeReference> REFERENCES =
+                Collections.newSetFromMap(new ConcurrentHashMap<NativeReference, Boolean>());
+
+        static {
+            Thread cleaner = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (;;) {
+                        try {
+                            NativeReference reference = (NativeReference) QUEUE.remove();
+                            REFERENCES.remove(reference);
+                            if (reference.mAecmHandler != -1) nativeFreeAecmInstance(reference.mAecmHandler);
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                }
+            }, "aecm-cleaner");
+            cleaner.setDaemon(true);
+            cleaner.start();
+        }
+
+        private volatile long mAecmHandler = -1; // -1 once the instance is closed.
+
+        private NativeReference(AEC aec) {
+            super(aec, QUEUE);
+            REFERENCES.add(this);
+        }
+    }
+
+    // ///////////////////////////////////////////
+    // PRIVATE NATIVE INTERFACES
+
+    /**
+     * Allocates the memory needed by the AECM. The memory needs to be initialized separately using the
+     * nativeInitializeAecmInstance() method.
+     *
+     * @param compact
+     *            - true to create a compact instance with shorter delay history and far-end buffer
+     * @return -1: error<br>
+     *         other values: created AECM instance handler.
+     *
+     */
+    private static native long nativeCreateAecmInstance(boolean compact);
+
+    /**
+     * Allocates an AECM instance which shares the far-end analysis of a source created by nativeCreateFarendSource().
+     *
+     * @param sourceHandler
+     *            - handler of the far-end source
+     * @return -1: error<br>
+     *         other values: created AECM instance handler.
+     */
+    static native long nativeCreateSharedAecmInstance(long sourceHandler);
+
+    /**
+     * Release the memory allocated by nativeCreateAecmInstance().
+     *
+     * @param aecmHandler
+     *            - handler of the AECM instance created by nativeCreateAecmInstance()
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    private static native int nativeFreeAecmInstance(long aecmHandler);
+
+    /**
+     * Initializes an AECM instance.
+     *
+     * @param aecmHandler
+     *            - Handler of AECM instance
+     * @param samplingFrequency
+     *            - Sampling frequency of data
+     * @return: 0: OK<br>
+     *          -1: error
+     */
+    private static native int nativeInitializeAecmInstance(long aecmHandler, int samplingFrequency);
+
+    /**
+     * Inserts an 80 or 160 sample block of data into the farend buffer.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM instance
+     * @param farend
+     *            - In buffer containing one frame of farend signal for L band
+     * @param nrOfSamples
+     *            - Number of samples in farend buffer
+     * @return: 0: OK<br>
+     *          -1: error
+     */
+    private static native int nativeBufferFarend(long aecmHandler, short[] farend, int nrOfSamples);
+
+    /**
+     * Runs the AECM on an 80 or 160 sample blocks of data.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM handler
+     * @param nearendNoisy
+     *            - In buffer containing one frame of reference nearend+echo signal. If noise reduction is active,
+     *            provide the noisy signal here.
+     * @param nearendClean
+     *            - In buffer containing one frame of nearend+echo signal. If noise reduction is active, provide the
+     *            clean signal here.Otherwise pass a NULL pointer.
+     * @param nrOfSamples
+     *            - Number of samples in nearend buffer
+     * @param msInSndCardBuf
+     *            - Delay estimate for sound card and system buffers <br>
+     * @return short array: OK: processed shorts<br>
+     *          null: error
+     */
+    private static native short[] nativeAecmProcess(long aecmHandler, short[] nearendNoisy, short[] nearendClean, short nrOfSamples, short msInSndCardBuf);
+
+    /**
+     * Runs the AECM on an 80 or 160 sample blocks of data and writes the result into a caller-provided array.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM handler
+     * @param nearendNoisy
+     *            - In buffer containing one frame of reference nearend+echo signal.
+     * @param nearendClean
+     *            - In buffer containing one frame of nearend+echo signal or null.
+     * @param out
+     *            - Out buffer which receives one frame of processed nearend.
+     * @param nrOfSamples
+     *            - Number of samples in nearend buffer
+     * @param msInSndCardBuf
+     *            - Delay estimate for sound card and system buffers <br>
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    private static native int nativeAecmProcessInto(long aecmHandler, short[] nearendNoisy, short[] nearendClean, short[] out, short nrOfSamples, short msInSndCardBuf);
+
+    /**
+     * Buffers the farend frame and processes the nearend frame of the same index for each of the frames.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM handler
+     * @param farend
+     *            - frames * nrOfSamples samples of farend signal or null
+     * @param nearend
+     *            - frames * nrOfSamples samples of nearend+echo signal
+     * @param out
+     *            - Out buffer which receives frames * nrOfSamples samples of processed nearend.
+     * @param nrOfSamples
+     *            - Number of samples in one frame
+     * @param frames
+     *            - Number of frames in the batch
+     * @param delays
+     *            - Delay estimate of each frame or null to use msInSndCardBuf for all of them
+     * @param msInSndCardBuf
+     *            - Delay estimate used when delays is null
+     * @return number of frames processed before the first error<br>
+     *         -1: error
+     */
+    private static native int nativeProcessBatch(long aecmHandler, short[] farend, short[] nearend, short[] out, int nrOfSamples, int frames, int[] delays, int msInSndCardBuf);
+
+    /**
+     * Buffers the farend frame and processes the nearend frame of the same index for each of the frames stored in
+     * direct buffers.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM handler
+     * @param farend
+     *            - direct buffer with frames * nrOfSamples samples of farend signal or null
+     * @param farendOffset
+     *            - offset in bytes of the first frame from the beginning of farend
+     * @param nearend
+     *            - direct buffer with frames * nrOfSamples samples of nearend+echo signal
+     * @param nearendOffset
+     *            - offset in bytes of the first frame from the beginning of nearend
+     * @param out
+     *            - direct buffer which receives frames * nrOfSamples samples of processed nearend.
+     * @param outOffset
+     *            - offset in bytes of the first frame from the beginning of out
+     * @param nrOfSamples
+     *            - Number of samples in one frame
+     * @param frames
+     *            - Number of frames in the batch
+     * @param msInSndCardBuf
+     *            - Delay estimate used for all frames
+     * @return number of frames processed before the first error<br>
+     *         -1: error
+     */
+    private static native int nativeProcessBatchDirect(long aecmHandler, Buffer farend, int farendOffset, Buffer nearend, int nearendOffset, Buffer out, int outOffset, int nrOfSamples, int frames, int msInSndCardBuf);
+
+    /**
+     * Inserts an 80 or 160 sample block of data from a direct buffer into the farend buffer.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM instance
+     * @param farend
+     *            - Direct buffer containing one frame of farend signal for L band
+     * @param farendOffset
+     *            - Offset in bytes of the frame from the beginning of the buffer
+     * @param nrOfSamples
+     *            - Number of samples in farend buffer
+     * @return: 0: OK<br>
+     *          -1: error
+     */
+    private static native int nativeBufferFarendDirect(long aecmHandler, Buffer farend, int farendOffset, int nrOfSamples);
+
+    /**
+     * Runs the AECM on an 80 or 160 sample blocks of data stored in direct buffers.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM handler
+     * @param nearendNoisy
+     *            - Direct buffer containing one frame of reference nearend+echo signal.
+     * @param noisyOffset
+     *            - Offset in bytes of the frame from the beginning of nearendNoisy
+     * @param nearendClean
+     *            - Direct buffer containing one frame of nearend+echo signal or null.
+     * @param cleanOffset
+     *            - Offset in bytes of the frame from the beginning of nearendClean
+     * @param out
+     *            - Direct buffer which receives one frame of processed nearend.
+     * @param outOffset
+     *            - Offset in bytes of the frame from the beginning of out
+     * @param nrOfSamples
+     *            - Number of samples in nearend buffer
+     * @param msInSndCardBuf
+     *            - Delay estimate for sound card and system buffers <br>
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    private static native int nativeAecmProcessDirect(long aecmHandler, Buffer nearendNoisy, int noisyOffset, Buffer nearendClean, int cleanOffset, Buffer out, int outOffset, short nrOfSamples, short msInSndCardBuf);
+
+    /**
+     * Buffers a chunk of farend signal of any length, every complete 10 ms frame is inserted into the farend buffer.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM instance
+     * @param farend
+     *            - In buffer containing the chunk of farend signal
+     * @param length
+     *            - Number of samples in the chunk
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    private static native int nativeBufferFarendStream(long aecmHandler, short[] farend, int length);
+
+    /**
+     * Processes a chunk of nearend signal of any length, the output lags the input by one 10 ms frame.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM instance
+     * @param nearend
+     *            - In buffer containing the chunk of nearend+echo signal
+     * @param out
+     *            - Out buffer which receives length samples of processed nearend, may be the same array as nearend
+     * @param length
+     *            - Number of samples in the chunk
+     * @param msInSndCardBuf
+     *            - Delay estimate for sound card and system buffers
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    private static native int nativeProcessStream(long aecmHandler, short[] nearend, short[] out, int length, short msInSndCardBuf);
+
+    /**
+     * nativeBufferFarendStream() reading the chunk from a direct buffer.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM instance
+     * @param farend
+     *            - Direct buffer containing the chunk of farend signal
+     * @param farendOffset
+     *            - Offset in bytes of the chunk from the beginning of the buffer
+     * @param length
+     *            - Number of samples in the chunk
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    private static native int nativeBufferFarendStreamDirect(long aecmHandler, Buffer farend, int farendOffset, int length);
+
+    /**
+     * nativeProcessStream() working on direct buffers.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM instance
+     * @param nearend
+     *            - Direct buffer containing the chunk of nearend+echo signal
+     * @param nearendOffset
+     *            - Offset in bytes of the chunk from the beginning of nearend
+     * @param out
+     *            - Direct buffer which receives length samples of processed nearend
+     * @param outOffset
+     *            - Offset in bytes of the output from the beginning of out
+     * @param length
+     *            - Number of samples in the chunk
+     * @param msInSndCardBuf
+     *            - Delay estimate for sound card and system buffers
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    private static native int nativeProcessStreamDirect(long aecmHandler, Buffer nearend, int nearendOffset, Buffer out, int outOffset, int length, short msInSndCardBuf);
+
+    /**
+     * Copies the echo path currently used by the AECM instance.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM instance
+     * @param echoPath
+     *            - receives the echo path, at least {@link #ECHO_PATH_LENGTH} values
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    private static native int nativeGetEchoPath(long aecmHandler, short[] echoPath);
+
+    /**
+     * Resets the echo channel adaptation of the AECM instance with the given echo path.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM instance
+     * @param echoPath
+     *            - echo path of at least {@link #ECHO_PATH_LENGTH} values
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    private static native int nativeInitEchoPath(long aecmHandler, short[] echoPath);
+
+    /**
+     * @return number of 16 bit values in an echo path.
+     */
+    private static native int nativeEchoPathLength();
+
+    /**
+     * Gets the delay offset found by the internal delay estimator of the AECM core and its quality.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM instance
+     * @param metrics
+     *            - receives the delay offset in ms and the quality in Q14
+     * @return 0: OK<br>
+     *         -1: error<br>
+     *         -2: insufficient data for estimation
+     */
+    private static native int nativeGetDelayMetrics(long aecmHandler, int[] metrics);
+
+    /**
+     * Copies the statistics kept by the native side of the AECM instance together with its current state.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM instance
+     * @param values
+     *            - receives {@link AecStats#LENGTH} values in the layout of {@link AecStats AecStats}
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    private static native int nativeGetStats(long aecmHandler, long[] values);
+
+    /**
+     * Returns the number of bytes allocated for the native side of the AECM instance.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM instance
+     * @return bytes allocated<br>
+     *         -1: error
+     */
+    private static native long nativeGetMemorySize(long aecmHandler);
+
+    /**
+     * Starts recording the streams of the AECM instance into a ring file.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM instance
+     * @param path
+     *            - path of the ring file
+     * @param capacityBytes
+     *            - size of the ring of records
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    private static native int nativeStartRecording(long aecmHandler, String path, int capacityBytes);
+
+    /**
+     * Stops the recording and closes the ring file.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM instance
+     */
+    private static native void nativeStopRecording(long aecmHandler);
+
+    /**
+     * Enables the user to set certain parameters on-the-fly.
+     *
+     * @param aecmHandler
+     *            - Handler to the AECM instance
+     * @param aecmConfig
+     *            - the new configuration of AECM instance to set.
+     *
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    private static native int nativeSetConfig(long aecmHandler, AecmConfig aecmConfig);
+
+    /**
+     * Allocates a far-end analysis to be shared by AECM instances.
+     *
+     * @param compact
+     *            - true to share it between compact instances
+     * @return -1: error<br>
+     *         other values: created far-end source handler.
+     */
+    static native long nativeCreateFarendSource(boolean compact);
+
+    /**
+     * Releases the reference of the Java layer to a far-end source, it is freed with the last instance sharing it.
+     *
+     * @param sourceHandler
+     *            - handler of the far-end source
+     */
+    static native void nativeReleaseFarendSource(long sourceHandler);
+
+    /**
+     * Fills an array with the statistics of a far-end source.
+     *
+     * @param sourceHandler
+     *            - handler of the far-end source
+     * @param values
+     *            - array of at least AecFarendSource.STATS_LENGTH values
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    static native int nativeGetFarendSourceStats(long sourceHandler, long[] values);
+
+    /**
+     * Allocates the AECM instances of an interleaved multichannel capture, one per channel.
+     *
+     * @param channels
+     *            - number of capture channels
+     * @param farendChannels
+     *            - number of far-end channels
+     * @param parallel
+     *            - true to process every channel but the first on a native thread of its own
+     * @return -1: error<br>
+     *         other values: handler of the created instances.
+     */
+    static native long nativeCreateMultichannel(int channels, int farendChannels, boolean parallel);
+
+    /**
+     * Stops the native threads and releases the instances created by nativeCreateMultichannel().
+     */
+    static native void nativeFreeMultichannel(long multichannelHandler);
+
+    /**
+     * Initializes the instance of every channel.
+     *
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    static native int nativeInitMultichannel(long multichannelHandler, int samplingFrequency);
+
+    /**
+     * Sets the configuration of the instance of every channel.
+     *
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    static native int nativeSetMultichannelConfig(long multichannelHandler, short aecmMode, short cngMode, short farendGate, short driftComp);
+
+    /**
+     * Downmixes one frame of interleaved far-end and buffers it for every channel.
+     *
+     * @param nrOfSamples
+     *            - number of samples of one channel
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    static native int nativeMultichannelBufferFarend(long multichannelHandler, short[] farend, int nrOfSamples);
+
+    /**
+     * Cancels the echo in one frame of interleaved capture, the output is interleaved the same way.
+     *
+     * @param nrOfSamples
+     *            - number of samples of one channel
+     * @return 0: OK<br>
+     *         -1: error
+     */
+    static native int nativeMultichannelProcess(long multichannelHandler, short[] nearend, short[] out, int nrOfSamples, short msInSndCardBuf);
+
+    /**
+     * @return bytes allocated for the instances of all the channels<br>
+     *         -1: error
+     */
+    static native long nativeGetMultichannelMemorySize(long multichannelHandler);
 }
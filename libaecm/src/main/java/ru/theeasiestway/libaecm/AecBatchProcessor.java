@@ -0,0 +1,404 @@
+package ru.theeasiestway.libaecm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Offline echo cancellation of recorded calls: every {@link Job Job} is a pair of far-end and near-end files which is
+ * streamed through an AECM instance into an output file.
+ * <p>
+ * The files are mono 16 bit PCM, either WAV files or raw files at the sampling frequency given to the processor.
+ * They are read in windows into direct buffers, every window is processed in place by one native call of
+ * {@link AEC#processBatch(ByteBuffer, ByteBuffer, ByteBuffer, int, int, int)} and written back, so the samples are
+ * never converted on the java side. The jobs are spread over a fixed number of worker threads and every worker owns
+ * its AECM instance and its buffers, which are reused between jobs.
+ * <p>
+ * The output has the length and format of the near-end: the output of a WAV near-end is a WAV file, the samples of
+ * a trailing partial frame are copied unchanged and a far-end which is shorter than the near-end is padded with
+ * silence.
+ */
+public class AecBatchProcessor {
+
+    private static final String TAG = "AECM_LOG";
+
+    private static final int WAV_HEADER_SIZE = 44;
+    private static final int WINDOW_BYTES = 1 << 20; // 1 MB, about 32 seconds of 16000Hz audio per native call.
+
+    /**
+     * A far-end and near-end pair of files to process.
+     */
+    public static class Job {
+        private final File mFarend;
+        private final File mNearend;
+        private final File mOut;
+
+        /**
+         * @param farend - far-end (played out) signal.
+         * @param nearend - near-end (captured) signal with echo.
+         * @param out - file which receives the processed near-end, it is created or overwritten.
+         */
+        public Job(File farend, File nearend, File out) {
+            if (farend == null || nearend == null || out == null) throw new IllegalArgumentException("file == null");
+            mFarend = farend;
+            mNearend = nearend;
+            mOut = out;
+        }
+
+        public File getFarend() {
+            return mFarend;
+        }
+
+        public File getNearend() {
+            return mNearend;
+        }
+
+        public File getOut() {
+            return mOut;
+        }
+
+        @Override
+        public String toString() {
+            return mNearend.getPath();
+        }
+    }
+
+    /**
+     * Outcome of one {@link Job Job}.
+     */
+    public static class Result {
+        private final Job    mJob;
+        private final String mError;
+        private final long   mSamples;
+        private final int    mSampFreq;
+        private final long   mTimeNs;
+
+        private Result(Job job, String error, long samples, int sampFreq, long timeNs) {
+            mJob = job;
+            mError = error;
+            mSamples = samples;
+            mSampFreq = sampFreq;
+            mTimeNs = timeNs;
+        }
+
+        public Job getJob() {
+            return mJob;
+        }
+
+        /**
+         * @return true if the whole near-end was processed.
+         */
+        public boolean isSuccess() {
+            return mError == null;
+        }
+
+        /**
+         * @return description of the failure or null on success.
+         */
+        public String getError() {
+            return mError;
+        }
+
+        /**
+         * @return number of near-end samples written to the output.
+         */
+        public long getSamples() {
+            return mSamples;
+        }
+
+        /**
+         * @return duration of the processed audio in seconds.
+         */
+        public double getAudioSeconds() {
+            return mSampFreq == 0 ? 0 : (double) mSamples / mSampFreq;
+        }
+
+        /**
+         * @return wall time spent on the job in ns.
+         */
+        public long getTimeNs() {
+            return mTimeNs;
+        }
+
+        @Override
+        public String toString() {
+            return mJob + (mError == null ? ": " + getAudioSeconds() + " s of audio in " + mTimeNs / 1000000 + " ms"
+                    : ": " + mError);
+        }
+    }
+
+    /**
+     * Receives the result of every job as soon as it is finished. It is called on the worker thread which processed
+     * the job, so it must be thread-safe.
+     */
+    public interface Listener {
+        void onJobFinished(Result result);
+    }
+
+    private final int                mThreads;
+    private final AEC.AggressiveMode mMode;
+    private final int                mDelayMs;
+    private final int                mRawSampFreq;
+
+    /**
+     * Create a processor with one worker per available core, {@link AEC.AggressiveMode#AGGRESSIVE AGGRESSIVE} mode,
+     * no delay and 16000Hz raw files.
+     */
+    public AecBatchProcessor() {
+        this(Runtime.getRuntime().availableProcessors(), AEC.AggressiveMode.AGGRESSIVE, 0, 16000);
+    }
+
+    /**
+     * @param threads - number of worker threads, every one owns an AECM instance.
+     * @param mode - aggressiveness mode, if null then {@link AEC.AggressiveMode#AGGRESSIVE AGGRESSIVE} is set.
+     * @param delayMs - delay of the echo in the near-end relative to the far-end in ms, 0 for time-aligned recordings.
+     * @param rawSampFreq - sampling frequency of the files which are not WAV files, 8000, 16000, 32000 or 48000.
+     */
+    public AecBatchProcessor(int threads, AEC.AggressiveMode mode, int delayMs, int rawSampFreq) {
+        if (threads <= 0) throw new IllegalArgumentException("threads <= 0");
+        if (AEC.SamplingFrequency.valueOf(rawSampFreq) == null) throw new IllegalArgumentException("unsupported rawSampFreq: " + rawSampFreq);
+
+        mThreads = threads;
+        mMode = mode;
+        mDelayMs = delayMs;
+        mRawSampFreq = rawSampFreq;
+    }
+
+    /**
+     * process the jobs and wait until all of them are finished.
+     *
+     * @param jobs - jobs to process.
+     * @param listener - listener of the finished jobs or null.
+     * @return results in the order of the jobs.
+     * @throws InterruptedException if the calling thread is interrupted while waiting, the jobs which are being
+     *                              processed are finished and the rest are skipped.
+     */
+    public List<Result> process(final List<Job> jobs, final Listener listener) throws InterruptedException {
+        final Result[] results = new Result[jobs.size()];
+        final AtomicInteger next = new AtomicInteger();
+        int threads = Math.min(mThreads, Math.max(1, jobs.size()));
+
+        final AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "aecm-batch-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < threads; i++) {
+            workers.execute(() -> {
+                Worker worker = new Worker();
+                try {
+                    int index;
+                    while (!Thread.currentThread().isInterrupted() && (index = next.getAndIncrement()) < results.length) {
+                        results[index] = process(worker, jobs.get(index));
+                        if (listener != null) listener.onJobFinished(results[index]);
+                    }
+                } finally {
+                    worker.mAec.close();
+                }
+            });
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            throw e;
+        }
+
+        return new ArrayList<>(Arrays.asList(results));
+    }
+
+    // ////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+
+    /**
+     * state owned by one worker thread.
+     */
+    private static class Worker {
+        private final AEC mAec = new AEC();
+        // windows of the far-end and of the near-end, the near-end one is processed in place and written out.
+        private final ByteBuffer mFarend = ByteBuffer.allocateDirect(WINDOW_BYTES).order(ByteOrder.nativeOrder());
+        private final ByteBuffer mNearend = ByteBuffer.allocateDirect(WINDOW_BYTES).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * input file.
+     */
+    private static class Input {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final boolean mWav;
+        private final long mDataOffset;
+        private final long mSamples;
+        private final int mSampFreq;
+
+        private Input(File file, int rawSampFreq) throws IOException {
+            mFile = new RandomAccessFile(file, "r");
+            mChannel = mFile.getChannel();
+            try {
+                ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+                mWav = mChannel.read(header, 0) == 12 && header.getInt(0) == 0x46464952 /* RIFF */
+                        && header.getInt(8) == 0x45564157 /* WAVE */;
+                if (!mWav) {
+                    mDataOffset = 0;
+                    mSamples = mChannel.size() / 2;
+                    mSampFreq = rawSampFreq;
+                    return;
+                }
+
+                // walk the chunks up to "data", "fmt " must come first.
+                long pos = 12;
+                int sampFreq = 0;
+                ByteBuffer chunk = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+                for (;;) {
+                    chunk.clear();
+                    if (mChannel.read(chunk, pos) < 8) throw new IOException(file + " has no data chunk");
+                    int id = chunk.getInt(0);
+                    long size = chunk.getInt(4) & 0xffffffffL;
+                    if (id == 0x20746d66 /* fmt  */) {
+                        int format = chunk.getShort(8) & 0xffff;
+                        if ((format != 1 && format != 0xfffe) || chunk.getShort(10) != 1 || chunk.getShort(22) != 16)
+                            throw new IOException(file + " is not a mono 16 bit PCM WAV file");
+                        sampFreq = chunk.getInt(12);
+                    } else if (id == 0x61746164 /* data */) {
+                        if (sampFreq == 0) throw new IOException(file + " has no fmt chunk");
+                        mDataOffset = pos + 8;
+                        mSamples = Math.min(size, mChannel.size() - mDataOffset) / 2;
+                        mSampFreq = sampFreq;
+                        return;
+                    }
+                    pos += 8 + size + (size & 1);
+                }
+            } catch (IOException e) {
+                mFile.close();
+                throw e;
+            }
+        }
+
+        /**
+         * reads samples from sample on into the start of window, the part of them past the end of the file is silence.
+         */
+        private void read(ByteBuffer window, long sample, int samples) throws IOException {
+            long available = Math.max(0, Math.min(samples, mSamples - sample));
+            window.clear().limit((int) available * 2);
+            while (window.hasRemaining()) {
+                if (mChannel.read(window, mDataOffset + sample * 2 + window.position()) < 0)
+                    throw new IOException("unexpected end of file");
+            }
+            window.limit(samples * 2);
+            while (window.hasRemaining()) window.put((byte) 0);
+            window.flip();
+        }
+
+        private void close() throws IOException {
+            mFile.close();
+        }
+    }
+
+    private Result process(Worker worker, Job job) {
+        long start = System.nanoTime();
+        Input farend = null, nearend = null;
+        RandomAccessFile out = null;
+        long written = 0;
+        int sampFreq = 0;
+
+        try {
+            if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN)
+                return new Result(job, "big endian hosts are not supported", 0, 0, 0);
+
+            farend = new Input(job.getFarend(), mRawSampFreq);
+            nearend = new Input(job.getNearend(), mRawSampFreq);
+            sampFreq = nearend.mSampFreq;
+            AEC.SamplingFrequency frequency = AEC.SamplingFrequency.valueOf(sampFreq);
+            if (frequency == null || farend.mSampFreq != sampFreq)
+                return new Result(job, "unsupported sampling frequencies: " + farend.mSampFreq + "hz far-end, "
+                        + sampFreq + "hz near-end", 0, sampFreq, System.nanoTime() - start);
+            if (worker.mAec.reinitialize(frequency, mMode) == null)
+                return new Result(job, "can't initialize the AECM instance", 0, sampFreq, System.nanoTime() - start);
+
+            int frameLength = sampFreq / 100;
+            long frames = nearend.mSamples / frameLength;
+            int windowFrames = WINDOW_BYTES / (frameLength * 2);
+            long headerSize = nearend.mWav ? WAV_HEADER_SIZE : 0;
+
+            out = new RandomAccessFile(job.getOut(), "rw");
+            out.setLength(headerSize + nearend.mSamples * 2);
+            FileChannel outChannel = out.getChannel();
+            if (nearend.mWav) writeWavHeader(outChannel, sampFreq, nearend.mSamples);
+
+            for (long frame = 0; frame < frames; ) {
+                int count = (int) Math.min(windowFrames, frames - frame);
+                long sample = frame * frameLength;
+                int samples = count * frameLength;
+
+                farend.read(worker.mFarend, sample, samples);
+                nearend.read(worker.mNearend, sample, samples);
+                int processed = worker.mAec.processBatch(worker.mFarend, worker.mNearend, worker.mNearend, frameLength,
+                        count, mDelayMs);
+                if (processed != count)
+                    return new Result(job, "processing failed at frame " + (frame + Math.max(0, processed)), written,
+                            sampFreq, System.nanoTime() - start);
+                write(outChannel, worker.mNearend, headerSize + sample * 2);
+
+                frame += count;
+                written += samples;
+            }
+
+            // a trailing partial frame can't be processed, it is passed through.
+            long tail = nearend.mSamples - written;
+            if (tail > 0) {
+                nearend.read(worker.mNearend, written, (int) tail);
+                write(outChannel, worker.mNearend, headerSize + written * 2);
+                written += tail;
+            }
+
+            return new Result(job, null, written, sampFreq, System.nanoTime() - start);
+        } catch (IOException e) {
+            AecLog.d(TAG, "AecBatchProcessor can't process " + job + ": " + e);
+            return new Result(job, e.toString(), written, sampFreq, System.nanoTime() - start);
+        } finally {
+            close(farend);
+            close(nearend);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void writeWavHeader(FileChannel channel, int sampFreq, long samples) throws IOException {
+        long dataSize = samples * 2;
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46464952).putInt((int) Math.min(0xffffffffL, 36 + dataSize)).putInt(0x45564157) // RIFF, WAVE
+                .putInt(0x20746d66).putInt(16).putShort((short) 1).putShort((short) 1)            // fmt, PCM, mono
+                .putInt(sampFreq).putInt(sampFreq * 2).putShort((short) 2).putShort((short) 16)
+                .putInt(0x61746164).putInt((int) Math.min(0xffffffffL, dataSize));               // data
+        header.flip();
+        channel.write(header, 0);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer window, long position) throws IOException {
+        while (window.hasRemaining()) channel.write(window, position + window.position());
+    }
+
+    private static void close(Input input) {
+        if (input == null) return;
+        try {
+            input.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
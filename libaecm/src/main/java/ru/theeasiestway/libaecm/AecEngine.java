@@ -0,0 +1,176 @@
+package ru.theeasiestway.libaecm;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs echo cancellation for many concurrent sessions (call legs) over a fixed set of worker threads.
+ * <p>
+ * Every session is pinned to one worker for its whole life, so all calls into its {@link AEC AEC} are made from a
+ * single thread and no locking is needed; sessions are spread over the workers by their current load. The native
+ * instances come from an {@link AecSessionPool AecSessionPool} and are reset in place between sessions.
+ */
+public class AecEngine {
+
+    private static final String TAG = "AECM_LOG";
+
+    /**
+     * Receives the result of {@link Session#process(short[], short[], short[], int, int, int, FrameCallback)}.
+     * It is called on the worker thread of the session.
+     */
+    public interface FrameCallback {
+        /**
+         * @param session - session which processed the frames.
+         * @param out - array passed to process() holding the processed near-end.
+         * @param frames - number of frames processed, less than requested (or -1) on error.
+         */
+        void onProcessed(Session session, short[] out, int frames);
+    }
+
+    private final ExecutorService[] mWorkers;
+    private final AtomicInteger[] mWorkerLoad;
+    private final AecSessionPool mPool;
+
+    /**
+     * Create an engine with one worker per available core and a pool which keeps up to 64 idle instances.
+     */
+    public AecEngine() {
+        this(Runtime.getRuntime().availableProcessors(), new AecSessionPool(64));
+    }
+
+    /**
+     * @param workers - number of worker threads, usually the number of cores dedicated to echo cancellation.
+     * @param pool - pool the native instances of the sessions are taken from and released to.
+     */
+    public AecEngine(int workers, AecSessionPool pool) {
+        if (workers <= 0) throw new IllegalArgumentException("workers <= 0");
+        if (pool == null) throw new IllegalArgumentException("pool == null");
+
+        mPool = pool;
+        mWorkers = new ExecutorService[workers];
+        mWorkerLoad = new AtomicInteger[workers];
+        for (int i = 0; i < workers; i++) {
+            final int index = i;
+            mWorkers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "aecm-worker-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+            mWorkerLoad[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * open a new session on the least loaded worker.
+     *
+     * @param frequency - sampling frequency of the session, if null then {@link AEC.SamplingFrequency#FS_16000Hz FS_16000Hz} is set.
+     * @param mode - aggressiveness mode of the session, if null then {@link AEC.AggressiveMode#AGGRESSIVE AGGRESSIVE} is set.
+     * @return the new session or null if its AECM instance can't be initialized.
+     */
+    public Session openSession(AEC.SamplingFrequency frequency, AEC.AggressiveMode mode) {
+        AEC aec = mPool.acquire(frequency, mode);
+        if (aec == null) return null;
+
+        int worker = 0;
+        for (int i = 1; i < mWorkerLoad.length; i++) {
+            if (mWorkerLoad[i].get() < mWorkerLoad[worker].get()) worker = i;
+        }
+        mWorkerLoad[worker].incrementAndGet();
+
+        return new Session(aec, worker);
+    }
+
+    /**
+     * @return number of worker threads.
+     */
+    public int workerCount() {
+        return mWorkers.length;
+    }
+
+    /**
+     * stop the workers after the already submitted work is done. Sessions can't process frames afterwards.
+     *
+     * @param timeoutMs - how long to wait for the submitted work.
+     * @return true if all workers finished in time.
+     */
+    public boolean shutdown(long timeoutMs) throws InterruptedException {
+        for (ExecutorService worker : mWorkers) worker.shutdown();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        boolean terminated = true;
+        for (ExecutorService worker : mWorkers) {
+            long left = Math.max(0, deadline - System.nanoTime());
+            terminated &= worker.awaitTermination(left, TimeUnit.NANOSECONDS);
+        }
+        return terminated;
+    }
+
+    /**
+     * One call leg. All of its work runs on the worker it is pinned to, in submission order.
+     */
+    public final class Session {
+
+        private final AEC mAec;
+        private final int mWorker;
+        private final AtomicBoolean mClosed = new AtomicBoolean();
+
+        private Session(AEC aec, int worker) {
+            mAec = aec;
+            mWorker = worker;
+        }
+
+        /**
+         * process frames of this session on its worker, see
+         * {@link AEC#processBatch(short[], short[], short[], int, int, int)}. The arrays must not be touched by the
+         * caller until the callback is invoked.
+         *
+         * @param farend - frames * frameLength samples of far-end signal or null.
+         * @param nearend - frames * frameLength samples of near-end signal.
+         * @param out - receives frames * frameLength processed samples, may be the same array as nearend.
+         * @param frameLength - number of samples in one frame, 80 or 160 (see {@link AEC.SamplingFrequency AEC.SamplingFrequency}).
+         * @param frames - number of frames.
+         * @param delay - delay estimate for sound card and system buffers.
+         * @param callback - receives the result, may be null.
+         * @return true if the work was queued, false if the session or the engine is closed.
+         */
+        public boolean process(final short[] farend, final short[] nearend, final short[] out, final int frameLength,
+                               final int frames, final int delay, final FrameCallback callback) {
+            if (mClosed.get()) return false;
+            return submit(() -> {
+                int processed = mAec.processBatch(farend, nearend, out, frameLength, frames, delay);
+                if (callback != null) callback.onProcessed(this, out, processed);
+            });
+        }
+
+        /**
+         * close the session after the already submitted frames are processed and give its AECM instance back to the
+         * pool.
+         */
+        public void close() {
+            if (!mClosed.compareAndSet(false, true)) return;
+            mWorkerLoad[mWorker].decrementAndGet();
+            if (!submit(() -> mPool.release(mAec))) mPool.release(mAec);
+        }
+
+        /**
+         * @return index of the worker thread the session is pinned to.
+         */
+        public int worker() {
+            return mWorker;
+        }
+
+        private boolean submit(Runnable task) {
+            try {
+                mWorkers[mWorker].execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                AecLog.d(TAG, "AecEngine.Session can't submit work, the engine is shut down");
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package ru.theeasiestway.libaecm;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Far-end analysis shared by several {@link AEC AEC} instances which cancel the echo of the same far-end signal, for
+ * example the participants of a conference bridge, see {@link AEC#AEC(AEC.SamplingFrequency, AEC.AggressiveMode, AecFarendSource)}.
+ * <p>
+ * The far-end FFT, the far-end history and the far-end half of the delay estimator are computed by the first instance
+ * which processes a block and reused by the others, which may be up to 16 blocks (32 ms at 16000 Hz) behind it. An
+ * instance fed a different far-end, one which falls further behind, or one created or reset with {@link AEC#prepare()}
+ * after the source has got its first block, stops sharing: it goes on with a far-end analysis of its own, so it costs
+ * as much as an independent instance from then on. The far-ends of different instances are never mixed.
+ * <p>
+ * The instances of a source are processed one at a time under its native lock, so a source should be shared by the
+ * instances of one processing thread. The native analysis lives until the source is closed, or becomes unreachable,
+ * and all its instances are closed.
+ */
+public class AecFarendSource {
+
+    private static final String TAG = "AECM_LOG";
+
+    // layout of the array filled by the native side, must match the kFarendSource* enum in aecm_handle.h.
+    static final int BLOCKS = 0;
+    static final int REUSED_BLOCKS = 1;
+    static final int MEMORY_BYTES = 2;
+    static final int STATS_LENGTH = 3;
+
+    private final boolean mCompact;
+    private long mHandler; // -1 once the source is closed.
+    private final NativeReference mNative = new NativeReference(this); // releases a source which is never closed.
+
+    /**
+     * Generate a far-end analysis for default instances.
+     */
+    public AecFarendSource() {
+        this(false);
+    }
+
+    /**
+     * Generate a far-end analysis.
+     *
+     * @param compact - true to share it between compact instances, see {@link AEC#isCompact()}.
+     */
+    public AecFarendSource(boolean compact) {
+        mCompact = compact;
+        mHandler = mNative.mHandler = AEC.nativeCreateFarendSource(compact);
+        if (mHandler == -1) AecLog.d(TAG, "AecFarendSource() can't create the far-end analysis");
+    }
+
+    /**
+     * @return true if the instances created on the source are compact.
+     */
+    public boolean isCompact() {
+        return mCompact;
+    }
+
+    /**
+     * @return number of far-end blocks analysed since the source is created or -1 if the source is closed.
+     */
+    public long getAnalyzedBlocks() {
+        return getStat(BLOCKS);
+    }
+
+    /**
+     * @return number of far-end blocks an instance took from the source instead of analysing them itself or -1 if
+     *         the source is closed.
+     */
+    public long getReusedBlocks() {
+        return getStat(REUSED_BLOCKS);
+    }
+
+    /**
+     * @return native memory of the shared analysis in bytes or -1 if the source is closed, it is not included in
+     *         {@link AEC#getMemoryBytes()} of the instances.
+     */
+    public long getMemoryBytes() {
+        return getStat(MEMORY_BYTES);
+    }
+
+    /**
+     * Release the reference of the source to the native analysis, no instances can be created on it afterwards. The
+     * instances already created keep working.
+     */
+    public synchronized void close() {
+        if (mHandler != -1) {
+            AEC.nativeReleaseFarendSource(mHandler);
+            mHandler = mNative.mHandler = -1;
+        }
+    }
+
+    /**
+     * @return handler of a new native AECM instance sharing the analysis or -1 on error or if the source is closed.
+     */
+    synchronized long createInstance() {
+        if (mHandler == -1) {
+            AecLog.d(TAG, "createInstance() is called on a closed far-end source");
+            return -1;
+        }
+        return AEC.nativeCreateSharedAecmInstance(mHandler);
+    }
+
+    private synchronized long getStat(int index) {
+        if (mHandler == -1) return -1;
+        long[] values = new long[STATS_LENGTH];
+        return AEC.nativeGetFarendSourceStats(mHandler, values) == 0 ? values[index] : -1;
+    }
+
+    /**
+     * Releases the reference of an {@link AecFarendSource AecFarendSource} object which becomes unreachable without
+     * being closed, the same way as the native instance of an {@link AEC AEC} object is released.
+     */
+    private static final class NativeReference extends PhantomReference<AecFarendSource> {
+        private static final ReferenceQueue<AecFarendSource> QUEUE = new ReferenceQueue<>();
+        private static final Set<NativeReference> REFERENCES =
+                Collections.newSetFromMap(new ConcurrentHashMap<NativeReference, Boolean>());
+
+        static {
+            Thread cleaner = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (;;) {
+                        try {
+                            NativeReference reference = (NativeReference) QUEUE.remove();
+                            REFERENCES.remove(reference);
+                            if (reference.mHandler != -1) AEC.nativeReleaseFarendSource(reference.mHandler);
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                }
+            }, "aecm-source-cleaner");
+            cleaner.setDaemon(true);
+            cleaner.start();
+        }
+
+        private volatile long mHandler = -1; // -1 once the source is closed.
+
+        private NativeReference(AecFarendSource source) {
+            super(source, QUEUE);
+            REFERENCES.add(this);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ru.theeasiestway.libaecm;
+
+import java.lang.reflect.Method;
+
+/**
+ * Logging of the library without a dependency on Android. On Android the messages go to logcat through
+ * android.util.Log, which is looked up by reflection, elsewhere they are printed to the standard output when the
+ * "aecm.debug" system property is true. Servers can route them to their own logging with
+ * {@link #setLogger(AecLogger)}.
+ */
+public final class AecLog {
+
+    private static volatile AecLogger sLogger = defaultLogger();
+
+    private AecLog() {}
+
+    /**
+     * @param logger - logger of the messages from now on, or null to drop them.
+     */
+    public static void setLogger(AecLogger logger) {
+        sLogger = logger;
+    }
+
+    /**
+     * @return the current logger or null if the messages are dropped.
+     */
+    public static AecLogger getLogger() {
+        return sLogger;
+    }
+
+    /**
+     * log a debug message, like android.util.Log.d().
+     */
+    public static void d(String tag, String message) {
+        AecLogger logger = sLogger;
+        if (logger != null) logger.log(tag, message);
+    }
+
+    private static AecLogger defaultLogger() {
+        try {
+            final Method d = Class.forName("android.util.Log").getMethod("d", String.class, String.class);
+            return new AecLogger() {
+                @Override
+                public void log(String tag, String message) {
+                    try {
+                        d.invoke(null, tag, message);
+                    } catch (Exception ignored) {
+                    }
+                }
+            };
+        } catch (Exception | LinkageError e) {
+            if (!Boolean.getBoolean("aecm.debug")) return null;
+            return new AecLogger() {
+                @Override
+                public void log(String tag, String message) {
+                    System.out.println("D/" + tag + ": " + message);
+                }
+            };
+        }
+    }
+}
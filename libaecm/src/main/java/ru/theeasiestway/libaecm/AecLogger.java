@@ -0,0 +1,14 @@
+package ru.theeasiestway.libaecm;
+
+/**
+ * Receives the debug messages of the library, see {@link AecLog#setLogger(AecLogger)}. It may be called from any
+ * thread, including the audio threads, so it should not block.
+ */
+public interface AecLogger {
+
+    /**
+     * @param tag - source of the message, "AECM_LOG" for the library.
+     * @param message - the message.
+     */
+    void log(String tag, String message);
+}
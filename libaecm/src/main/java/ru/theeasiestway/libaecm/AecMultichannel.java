@@ -0,0 +1,192 @@
+package ru.theeasiestway.libaecm;
+
+/**
+ * Echo cancellation of interleaved multichannel capture, for example a multi-microphone device, with an interleaved
+ * far-end, for example stereo playback. The far-end is downmixed to mono natively and buffered for one AECM instance
+ * per capture channel, and the channels of a frame are processed in parallel on native threads, the first one on
+ * the calling thread. The output is interleaved the same way as the capture, so nothing is copied in java.
+ * <p>
+ * The methods are synchronized, so the far-end and the capture may come from different threads. The native threads
+ * and instances are released by {@link #close()}, which must always be called.
+ */
+public class AecMultichannel {
+
+    private static final String TAG = "AECM_LOG";
+
+    /**
+     * maximum number of capture and far-end channels.
+     */
+    public static final int MAX_CHANNELS = 8;
+
+    private final int mChannels;
+    private final int mFarendChannels;
+    private final boolean mParallel;
+    private long mHandler = -1; // the handler of the native instances, -1 once they are closed.
+    private boolean mPrepared;
+    private AEC.SamplingFrequency mSampFreq;
+    private short mAecmMode;
+    private boolean mFarendGate;
+    private boolean mDriftComp;
+
+    /**
+     * Generate the AECM instances of every capture channel with a native thread for every channel but the first.
+     *
+     * @param sampFreqOfData - sampling frequency of the capture and the far-end. if null, then {@link AEC.SamplingFrequency#FS_16000Hz FS_16000Hz} is set.
+     * @param aggressiveMode - aggressiveness mode of the instances. if null, then {@link AEC.AggressiveMode#AGGRESSIVE AGGRESSIVE} is set.
+     * @param channels - number of interleaved capture channels, 1 to {@link #MAX_CHANNELS}.
+     * @param farendChannels - number of interleaved far-end channels, 1 to {@link #MAX_CHANNELS}.
+     */
+    public AecMultichannel(AEC.SamplingFrequency sampFreqOfData, AEC.AggressiveMode aggressiveMode, int channels, int farendChannels) {
+        this(sampFreqOfData, aggressiveMode, channels, farendChannels, true);
+    }
+
+    /**
+     * Generate the AECM instances of every capture channel.
+     *
+     * @param sampFreqOfData - sampling frequency of the capture and the far-end. if null, then {@link AEC.SamplingFrequency#FS_16000Hz FS_16000Hz} is set.
+     * @param aggressiveMode - aggressiveness mode of the instances. if null, then {@link AEC.AggressiveMode#AGGRESSIVE AGGRESSIVE} is set.
+     * @param channels - number of interleaved capture channels, 1 to {@link #MAX_CHANNELS}.
+     * @param farendChannels - number of interleaved far-end channels, 1 to {@link #MAX_CHANNELS}.
+     * @param parallel - true to process the channels in parallel, false to process them one after another on the
+     *                 calling thread, for servers which run many instances on a fixed set of threads.
+     */
+    public AecMultichannel(AEC.SamplingFrequency sampFreqOfData, AEC.AggressiveMode aggressiveMode, int channels, int farendChannels, boolean parallel) {
+        if (channels < 1 || channels > MAX_CHANNELS) throw new IllegalArgumentException("channels must be from 1 to " + MAX_CHANNELS);
+        if (farendChannels < 1 || farendChannels > MAX_CHANNELS) throw new IllegalArgumentException("farendChannels must be from 1 to " + MAX_CHANNELS);
+        mChannels = channels;
+        mFarendChannels = farendChannels;
+        mParallel = parallel;
+        mSampFreq = sampFreqOfData != null ? sampFreqOfData : AEC.SamplingFrequency.FS_16000Hz;
+        mAecmMode = (short) (aggressiveMode != null ? aggressiveMode : AEC.AggressiveMode.AGGRESSIVE).getMode();
+        mHandler = AEC.nativeCreateMultichannel(channels, farendChannels, parallel);
+        if (mHandler == -1) AecLog.d(TAG, "AecMultichannel() can't create the AECM instances");
+        prepare();
+    }
+
+    /**
+     * (re)initialize the instances of every channel, which restarts the convergence of their echo channels.
+     *
+     * @return the {@link AecMultichannel AecMultichannel} object itself.
+     */
+    public synchronized AecMultichannel prepare() {
+        mPrepared = mHandler != -1
+                && AEC.nativeInitMultichannel(mHandler, mSampFreq.getFS()) == 0
+                && applyConfig();
+        if (!mPrepared) AecLog.d(TAG, "prepare() can't initialize the multichannel AECM instances");
+        return this;
+    }
+
+    /**
+     * buffer one frame of interleaved far-end, it is downmixed to mono for every capture channel.
+     *
+     * @param farend - frameLength samples of every far-end channel, interleaved.
+     * @param frameLength - number of samples of one channel, see {@link AEC.SamplingFrequency AEC.SamplingFrequency}.
+     * @return the {@link AecMultichannel AecMultichannel} object itself or null on error.
+     */
+    public synchronized AecMultichannel farendBuffer(short[] farend, int frameLength) {
+        if (!mPrepared || farend == null || !isFrameLength(frameLength) || farend.length < frameLength * mFarendChannels
+                || AEC.nativeMultichannelBufferFarend(mHandler, farend, frameLength) != 0) {
+            AecLog.d(TAG, "farendBuffer() is called on an unprepared instance or you pass an invalid parameter");
+            return null;
+        }
+        return this;
+    }
+
+    /**
+     * cancel the echo in one frame of interleaved capture, every channel with its own AECM instance.
+     *
+     * @param nearend - frameLength samples of every capture channel, interleaved.
+     * @param out - receives the processed capture interleaved the same way, may be the same array as nearend.
+     * @param frameLength - number of samples of one channel, see {@link AEC.SamplingFrequency AEC.SamplingFrequency}.
+     * @param delay - delay estimate for sound card and system buffers, see {@link AEC#echoCancellation(short[], short[], int, int)}.
+     * @return out array or null on error. A channel whose instance fails is passed through.
+     */
+    public synchronized short[] echoCancellation(short[] nearend, short[] out, int frameLength, int delay) {
+        if (!mPrepared || nearend == null || out == null || !isFrameLength(frameLength)
+                || nearend.length < frameLength * mChannels || out.length < frameLength * mChannels) {
+            AecLog.d(TAG, "echoCancellation() is called on an unprepared instance or you pass an invalid parameter");
+            return null;
+        }
+        short delayMs = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, delay));
+        return AEC.nativeMultichannelProcess(mHandler, nearend, out, frameLength, delayMs) == 0 ? out : null;
+    }
+
+    /**
+     * set the aggressiveness mode of every channel, the echo channels are kept.
+     *
+     * @param mode - aggressiveness mode, if null then {@link AEC.AggressiveMode#AGGRESSIVE AGGRESSIVE} is set.
+     * @return the {@link AecMultichannel AecMultichannel} object itself or null if the mode can't be applied.
+     */
+    public synchronized AecMultichannel setAecmMode(AEC.AggressiveMode mode) {
+        mAecmMode = (short) (mode != null ? mode : AEC.AggressiveMode.AGGRESSIVE).getMode();
+        return !mPrepared || applyConfig() ? this : null;
+    }
+
+    /**
+     * enable or disable the far-end silence gate of every channel, see {@link AEC#setFarendSilenceGate(boolean)}.
+     *
+     * @return the {@link AecMultichannel AecMultichannel} object itself or null if the setting can't be applied.
+     */
+    public synchronized AecMultichannel setFarendSilenceGate(boolean enable) {
+        mFarendGate = enable;
+        return !mPrepared || applyConfig() ? this : null;
+    }
+
+    /**
+     * enable or disable the clock drift compensation of every channel, see {@link AEC#setDriftCompensation(boolean)}.
+     *
+     * @return the {@link AecMultichannel AecMultichannel} object itself or null if the setting can't be applied.
+     */
+    public synchronized AecMultichannel setDriftCompensation(boolean enable) {
+        mDriftComp = enable;
+        return !mPrepared || applyConfig() ? this : null;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getFarendChannels() {
+        return mFarendChannels;
+    }
+
+    /**
+     * @return true if the channels are processed in parallel.
+     */
+    public boolean isParallel() {
+        return mParallel;
+    }
+
+    public synchronized boolean isPrepared() {
+        return mPrepared;
+    }
+
+    /**
+     * @return the native memory of the instances of all the channels in bytes or -1 if they are closed.
+     */
+    public synchronized long getMemoryBytes() {
+        return mHandler != -1 ? AEC.nativeGetMultichannelMemorySize(mHandler) : -1;
+    }
+
+    /**
+     * stop the native threads and release the instances, the object can't be used afterwards.
+     */
+    public synchronized void close() {
+        if (mHandler != -1) {
+            AEC.nativeFreeMultichannel(mHandler);
+            mHandler = -1;
+        }
+        mPrepared = false;
+    }
+
+    // checked before the lengths are multiplied by the channels, so a huge frameLength can't wrap around.
+    private boolean isFrameLength(int frameLength) {
+        int factor = Math.max(1, mSampFreq.getFS() / 16000);
+        return frameLength == 80 * factor || frameLength == 160 * factor;
+    }
+
+    private boolean applyConfig() {
+        return AEC.nativeSetMultichannelConfig(mHandler, mAecmMode, AEC.AECM_ENABLE,
+                mFarendGate ? AEC.AECM_ENABLE : AEC.AECM_UNABLE, mDriftComp ? AEC.AECM_ENABLE : AEC.AECM_UNABLE) == 0;
+    }
+}
@@ -0,0 +1,362 @@
+package ru.theeasiestway.libaecm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replays a recording made by {@link AEC#startRecording(File, int)} through a fresh AECM instance, so that echo and
+ * CPU problems seen in production can be reproduced offline.
+ * <p>
+ * Every recorded call is made again in the recorded order: initialization, aggressiveness and far-end gate changes,
+ * imported echo paths, far-end frames and near-end frames with their delays. The processed frames are compared with
+ * the recorded ones and the native processing time of the replay can be compared with the recorded one.
+ * <p>
+ * The replay is bit exact when the recording holds the whole session, that is it starts with the initialization of
+ * an instance which has not processed anything yet and no record was dropped or overwritten. Otherwise it starts
+ * from the configuration kept in the file header and the oldest record in the ring, see {@link Result#isDeterministic()}.
+ */
+public class AecReplay {
+
+    private static final String TAG = "AECM_LOG";
+
+    // file format, must match aecm_recorder.h.
+    private static final int MAGIC = 0x46434541; // "AECF"
+    private static final int VERSION = 1;
+    private static final int RECORD_SYNC = 0x52434541; // "AECR"
+    private static final int RECORD_HEADER_SIZE = 20;
+
+    private static final int RECORD_INIT = 1;
+    private static final int RECORD_CONFIG = 2;
+    private static final int RECORD_ECHO_PATH = 3;
+    private static final int RECORD_FAREND = 4;
+    private static final int RECORD_PROCESS = 5;
+    private static final int RECORD_WRAP = 6;
+
+    private static final int FLAG_CLEAN = 1;
+    private static final int FLAG_DROPPED = 2;
+    private static final int FLAG_STATE_CARRIED = 4;
+    private static final int FLAG_FAILED = 8;
+
+    private final ByteBuffer mRing;
+    private final int        mCapacity;
+    private final long       mWritten;
+    private final int        mSampFreq;
+    private final int        mEchoMode;
+    private final boolean    mFarendGate;
+    private final boolean    mDriftComp;
+    private final int        mDroppedRecords;
+
+    /**
+     * Result of {@link #replay()}.
+     */
+    public static class Result {
+        private long     mProcessedFrames;
+        private long     mFarendFrames;
+        private long     mMismatchedFrames;
+        private int      mDiscontinuities;
+        private boolean  mDeterministic;
+        private long     mRecordedProcessTimeTotalNs;
+        private long     mRecordedProcessTimeMaxNs;
+        private AecStats mReplayStats;
+
+        /**
+         * @return number of near-end frames replayed.
+         */
+        public long getProcessedFrames() {
+            return mProcessedFrames;
+        }
+
+        /**
+         * @return number of far-end frames replayed.
+         */
+        public long getFarendFrames() {
+            return mFarendFrames;
+        }
+
+        /**
+         * @return number of near-end frames whose output differs from the recorded one.
+         */
+        public long getMismatchedFrames() {
+            return mMismatchedFrames;
+        }
+
+        /**
+         * @return number of places where records are missing because the recorder had to drop them.
+         */
+        public int getDiscontinuities() {
+            return mDiscontinuities;
+        }
+
+        /**
+         * @return true if the recording holds the whole session without gaps, so the replay must reproduce the
+         *         recorded output exactly.
+         */
+        public boolean isDeterministic() {
+            return mDeterministic;
+        }
+
+        /**
+         * @return total native processing time of the recorded near-end frames in ns, as measured on the recording
+         *         device.
+         */
+        public long getRecordedProcessTimeTotalNs() {
+            return mRecordedProcessTimeTotalNs;
+        }
+
+        /**
+         * @return the longest native processing time of a recorded near-end frame in ns.
+         */
+        public long getRecordedProcessTimeMaxNs() {
+            return mRecordedProcessTimeMaxNs;
+        }
+
+        /**
+         * @return statistics of the replaying instance, including its own processing time histogram.
+         */
+        public AecStats getReplayStats() {
+            return mReplayStats;
+        }
+
+        @Override
+        public String toString() {
+            return "AecReplay.Result{processedFrames=" + mProcessedFrames
+                    + ", farendFrames=" + mFarendFrames
+                    + ", mismatchedFrames=" + mMismatchedFrames
+                    + ", discontinuities=" + mDiscontinuities
+                    + ", deterministic=" + mDeterministic
+                    + ", recordedProcessTimeTotalNs=" + mRecordedProcessTimeTotalNs
+                    + ", recordedProcessTimeMaxNs=" + mRecordedProcessTimeMaxNs
+                    + ", replayStats=" + mReplayStats + "}";
+        }
+    }
+
+    /**
+     * open a recording. The recording must not be written any more, see {@link AEC#stopRecording()}.
+     *
+     * @param file - ring file written by {@link AEC#startRecording(File, int)}.
+     * @throws IOException if the file can't be read or is not a recording.
+     */
+    public AecReplay(File file) throws IOException {
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.capacity() < 64 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException(file + " is not an AECM recording");
+
+        int headerSize = buffer.getInt(8);
+        mCapacity = buffer.getInt(12);
+        mWritten = buffer.getLong(16);
+        mSampFreq = buffer.getInt(24);
+        mEchoMode = buffer.getShort(28);
+        mDroppedRecords = buffer.getInt(32);
+        mFarendGate = buffer.getShort(36) != 0; // reserved and zero in the recordings made before the gate.
+        mDriftComp = buffer.getShort(38) != 0;  // reserved and zero in the recordings made before the compensation.
+        if (headerSize < 64 || mCapacity <= 0 || (long) headerSize + mCapacity > buffer.capacity())
+            throw new IOException(file + " is truncated");
+
+        buffer.position(headerSize);
+        buffer.limit(headerSize + mCapacity);
+        mRing = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return sampling frequency the recorded instance was initialized with most recently.
+     */
+    public int getSampFreq() {
+        return mSampFreq;
+    }
+
+    /**
+     * @return number of records the recorder had to drop because its queue was full.
+     */
+    public int getDroppedRecords() {
+        return mDroppedRecords;
+    }
+
+    /**
+     * @return true if the oldest records were overwritten because the ring was full.
+     */
+    public boolean isWrapped() {
+        return mWritten > mCapacity;
+    }
+
+    /**
+     * feed the recording through a fresh AECM instance. The instance is closed when the replay is finished.
+     *
+     * @return the result of the replay, or null if the recording uses a configuration this library doesn't support.
+     */
+    public Result replay() {
+        AEC.SamplingFrequency frequency = AEC.SamplingFrequency.valueOf(mSampFreq);
+        AEC.AggressiveMode mode = AEC.AggressiveMode.valueOf(mEchoMode);
+        if (frequency == null || mode == null) {
+            AecLog.d(TAG, "replay() unsupported configuration: " + mSampFreq + "hz, mode " + mEchoMode);
+            return null;
+        }
+
+        Result result = new Result();
+        AEC aec = new AEC();
+        try {
+            aec.setFarendSilenceGate(mFarendGate);
+            aec.setDriftCompensation(mDriftComp);
+            if (aec.reinitialize(frequency, mode) == null) return null;
+
+            int start = isWrapped() ? (int) (mWritten % mCapacity) : 0;
+            int end = isWrapped() ? mCapacity : (int) mWritten;
+
+            // the oldest records follow the newest ones, the first of them may be partially overwritten.
+            int first = isWrapped() ? findRecord(start, end) : 0;
+            ReplayState state = new ReplayState(mode);
+            if (first >= 0) replaySegment(aec, first, end, state, result);
+            if (isWrapped()) replaySegment(aec, 0, start, state, result);
+
+            result.mDeterministic &= !isWrapped() && result.mDiscontinuities == 0 && mDroppedRecords == 0;
+            result.mReplayStats = aec.getStats();
+        } finally {
+            aec.close();
+        }
+
+        AecLog.d(TAG, "replay() " + result);
+        return result;
+    }
+
+    // ////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+
+    /**
+     * state carried from one segment of the ring to the next.
+     */
+    private static class ReplayState {
+        private long               mSequence = -1; // sequence number of the previous record, -1 before the first one.
+        private AEC.AggressiveMode mMode;
+
+        private ReplayState(AEC.AggressiveMode mode) {
+            mMode = mode;
+        }
+    }
+
+    private void replaySegment(AEC aec, int pos, int end, ReplayState state, Result result) {
+        short[] noisy = null, clean = null, expected = null, out = null;
+
+        while (isRecord(pos, end)) {
+            int type = mRing.get(pos + 8);
+            int flags = mRing.get(pos + 9);
+            int samples = mRing.getShort(pos + 10) & 0xffff;
+            int delay = mRing.getShort(pos + 12);
+            int length = mRing.getShort(pos + 14) & 0xffff;
+            long timeNs = mRing.getInt(pos + 16) & 0xffffffffL;
+            long seq = mRing.getInt(pos + 4) & 0xffffffffL;
+            int payload = pos + RECORD_HEADER_SIZE;
+
+            if (type == RECORD_WRAP) break;
+
+            if (state.mSequence < 0) {
+                // the replay can only be exact if it starts with the initialization of a fresh instance.
+                result.mDeterministic = type == RECORD_INIT && (flags & FLAG_STATE_CARRIED) == 0;
+            } else if (seq != ((state.mSequence + 1) & 0xffffffffL) || (flags & FLAG_DROPPED) != 0) {
+                result.mDiscontinuities++;
+            }
+            state.mSequence = seq;
+
+            switch (type) {
+                case RECORD_INIT:
+                    AEC.SamplingFrequency frequency = AEC.SamplingFrequency.valueOf(mRing.getInt(payload));
+                    if (frequency != null) aec.reinitialize(frequency, state.mMode);
+                    break;
+                case RECORD_CONFIG:
+                    AEC.AggressiveMode mode = AEC.AggressiveMode.valueOf(mRing.getShort(payload));
+                    if (mode != null) {
+                        state.mMode = mode;
+                        aec.setAecmMode(mode);
+                    }
+                    if (length >= RECORD_HEADER_SIZE + 6) aec.setFarendSilenceGate(mRing.getShort(payload + 4) != 0);
+                    // the padding after the gate of older recordings isn't cleared, only a valid switch is taken.
+                    if (length >= RECORD_HEADER_SIZE + 8) aec.setDriftCompensation(mRing.getShort(payload + 6) == AEC.AECM_ENABLE);
+                    break;
+                case RECORD_ECHO_PATH:
+                    short[] echoPath = new short[samples];
+                    readShorts(payload, echoPath, samples);
+                    aec.importEchoPath(echoPath);
+                    break;
+                case RECORD_FAREND:
+                    if (noisy == null || noisy.length < samples) noisy = new short[samples];
+                    readShorts(payload, noisy, samples);
+                    aec.farendBuffer(noisy, samples);
+                    result.mFarendFrames++;
+                    break;
+                case RECORD_PROCESS:
+                    if (noisy == null || noisy.length < samples) noisy = new short[samples];
+                    if (expected == null || expected.length < samples) {
+                        clean = new short[samples];
+                        expected = new short[samples];
+                        out = new short[samples];
+                    }
+                    boolean hasClean = (flags & FLAG_CLEAN) != 0;
+                    readShorts(payload, noisy, samples);
+                    if (hasClean) readShorts(payload + samples * 2, clean, samples);
+                    readShorts(payload + samples * (hasClean ? 4 : 2), expected, samples);
+
+                    boolean processed = aec.echoCancellation(noisy, hasClean ? clean : null, out, samples, delay) != null;
+                    if ((flags & FLAG_FAILED) == 0 && (!processed || !equals(out, expected, samples)))
+                        result.mMismatchedFrames++;
+
+                    result.mProcessedFrames++;
+                    result.mRecordedProcessTimeTotalNs += timeNs;
+                    result.mRecordedProcessTimeMaxNs = Math.max(result.mRecordedProcessTimeMaxNs, timeNs);
+                    break;
+            }
+
+            pos += length;
+        }
+    }
+
+    /**
+     * find the first intact record at or after pos, records are aligned to 4 bytes.
+     *
+     * @return position of the record or -1 if there is none before end.
+     */
+    private int findRecord(int pos, int end) {
+        for (pos = (pos + 3) & ~3; pos + RECORD_HEADER_SIZE <= end; pos += 4) {
+            if (isRecord(pos, end)) return pos;
+        }
+        return -1;
+    }
+
+    private boolean isRecord(int pos, int end) {
+        if (pos + RECORD_HEADER_SIZE > end || mRing.getInt(pos) != RECORD_SYNC) return false;
+
+        int type = mRing.get(pos + 8);
+        int samples = mRing.getShort(pos + 10) & 0xffff;
+        int length = mRing.getShort(pos + 14) & 0xffff;
+        if (type == RECORD_WRAP) return true;
+        if (type < RECORD_INIT || type > RECORD_PROCESS || length < RECORD_HEADER_SIZE || (length & 3) != 0
+                || pos + length > end) return false;
+
+        int frames = type == RECORD_PROCESS ? ((mRing.get(pos + 9) & FLAG_CLEAN) != 0 ? 3 : 2) : 1;
+        int payload = type == RECORD_INIT ? 4 : type == RECORD_CONFIG ? 4 : frames * samples * 2;
+        return RECORD_HEADER_SIZE + payload <= length;
+    }
+
+    private void readShorts(int pos, short[] dst, int length) {
+        ByteBuffer buffer = mRing.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(pos);
+        buffer.asShortBuffer().get(dst, 0, length);
+    }
+
+    private static boolean equals(short[] a, short[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) return false;
+        }
+        return true;
+    }
+}
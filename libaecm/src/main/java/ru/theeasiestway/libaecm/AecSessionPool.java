@@ -0,0 +1,117 @@
+package ru.theeasiestway.libaecm;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of native AECM instances. A released instance is kept allocated and reset in place through WebRtcAecm_Init()
+ * when it is acquired again, so a new session costs an initialization instead of a free/malloc/init cycle.
+ * <p>
+ * The pool itself is thread-safe. An acquired {@link AEC AEC} belongs to its session until it is released and, like
+ * any AEC, must not be used from several threads at once.
+ */
+public class AecSessionPool {
+
+    private static final String TAG = "AECM_LOG";
+
+    private final ConcurrentLinkedQueue<AEC> mIdle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mIdleCount = new AtomicInteger();
+    private final int mMaxIdle;
+    private volatile boolean mClosed;
+
+    /**
+     * @param maxIdle - maximum number of released instances kept for reuse, instances released above it are closed.
+     */
+    public AecSessionPool(int maxIdle) {
+        if (maxIdle < 0) throw new IllegalArgumentException("maxIdle < 0");
+        mMaxIdle = maxIdle;
+    }
+
+    /**
+     * allocate instances up front, so that the first sessions don't pay for the allocation either.
+     *
+     * @param count - number of instances to allocate, limited by maxIdle.
+     */
+    public void prefill(int count) {
+        for (int i = 0; i < count && mIdleCount.get() < mMaxIdle; i++) {
+            AEC aec = new AEC();
+            if (mClosed || !offer(aec)) {
+                aec.close();
+                break;
+            }
+        }
+    }
+
+    /**
+     * take an idle instance, or create one if there is none, and initialize it for a new session.
+     *
+     * @param frequency - sampling frequency of the session, if null then {@link AEC.SamplingFrequency#FS_16000Hz FS_16000Hz} is set.
+     * @param mode - aggressiveness mode of the session, if null then {@link AEC.AggressiveMode#AGGRESSIVE AGGRESSIVE} is set.
+     * @return prepared {@link AEC AEC} instance or null if it can't be initialized or the pool is closed.
+     */
+    public AEC acquire(AEC.SamplingFrequency frequency, AEC.AggressiveMode mode) {
+        if (mClosed) {
+            AecLog.d(TAG, "acquire() is called on a closed pool");
+            return null;
+        }
+
+        AEC aec = mIdle.poll();
+        if (aec != null) mIdleCount.decrementAndGet();
+        else aec = new AEC();
+
+        if (aec.reinitialize(frequency, mode) == null) {
+            aec.close();
+            return null;
+        }
+        return aec;
+    }
+
+    /**
+     * give an instance back to the pool at the end of its session, its recording is stopped. It must not be used by
+     * the caller afterwards.
+     *
+     * @param aec - instance taken from {@link #acquire(AEC.SamplingFrequency, AEC.AggressiveMode)}.
+     */
+    public void release(AEC aec) {
+        if (aec == null) return;
+        if (mClosed) {
+            aec.close();
+            return;
+        }
+        aec.stopRecording();
+        if (!offer(aec)) aec.close();
+    }
+
+    /**
+     * @return number of instances which are ready for reuse.
+     */
+    public int idleCount() {
+        return mIdleCount.get();
+    }
+
+    /**
+     * close all idle instances. Instances released afterwards are closed immediately.
+     */
+    public void close() {
+        mClosed = true;
+        AEC aec;
+        while ((aec = mIdle.poll()) != null) {
+            mIdleCount.decrementAndGet();
+            aec.close();
+        }
+    }
+
+    private boolean offer(AEC aec) {
+        if (mIdleCount.incrementAndGet() > mMaxIdle) {
+            mIdleCount.decrementAndGet();
+            return false;
+        }
+        mIdle.offer(aec);
+        // close() may have drained the queue before the instance got in, take it back out so it isn't left behind.
+        if (mClosed && mIdle.remove(aec)) {
+            mIdleCount.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,228 @@
+package ru.theeasiestway.libaecm;
+
+/**
+ * Snapshot of the performance and health metrics of one {@link AEC AEC} instance, see {@link AEC#getStats()}.
+ * <p>
+ * The counters are kept by the native side of the instance and are reset when the instance is prepared. They are
+ * updated with lock-free atomics, so a snapshot can be taken from any thread, for example a monitoring thread,
+ * while frames are being processed; the values of one snapshot are not guaranteed to be taken at the same instant.
+ */
+public class AecStats {
+
+    /**
+     * number of buckets of the processing time histogram, see {@link #getHistogramBucketUpperBoundNs(int)}.
+     */
+    public static final int HISTOGRAM_BUCKETS = 12;
+
+    private static final long HISTOGRAM_FIRST_BOUND_NS = 25000;
+
+    /**
+     * error codes of WebRtcAecm_get_error_code() counted by {@link #getErrorCount(int)}, any other code is counted
+     * as {@link #OTHER_ERROR}.
+     */
+    public static final int AECM_UNSPECIFIED_ERROR = 12000;
+    public static final int AECM_UNSUPPORTED_FUNCTION_ERROR = 12001;
+    public static final int AECM_UNINITIALIZED_ERROR = 12002;
+    public static final int AECM_NULL_POINTER_ERROR = 12003;
+    public static final int AECM_BAD_PARAMETER_ERROR = 12004;
+    public static final int AECM_BAD_PARAMETER_WARNING = 12100;
+    public static final int OTHER_ERROR = -1;
+
+    private static final int ERROR_CODES = 7;
+
+    // layout of the array filled by the native side, must match the kStats* enum in aecm_handle.h.
+    static final int FAREND_FRAMES = 0;
+    static final int PROCESSED_FRAMES = 1;
+    static final int FAILED_CALLS = 2;
+    static final int ERRORS = 3;
+    static final int PROCESS_TIME_TOTAL_NS = ERRORS + ERROR_CODES;
+    static final int PROCESS_TIME_MAX_NS = PROCESS_TIME_TOTAL_NS + 1;
+    static final int PROCESS_TIME_HISTOGRAM = PROCESS_TIME_MAX_NS + 1;
+    static final int FAREND_BUFFER_SAMPLES = PROCESS_TIME_HISTOGRAM + HISTOGRAM_BUCKETS;
+    static final int KNOWN_DELAY_MS = FAREND_BUFFER_SAMPLES + 1;
+    static final int STARTUP = KNOWN_DELAY_MS + 1;
+    static final int SUPPRESSION_GAIN = STARTUP + 1;
+    static final int BLOCKS = SUPPRESSION_GAIN + 1;
+    static final int GATED_BLOCKS = BLOCKS + 1;
+    static final int DRIFT_PPM = GATED_BLOCKS + 1;
+    static final int DRIFT_ESTIMATED = DRIFT_PPM + 1;
+    static final int DRIFT_COMPENSATION_PPM = DRIFT_ESTIMATED + 1;
+    static final int LENGTH = DRIFT_COMPENSATION_PPM + 1;
+
+    private final long[] mValues;
+
+    AecStats(long[] values) {
+        mValues = values;
+    }
+
+    /**
+     * @return number of far-end frames buffered successfully.
+     */
+    public long getFarendFrames() {
+        return mValues[FAREND_FRAMES];
+    }
+
+    /**
+     * @return number of near-end frames processed successfully.
+     */
+    public long getProcessedFrames() {
+        return mValues[PROCESSED_FRAMES];
+    }
+
+    /**
+     * @return number of native calls which failed, that is the calls of {@link AEC AEC} which returned null or -1
+     *         after reaching the AECM instance.
+     */
+    public long getFailedCalls() {
+        return mValues[FAILED_CALLS];
+    }
+
+    /**
+     * @param errorCode - one of the AECM_* error codes of this class or {@link #OTHER_ERROR}.
+     * @return number of failed calls which left the given error code in the AECM instance.
+     */
+    public long getErrorCount(int errorCode) {
+        if (errorCode >= AECM_UNSPECIFIED_ERROR && errorCode <= AECM_BAD_PARAMETER_ERROR)
+            return mValues[ERRORS + errorCode - AECM_UNSPECIFIED_ERROR];
+        if (errorCode == AECM_BAD_PARAMETER_WARNING)
+            return mValues[ERRORS + ERROR_CODES - 2];
+        if (errorCode == OTHER_ERROR)
+            return mValues[ERRORS + ERROR_CODES - 1];
+        return 0;
+    }
+
+    /**
+     * @return total native processing time of the near-end frames in ns.
+     */
+    public long getProcessTimeTotalNs() {
+        return mValues[PROCESS_TIME_TOTAL_NS];
+    }
+
+    /**
+     * @return the longest native processing time of one near-end frame in ns.
+     */
+    public long getProcessTimeMaxNs() {
+        return mValues[PROCESS_TIME_MAX_NS];
+    }
+
+    /**
+     * @return average native processing time of one near-end frame in ns or 0 if nothing is processed yet.
+     */
+    public long getProcessTimeAverageNs() {
+        long frames = 0;
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) frames += mValues[PROCESS_TIME_HISTOGRAM + i];
+        return frames == 0 ? 0 : mValues[PROCESS_TIME_TOTAL_NS] / frames;
+    }
+
+    /**
+     * @param bucket - index of the bucket, from 0 to {@link #HISTOGRAM_BUCKETS} - 1.
+     * @return number of near-end frames whose native processing time falls into the bucket.
+     */
+    public long getHistogramCount(int bucket) {
+        return mValues[PROCESS_TIME_HISTOGRAM + bucket];
+    }
+
+    /**
+     * Bucket 0 holds the frames processed in less than 25 us, every next bucket doubles the bound and the last one
+     * holds everything slower than the previous bound.
+     *
+     * @param bucket - index of the bucket, from 0 to {@link #HISTOGRAM_BUCKETS} - 1.
+     * @return exclusive upper bound of the bucket in ns, {@link Long#MAX_VALUE} for the last one.
+     */
+    public static long getHistogramBucketUpperBoundNs(int bucket) {
+        return bucket >= HISTOGRAM_BUCKETS - 1 ? Long.MAX_VALUE : HISTOGRAM_FIRST_BOUND_NS << bucket;
+    }
+
+    /**
+     * @return number of far-end samples buffered but not consumed by the AECM instance yet.
+     */
+    public int getFarendBufferSamples() {
+        return (int) mValues[FAREND_BUFFER_SAMPLES];
+    }
+
+    /**
+     * @return delay currently compensated by the AECM instance in ms.
+     */
+    public int getKnownDelayMs() {
+        return (int) mValues[KNOWN_DELAY_MS];
+    }
+
+    /**
+     * @return true while the AECM instance is in its start up phase, in which the far-end buffer is being filled up
+     *         to the reported delay and the near-end is not processed yet.
+     */
+    public boolean isStartup() {
+        return mValues[STARTUP] != 0;
+    }
+
+    /**
+     * @return current suppression gain the AECM instance scales its echo estimate with, 1 is the default, higher values
+     *         suppress more, 0 while the far-end is too weak to cause an echo.
+     */
+    public float getSuppressionGain() {
+        return mValues[SUPPRESSION_GAIN] / 256f;
+    }
+
+    /**
+     * @return number of blocks of 64 samples the AECM core has processed, a frame is made of 1.25 (8000 Hz) or 2.5
+     *         (16000 Hz and above) blocks.
+     */
+    public long getBlocks() {
+        return mValues[BLOCKS];
+    }
+
+    /**
+     * @return number of blocks passed through by the far-end silence gate without adaptive processing, see
+     *         {@link AEC#setFarendSilenceGate(boolean)}.
+     */
+    public long getGatedBlocks() {
+        return mValues[GATED_BLOCKS];
+    }
+
+    /**
+     * @return measured drift of the far-end clock against the near-end clock in ppm, positive if the far-end comes
+     *         faster than the near-end, 0 until {@link #isDriftEstimated()}. See {@link AEC#setDriftCompensation(boolean)}.
+     */
+    public int getDriftPpm() {
+        return (int) mValues[DRIFT_PPM];
+    }
+
+    /**
+     * @return true once the instance has seen enough frames after its start up phase to estimate the clock drift.
+     */
+    public boolean isDriftEstimated() {
+        return mValues[DRIFT_ESTIMATED] != 0;
+    }
+
+    /**
+     * @return rate correction in ppm the far-end is currently resampled with, 0 while the drift compensation is
+     *         disabled or the drift is not estimated yet.
+     */
+    public int getDriftCompensationPpm() {
+        return (int) mValues[DRIFT_COMPENSATION_PPM];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder histogram = new StringBuilder();
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            if (i > 0) histogram.append(", ");
+            histogram.append(getHistogramCount(i));
+        }
+        return "AecStats{farendFrames=" + getFarendFrames()
+                + ", processedFrames=" + getProcessedFrames()
+                + ", failedCalls=" + getFailedCalls()
+                + ", processTimeAverageNs=" + getProcessTimeAverageNs()
+                + ", processTimeMaxNs=" + getProcessTimeMaxNs()
+                + ", histogram=[" + histogram + "]"
+                + ", farendBufferSamples=" + getFarendBufferSamples()
+                + ", knownDelayMs=" + getKnownDelayMs()
+                + ", startup=" + isStartup()
+                + ", suppressionGain=" + getSuppressionGain()
+                + ", blocks=" + getBlocks()
+                + ", gatedBlocks=" + getGatedBlocks()
+                + ", driftPpm=" + getDriftPpm()
+                + ", driftEstimated=" + isDriftEstimated()
+                + ", driftCompensationPpm=" + getDriftCompensationPpm() + "}";
+    }
+}
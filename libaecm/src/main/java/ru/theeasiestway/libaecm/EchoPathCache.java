@@ -0,0 +1,166 @@
+package ru.theeasiestway.libaecm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Persistent cache of converged echo paths keyed by device and audio route, so that a new call can start from the
+ * channel the previous call on the same device and route converged to instead of converging from scratch.
+ * <p>
+ * The cache is a memory-mapped file with a fixed number of slots, the least recently stored entry is replaced when
+ * all slots are taken. Layout (little endian):
+ * <pre>
+ * header: int magic, int version, int slots, int echo path length
+ * slot:   long key hash (0 - empty), long last store time in ms, int sampling frequency, int reserved,
+ *         short[echo path length] echo path
+ * </pre>
+ * Methods are synchronized, the file must not be shared by several processes.
+ */
+public class EchoPathCache implements Closeable {
+
+    private static final String TAG = "AECM_LOG";
+
+    private static final int MAGIC = 0x50434541; // "AECP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_HEADER_SIZE = 24;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mSlots;
+    private final int mSlotSize;
+
+    /**
+     * open or create the cache file. A file written with another number of slots or another echo path length is
+     * cleared.
+     *
+     * @param file - file the cache is persisted in.
+     * @param slots - number of device/route entries the cache holds.
+     */
+    public EchoPathCache(File file, int slots) throws IOException {
+        if (slots <= 0) throw new IllegalArgumentException("slots <= 0");
+
+        mSlots = slots;
+        mSlotSize = SLOT_HEADER_SIZE + AEC.ECHO_PATH_LENGTH * 2;
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) mSlots * mSlotSize);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION || mBuffer.getInt(8) != mSlots
+                || mBuffer.getInt(12) != AEC.ECHO_PATH_LENGTH) {
+            AecLog.d(TAG, "EchoPathCache " + file + " has another layout, it is cleared");
+            clear();
+        }
+    }
+
+    /**
+     * warm-start an AECM instance with the echo path stored for the device and route.
+     *
+     * @param device - device identifier, for example Build.MODEL or the id of an external audio device.
+     * @param route - audio route, for example "speaker", "earpiece" or "headset".
+     * @param aec - prepared instance, its sampling frequency is part of the key.
+     * @return true if an echo path was found and imported.
+     */
+    public synchronized boolean load(String device, String route, AEC aec) {
+        int fs = aec.getSampFreq().getFS();
+        int slot = find(hash(device, route, fs));
+        if (slot == -1) return false;
+
+        short[] echoPath = new short[AEC.ECHO_PATH_LENGTH];
+        int offset = slotOffset(slot) + SLOT_HEADER_SIZE;
+        for (int i = 0; i < echoPath.length; i++) echoPath[i] = mBuffer.getShort(offset + i * 2);
+
+        return aec.importEchoPath(echoPath) != null;
+    }
+
+    /**
+     * store the echo path an AECM instance has converged to, usually at the end of a call.
+     *
+     * @param device - device identifier, see {@link #load(String, String, AEC)}.
+     * @param route - audio route, see {@link #load(String, String, AEC)}.
+     * @param aec - prepared instance, its sampling frequency is part of the key.
+     * @return true if the echo path was stored.
+     */
+    public synchronized boolean store(String device, String route, AEC aec) {
+        short[] echoPath = aec.exportEchoPath();
+        if (echoPath == null) return false;
+
+        int fs = aec.getSampFreq().getFS();
+        long key = hash(device, route, fs);
+        int slot = find(key);
+        if (slot == -1) slot = leastRecentlyStored();
+
+        int offset = slotOffset(slot);
+        mBuffer.putLong(offset, key);
+        mBuffer.putLong(offset + 8, System.currentTimeMillis());
+        mBuffer.putInt(offset + 16, fs);
+        mBuffer.putInt(offset + 20, 0);
+        for (int i = 0; i < echoPath.length; i++) mBuffer.putShort(offset + SLOT_HEADER_SIZE + i * 2, echoPath[i]);
+
+        return true;
+    }
+
+    /**
+     * remove all entries.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mBuffer.capacity(); i++) mBuffer.put(i, (byte) 0);
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(8, mSlots);
+        mBuffer.putInt(12, AEC.ECHO_PATH_LENGTH);
+    }
+
+    /**
+     * write the entries to the file and close it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        mBuffer.force();
+        mFile.close();
+    }
+
+    private int find(long key) {
+        for (int slot = 0; slot < mSlots; slot++) {
+            if (mBuffer.getLong(slotOffset(slot)) == key) return slot;
+        }
+        return -1;
+    }
+
+    private int leastRecentlyStored() {
+        int oldest = 0;
+        for (int slot = 0; slot < mSlots; slot++) {
+            int offset = slotOffset(slot);
+            if (mBuffer.getLong(offset) == 0) return slot;
+            if (mBuffer.getLong(offset + 8) < mBuffer.getLong(slotOffset(oldest) + 8)) oldest = slot;
+        }
+        return oldest;
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * mSlotSize;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the key, never 0 because 0 marks an empty slot.
+     */
+    private static long hash(String device, String route, int fs) {
+        String key = device + '\u0000' + route + '\u0000' + fs;
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
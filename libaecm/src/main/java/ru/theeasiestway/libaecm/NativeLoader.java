@@ -0,0 +1,89 @@
+package ru.theeasiestway.libaecm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Loads libAEC on Android and on plain JVMs. The library is looked up in this order:
+ * <ol>
+ * <li>the file named by the "aecm.library" system property;</li>
+ * <li>System.loadLibrary(), which finds it in an APK or on java.library.path;</li>
+ * <li>native/linux-ARCH/libAEC.so inside the JAR of the library, for x86_64 and aarch64, which is extracted to a
+ * temporary file first.</li>
+ * </ol>
+ */
+final class NativeLoader {
+
+    private static final String TAG = "AECM_LOG";
+    private static final String LIBRARY = "AEC";
+
+    private NativeLoader() {}
+
+    /**
+     * @return true if the library is loaded.
+     */
+    static boolean load() {
+        String path = System.getProperty("aecm.library");
+        if (path != null) {
+            try {
+                System.load(new File(path).getAbsolutePath());
+                return true;
+            } catch (UnsatisfiedLinkError e) {
+                AecLog.d(TAG, "Can't load AECM library " + path + ": " + e);
+                return false;
+            }
+        }
+
+        UnsatisfiedLinkError error;
+        try {
+            System.loadLibrary(LIBRARY);
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            error = e;
+        }
+
+        String platform = platform();
+        InputStream in = platform != null
+                ? NativeLoader.class.getResourceAsStream("/native/" + platform + "/" + System.mapLibraryName(LIBRARY))
+                : null;
+        if (in == null) {
+            AecLog.d(TAG, "Can't load AECM library: " + error);
+            return false;
+        }
+        try {
+            File file = extract(in);
+            System.load(file.getAbsolutePath());
+            return true;
+        } catch (IOException | UnsatisfiedLinkError e) {
+            AecLog.d(TAG, "Can't load AECM library from the JAR: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the directory of the bundled library for this JVM, like linux-x86_64, or null if none is bundled.
+     */
+    private static String platform() {
+        String os = System.getProperty("os.name", "").toLowerCase(Locale.ROOT);
+        String arch = System.getProperty("os.arch", "").toLowerCase(Locale.ROOT);
+        if (!os.startsWith("linux")) return null;
+        if (arch.equals("amd64") || arch.equals("x86_64")) return "linux-x86_64";
+        if (arch.equals("aarch64") || arch.equals("arm64")) return "linux-aarch64";
+        return null;
+    }
+
+    private static File extract(InputStream in) throws IOException {
+        File file = File.createTempFile("libAEC", ".so");
+        file.deleteOnExit();
+        try (InputStream input = in; OutputStream out = new FileOutputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) out.write(buffer, 0, read);
+        }
+        return file;
+    }
+}
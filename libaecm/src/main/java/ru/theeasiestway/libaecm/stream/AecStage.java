@@ -0,0 +1,89 @@
+package ru.theeasiestway.libaecm.stream;
+
+import ru.theeasiestway.libaecm.AEC;
+
+/**
+ * Echo cancellation stage around a prepared {@link AEC AEC} instance. The far-end frames arrive on another thread,
+ * usually the one playing them, through {@link #farend()}: they are copied into preallocated frames and buffered in
+ * the AEC by the processing thread right before the next near-end frame, so the AEC is only used from one thread.
+ */
+public class AecStage implements FrameStage {
+
+    private static final int FAREND_FRAMES = 16; // far-end frames waiting for the processing thread at most.
+
+    private final AEC mAec;
+    private final FramePool mFarendPool;
+    private final FrameQueue mFarend = new FrameQueue(FAREND_FRAMES);
+    private final FrameSink mFarendSink = this::bufferFarend;
+    private volatile int mDelayMs;
+    private volatile long mFarendDrops;
+
+    /**
+     * @param aec - prepared AEC instance for frames of frameSize samples, it must not be used by anybody else while
+     *            the pipeline is running.
+     * @param frameSize - number of samples in one frame of the pipeline.
+     * @param delayMs - fixed delay for sound card and system buffers, or -1 to estimate it from the times of the
+     *                frames, see {@link AEC#echoCancellationAt(short[], short[], short[], int, long)}.
+     */
+    public AecStage(AEC aec, int frameSize, int delayMs) {
+        mAec = aec;
+        mFarendPool = new FramePool(FAREND_FRAMES, frameSize);
+        mDelayMs = delayMs;
+    }
+
+    /**
+     * @return sink of the far-end frames, thread-safe and never blocking. When the processing thread falls behind by
+     *         more than 16 frames the oldest far-end frames are dropped. The frames must have the frame size of the
+     *         stage and, with a delay of -1, their render time.
+     */
+    public FrameSink farend() {
+        return mFarendSink;
+    }
+
+    /**
+     * @param delayMs - fixed delay for sound card and system buffers or -1 to estimate it from the times of the frames.
+     */
+    public void setDelayMs(int delayMs) {
+        mDelayMs = delayMs;
+    }
+
+    /**
+     * @return number of far-end frames dropped because the processing thread fell behind.
+     */
+    public long getFarendDrops() {
+        return mFarendDrops;
+    }
+
+    public AEC getAec() {
+        return mAec;
+    }
+
+    @Override
+    public void process(AudioFrame frame) {
+        int delayMs = mDelayMs;
+        AudioFrame farend;
+        while ((farend = mFarend.poll()) != null) {
+            if (delayMs < 0) mAec.farendBufferAt(farend.getSamples(), farend.getLength(), farend.getTimeNs());
+            else mAec.farendBuffer(farend.getSamples(), farend.getLength());
+            mFarendPool.release(farend);
+        }
+
+        short[] samples = frame.getSamples();
+        if (delayMs < 0) mAec.echoCancellationAt(samples, null, samples, samples.length, frame.getTimeNs());
+        else mAec.echoCancellation(samples, null, samples, samples.length, delayMs);
+    }
+
+    private void bufferFarend(AudioFrame frame) {
+        AudioFrame copy;
+        synchronized (mFarend) {
+            copy = mFarendPool.tryAcquire();
+            if (copy == null) {
+                // every frame is queued, reuse the oldest one.
+                copy = mFarend.poll();
+                mFarendDrops++;
+            }
+            copy.copyFrom(frame);
+            mFarend.offer(copy);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ru.theeasiestway.libaecm.stream;
+
+/**
+ * One frame of mono 16 bit PCM travelling through a {@link StreamPipeline StreamPipeline}. Frames are preallocated by
+ * a {@link FramePool FramePool} and handed from thread to thread, only the stage which currently owns a frame may
+ * touch it.
+ */
+public final class AudioFrame {
+
+    private final FramePool mPool;
+    private final short[] mSamples;
+    private long mTimeNs; // System.nanoTime() based time of the first sample, -1 if unknown.
+
+    AudioFrame(FramePool pool, int frameSize) {
+        mPool = pool;
+        mSamples = new short[frameSize];
+        mTimeNs = -1;
+    }
+
+    /**
+     * @return the samples of the frame, processed in place by the stages.
+     */
+    public short[] getSamples() {
+        return mSamples;
+    }
+
+    /**
+     * @return number of samples in the frame.
+     */
+    public int getLength() {
+        return mSamples.length;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} based time the first sample was captured (or is played out on the far-end
+     *         path), -1 if it is unknown.
+     */
+    public long getTimeNs() {
+        return mTimeNs;
+    }
+
+    /**
+     * @param timeNs - {@link System#nanoTime()} based time of the first sample or -1 if it is unknown.
+     */
+    public void setTimeNs(long timeNs) {
+        mTimeNs = timeNs;
+    }
+
+    /**
+     * copy the samples and the time of another frame of the same length.
+     */
+    public void copyFrom(AudioFrame frame) {
+        System.arraycopy(frame.mSamples, 0, mSamples, 0, mSamples.length);
+        mTimeNs = frame.mTimeNs;
+    }
+
+    FramePool getPool() {
+        return mPool;
+    }
+}
@@ -0,0 +1,49 @@
+package ru.theeasiestway.libaecm.stream;
+
+/**
+ * Fills the frames whose level falls below a floor with white noise up to that floor. Aggressive echo suppression
+ * leaves dead silence between the words of the far end, which sounds like a dropped call; a constant noise floor
+ * hides the gating. The noise comes from a xorshift generator, nothing is allocated.
+ */
+public class ComfortNoiseStage implements FrameStage {
+
+    private volatile float mFloor; // RMS level of the floor.
+    private int mSeed = 0x2545F491;
+
+    /**
+     * @param floorDbfs - RMS level of the noise floor in dBFS, for example -70.
+     */
+    public ComfortNoiseStage(float floorDbfs) {
+        setFloorDbfs(floorDbfs);
+    }
+
+    /**
+     * @param floorDbfs - RMS level of the noise floor in dBFS, may be changed from any thread while the pipeline is
+     *                  running.
+     */
+    public void setFloorDbfs(float floorDbfs) {
+        mFloor = Short.MAX_VALUE * (float) Math.pow(10, floorDbfs / 20);
+    }
+
+    @Override
+    public void process(AudioFrame frame) {
+        short[] samples = frame.getSamples();
+        double energy = 0;
+        for (short sample : samples) energy += sample * sample;
+        float floor = mFloor;
+        double missing = floor * floor - energy / samples.length;
+        if (missing <= 0) return;
+
+        // uniform noise in [-a, a) has the RMS level a / sqrt(3).
+        float amplitude = (float) Math.sqrt(3 * missing) / (1 << 15);
+        int seed = mSeed;
+        for (int i = 0; i < samples.length; i++) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            int value = samples[i] + Math.round((seed >> 16) * amplitude);
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
+        mSeed = seed;
+    }
+}
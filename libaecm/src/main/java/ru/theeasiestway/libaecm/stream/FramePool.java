@@ -0,0 +1,80 @@
+package ru.theeasiestway.libaecm.stream;
+
+/**
+ * Fixed set of preallocated {@link AudioFrame frames} of one size. A pool can be shared by several pipelines, which
+ * then wait for each other when it is exhausted. It is thread-safe and never allocates after it is created.
+ */
+public final class FramePool {
+
+    private final int mFrameSize;
+    private final AudioFrame[] mFree; // stack of the frames which are not in use.
+    private int mFreeCount;
+
+    /**
+     * @param frames - number of frames in the pool.
+     * @param frameSize - number of samples in one frame.
+     */
+    public FramePool(int frames, int frameSize) {
+        if (frames <= 0) throw new IllegalArgumentException("frames <= 0");
+        if (frameSize <= 0) throw new IllegalArgumentException("frameSize <= 0");
+        mFrameSize = frameSize;
+        mFree = new AudioFrame[frames];
+        for (int i = 0; i < frames; i++) mFree[i] = new AudioFrame(this, frameSize);
+        mFreeCount = frames;
+    }
+
+    /**
+     * @return number of samples in every frame of the pool.
+     */
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * @return number of frames in the pool.
+     */
+    public int getCapacity() {
+        return mFree.length;
+    }
+
+    /**
+     * @return number of frames which are not in use, only a snapshot.
+     */
+    public synchronized int getAvailable() {
+        return mFreeCount;
+    }
+
+    /**
+     * take a frame, waiting until one is released if the pool is exhausted.
+     */
+    public synchronized AudioFrame acquire() throws InterruptedException {
+        while (mFreeCount == 0) wait();
+        return take();
+    }
+
+    /**
+     * @return a frame or null if the pool is exhausted.
+     */
+    public synchronized AudioFrame tryAcquire() {
+        return mFreeCount == 0 ? null : take();
+    }
+
+    /**
+     * give a frame back to the pool, its samples are left as they are.
+     *
+     * @param frame - frame taken from this pool.
+     */
+    public synchronized void release(AudioFrame frame) {
+        if (frame.getPool() != this) throw new IllegalArgumentException("the frame belongs to another pool");
+        if (mFreeCount == mFree.length) throw new IllegalStateException("the frame is released twice");
+        mFree[mFreeCount++] = frame;
+        if (mFreeCount == 1) notifyAll();
+    }
+
+    private AudioFrame take() {
+        AudioFrame frame = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        frame.setTimeNs(-1);
+        return frame;
+    }
+}
@@ -0,0 +1,107 @@
+package ru.theeasiestway.libaecm.stream;
+
+/**
+ * Bounded queue of frames between two threads of a {@link StreamPipeline StreamPipeline}. A full queue either blocks
+ * the producer, which passes the backpressure on to the previous stage, or drops its oldest frame, see
+ * {@link StreamPipeline.Overflow StreamPipeline.Overflow}. It uses the monitor of the queue, so nothing is allocated
+ * by the hand-offs.
+ */
+final class FrameQueue {
+
+    private final AudioFrame[] mFrames;
+    private int mHead;
+    private int mSize;
+    private boolean mClosed;
+
+    /**
+     * @param capacity - maximum number of frames in the queue.
+     */
+    FrameQueue(int capacity) {
+        mFrames = new AudioFrame[capacity];
+    }
+
+    int getCapacity() {
+        return mFrames.length;
+    }
+
+    /**
+     * add a frame, waiting while the queue is full.
+     *
+     * @return false if the queue is closed, the frame is not added then.
+     */
+    synchronized boolean put(AudioFrame frame) throws InterruptedException {
+        while (mSize == mFrames.length && !mClosed) wait();
+        if (mClosed) return false;
+        add(frame);
+        return true;
+    }
+
+    /**
+     * add a frame, dropping the oldest one if the queue is full.
+     *
+     * @return the frame which didn't make it into the queue and has to be released: the dropped one, the given one if
+     *         the queue is closed or null.
+     */
+    synchronized AudioFrame putDropOldest(AudioFrame frame) {
+        if (mClosed) return frame;
+        AudioFrame dropped = mSize == mFrames.length ? remove() : null;
+        add(frame);
+        return dropped;
+    }
+
+    /**
+     * @return false if the queue is full or closed, the frame is not added then.
+     */
+    synchronized boolean offer(AudioFrame frame) {
+        if (mClosed || mSize == mFrames.length) return false;
+        add(frame);
+        return true;
+    }
+
+    /**
+     * take the oldest frame, waiting while the queue is empty.
+     *
+     * @return the frame or null once the queue is closed and empty.
+     */
+    synchronized AudioFrame take() throws InterruptedException {
+        while (mSize == 0 && !mClosed) wait();
+        return mSize == 0 ? null : remove();
+    }
+
+    /**
+     * @return the oldest frame or null if the queue is empty.
+     */
+    synchronized AudioFrame poll() {
+        return mSize == 0 ? null : remove();
+    }
+
+    /**
+     * reject the frames added from now on, the frames in the queue can still be taken.
+     */
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * release every frame in the queue and open it again, called while no thread uses the queue.
+     */
+    synchronized void reset() {
+        AudioFrame frame;
+        while ((frame = poll()) != null) frame.getPool().release(frame);
+        mClosed = false;
+    }
+
+    private void add(AudioFrame frame) {
+        mFrames[(mHead + mSize) % mFrames.length] = frame;
+        if (mSize++ == 0) notifyAll();
+    }
+
+    private AudioFrame remove() {
+        AudioFrame frame = mFrames[mHead];
+        mFrames[mHead] = null;
+        mHead = (mHead + 1) % mFrames.length;
+        if (mSize-- == mFrames.length) notifyAll();
+        return frame;
+    }
+}
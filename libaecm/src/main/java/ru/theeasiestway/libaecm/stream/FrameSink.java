@@ -0,0 +1,14 @@
+package ru.theeasiestway.libaecm.stream;
+
+/**
+ * Consumes the processed frames of a {@link StreamPipeline StreamPipeline}, for example an AudioTrack or an encoder.
+ * It is called on the sink thread of the pipeline only, the frame goes back to the pool when the call returns, so a
+ * sink which needs the samples later must copy them.
+ */
+public interface FrameSink {
+
+    /**
+     * @param frame - processed frame, it must not be kept after the call.
+     */
+    void write(AudioFrame frame) throws InterruptedException;
+}
@@ -0,0 +1,17 @@
+package ru.theeasiestway.libaecm.stream;
+
+/**
+ * Produces the frames of a {@link StreamPipeline StreamPipeline}, for example from an AudioRecord or a file. It is
+ * called on the source thread of the pipeline only.
+ */
+public interface FrameSource {
+
+    /**
+     * fill a frame taken from the pool of the pipeline. The call may block until a frame is available, but it should
+     * return when the source thread is interrupted by {@link StreamPipeline#stop()}.
+     *
+     * @param frame - frame to fill, its samples and its time.
+     * @return false at the end of the stream, the frames already read are still processed and written.
+     */
+    boolean read(AudioFrame frame) throws InterruptedException;
+}
@@ -0,0 +1,13 @@
+package ru.theeasiestway.libaecm.stream;
+
+/**
+ * One processing step of a {@link StreamPipeline StreamPipeline}. The stages of a pipeline run one after another on
+ * its processing thread and process every frame in place, so they add no latency and allocate nothing.
+ */
+public interface FrameStage {
+
+    /**
+     * @param frame - frame to process in place.
+     */
+    void process(AudioFrame frame);
+}
@@ -0,0 +1,35 @@
+package ru.theeasiestway.libaecm.stream;
+
+/**
+ * Constant gain, for example to bring a quiet microphone up to the level the AEC expects. The samples are saturated
+ * to 16 bits.
+ */
+public class GainStage implements FrameStage {
+
+    private volatile float mGain;
+
+    /**
+     * @param gainDb - gain in dB, may be negative.
+     */
+    public GainStage(float gainDb) {
+        setGainDb(gainDb);
+    }
+
+    /**
+     * @param gainDb - gain in dB, may be changed from any thread while the pipeline is running.
+     */
+    public void setGainDb(float gainDb) {
+        mGain = (float) Math.pow(10, gainDb / 20);
+    }
+
+    @Override
+    public void process(AudioFrame frame) {
+        float gain = mGain;
+        if (gain == 1f) return;
+        short[] samples = frame.getSamples();
+        for (int i = 0; i < samples.length; i++) {
+            int value = Math.round(samples[i] * gain);
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
+    }
+}
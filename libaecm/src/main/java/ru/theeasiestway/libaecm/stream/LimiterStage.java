@@ -0,0 +1,35 @@
+package ru.theeasiestway.libaecm.stream;
+
+/**
+ * Peak limiter which keeps the output below a threshold. The attack is instant, so no sample exceeds the threshold,
+ * and the gain recovers exponentially with the release time.
+ */
+public class LimiterStage implements FrameStage {
+
+    private final float mThreshold;
+    private final float mRelease; // decay of the envelope per sample.
+    private float mEnvelope;
+
+    /**
+     * @param thresholdDbfs - highest output level in dBFS, for example -1.
+     * @param releaseMs - time the gain needs to recover by about 63% once the peaks are gone.
+     * @param sampleRate - sampling frequency of the frames.
+     */
+    public LimiterStage(float thresholdDbfs, int releaseMs, int sampleRate) {
+        if (releaseMs <= 0) throw new IllegalArgumentException("releaseMs <= 0");
+        mThreshold = Short.MAX_VALUE * (float) Math.pow(10, Math.min(0, thresholdDbfs) / 20);
+        mRelease = (float) Math.exp(-1000.0 / ((double) releaseMs * sampleRate));
+    }
+
+    @Override
+    public void process(AudioFrame frame) {
+        short[] samples = frame.getSamples();
+        float envelope = mEnvelope;
+        for (int i = 0; i < samples.length; i++) {
+            float level = Math.abs((float) samples[i]);
+            envelope = level > envelope ? level : envelope * mRelease;
+            if (envelope > mThreshold) samples[i] = (short) (samples[i] * (mThreshold / envelope));
+        }
+        mEnvelope = envelope;
+    }
+}
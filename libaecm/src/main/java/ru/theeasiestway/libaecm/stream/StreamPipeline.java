@@ -0,0 +1,385 @@
+package ru.theeasiestway.libaecm.stream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import ru.theeasiestway.libaecm.AecLog;
+
+/**
+ * Push-based chain of {@link FrameStage stages} between a {@link FrameSource FrameSource} and a
+ * {@link FrameSink FrameSink}, for example input gain, {@link AecStage AEC}, comfort noise and an output limiter:
+ * <pre>
+ *  source ---input---> stage 1 ... stage n ---output---> sink
+ *    ^                                                     |
+ *    +----------------------- pool ------------------------+
+ * </pre>
+ * The source, the stages and the sink run on their own threads, so a blocking read or write doesn't stall the
+ * processing. The frames come from a {@link FramePool FramePool} and flow through two bounded queues, nothing is
+ * allocated while the pipeline is running and at most {@link #getMaxLatencyFrames()} frames are between the source
+ * and the sink. Without a source the frames are pushed by the caller with {@link #push(short[], int, long)}.
+ * <pre>
+ *  StreamPipeline pipeline = new StreamPipeline.Builder(160)
+ *          .source(microphone)
+ *          .stage(new GainStage(6))
+ *          .stage(aecStage)
+ *          .stage(new LimiterStage(-1, 50, 16000))
+ *          .sink(encoder)
+ *          .build();
+ *  pipeline.start();
+ * </pre>
+ */
+public class StreamPipeline {
+
+    private static final String TAG = "AECM_LOG";
+
+    /**
+     * What a thread does when the queue to the next thread is full.
+     */
+    public enum Overflow {
+        /**
+         * wait until there is room, which in turn holds the source back. Nothing is lost, but a slow sink delays
+         * everything before it.
+         */
+        BLOCK,
+        /**
+         * drop the oldest queued frame, which keeps the latency bounded when the sink is slower than the source, for
+         * example a speaker running a bit slower than the microphone.
+         */
+        DROP_OLDEST
+    }
+
+    private final FramePool mPool;
+    private final FrameSource mSource;
+    private final FrameStage[] mStages;
+    private final FrameSink mSink;
+    private final Overflow mOverflow;
+    private final ThreadFactory mThreadFactory;
+    private final FrameQueue mInput;
+    private final FrameQueue mOutput;
+
+    private volatile boolean mRunning;
+    private Thread mSourceThread;
+    private Thread mProcessingThread;
+    private Thread mSinkThread;
+
+    // every counter below is written by a single thread, but the drops of push() may come from any thread.
+    private volatile long mProcessedFrames;
+    private volatile long mWrittenFrames;
+    private volatile long mInputDrops;
+    private volatile long mOutputDrops;
+
+    private StreamPipeline(Builder builder) {
+        mPool = builder.mPool != null ? builder.mPool
+                // one frame in every queue slot and one held by every thread, so the pool is never exhausted.
+                : new FramePool(2 * builder.mQueueFrames + 3, builder.mFrameSize);
+        mSource = builder.mSource;
+        mStages = builder.mStages.toArray(new FrameStage[0]);
+        mSink = builder.mSink;
+        mOverflow = builder.mOverflow;
+        mThreadFactory = builder.mThreadFactory;
+        mInput = new FrameQueue(builder.mQueueFrames);
+        mOutput = new FrameQueue(builder.mQueueFrames);
+    }
+
+    /**
+     * start the threads of the pipeline, the queues are emptied first.
+     */
+    public synchronized void start() {
+        if (mRunning) return;
+        mInput.reset();
+        mOutput.reset();
+        mProcessedFrames = mWrittenFrames = mInputDrops = mOutputDrops = 0;
+
+        mRunning = true;
+        mProcessingThread = newThread(this::process, "aecm-stream-processing");
+        mSinkThread = newThread(this::drain, "aecm-stream-sink");
+        mSourceThread = mSource != null ? newThread(this::read, "aecm-stream-source") : null;
+        mProcessingThread.start();
+        mSinkThread.start();
+        if (mSourceThread != null) mSourceThread.start();
+    }
+
+    /**
+     * stop the threads and wait for them, the queued frames are dropped. The stages, the source and the sink are not
+     * used by the pipeline when it returns.
+     */
+    public synchronized void stop() {
+        if (mProcessingThread == null) return;
+        mRunning = false;
+        mInput.close();
+        mOutput.close();
+        boolean interrupted = false;
+        for (Thread thread : new Thread[] {mSourceThread, mProcessingThread, mSinkThread}) {
+            if (thread == null) continue;
+            thread.interrupt();
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        mSourceThread = mProcessingThread = mSinkThread = null;
+        mInput.reset();
+        mOutput.reset();
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * end the stream pushed with {@link #push(short[], int, long)}: the frames already pushed are processed and
+     * written, then the threads finish, see {@link #await()}.
+     */
+    public void finish() {
+        mInput.close();
+    }
+
+    /**
+     * wait until the stream has ended and every frame is written, then release the threads like {@link #stop()}.
+     */
+    public void await() throws InterruptedException {
+        Thread sink;
+        synchronized (this) {
+            sink = mSinkThread;
+        }
+        if (sink != null) sink.join();
+        stop();
+    }
+
+    /**
+     * copy one frame into the pipeline, for callers which get the audio from a callback instead of a
+     * {@link FrameSource FrameSource}. It waits for a free frame and, with {@link Overflow#BLOCK BLOCK}, for room in
+     * the queue.
+     *
+     * @param samples - array holding at least one frame of samples from offset.
+     * @param offset - index of the first sample in samples.
+     * @param timeNs - {@link System#nanoTime()} based time the first sample was captured or -1.
+     * @return false if the pipeline is not running.
+     */
+    public boolean push(short[] samples, int offset, long timeNs) throws InterruptedException {
+        if (!mRunning) return false;
+        AudioFrame frame = mPool.acquire();
+        System.arraycopy(samples, offset, frame.getSamples(), 0, frame.getLength());
+        frame.setTimeNs(timeNs);
+        return enqueue(mInput, frame, true);
+    }
+
+    /**
+     * @return the most frames which can be between the source and the sink: the frames in both queues and the frame
+     *         being processed. The latency of the pipeline is at most that many frames on top of the source and the
+     *         sink.
+     */
+    public int getMaxLatencyFrames() {
+        return mInput.getCapacity() + mOutput.getCapacity() + 1;
+    }
+
+    /**
+     * @return the pool the frames of the pipeline come from.
+     */
+    public FramePool getPool() {
+        return mPool;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return number of frames which went through all the stages since start().
+     */
+    public long getProcessedFrames() {
+        return mProcessedFrames;
+    }
+
+    /**
+     * @return number of frames handed to the sink since start().
+     */
+    public long getWrittenFrames() {
+        return mWrittenFrames;
+    }
+
+    /**
+     * @return number of frames dropped by full queues since start(), always 0 with {@link Overflow#BLOCK BLOCK}.
+     */
+    public long getDroppedFrames() {
+        return mInputDrops + mOutputDrops;
+    }
+
+    // ////////////////////////////////////////////////////////
+    // THREADS
+
+    private void read() {
+        try {
+            while (mRunning) {
+                AudioFrame frame = mPool.acquire();
+                if (!mSource.read(frame)) {
+                    mPool.release(frame);
+                    break;
+                }
+                if (!enqueue(mInput, frame, true)) break;
+            }
+        } catch (InterruptedException ignored) {
+        } catch (RuntimeException e) {
+            AecLog.d(TAG, "StreamPipeline source failed: " + e);
+        }
+        mInput.close();
+    }
+
+    private void process() {
+        try {
+            AudioFrame frame;
+            while ((frame = mInput.take()) != null) {
+                for (FrameStage stage : mStages) stage.process(frame);
+                mProcessedFrames++;
+                if (!enqueue(mOutput, frame, false)) break;
+            }
+        } catch (InterruptedException ignored) {
+        } catch (RuntimeException e) {
+            AecLog.d(TAG, "StreamPipeline stage failed: " + e);
+            mInput.close();
+        }
+        mOutput.close();
+    }
+
+    private void drain() {
+        try {
+            AudioFrame frame;
+            while ((frame = mOutput.take()) != null) {
+                try {
+                    mSink.write(frame);
+                } finally {
+                    mPool.release(frame);
+                }
+                mWrittenFrames++;
+            }
+        } catch (InterruptedException ignored) {
+        } catch (RuntimeException e) {
+            AecLog.d(TAG, "StreamPipeline sink failed: " + e);
+            mInput.close();
+            mOutput.close();
+        }
+        mRunning = false;
+    }
+
+    // ////////////////////////////////////////////////////////
+    // PRIVATE METHODS
+
+    /**
+     * @return false if the queue is closed, the frame is released then.
+     */
+    private boolean enqueue(FrameQueue queue, AudioFrame frame, boolean input) throws InterruptedException {
+        if (mOverflow == Overflow.BLOCK) {
+            if (queue.put(frame)) return true;
+            mPool.release(frame);
+            return false;
+        }
+        AudioFrame rejected = queue.putDropOldest(frame);
+        if (rejected == null) return true;
+        mPool.release(rejected);
+        if (rejected == frame) return false;
+        synchronized (queue) {
+            if (input) mInputDrops++;
+            else mOutputDrops++;
+        }
+        return true;
+    }
+
+    private Thread newThread(Runnable runnable, String name) {
+        Thread thread = mThreadFactory != null ? mThreadFactory.newThread(runnable) : new Thread(runnable);
+        thread.setName(name);
+        return thread;
+    }
+
+    /**
+     * Builder of a {@link StreamPipeline StreamPipeline}, only the frame size and the sink are required.
+     */
+    public static class Builder {
+
+        private final int mFrameSize;
+        private final List<FrameStage> mStages = new ArrayList<>();
+        private FrameSource mSource;
+        private FrameSink mSink;
+        private FramePool mPool;
+        private int mQueueFrames = 4;
+        private Overflow mOverflow = Overflow.BLOCK;
+        private ThreadFactory mThreadFactory;
+
+        /**
+         * @param frameSize - number of samples in one frame, for an {@link AecStage AecStage} one that the AEC
+         *                  accepts, 80 or 160.
+         */
+        public Builder(int frameSize) {
+            if (frameSize <= 0) throw new IllegalArgumentException("frameSize <= 0");
+            mFrameSize = frameSize;
+        }
+
+        /**
+         * @param source - source the frames are read from on its own thread, or null to push them with
+         *               {@link StreamPipeline#push(short[], int, long)}.
+         */
+        public Builder source(FrameSource source) {
+            mSource = source;
+            return this;
+        }
+
+        /**
+         * append a stage to the chain, the stages run in the order they are added.
+         */
+        public Builder stage(FrameStage stage) {
+            if (stage == null) throw new IllegalArgumentException("stage == null");
+            mStages.add(stage);
+            return this;
+        }
+
+        public Builder sink(FrameSink sink) {
+            mSink = sink;
+            return this;
+        }
+
+        /**
+         * @param pool - pool shared with other pipelines, by default every pipeline has a pool big enough to never
+         *             run out.
+         */
+        public Builder pool(FramePool pool) {
+            mPool = pool;
+            return this;
+        }
+
+        /**
+         * @param frames - capacity of the queue in front of the stages and of the queue in front of the sink, 4 by
+         *               default.
+         */
+        public Builder queueFrames(int frames) {
+            if (frames <= 0) throw new IllegalArgumentException("frames <= 0");
+            mQueueFrames = frames;
+            return this;
+        }
+
+        /**
+         * @param overflow - what to do when a queue is full, {@link Overflow#BLOCK BLOCK} by default.
+         */
+        public Builder overflow(Overflow overflow) {
+            if (overflow == null) throw new IllegalArgumentException("overflow == null");
+            mOverflow = overflow;
+            return this;
+        }
+
+        /**
+         * @param threadFactory - factory of the threads of the pipeline, for example one which raises them to the
+         *                      audio priority on Android. The threads are named by the pipeline.
+         */
+        public Builder threadFactory(ThreadFactory threadFactory) {
+            mThreadFactory = threadFactory;
+            return this;
+        }
+
+        public StreamPipeline build() {
+            if (mSink == null) throw new IllegalStateException("the pipeline has no sink");
+            if (mPool != null && mPool.getFrameSize() != mFrameSize) {
+                throw new IllegalStateException("the frames of the pool have " + mPool.getFrameSize() + " samples");
+            }
+            return new StreamPipeline(this);
+        }
+    }
+}